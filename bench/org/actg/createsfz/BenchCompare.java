@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare JMH results with a baseline, both in JMH's CSV format (-rf csv),
+ * and report the benchmarks whose score or allocation per operation has
+ * become worse by more than a tolerance.
+ *
+ * java org.actg.createsfz.BenchCompare BASELINE.csv RESULTS.csv [ TOLERANCE_PERCENT ]
+ *
+ * Exits with status 1 if anything has regressed.
+ */
+public class BenchCompare {
+
+    public static final double DEFAULT_TOLERANCE = 10.0; // percent
+    public static final String ALLOCATION = "gc.alloc.rate.norm"; // bytes per operation, from -prof gc
+
+    /**
+     * One result row.
+     */
+    protected static class Row {
+
+        String name; // benchmark and parameters
+        String mode;
+        double score;
+        String unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchCompare BASELINE.csv RESULTS.csv [ TOLERANCE_PERCENT ]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        Map<String, Row> baseline = read(args[0]);
+        Map<String, Row> results = read(args[1]);
+        int regressions = 0;
+        for (Row r : results.values()) {
+            boolean isAllocation = r.name.contains(ALLOCATION);
+            if (!isAllocation && r.name.contains(":")) {
+                continue; // other secondary results, e.g. gc counts
+            }
+            Row b = baseline.get(r.name);
+            if (b == null) {
+                System.out.println(String.format("%-70s %14.3f %-10s (no baseline)", r.name, r.score, r.unit));
+                continue;
+            }
+            // Throughput should not fall; time and allocation should not rise:
+            boolean higherIsBetter = r.mode.equals("thrpt") && !isAllocation;
+            double change = b.score != 0 ? 100.0 * (r.score - b.score) / b.score : 0.0;
+            boolean regressed = higherIsBetter ? change < -tolerance : change > tolerance;
+            if (isAllocation && Math.abs(r.score - b.score) < 64) {
+                regressed = false; // noise of a few objects
+            }
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-70s %14.3f %14.3f %-10s %+7.1f%%%s", r.name, b.score, r.score, r.unit,
+                    change, regressed ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regressions beyond " + tolerance + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    protected static Map<String, Row> read(String filename) throws IOException {
+        Map<String, Row> rows = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(filename));
+        List<String> header = split(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> cells = split(line);
+            Row r = new Row();
+            StringBuilder name = new StringBuilder(cells.get(0));
+            for (int i = 0; i < header.size() && i < cells.size(); i++) {
+                String h = header.get(i);
+                if (h.startsWith("Param: ") && !cells.get(i).isEmpty()) {
+                    name.append(' ').append(h.substring(7)).append('=').append(cells.get(i));
+                } else if (h.equals("Mode")) {
+                    r.mode = cells.get(i);
+                } else if (h.equals("Score")) {
+                    r.score = Double.parseDouble(cells.get(i));
+                } else if (h.equals("Unit")) {
+                    r.unit = cells.get(i);
+                }
+            }
+            r.name = name.toString();
+            rows.put(r.name, r);
+        }
+        return rows;
+    }
+
+    /**
+     * Split a CSV line, with quoted cells.
+     */
+    protected static List<String> split(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing regions from synthetic collections of 1k to 1M samples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EmitBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    protected SampleCollection collection;
+    protected List<NoteMap.Note> notes;
+    protected PrintStream out;
+
+    @Setup
+    public void setup() {
+        // printRegions reports each note's velocities on System.out:
+        out = System.out;
+        System.setOut(Synthetic.NULL);
+        collection = Synthetic.collection(size);
+        notes = new ArrayList<>();
+        for (NoteMap.Note note : collection.samples) {
+            notes.add(note);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void printRegions() {
+        collection.printRegions(collection.samples, CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, false, 0, Synthetic.NULL);
+    }
+
+    @Benchmark
+    public void layers(Blackhole bh) {
+        // Sorting into layers is done once per change, so mark each note changed:
+        for (NoteMap.Note note : notes) {
+            note.sorted = false;
+            bh.consume(note.layerCount());
+        }
+    }
+
+    @Benchmark
+    public void getVelocityRanges(Blackhole bh) {
+        for (NoteMap.Note note : notes) {
+            bh.consume(collection.getVelocityRanges(note.layerCount()));
+        }
+    }
+}
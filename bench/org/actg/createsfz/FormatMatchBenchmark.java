@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.actg.createsfz.CreateSFZ.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Filename matching and decoding as in SampleCollection.addFiles, for each
+ * Format: 1000 filenames per operation, one in ten not matching. matchRegex
+ * uses only the Format's regex, for comparison with its FilenameParser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatMatchBenchmark {
+
+    @Param({"format1", "format2", "pianobook", "detect"})
+    public String formatName;
+
+    protected FilenameParser parser;
+    protected int[] groups;
+    protected List<String> filenames;
+    protected SampleCollection collection;
+
+    @Setup
+    public void setup() {
+        Format format = new CreateSFZ().formatForName(formatName);
+        parser = format.parser();
+        groups = parser.newGroups();
+        filenames = Synthetic.filenames(formatName, 1000);
+        collection = Synthetic.emptyCollection();
+        collection.format = format;
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (String f : filenames) {
+            bh.consume(parser.match(f, DirectoryScanner.leafStart(f), f.length(), groups));
+        }
+    }
+
+    @Benchmark
+    public void matchRegex(Blackhole bh) {
+        for (String f : filenames) {
+            bh.consume(parser.matchRegex(f, DirectoryScanner.leafStart(f), f.length(), groups));
+        }
+    }
+
+    @Benchmark
+    public void matchAndDecode(Blackhole bh) {
+        for (String f : filenames) {
+            if (parser.match(f, DirectoryScanner.leafStart(f), f.length(), groups)) {
+                bh.consume(collection.decode(f, groups));
+            }
+        }
+    }
+}
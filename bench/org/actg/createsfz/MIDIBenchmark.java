@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Note name parsing: every MIDI note, C-2 to G8, named with sharps, flats
+ * and in lower case, per operation. noteNumberToName names every note.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MIDIBenchmark {
+
+    protected String[] names;
+
+    @Setup
+    public void setup() {
+        names = new String[(MIDI.MAX_NOTE + 1) * 3];
+        for (int n = 0; n <= MIDI.MAX_NOTE; n++) {
+            String name = MIDI.noteNumberToName(n);
+            names[n * 3] = name;
+            names[n * 3 + 1] = name.toLowerCase();
+            // The sharps as flats of the note above, which is in range:
+            names[n * 3 + 2] = name.charAt(1) == '#' ? MIDI.noteNumberToName(n + 1).charAt(0) + "b" + name.substring(2) : name;
+        }
+    }
+
+    @Benchmark
+    public void noteNameToNumber(Blackhole bh) {
+        for (String name : names) {
+            bh.consume(MIDI.noteNameToNumber(name));
+        }
+    }
+
+    @Benchmark
+    public void noteNumberToName(Blackhole bh) {
+        for (int n = 0; n <= MIDI.MAX_NOTE; n++) {
+            bh.consume(MIDI.noteNumberToName(n));
+        }
+    }
+}
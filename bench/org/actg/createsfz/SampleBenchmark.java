@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Sample ordering: Sample.compareTo, and building a collection with
+ * addSample, whose per-note TreeSets use it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    protected List<Sample> samples;
+
+    @Setup
+    public void setup() {
+        samples = Synthetic.samples(size);
+    }
+
+    @Benchmark
+    public void compareTo(Blackhole bh) {
+        Sample previous = samples.get(samples.size() - 1);
+        for (Sample s : samples) {
+            bh.consume(s.compareTo(previous));
+            previous = s;
+        }
+    }
+
+    @Benchmark
+    public SampleCollection addSample() {
+        SampleCollection c = Synthetic.emptyCollection();
+        for (Sample s : samples) {
+            c.addSample(s, false);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,490 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Run the whole of CreateSFZ over generated sample libraries of growing size,
+ * for each format, and compare the wall time, peak RSS, GC time and size of
+ * the .sfz written with stored thresholds, to see scaling regressions before
+ * a real library of 100k files does.
+ *
+ * java org.actg.createsfz.ScaleHarness [ -dir DIRECTORY ] [ -sizes 10000,100000 ]
+ * [ -formats format1,format2,pianobook ] [ -tiny ] [ -nonMatching PERCENT ]
+ * [ -releaseTriggers PERCENT ] [ -clashes PERCENT ] [ -jvm OPTIONS ]
+ * [ -thresholds FILE | -record FILE ] [ -- CREATESFZ_OPTIONS ]
+ *
+ * Each library is a directory of sub-directories of up to DIR_SIZE files,
+ * scanned with -recursive: format2 and pianobook names have no variation
+ * number, so a large library needs sub-directories. Files are empty, or with
+ * -tiny a WAV header and a few frames of silence (so -wavInfo can be used).
+ * A library is generated once and kept in DIRECTORY (default: a directory in
+ * /dev/shm if it exists, otherwise java.io.tmpdir) for later runs.
+ *
+ * Each run is a fresh JVM, so the peak RSS (VmHWM, on Linux) and GC activity
+ * are its own. Exits with status 1 if any run fails or exceeds a threshold.
+ */
+public class ScaleHarness {
+
+    public static final int DIR_SIZE = 1000;
+    public static final String BASE_NAME = "Piano";
+    // Base names in the same directory: one is a prefix match, and used; one is ignored:
+    public static final String[] CLASHES = {"Pianoforte", "Zither"};
+    public static final String[] PIANOBOOK_VELOCITIES = {"ppp", "pp", "p", "mp", "mf", "f", "ff", "fff"};
+    public static final double TIME_HEADROOM = 1.5; // thresholds recorded from a run
+    public static final double MEMORY_HEADROOM = 1.25;
+    public static final long TIME_SLACK_MS = 250; // so small libraries do not fail on noise
+    public static final String HEADER = "\"format\",\"files\",\"wallMs\",\"rssMB\",\"gcMs\",\"sfzBytes\"";
+
+    protected File dir;
+    protected int[] sizes = {10000, 100000};
+    protected String[] formats = {"format1", "format2", "pianobook"};
+    protected boolean tiny;
+    protected int nonMatching = 10; // percent of files
+    protected int releaseTriggers = 10;
+    protected int clashes = 5;
+    protected List<String> jvmOptions = new ArrayList<>();
+    protected String thresholdsFilename;
+    protected String recordFilename;
+    protected List<String> createSFZOptions = new ArrayList<>();
+
+    /**
+     * The measurements of one run.
+     */
+    protected static class Row {
+
+        String format;
+        int files;
+        long wallMs; // including JVM startup
+        double rssMB;
+        long gcMs;
+        long sfzBytes;
+        long runMs; // of CreateSFZ.main, in the JVM
+        long gcCount;
+        long used; // files used, from -stats
+        boolean failed;
+
+        String key() {
+            return format + "," + files;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-child")) {
+            child(args);
+            return;
+        }
+        ScaleHarness harness = new ScaleHarness();
+        harness.parse(args);
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    protected void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-dir":
+                    dir = new File(args[++i]);
+                    break;
+                case "-sizes":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-formats":
+                    formats = args[++i].split(",");
+                    break;
+                case "-tiny":
+                    tiny = true;
+                    break;
+                case "-nonMatching":
+                    nonMatching = Integer.parseInt(args[++i]);
+                    break;
+                case "-releaseTriggers":
+                    releaseTriggers = Integer.parseInt(args[++i]);
+                    break;
+                case "-clashes":
+                    clashes = Integer.parseInt(args[++i]);
+                    break;
+                case "-jvm":
+                    jvmOptions.addAll(Arrays.asList(args[++i].trim().split("\\s+")));
+                    break;
+                case "-thresholds":
+                    thresholdsFilename = args[++i];
+                    break;
+                case "-record":
+                    recordFilename = args[++i];
+                    break;
+                case "--":
+                    createSFZOptions.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                    i = args.length;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if (dir == null) {
+            File shm = new File("/dev/shm");
+            dir = new File(shm.isDirectory() ? shm : new File(System.getProperty("java.io.tmpdir")), "createsfz-scale");
+        }
+    }
+
+    /**
+     * Generate the libraries, run CreateSFZ over each, and compare or record.
+     *
+     * @return true if every run succeeded within its thresholds
+     * @throws Exception
+     */
+    public boolean run() throws Exception {
+        Map<String, Row> thresholds = thresholdsFilename != null ? read(thresholdsFilename) : new LinkedHashMap<>();
+        List<Row> rows = new ArrayList<>();
+        int failures = 0;
+        System.out.println(String.format("%-10s %9s %9s %9s %8s %7s %6s %10s %8s %s", "format", "files", "wallMs",
+                "runMs", "rssMB", "gcMs", "gcs", "sfzBytes", "us/file", "used"));
+        for (String format : formats) {
+            for (int size : sizes) {
+                File library = generate(format, size);
+                Row r = measure(format, size, library);
+                rows.add(r);
+                List<String> exceeded = r.failed ? Arrays.asList("FAILED") : exceeded(r, thresholds.get(r.key()));
+                failures += exceeded.isEmpty() ? 0 : 1;
+                System.out.println(String.format(Locale.ROOT, "%-10s %9d %9d %9d %8.1f %7d %6d %10d %8.1f %d%s", r.format,
+                        r.files, r.wallMs, r.runMs, r.rssMB, r.gcMs, r.gcCount, r.sfzBytes, 1000.0 * r.runMs / r.files,
+                        r.used, exceeded.isEmpty() ? "" : "  " + String.join(", ", exceeded)));
+            }
+        }
+        if (recordFilename != null) {
+            record(recordFilename, rows);
+            System.out.println("Thresholds recorded in " + recordFilename);
+        } else if (thresholdsFilename != null) {
+            System.out.println(failures + " runs failed or over their thresholds in " + thresholdsFilename);
+        }
+        return failures == 0;
+    }
+
+    /**
+     * @return what a Row exceeds of its thresholds, empty if none or no
+     * thresholds
+     */
+    protected static List<String> exceeded(Row r, Row t) {
+        List<String> exceeded = new ArrayList<>();
+        if (t == null) {
+            return exceeded;
+        }
+        if (r.wallMs > t.wallMs) {
+            exceeded.add("wallMs > " + t.wallMs);
+        }
+        if (r.rssMB > t.rssMB && r.rssMB >= 0) {
+            exceeded.add("rssMB > " + t.rssMB);
+        }
+        if (r.gcMs > t.gcMs) {
+            exceeded.add("gcMs > " + t.gcMs);
+        }
+        if (r.sfzBytes > t.sfzBytes) {
+            exceeded.add("sfzBytes > " + t.sfzBytes);
+        }
+        return exceeded;
+    }
+
+    /**
+     * Generate a library, unless one made with the same settings is there.
+     *
+     * @return the library's directory
+     * @throws IOException
+     */
+    protected File generate(String format, int size) throws IOException {
+        String spec = format + " " + size + (tiny ? " tiny" : " empty") + " nonMatching=" + nonMatching
+                + " releaseTriggers=" + releaseTriggers + " clashes=" + clashes;
+        File library = new File(dir, format + "-" + size + (tiny ? "-tiny" : ""));
+        File marker = new File(library, ".library");
+        if (marker.isFile() && new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).equals(spec)) {
+            return library;
+        }
+        delete(library.toPath());
+        long start = System.nanoTime();
+        byte[] content = tiny ? tinyWav() : new byte[0];
+        List<String> names = filenames(format, size, nonMatching, releaseTriggers, clashes);
+        for (int i = 0; i < names.size(); i++) {
+            File sub = new File(library, String.format("d%05d", i / DIR_SIZE));
+            if (i % DIR_SIZE == 0 && !sub.mkdirs()) {
+                throw new IOException("cannot create " + sub);
+            }
+            Files.write(new File(sub, names.get(i)).toPath(), content);
+        }
+        Files.write(marker.toPath(), spec.getBytes(StandardCharsets.UTF_8));
+        System.out.println(String.format(Locale.ROOT, "Generated %s: %d files in %.1f s", library, size,
+                (System.nanoTime() - start) / 1e9));
+        return library;
+    }
+
+    /**
+     * Filenames in a format, each unique within its sub-directory of
+     * DIR_SIZE. Of each hundred names, nonMatching match no format,
+     * releaseTriggers are release triggers (except in format1, which has
+     * none), and clashes have another base name.
+     *
+     * @param format
+     * @param size
+     * @param nonMatching percent
+     * @param releaseTriggers percent
+     * @param clashes percent
+     * @return List of filenames
+     */
+    public static List<String> filenames(String format, int size, int nonMatching, int releaseTriggers, int clashes) {
+        List<String> names = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int j = i % DIR_SIZE; // unique within the sub-directory
+            int percent = (int) ((i * 37L) % 100); // spread each kind through the library
+            if (percent < nonMatching) {
+                names.add(j % 2 == 0 ? "Notes about sample " + j + ".txt" : "take" + j + ".wav");
+                continue;
+            }
+            String baseName = BASE_NAME;
+            if (percent < nonMatching + clashes) {
+                baseName = CLASHES[j % CLASHES.length];
+            }
+            boolean rt = percent >= nonMatching + clashes && percent < nonMatching + clashes + releaseTriggers;
+            String note = MIDI.notes[j % 12] + (j / 12 % 8);
+            switch (format) {
+                case "format1":
+                    // 96 notes, 3 velocities, and round robins for the rest:
+                    names.add(baseName + "_" + Synthetic.VELOCITIES[j / 96 % 3] + "-" + note + "-" + (j / 288 + 1) + ".wav");
+                    break;
+                case "format2":
+                    // 96 notes, with a release trigger: beyond that, base names by number
+                    names.add(baseName + (j / 96 > 0 ? "x" + (char) ('a' + j / 96) : "") + " " + (rt ? "RT " : "") + note + ".wav");
+                    break;
+                case "pianobook":
+                    // 96 notes and 8 velocities, 768 names, then a longer base name:
+                    names.add(baseName + (j / 768 > 0 ? "x" : "") + " " + PIANOBOOK_VELOCITIES[j / 96 % 8] + " " + note
+                            + (rt ? " RT" : "") + ".wav");
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown format: " + format);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return a WAV file of 16 frames of 16 bit mono silence at 44.1kHz
+     */
+    protected static byte[] tinyWav() {
+        int dataSize = 32;
+        ByteBuffer b = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1).putInt(44100).putInt(88200)
+                .putShort((short) 2).putShort((short) 16);
+        b.put("data".getBytes()).putInt(dataSize);
+        return b.array();
+    }
+
+    protected static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (java.util.stream.Stream<Path> walk = Files.walk(path)) {
+            Object[] paths = walk.sorted((a, b) -> b.compareTo(a)).toArray();
+            for (Object p : paths) {
+                Files.delete((Path) p);
+            }
+        }
+    }
+
+    /**
+     * Run CreateSFZ over a library in a new JVM.
+     */
+    protected Row measure(String format, int size, File library) throws IOException, InterruptedException {
+        File work = Files.createTempDirectory("ScaleHarness").toFile();
+        File output = new File(work, "out.sfz");
+        if (createSFZOptions.contains("-split") && !output.mkdir()) {
+            throw new IOException("cannot create " + output); // -split writes the .sfz files into a directory
+        }
+        File result = new File(work, "result.txt");
+        File stats = new File(work, "stats.json");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ScaleHarness.class.getName());
+        command.add("-child");
+        command.add(result.getPath());
+        command.addAll(Arrays.asList("-format", format, "-recursive", "-log", "quiet", "-F", "-stats", stats.getPath(),
+                "-o", output.getPath()));
+        if (tiny && !createSFZOptions.contains("-wavInfo")) {
+            command.add("-wavInfo");
+        }
+        command.addAll(createSFZOptions);
+        command.add(library.getPath());
+        Row r = new Row();
+        r.format = format;
+        r.files = size;
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File(work, "log.txt")).start();
+        int status = p.waitFor();
+        r.wallMs = (System.nanoTime() - start) / 1000000;
+        r.failed = status != 0 || !result.isFile();
+        if (!r.failed) {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(result.toPath())) {
+                int eq = line.indexOf('=');
+                values.put(line.substring(0, eq), line.substring(eq + 1));
+            }
+            r.runMs = Long.parseLong(values.get("runMs"));
+            r.rssMB = Double.parseDouble(values.get("rssMB"));
+            r.gcMs = Long.parseLong(values.get("gcMs"));
+            r.gcCount = Long.parseLong(values.get("gcCount"));
+            r.sfzBytes = sfzBytes(output);
+            r.used = used(stats);
+            r.failed = r.used <= 0;
+        }
+        if (r.failed) {
+            System.out.println("Failed, status " + status + ": see " + new File(work, "log.txt"));
+        } else {
+            delete(work.toPath());
+        }
+        return r;
+    }
+
+    /**
+     * @return the size of the .sfz written, or of all those in a directory
+     * (with -split)
+     */
+    protected static long sfzBytes(File output) {
+        if (output.isFile()) {
+            return output.length();
+        }
+        long bytes = 0;
+        File[] files = output.listFiles((d, name) -> name.endsWith(".sfz"));
+        for (File f : files != null ? files : new File[0]) {
+            bytes += f.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the files used, from the -stats JSON (summed over -split or
+     * -batch instruments)
+     */
+    protected static long used(File stats) throws IOException {
+        if (!stats.isFile()) {
+            return -1;
+        }
+        Matcher m = Pattern.compile("\"used\": (\\d+)").matcher(new String(Files.readAllBytes(stats.toPath()), StandardCharsets.UTF_8));
+        long used = 0;
+        while (m.find()) {
+            used += Long.parseLong(m.group(1));
+        }
+        return used;
+    }
+
+    /**
+     * In the child JVM: run CreateSFZ, then write the time, peak RSS and GC
+     * activity to the result file.
+     */
+    protected static void child(String[] args) throws IOException {
+        File result = new File(args[1]);
+        long start = System.nanoTime();
+        CreateSFZ.main(Arrays.copyOfRange(args, 2, args.length));
+        long runMs = (System.nanoTime() - start) / 1000000;
+        long gcCount = 0;
+        long gcMs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMs += Math.max(0, gc.getCollectionTime());
+        }
+        try (PrintStream out = new PrintStream(result)) {
+            out.println("runMs=" + runMs);
+            out.println("rssMB=" + String.format(Locale.ROOT, "%.1f", peakRssKB() / 1024.0));
+            out.println("gcCount=" + gcCount);
+            out.println("gcMs=" + gcMs);
+        }
+    }
+
+    /**
+     * @return the peak resident set size of this JVM in kB, from
+     * /proc/self/status, or -1024 if not known (-1 MB)
+     */
+    protected static long peakRssKB() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1024;
+    }
+
+    /**
+     * Read thresholds, in the CSV format written by record().
+     */
+    protected static Map<String, Row> read(String filename) throws IOException {
+        Map<String, Row> rows = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(filename));
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> cells = BenchCompare.split(line);
+            Row r = new Row();
+            r.format = cells.get(0);
+            r.files = Integer.parseInt(cells.get(1));
+            r.wallMs = Long.parseLong(cells.get(2));
+            r.rssMB = Double.parseDouble(cells.get(3));
+            r.gcMs = Long.parseLong(cells.get(4));
+            r.sfzBytes = Long.parseLong(cells.get(5));
+            rows.put(r.key(), r);
+        }
+        return rows;
+    }
+
+    /**
+     * Write thresholds from measured Rows, with headroom for noise: the .sfz
+     * size is exact, as it depends only on the library and the code.
+     */
+    protected static void record(String filename, List<Row> rows) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (Row r : rows) {
+            if (r.failed) {
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "\"%s\",%d,%d,%.1f,%d,%d", r.format, r.files,
+                    (long) (r.wallMs * TIME_HEADROOM) + TIME_SLACK_MS, r.rssMB * MEMORY_HEADROOM,
+                    (long) (r.gcMs * TIME_HEADROOM) + TIME_SLACK_MS, r.sfzBytes));
+        }
+        Files.write(Paths.get(filename), lines);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic samples and collections for the benchmarks.
+ */
+public class Synthetic {
+
+    public static final String[] VELOCITIES = {"Soft", "Medium", "Hard"};
+    public static final int LOWEST_NOTE = 21; // A-1, as on a piano
+    public static final int NOTES = 88;
+
+    /**
+     * A stream which discards everything written.
+     */
+    public static final PrintStream NULL = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    /**
+     * Samples spread over 88 notes, 3 velocities, and as many round robins
+     * as needed, in a fixed shuffled order.
+     *
+     * @param size
+     * @return List of Samples
+     */
+    public static List<Sample> samples(int size) {
+        List<Sample> samples = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int note = LOWEST_NOTE + i % NOTES;
+            int velocity = (i / NOTES) % VELOCITIES.length;
+            int id = i / (NOTES * VELOCITIES.length) + 1;
+            String filename = "Piano_" + VELOCITIES[velocity] + "-" + note + "-" + id + ".wav";
+            samples.add(new Sample(filename, "Piano", note, velocity, id, false));
+        }
+        Collections.shuffle(samples, new Random(42));
+        return samples;
+    }
+
+    /**
+     * A SampleCollection holding the given number of synthetic samples.
+     *
+     * @param size
+     * @return SampleCollection
+     */
+    public static SampleCollection collection(int size) {
+        SampleCollection c = emptyCollection();
+        for (Sample s : samples(size)) {
+            c.addSample(s, false);
+        }
+        return c;
+    }
+
+    public static SampleCollection emptyCollection() {
+        return new SampleCollection(new CreateSFZ().formatForName("format1"), Collections.<String>emptyList(), 0);
+    }
+
+    /**
+     * Filenames in the named format, with one in ten not matching it.
+     *
+     * @param formatName
+     * @param size
+     * @return List of filenames
+     */
+    public static List<String> filenames(String formatName, int size) {
+        String[] pianobook = {"p", "mf", "f"};
+        List<String> names = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String note = MIDI.notes[i % 12] + (i / 12 % 8);
+            int v = i % 3;
+            if (i % 10 == 9) {
+                names.add("Notes about sample " + i + ".txt");
+                continue;
+            }
+            switch (formatName) {
+                case "format1":
+                    names.add("Piano_" + VELOCITIES[v] + "-" + note + "-" + (i % 4 + 1) + ".wav");
+                    break;
+                case "format2":
+                    names.add("Piano " + (i % 5 == 0 ? "RT " : "") + note + ".wav");
+                    break;
+                case "pianobook":
+                    names.add("Piano " + pianobook[v] + " " + note + (i % 5 == 0 ? " RT" : "") + ".wav");
+                    break;
+                default:
+                    names.add("Piano take " + i + ".wav");
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.actg.createsfz.CreateSFZ.Options;
+
+/**
+ * Create many instruments in one run: each directory is an instrument, with
+ * its own SampleCollection and .sfz file.
+ *
+ * Instruments are processed concurrently on a fixed number of workers. A
+ * failure in one instrument is recorded and reported in the summary, without
+ * stopping the others.
+ *
+ * With -dedupeBatch every instrument is built before any is written, so that
+ * samples identical across instruments can be found (see Deduplicator) and
+ * written as one file.
+ */
+public class Batch {
+
+    protected final Options options;
+    protected final List<String> dirnames;
+    protected final int jobs;
+    protected final File outputDir;
+    protected final Set<String> outputsClaimed = ConcurrentHashMap.newKeySet();
+    protected List<Result> results;
+
+    /**
+     * The outcome for one instrument directory.
+     */
+    public static class Result {
+
+        protected final String dirname;
+        protected String outputFilename;
+        protected int filesUsed;
+        protected long millis;
+        protected Throwable failure;
+        protected String stats; // JSON, with -stats
+        protected CreateSFZ createSFZ; // built and not yet written, with -dedupeBatch
+
+        Result(String dirname) {
+            this.dirname = dirname;
+        }
+
+        public boolean isOK() {
+            return failure == null;
+        }
+
+        public String getDirname() {
+            return dirname;
+        }
+
+        /**
+         * @return the .sfz file written, or null if not claimed
+         */
+        public String getOutputFilename() {
+            return outputFilename;
+        }
+
+        public int getFilesUsed() {
+            return filesUsed;
+        }
+
+        /**
+         * @return why the instrument was not written, or null
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Create a Batch.
+     *
+     * The options are copied for each instrument. If options.outputFilename is
+     * set it names the directory for the .sfz files, otherwise they are
+     * written to the current directory.
+     *
+     * @param options
+     * @param dirnames instrument directories
+     * @param jobs number of instruments to process at once
+     */
+    public Batch(Options options, List<String> dirnames, int jobs) {
+        this.options = options;
+        this.dirnames = dirnames;
+        this.jobs = Math.max(1, Math.min(jobs, dirnames.size()));
+        this.outputDir = options.outputFilename != null ? new File(options.outputFilename) : null;
+    }
+
+    /**
+     * List the sub-directories of a root directory, sorted by name, each of
+     * which is an instrument.
+     *
+     * @param root
+     * @return List of directory names
+     * @throws IOException
+     */
+    public static List<String> instrumentDirectories(File root) throws IOException {
+        File[] subdirs = root.listFiles(File::isDirectory);
+        if (subdirs == null) {
+            throw new IOException("bad directory: " + root);
+        }
+        Arrays.sort(subdirs);
+        List<String> dirnames = new ArrayList<>();
+        for (File d : subdirs) {
+            dirnames.add(d.getPath());
+        }
+        return dirnames;
+    }
+
+    /**
+     * Create all the instruments, and print a summary.
+     *
+     * @return true if every instrument was written
+     * @throws IOException
+     */
+    public boolean run() throws IOException {
+        if (outputDir != null && !outputDir.isDirectory()) {
+            throw new IOException("batch output directory does not exist: " + outputDir);
+        }
+        Log.info("Batch: " + dirnames.size() + " instruments, " + jobs + " at a time");
+        // Share the scanning threads between concurrent instruments:
+        final int threadsEach = Math.max(1, options.threads / jobs);
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            if (options.dedupeBatch) {
+                results = createDeduplicated(executor, threadsEach);
+            } else {
+                for (final String dirname : dirnames) {
+                    futures.add(executor.submit(() -> createInstrument(dirname, threadsEach)));
+                }
+                results = results(futures);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (Log.isEnabled(Log.Level.INFO)) {
+            printSummary(Log.out());
+        }
+        if (options.statsFilename != null) {
+            writeStats(options.statsFilename);
+        }
+        for (Result r : results) {
+            if (!r.isOK()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create one instrument, catching any failure into the Result.
+     *
+     * @param dirname
+     * @param threads
+     * @return Result
+     */
+    protected Result createInstrument(String dirname, int threads) {
+        Result result = new Result(dirname);
+        long start = System.currentTimeMillis();
+        try {
+            write(build(dirname, threads, result), result);
+        } catch (Exception e) {
+            result.failure = e;
+            Log.warn("Batch: " + dirname + ": failed: " + e);
+        }
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Build every instrument, mark the samples identical across them, then
+     * write them.
+     *
+     * @param executor
+     * @param threads for each instrument
+     * @return a Result per instrument
+     * @throws IOException
+     */
+    protected List<Result> createDeduplicated(ExecutorService executor, int threads) throws IOException {
+        List<Future<Result>> futures = new ArrayList<>();
+        for (final String dirname : dirnames) {
+            futures.add(executor.submit(() -> {
+                Result result = new Result(dirname);
+                long start = System.currentTimeMillis();
+                try {
+                    result.createSFZ = build(dirname, threads, result);
+                } catch (Exception e) {
+                    result.failure = e;
+                    Log.warn("Batch: " + dirname + ": failed: " + e);
+                }
+                result.millis = System.currentTimeMillis() - start;
+                return result;
+            }));
+        }
+        List<Result> built = results(futures);
+        List<SampleCollection> collections = new ArrayList<>();
+        for (Result r : built) {
+            if (r.createSFZ != null) {
+                collections.add(r.createSFZ.sampleCollection);
+            }
+        }
+        try (DirectoryScanner scanner = new DirectoryScanner(new File("."), false, options.threads)) {
+            Log.info("Batch: " + Deduplicator.dedupe(scanner, collections).report());
+        }
+        for (SampleCollection c : collections) {
+            c.dedupeLite();
+        }
+        futures.clear();
+        for (final Result result : built) {
+            futures.add(executor.submit(() -> {
+                long start = System.currentTimeMillis();
+                try {
+                    if (result.createSFZ != null) {
+                        write(result.createSFZ, result);
+                    }
+                } catch (Exception e) {
+                    result.failure = e;
+                    Log.warn("Batch: " + result.dirname + ": failed: " + e);
+                } finally {
+                    result.createSFZ = null;
+                }
+                result.millis += System.currentTimeMillis() - start;
+                return result;
+            }));
+        }
+        return results(futures);
+    }
+
+    protected static List<Result> results(List<Future<Result>> futures) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("batch interrupted", e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Scan and analyse one instrument, claiming its output file.
+     *
+     * @param dirname
+     * @param threads
+     * @param result
+     * @return the instrument, to write
+     * @throws IOException
+     */
+    protected CreateSFZ build(String dirname, int threads, Result result) throws IOException {
+        Options o = options.copy();
+        o.outputFilename = null;
+        o.statsFilename = null; // written for the whole batch
+        o.threads = threads;
+        if (o.cache && o.cacheFilename == null) {
+            // Keep each instrument's scan cache with its output:
+            o.cacheFilename = new File(outputDir, new File(dirname).getCanonicalFile().getName() + ".scancache").getPath();
+        }
+        if (o.flacDirname != null) {
+            // A FLAC directory per instrument, so their samples cannot collide:
+            o.flacDirname = new File(o.flacDirname, new File(dirname).getCanonicalFile().getName()).getPath();
+        }
+        if (o.liteDirname != null) {
+            o.liteDirname = new File(o.liteDirname, new File(dirname).getCanonicalFile().getName()).getPath();
+        }
+        CreateSFZ createSFZ = new CreateSFZ(o, dirname, Collections.<String>emptyList());
+        if (createSFZ.sampleCollection == null || createSFZ.sampleCollection.outputFilename == null) {
+            throw new IOException("no samples recognised");
+        }
+        File output = new File(outputDir, createSFZ.sampleCollection.outputFilename);
+        if (!outputsClaimed.add(output.getCanonicalPath())) {
+            throw new IOException("output file already written by another instrument in this batch: " + output);
+        }
+        result.outputFilename = output.getPath();
+        result.filesUsed = createSFZ.sampleCollection.filesUsed.size();
+        return createSFZ;
+    }
+
+    /**
+     * Write a built instrument, and its Stats if wanted.
+     *
+     * @param createSFZ
+     * @param result
+     * @throws IOException
+     */
+    protected void write(CreateSFZ createSFZ, Result result) throws IOException {
+        createSFZ.writeSFZ(result.outputFilename);
+        createSFZ.endRun();
+        if (options.statsFilename != null) {
+            result.stats = createSFZ.statsJSON();
+        }
+    }
+
+    /**
+     * Write the Stats of the instruments written as a JSON array.
+     *
+     * @param filename or "-" for System.out
+     * @throws IOException
+     */
+    protected void writeStats(String filename) throws IOException {
+        StringBuilder sb = new StringBuilder("[");
+        for (Result r : results) {
+            if (r.stats != null) {
+                sb.append(sb.length() > 1 ? ",\n" : "\n").append(r.stats);
+            }
+        }
+        CreateSFZ.writeStats(filename, sb.append("\n]").toString());
+    }
+
+    /**
+     * @return a Result per instrument, in the order given, once run
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Print one line per instrument, then the totals.
+     *
+     * @param out
+     */
+    public void printSummary(PrintStream out) {
+        int ok = 0;
+        out.println("\nBatch summary:");
+        for (Result r : results) {
+            if (r.isOK()) {
+                ok++;
+                out.println("  OK      " + r.dirname + " -> " + r.outputFilename + " (" + r.filesUsed + " files, " + r.millis + " ms)");
+            } else {
+                out.println("  FAILED  " + r.dirname + ": " + r.failure);
+            }
+        }
+        out.println("Batch: " + ok + " written, " + (results.size() - ok) + " failed, of " + results.size() + " instruments");
+    }
+}
@@ -20,9 +20,17 @@ package org.actg.createsfz;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * CreateSFZ is the Main class.
@@ -35,12 +43,47 @@ public class CreateSFZ {
             + "This is free software, and you are welcome to redistribute it\n"
             + "under certain conditions.";
 
-    public static final String USAGE = "java CreateSFZ [ -filter FILENAME_FILTER]  [ -format FORMAT_NAME ] [ -o OUPTUTFILE ] [ -note NOTENAME ]  FILE or DIRECTORY \n"
+    public static final String USAGE = "java CreateSFZ [ -filter FILENAME_FILTER]  [ -format FORMAT_NAME ] [ -o OUPTUTFILE ] [ -note NOTENAME ] [ -octaves yamaha|roland ] [ -probe N ] [ -recursive ] [ -threads N ] [ -split [ -jobs N ] ] [ -watch ] [ -cache ] [ -wavInfo ] [ -detectPitch ] [ -loudness ] [ -trim ] [ -findLoops ] [ -optimize ] [ -targets LIST ] [ -dedupe ] [ -flac DIRECTORY ] [ -lite DIRECTORY [ -liteRate HZ ] [ -liteBits N ] ] [ -extractTo DIRECTORY ] [ -stats FILE ] [ -log LEVEL ]  FILE, DIRECTORY or ZIPFILE \n"
+            + "   or: java CreateSFZ -batch [ -jobs N ] [ -dedupeBatch ] [ -o OUTPUTDIR ] [ options ] DIRECTORY... | -batchRoot ROOTDIRECTORY\n"
+            + "   or: java CreateSFZ -server PORT [ -jobs N ] [ -serverCache N ]\n"
             + "where:\n"
             + "[ ... ] options are optional\n"
             + " -filter FILENAME_FILTER    Specifies text that must be in sample filenames\n"
+            + " -octaves NUMBERING         Octave numbers in note names: yamaha (C3 is middle C, the default) or roland (C4)\n"
+            + " -probe N                   Decide the sample format from the first N files only\n"
+            + " -recursive                 Include samples in sub-directories\n"
+            + " -threads N                 Maximum threads used to scan the directory and write the .sfz\n"
+            + " -batch                     Create one instrument per DIRECTORY given, or per sub-directory of ROOTDIRECTORY\n"
+            + " -jobs N                    Number of instruments created at once in batch mode, or written at once with -split\n"
+            + " -split                     Create one instrument per sample base name in DIRECTORY, with -o naming the output directory\n"
+            + " -watch                     Keep rewriting the output as sample files are created, modified or deleted\n"
+            + " -server PORT               Serve requests, each of CreateSFZ arguments, on http://127.0.0.1:PORT/create (0 for any free port)\n"
+            + " -serverCache N             Number of scanned directories the server keeps in memory (default 16)\n"
+            + " -cache                     Keep decoded sample files in a .scancache file, to skip unchanged files next time\n"
+            + " -wavInfo                   Read WAV headers for each sample's end, and smpl chunk root note and loop\n"
+            + " -detectPitch               Detect the note of samples with none in their name (e.g. -format detect), and check named notes\n"
+            + " -loudness                  Measure samples: velocity layers are ordered, and their ranges set, by loudness\n"
+            + " -normalize                 With -loudness, add volume= to level the samples within each velocity layer\n"
+            + " -velcurve                  With -loudness, add amp_velcurve so levels rise smoothly between velocity layers\n"
+            + " -trim                      Add offset= and end= to skip leading silence and tails below -60dBFS\n"
+            + " -trimLevel DB              Trim below DB dBFS instead (implies -trim)\n"
+            + " -findLoops                 Find a loop in the sustain of samples without a smpl chunk loop\n"
+            + " -optimize                  Write a smaller .sfz, with opcodes shared by regions moved to group, master and global headers\n"
+            + " -targets LIST              Files written for the instrument, from one scan: sfz (the default), dspreset (DecentSampler), json\n"
+            + " -dedupe                    Regions of samples identical to another (by size, then SHA-256) use that one file\n"
+            + " -dedupeBatch               With -batch, also use one file for samples identical across instruments (implies -dedupe)\n"
+            + " -flac DIRECTORY            Encode the samples used as FLAC into DIRECTORY, and write the .sfz for those (implies -wavInfo)\n"
+            + " -lite DIRECTORY            Also write a NAME-lite.sfz, with the samples converted to 44.1kHz 16 bit into DIRECTORY (implies -wavInfo)\n"
+            + " -liteRate HZ               The highest sample rate of the lite samples (default 44100)\n"
+            + " -liteBits N                The bits per sample of the lite samples: 8, 16 (the default) or 24\n"
+            + " -extractTo DIRECTORY       Extract the samples used from a ZIPFILE into DIRECTORY (default: named after the ZIPFILE)\n"
+            + " -stats FILE                Write phase timings and file counts as JSON to FILE, or - for standard output\n"
+            + " -log LEVEL                 quiet (warnings only), info (the default) or debug (a line per file and note)\n"
             + "         DIRECTORY          is a directory name to scan entirely for samples\n"
-            + "         FILE               is a single file to use";
+            + "         FILE               is a single file to use\n"
+            + "         ZIPFILE            is a .zip archive of samples, listed from its central directory with sub-directories\n"
+            + "         FORMAT_NAME        format1, format2, pianobook, or detect (any .wav name, with -detectPitch),\n"
+            + "                            optionally with the octave numbering of its note names, e.g. pianobook:roland";
 
     public static final String DEFAULT_FORMAT_NAME = "format1";
 
@@ -65,6 +108,23 @@ public class CreateSFZ {
         public int getVariationNumberGroup();
 
         public List<String> velocities();
+
+        /**
+         * @return a FilenameParser for filenameRegex(), which by default
+         * matches using the regex
+         */
+        public default FilenameParser parser() {
+            return FilenameParser.forRegex(filenameRegex());
+        }
+
+        /**
+         * @return the octave numbering of note names, by default with C3 as
+         * middle C. The built-in formats use the numbering given with
+         * -format NAME:NUMBERING, or else -octaves.
+         */
+        public default MIDI.Octaves octaves() {
+            return MIDI.Octaves.YAMAHA;
+        }
     }
 
     /**
@@ -73,6 +133,9 @@ public class CreateSFZ {
      */
     public class Format1 implements Format {
 
+        protected final FilenameParser parser = new FilenameParser.Format1Parser(filenameRegex());
+        protected MIDI.Octaves octaves; // from -format NAME:NUMBERING, or null for -octaves
+
         public String filenameRegex() {
             return "(.*)_([a-zA-Z]+)\\-(.*)\\-(\\d+)\\.wav"; // "baseName_velocityName-NoteName-VariationNumber.wav"
         }
@@ -104,6 +167,14 @@ public class CreateSFZ {
         public List<String> velocities() {
             return Arrays.asList("Soft", "Medium", "Hard");
         }
+
+        public FilenameParser parser() {
+            return parser;
+        }
+
+        public MIDI.Octaves octaves() {
+            return octaves != null ? octaves : CreateSFZ.this.octaves();
+        }
     }
 
     /**
@@ -112,6 +183,9 @@ public class CreateSFZ {
      */
     public class Format2 implements Format {
 
+        protected final FilenameParser parser = new FilenameParser.Format2Parser(filenameRegex());
+        protected MIDI.Octaves octaves; // from -format NAME:NUMBERING, or null for -octaves
+
         public String filenameRegex() {
             return "(.*?) (RT )?(.*)\\.wav"; // baseName notename
         }
@@ -143,6 +217,14 @@ public class CreateSFZ {
         public List<String> velocities() {
             return Arrays.asList("Soft", "Medium", "Hard");
         }
+
+        public FilenameParser parser() {
+            return parser;
+        }
+
+        public MIDI.Octaves octaves() {
+            return octaves != null ? octaves : CreateSFZ.this.octaves();
+        }
     }
 
     /**
@@ -152,6 +234,9 @@ public class CreateSFZ {
      */
     public class Format_PianoBook1 implements Format {
 
+        protected final FilenameParser parser = new FilenameParser.PianoBookParser(filenameRegex());
+        protected MIDI.Octaves octaves; // from -format NAME:NUMBERING, or null for -octaves
+
         public String filenameRegex() {
             return "([A-Za-z]*)?\\s+([mpf]+)?\\s*?([A-Z#0-9]*?)(\\s+RT)?\\.wav"; // "baseName velocity? NoteName RT?"
             //return "([A-Za-z]*)?\\s+([mpf]+)?\\s*?([A-Z#0-9]*?)(\\s+RT)?\\.wav"; // "baseName velocity? NoteName RT?"
@@ -185,22 +270,196 @@ public class CreateSFZ {
             return Arrays.asList("p", "mf", "f");
             // return Arrays.asList("pp", "p", "f", "ff");
         }
+
+        public FilenameParser parser() {
+            return parser;
+        }
+
+        public MIDI.Octaves octaves() {
+            return octaves != null ? octaves : CreateSFZ.this.octaves();
+        }
+    }
+
+    /**
+     * Settings given on the command-line.
+     */
+    public static class Options implements Cloneable {
+
+        public String formatName; // null to probe for a format
+        public String filenameFilter;
+        public int rootNote = -1; // MIDI.noteNameToNumber("C3");
+        public int releaseLevel = 0; // passed to volume= param for release triggers, specified in db: -144 to 6
+        public String outputFilename;
+        public boolean overwrite;
+        public int probeLimit = 0; // decide the format from the first N files, 0 for all files
+        public boolean recursive; // include samples in sub-directories
+        public int threads = Runtime.getRuntime().availableProcessors(); // parallelism for scanning
+        public int jobs = Runtime.getRuntime().availableProcessors(); // instruments created at once in batch mode
+        public boolean split; // one instrument per sample base name
+        public boolean watch; // keep rewriting the output as sample files are created and deleted
+        public long watchDelay = 500; // milliseconds without file events before rewriting
+        public boolean cache; // keep decoded samples in a scan cache file
+        public String cacheFilename; // defaults to the output filename or directory name, plus .scancache
+        public boolean wavInfo; // read WAV headers for the end, root note and loop of each sample
+        public boolean detectPitch; // detect the note of samples, checking any note in the filename
+        public boolean loudness; // measure samples, for velocity layer order and ranges
+        public boolean normalize; // volume= per region, to level each velocity layer
+        public boolean velocityCurve; // amp_velcurve per velocity layer
+        public boolean trim; // offset= and end= to skip silence
+        public double trimLevel = SilenceDetector.DEFAULT_THRESHOLD; // dBFS
+        public boolean findLoops; // find loops for samples without a smpl chunk loop
+        public boolean optimize; // hoist shared opcodes in the .sfz written
+        public String targets = "sfz"; // the OutputTargets written, comma separated
+        public boolean dedupe; // regions of identical sample files use one file
+        public boolean dedupeBatch; // and across the instruments of a batch
+        public String flacDirname; // encode samples as FLAC into this directory
+        public String liteDirname; // convert samples for a lite variant into this directory
+        public int liteRate = 44100; // highest sample rate of the lite variant
+        public int liteBits = 16; // bits per sample of the lite variant
+        public MIDI.Octaves octaves = MIDI.Octaves.YAMAHA; // octave numbering of note names
+        public String zipFilename; // a ZIP archive of samples, read instead of a directory
+        public String extractDirname; // where the samples used from a ZIP archive are extracted
+        public int serverPort = -1; // serve requests on this loopback port, 0 for any free port
+        public int serverCacheSize = 16; // SampleCollections kept by the server
+        public String statsFilename; // write Stats as JSON, "-" for System.out
+        public Log.Level logLevel = Log.Level.INFO;
+
+        /**
+         * @return true if the WAV headers are read: for -wavInfo, or any
+         * analysis which needs them
+         */
+        public boolean readsWavInfo() {
+            return wavInfo || detectPitch || loudness || trim || findLoops;
+        }
+
+        public Options copy() {
+            try {
+                return (Options) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Any "name.wav" file, for samples whose names carry no note: the note is
+     * found by pitch detection (-detectPitch).
+     */
+    public class Format_Detect implements Format {
+
+        protected final FilenameParser parser = new FilenameParser.DetectParser(filenameRegex());
+        protected MIDI.Octaves octaves; // from -format NAME:NUMBERING, or null for -octaves
+
+        public String filenameRegex() {
+            return "(.*)\\.wav";
+        }
+
+        public String filenameExample() {
+            return "anyName.wav (with -detectPitch)";
+        }
+
+        public int getBaseNameGroup() {
+            return -1;
+        }
+
+        public int getNoteNameGroup() {
+            return -1;
+        }
+
+        public int getVelocityGroup() {
+            return -1;
+        }
+
+        public int getReleaseTriggerGroup() {
+            return -1;
+        }
+
+        public int getVariationNumberGroup() {
+            return -1;
+        }
+
+        public List<String> velocities() {
+            return Arrays.asList("Soft", "Medium", "Hard");
+        }
+
+        public FilenameParser parser() {
+            return parser;
+        }
+
+        public MIDI.Octaves octaves() {
+            return octaves != null ? octaves : CreateSFZ.this.octaves();
+        }
     }
 
     protected SampleCollection sampleCollection;
     //protected String sampleDirName;
     protected int releaseLevel;
     protected boolean overwrite;
+    protected Options options;
+    protected String written; // the .sfz file written, for Stats
+    protected Stats statsBefore; // of a SampleCollection already created, when this run started
+    protected ScanCache scanCache; // with -cache, kept up to date by a Watcher
+    protected final long started = System.nanoTime();
+    protected final Object runEvent = Stats.beginRun();
 
     /**
      * Command-line arguments:
      *
-     * Optional: sample format name specified with: -format FORMAT_NAME
+     * Optional: sample format name specified with: -format FORMAT_NAME, or
+     * FORMAT_NAME:NUMBERING for its own octave numbering, e.g. format1:roland
      *
      * -note
      *
+     * -octaves roland reads note names with C4 as middle C, instead of C3
+     *
      * -o
      *
+     * -probe N decide the sample format from the first N files only
+     *
+     * -recursive include sub-directories, -threads N to limit scan threads
+     *
+     * -batch DIRECTORY... or -batchRoot ROOT creates many instruments, -jobs N
+     * at once, with -o naming the output directory
+     *
+     * -split makes one instrument per sample base name in the directory,
+     * scanned once, with -o naming the output directory
+     *
+     * -watch keeps rewriting the output as samples arrive, -watchDelay MS
+     *
+     * -server PORT serves requests on a loopback HTTP port, keeping scanned
+     * directories in memory, -serverCache N of them
+     *
+     * -cache or -cacheFile FILE keeps decoded samples between runs
+     *
+     * -extractTo DIRECTORY names where samples used from a .zip are extracted
+     *
+     * -wavInfo reads WAV headers for end=, loops and smpl root notes
+     *
+     * -detectPitch finds the notes of samples from their audio
+     *
+     * -loudness orders velocity layers and sets their ranges from measured
+     * loudness, -normalize and -velcurve add per-region gain
+     *
+     * -trim adds offset= and end= to skip silence, -trimLevel sets its level
+     *
+     * -findLoops finds loops in samples without one in their smpl chunk
+     *
+     * -optimize writes a smaller .sfz which maps the same
+     *
+     * -targets sfz,dspreset,json writes the same mapping as a DecentSampler
+     * preset and a JSON manifest too, all at once
+     *
+     * -dedupe makes regions of identical sample files use one file,
+     * -dedupeBatch across the instruments of a batch too
+     *
+     * -flac DIRECTORY encodes the samples used as FLAC, for a smaller library
+     *
+     * -lite DIRECTORY also writes a lite variant, with samples resampled to
+     * -liteRate HZ and -liteBits N
+     *
+     * -stats FILE writes the time of each phase and counts of files as JSON,
+     * -log LEVEL sets what is printed
+     *
      *
      * Required argument: directory name
      *
@@ -215,46 +474,289 @@ public class CreateSFZ {
             createSFZ.showUsage(System.out);
             System.exit(1);
         }
+        Arguments arguments = parseArguments(args);
+        Options options = arguments.options;
+        Log.setLevel(options.logLevel);
+        if ("-".equals(options.statsFilename)) {
+            // Keep standard output for the JSON:
+            Log.setOut(System.err);
+        }
+        String dirname = arguments.dirname;
+        List<String> sampleNames = arguments.sampleNames;
+        boolean batch = arguments.batch;
+        List<String> batchDirnames = arguments.batchDirnames;
+        if (options.serverPort >= 0) {
+            if (batch || dirname != null || options.zipFilename != null || !sampleNames.isEmpty()) {
+                throw new RuntimeException("-server takes no directory or files: each request names its own.");
+            }
+            new Server(options).run();
+            return;
+        }
+        if (batch) {
+            if (!sampleNames.isEmpty() || batchDirnames.isEmpty()) {
+                throw new RuntimeException("Batch mode needs instrument directories, or -batchRoot DIRECTORY.");
+            }
+            if (!new Batch(options, batchDirnames, options.jobs).run()) {
+                System.exit(1);
+            }
+            return;
+        }
+        // Don't do anything if we showed usage, unless we were given other settings as well:
+        if (!arguments.shownUsage || args.length > 1) {
+            // Consider checking we either set a directory name or gave a sample.
+            if (!sampleNames.isEmpty() && dirname != null) {
+                throw new RuntimeException("Specify EITHER a filename or directory name.");
+            }
+            if (sampleNames.isEmpty() && dirname == null) {
+                dirname = ".";
+            }
+            // System.out.println(COPYTEXT);
+            CreateSFZ createSFZ = new CreateSFZ(options, dirname, sampleNames);
+            if (options.watch) {
+                if (!sampleNames.isEmpty()) {
+                    throw new RuntimeException("-watch needs a directory.");
+                }
+                createSFZ.watch(options.outputFilename);
+            } else if (options.split) {
+                if (!createSFZ.writeSplitSFZ(options.outputFilename)) {
+                    System.exit(1);
+                }
+            } else {
+                createSFZ.writeSFZ(options.outputFilename);
+            }
+            createSFZ.endRun();
+        }
+    }
+
+    /**
+     * The command-line arguments of one run: the Options, and the directory
+     * or files given.
+     */
+    protected static class Arguments {
+
+        protected Options options;
+        protected String dirname;
+        protected List<String> sampleNames;
+        protected boolean batch;
+        protected List<String> batchDirnames;
+        protected boolean shownUsage;
+    }
+
+    /**
+     * Parse command-line arguments, as given to main() or in a request to a
+     * Server.
+     *
+     * @param args
+     * @return Arguments
+     * @throws IOException if a file or directory given does not exist
+     * @throws RuntimeException for a bad option value
+     */
+    protected static Arguments parseArguments(String[] args) throws IOException {
         boolean shownUsage = false;
         String dirname = null;
-        String filenameFilter = null;
-        String formatName = null; // DEFAULT_FORMAT_NAME;
-        int rootNote = -1; // MIDI.noteNameToNumber("C3");
-        int releaseLevel = 0; // passed to volume= param for release triggers, specified in db: -144 to 6
-        String outputFilename = null;
-        boolean overwrite = false;
+        Options options = new Options();
+        String rootNoteName = null;
         List<String> sampleNames = new ArrayList<>();
+        boolean batch = false;
+        List<String> batchDirnames = new ArrayList<>();
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-format")) {
                 i++;
-                formatName = args[i];
+                options.formatName = args[i];
                 continue;
             } else if (args[i].equals("-filter")) {
                 i++;
-                filenameFilter = args[i];
-                System.out.println("Filtering sample files using pattern: '" + filenameFilter + "'");
+                options.filenameFilter = args[i];
+                Log.info("Filtering sample files using pattern: '" + options.filenameFilter + "'");
             } else if (args[i].equals("-note")) {
                 i++;
-                rootNote = MIDI.noteNameToNumber(args[i]);
-                System.out.println("Root note: " + rootNote + " (" + args[i] + ")");
+                rootNoteName = args[i]; // parsed once the octave numbering is known
+                continue;
+            } else if (args[i].equals("-octaves")) {
+                i++;
+                try {
+                    options.octaves = MIDI.Octaves.forName(args[i]);
+                } catch (IllegalArgumentException iae) {
+                    throw new RuntimeException("specify '-octaves yamaha' (C3 is middle C) or '-octaves roland' (C4 is middle C)");
+                }
                 continue;
             } else if (args[i].equals("-o")) {
                 i++;
-                outputFilename = args[i];
+                options.outputFilename = args[i];
                 continue;
             } else if (args[i].equals("-F")) {
-                overwrite = true;
+                options.overwrite = true;
                 continue;
             } else if (args[i].equals("-releaseLevel")) {
                 i++;
                 try {
-                    releaseLevel = Integer.parseInt(args[i]);
-                    if (releaseLevel < -144 || releaseLevel > 6) {
-                        System.out.println("Warning: specified releaseLevel (" + releaseLevel + ") outside documented range of -144 to 6 (db).");
+                    options.releaseLevel = Integer.parseInt(args[i]);
+                    if (options.releaseLevel < -144 || options.releaseLevel > 6) {
+                        Log.warn("Warning: specified releaseLevel (" + options.releaseLevel + ") outside documented range of -144 to 6 (db).");
                     }
                 } catch (NumberFormatException nfe) {
                     throw new RuntimeException("specify '-releaseLevel PERCENT' where PERCENT is an integer value.");
                 }
+            } else if (args[i].equals("-probe")) {
+                i++;
+                try {
+                    options.probeLimit = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-probe N' where N is the number of files used to choose a format.");
+                }
+            } else if (args[i].equals("-recursive")) {
+                options.recursive = true;
+                continue;
+            } else if (args[i].equals("-threads")) {
+                i++;
+                try {
+                    options.threads = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-threads N' where N is the number of scanning threads.");
+                }
+            } else if (args[i].equals("-batch")) {
+                batch = true;
+                continue;
+            } else if (args[i].equals("-batchRoot")) {
+                i++;
+                batch = true;
+                batchDirnames.addAll(Batch.instrumentDirectories(new File(args[i])));
+                continue;
+            } else if (args[i].equals("-jobs")) {
+                i++;
+                try {
+                    options.jobs = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-jobs N' where N is the number of instruments created at once.");
+                }
+            } else if (args[i].equals("-split")) {
+                options.split = true;
+                continue;
+            } else if (args[i].equals("-watch")) {
+                options.watch = true;
+                continue;
+            } else if (args[i].equals("-server")) {
+                i++;
+                try {
+                    options.serverPort = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-server PORT' where PORT is a port number, or 0 for any free port.");
+                }
+            } else if (args[i].equals("-serverCache")) {
+                i++;
+                try {
+                    options.serverCacheSize = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-serverCache N' where N is the number of directories kept.");
+                }
+            } else if (args[i].equals("-watchDelay")) {
+                i++;
+                try {
+                    options.watchDelay = Long.parseLong(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-watchDelay MS' where MS is a delay in milliseconds.");
+                }
+            } else if (args[i].equals("-cache")) {
+                options.cache = true;
+                continue;
+            } else if (args[i].equals("-cacheFile")) {
+                i++;
+                options.cache = true;
+                options.cacheFilename = args[i];
+                continue;
+            } else if (args[i].equals("-wavInfo")) {
+                options.wavInfo = true;
+                continue;
+            } else if (args[i].equals("-detectPitch")) {
+                options.detectPitch = true;
+                continue;
+            } else if (args[i].equals("-loudness")) {
+                options.loudness = true;
+                continue;
+            } else if (args[i].equals("-normalize")) {
+                options.loudness = true;
+                options.normalize = true;
+                continue;
+            } else if (args[i].equals("-trim")) {
+                options.trim = true;
+                continue;
+            } else if (args[i].equals("-trimLevel")) {
+                i++;
+                options.trim = true;
+                try {
+                    options.trimLevel = Double.parseDouble(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-trimLevel DB' where DB is a level in dBFS, e.g. -60");
+                }
+                continue;
+            } else if (args[i].equals("-optimize")) {
+                options.optimize = true;
+                continue;
+            } else if (args[i].equals("-findLoops")) {
+                options.findLoops = true;
+                continue;
+            } else if (args[i].equals("-stats")) {
+                i++;
+                options.statsFilename = args[i];
+                continue;
+            } else if (args[i].equals("-log")) {
+                i++;
+                try {
+                    options.logLevel = Log.levelForName(args[i]);
+                } catch (IllegalArgumentException iae) {
+                    throw new RuntimeException("specify '-log LEVEL' where LEVEL is quiet, info or debug.");
+                }
+                continue;
+            } else if (args[i].equals("-targets")) {
+                i++;
+                // Check the names now:
+                OutputTarget.forNames(args[i]);
+                options.targets = args[i];
+                continue;
+            } else if (args[i].equals("-dedupe")) {
+                options.dedupe = true;
+                continue;
+            } else if (args[i].equals("-dedupeBatch")) {
+                options.dedupe = true;
+                options.dedupeBatch = true;
+                continue;
+            } else if (args[i].equals("-flac")) {
+                i++;
+                options.flacDirname = args[i];
+                options.wavInfo = true; // loops and root notes, as FLAC keeps no smpl chunk
+                continue;
+            } else if (args[i].equals("-lite")) {
+                i++;
+                options.liteDirname = args[i];
+                options.wavInfo = true;
+                continue;
+            } else if (args[i].equals("-liteRate")) {
+                i++;
+                try {
+                    options.liteRate = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("specify '-liteRate HZ' where HZ is a sample rate, e.g. 44100.");
+                }
+                continue;
+            } else if (args[i].equals("-liteBits")) {
+                i++;
+                try {
+                    options.liteBits = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    options.liteBits = 0;
+                }
+                if (options.liteBits != 8 && options.liteBits != 16 && options.liteBits != 24) {
+                    throw new RuntimeException("specify '-liteBits N' where N is 8, 16 or 24.");
+                }
+                continue;
+            } else if (args[i].equals("-extractTo")) {
+                i++;
+                options.extractDirname = args[i];
+                continue;
+            } else if (args[i].equals("-velcurve")) {
+                options.loudness = true;
+                options.velocityCurve = true;
+                continue;
             } else if (args[i].equals("-?") || args[i].equals("-help")) {
                 CreateSFZ createSFZ = new CreateSFZ();
                 createSFZ.showUsage(System.out);
@@ -265,25 +767,50 @@ public class CreateSFZ {
                     throw new IOException("no file or directory: " + args[i]);
                 } else if (f.isDirectory()) {
                     dirname = args[i];
+                    batchDirnames.add(args[i]);
+                } else if (ZipScanner.isZipFile(f)) {
+                    options.zipFilename = args[i];
                 } else {
                     sampleNames.add(args[i]);
                 }
             }
         }
-        // Don't do anything if we showed usage, unless we were given other settings as well:
-        if (!shownUsage || args.length > 1) {
-            // Consider checking we either set a directory name or gave a sample.
-            if (!sampleNames.isEmpty() && dirname != null) {
-                throw new RuntimeException("Specify EITHER a filename or directory name.");
-            }
-            if (sampleNames.isEmpty() && dirname == null) {
-                dirname = ".";
+        if (rootNoteName != null) {
+            options.rootNote = MIDI.noteNameToNumber(rootNoteName, 0, rootNoteName.length(), options.octaves);
+            Log.info("Root note: " + options.rootNote + " (" + rootNoteName + ")");
+        }
+        if (options.zipFilename != null) {
+            if (batch || options.watch || dirname != null || !sampleNames.isEmpty()) {
+                throw new RuntimeException("A ZIP file is read instead of a directory, and cannot be used with -batch or -watch.");
             }
-            // System.out.println(COPYTEXT);
-            CreateSFZ createSFZ = new CreateSFZ(formatName, dirname, filenameFilter, sampleNames, rootNote, releaseLevel);
-            createSFZ.overwrite = overwrite;
-            createSFZ.writeSFZ(outputFilename);
+            dirname = options.extractDirname != null ? options.extractDirname : ZipScanner.extractDirname(new File(options.zipFilename));
+        }
+        if (options.dedupe && options.watch) {
+            throw new RuntimeException("-dedupe cannot be used with -watch.");
+        }
+        if (options.dedupeBatch && !batch) {
+            throw new RuntimeException("-dedupeBatch needs -batch.");
         }
+        if (!options.targets.equals("sfz") && options.watch) {
+            throw new RuntimeException("-targets cannot be used with -watch.");
+        }
+        if (options.flacDirname != null && options.watch) {
+            throw new RuntimeException("-flac cannot be used with -watch.");
+        }
+        if (options.liteDirname != null && (options.watch || options.split)) {
+            throw new RuntimeException("-lite cannot be used with -watch or -split.");
+        }
+        if (options.split && (batch || options.watch || !sampleNames.isEmpty())) {
+            throw new RuntimeException("-split needs one directory, and cannot be used with -batch or -watch.");
+        }
+        Arguments arguments = new Arguments();
+        arguments.options = options;
+        arguments.dirname = dirname;
+        arguments.sampleNames = sampleNames;
+        arguments.batch = batch;
+        arguments.batchDirnames = batchDirnames;
+        arguments.shownUsage = shownUsage;
+        return arguments;
     }
 
     public void showUsage(PrintStream out) {
@@ -302,6 +829,13 @@ public class CreateSFZ {
 
     }
 
+    /**
+     * @return the octave numbering of note names given in the Options
+     */
+    protected MIDI.Octaves octaves() {
+        return options != null ? options.octaves : MIDI.Octaves.YAMAHA;
+    }
+
     /**
      * Construct a CreateSFZ tool.
      *
@@ -311,49 +845,277 @@ public class CreateSFZ {
      * @param sampleNames
      * @param rootNote
      * @param releaseLevel
+     * @throws IOException
      */
     public CreateSFZ(String formatName, String sampleDirName, String filenameFilter, List<String> sampleNames,
-            int rootNote, int releaseLevel) {
+            int rootNote, int releaseLevel) throws IOException {
+        this(options(formatName, filenameFilter, rootNote, releaseLevel), sampleDirName, sampleNames);
+    }
+
+    private static Options options(String formatName, String filenameFilter, int rootNote, int releaseLevel) {
+        Options options = new Options();
+        options.formatName = formatName;
+        options.filenameFilter = filenameFilter;
+        options.rootNote = rootNote;
+        options.releaseLevel = releaseLevel;
+        return options;
+    }
 
-        this.releaseLevel = releaseLevel;
+    /**
+     * Construct a CreateSFZ tool to write a SampleCollection already created,
+     * e.g. one kept by a Server, with the given Options for writing it. Its
+     * Stats count only what this run adds to the collection's.
+     *
+     * @param options
+     * @param sampleCollection
+     */
+    public CreateSFZ(Options options, SampleCollection sampleCollection) {
+        this.options = options;
+        this.releaseLevel = options.releaseLevel;
+        this.overwrite = options.overwrite;
+        this.sampleCollection = sampleCollection;
+        this.statsBefore = sampleCollection.getStats().snapshot();
+    }
+
+    /**
+     * @return the SampleCollection created, or null if there were no samples
+     */
+    public SampleCollection getSampleCollection() {
+        return sampleCollection;
+    }
+
+    /**
+     * Construct a CreateSFZ tool with the given Options.
+     *
+     * If no format name is given, the directory is listed once and probed for
+     * a format, and the winning format's matches become the SampleCollection.
+     *
+     * @param options
+     * @param sampleDirName
+     * @param sampleNames
+     * @throws IOException if the directory or ZIP file cannot be read, or a
+     * file cannot be analysed or written
+     */
+    public CreateSFZ(Options options, String sampleDirName, List<String> sampleNames) throws IOException {
+        this.options = options;
+        this.releaseLevel = options.releaseLevel;
+        this.overwrite = options.overwrite;
         // sampleDirName MUST end in a file separator:
         // SForzando at least doesn't add a separator between the dir name we give and any samples...
         if (sampleDirName != null && !sampleDirName.endsWith(File.separator)) {
             sampleDirName = sampleDirName + File.separator;
         }
         //this.sampleDirName = sampleDirName;
-        Format format = formatName != null ? formatForName(formatName) : formatProbe(sampleDirName, filenameFilter, sampleNames);
-        if (format == null) {
-            throw new RuntimeException("no recognised sample filename format");
+        Format format = options.formatName != null ? formatForName(options.formatName) : null;
+        String formatName = options.formatName; // as given, probed or cached
+        if (options.formatName != null && format == null) {
+            throw new RuntimeException("no recognised sample filename format: " + options.formatName);
         }
         // Create a SampleCollection from the given directory or sample names:
-        try {
-            if (sampleNames.isEmpty()) {
-                sampleCollection = new SampleCollection(format, sampleDirName, filenameFilter);
+        File scanDir = new File(sampleDirName != null ? sampleDirName : ".");
+        try (DirectoryScanner scanner = scanner(scanDir)) {
+            if (!sampleNames.isEmpty()) {
+                // Sample names given explicitly are not interpreted, so any format will do:
+                if (format == null) {
+                    format = formatForName(DEFAULT_FORMAT_NAME);
+                }
+                sampleCollection = new SampleCollection(format, sampleNames, options.rootNote);
             } else {
-                sampleCollection = new SampleCollection(format, sampleNames, rootNote);
+                String scanFormatName = options.formatName;
+                if (options.cache) {
+                    scanCache = ScanCache.load(scanCacheFile(sampleDirName), new File(sampleDirName));
+                    scanCache.setOctaves((format != null ? format.octaves() : octaves()).name());
+                    scanCache.setWavInfo(options.readsWavInfo());
+                    scanCache.setLoudness(options.loudness);
+                    scanCache.setTrim(options.trim, options.trimLevel);
+                    scanCache.setLoops(options.findLoops);
+                    if (format == null && scanCache.getFormatName() != null) {
+                        // Use the format found when the cache was written, rather than probing:
+                        format = formatForName(scanCache.getFormatName());
+                        scanFormatName = scanCache.getFormatName();
+                        if (format != null) {
+                            formatName = scanFormatName;
+                            Log.info("Using format from scan cache: " + scanFormatName);
+                        }
+                    }
+                }
+                if (format != null) {
+                    if (scanCache != null) {
+                        scanCache.setFormatName(scanFormatName);
+                    }
+                    sampleCollection = new SampleCollection(format, sampleDirName, options.filenameFilter, scanner, scanCache,
+                            options.split);
+                } else {
+                    FormatProbe probe = new FormatProbe(this, KNOWN_FORMATS);
+                    sampleCollection = formatProbe(sampleDirName, scanner, options.filenameFilter, options.probeLimit, probe);
+                    if (sampleCollection == null) {
+                        throw new RuntimeException("no recognised sample filename format");
+                    }
+                    formatName = probe.getBestName();
+                    if (scanCache != null) {
+                        scanCache.setFormatName(probe.getBestName());
+                        sampleCollection.recordIn(scanCache);
+                    }
+                }
+            }
+            if (scanner instanceof ZipScanner) {
+                extractSamples((ZipScanner) scanner);
+            }
+            analyse(scanner);
+            if (options.dedupe) {
+                Stats.Timer dedupeTimer = sampleCollection.getStats().time(Stats.Phase.DEDUPE);
+                try {
+                    sampleCollection.dedupe(scanner);
+                } finally {
+                    dedupeTimer.stop();
+                }
+            }
+            if (options.flacDirname != null) {
+                Stats.Timer transcodeTimer = sampleCollection.getStats().time(Stats.Phase.TRANSCODE);
+                try {
+                    sampleCollection.transcode(scanner, new File(options.flacDirname));
+                } finally {
+                    transcodeTimer.stop();
+                }
+            }
+            sampleCollection.setOptimize(options.optimize);
+            sampleCollection.setEmitThreads(options.threads);
+            sampleCollection.setTargets(OutputTarget.forNames(options.targets));
+            if (options.liteDirname != null) {
+                final int liteRate = options.liteRate;
+                final int liteBits = options.liteBits;
+                Stats.Timer convertTimer = sampleCollection.getStats().time(Stats.Phase.CONVERT);
+                try {
+                    sampleCollection.convertLite(scanner, new File(options.liteDirname), () -> new LiteConverter(liteRate, liteBits));
+                } finally {
+                    convertTimer.stop();
+                }
+            }
+            sampleCollection.getStats().setFormatName(formatName);
+            if (scanCache != null) {
+                scanCache.save();
+                Log.info(scanCache.report());
+            }
+        }
+    }
+
+    /**
+     * Create the DirectoryScanner for a directory, or a ZipScanner to list a
+     * ZIP archive and extract samples into the directory.
+     *
+     * @param dir
+     * @return DirectoryScanner
+     * @throws IOException
+     */
+    protected DirectoryScanner scanner(File dir) throws IOException {
+        if (options.zipFilename != null) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create directory to extract samples: " + dir);
+            }
+            return new ZipScanner(new File(options.zipFilename), dir, options.threads);
+        }
+        return new DirectoryScanner(dir, options.recursive, options.threads);
+    }
+
+    /**
+     * Extract the samples recognised in a ZIP archive, including any
+     * waiting for pitch detection, so the .sfz file and the analysis stages
+     * can read them. Other files in the archive are not extracted.
+     *
+     * @param scanner
+     * @throws IOException
+     */
+    protected void extractSamples(ZipScanner scanner) throws IOException {
+        List<String> used = new ArrayList<>();
+        for (Sample s : sampleCollection.allSamples()) {
+            used.add(s.filename);
+        }
+        for (Sample s : sampleCollection.unpitched) {
+            used.add(s.filename);
+        }
+        Stats.Timer extractTimer = sampleCollection.getStats().time(Stats.Phase.EXTRACT);
+        try {
+            scanner.extract(used);
+        } finally {
+            extractTimer.stop();
+        }
+    }
+
+    /**
+     * Run the analysis stages chosen in the Options over the samples, using
+     * the scanner's threads.
+     *
+     * @param scanner
+     * @throws IOException
+     */
+    protected void analyse(DirectoryScanner scanner) throws IOException {
+        if (!sampleCollection.unpitched.isEmpty() && !options.detectPitch) {
+            Log.warn("Note: " + sampleCollection.unpitched.size() + " samples have no note: use -note NOTENAME or -detectPitch");
+        }
+        if (!options.readsWavInfo()) {
+            return;
+        }
+        Stats.Timer analyseTimer = sampleCollection.getStats().time(Stats.Phase.ANALYSE);
+        try {
+            sampleCollection.readWavInfo(scanner);
+            if (options.detectPitch) {
+                sampleCollection.detectPitch(scanner, new PitchDetector());
             }
-        } catch (IOException ioe) {
-            ioe.printStackTrace(System.err);
+            if (options.trim) {
+                sampleCollection.detectSilence(scanner, new SilenceDetector(options.trimLevel));
+            }
+            if (options.findLoops) {
+                sampleCollection.findLoops(scanner, new LoopFinder());
+            }
+            if (options.loudness) {
+                sampleCollection.measureLoudness(scanner, new LoudnessMeter());
+                sampleCollection.setLoudnessOptions(options.normalize, options.velocityCurve);
+            }
+        } finally {
+            analyseTimer.stop();
         }
     }
 
     /**
      * Return a Format for the given name, or null if none recognised.
      *
+     * The name may end with the octave numbering of the format's note names,
+     * e.g. "pianobook:roland", which it uses instead of -octaves.
+     *
      * @param formatName
      * @return
      */
     public Format formatForName(String formatName) {
+        MIDI.Octaves octaves = null;
+        int colon = formatName.indexOf(':');
+        if (colon >= 0) {
+            try {
+                octaves = MIDI.Octaves.forName(formatName.substring(colon + 1));
+            } catch (IllegalArgumentException iae) {
+                return null;
+            }
+            formatName = formatName.substring(0, colon);
+        }
         switch (formatName) {
             case "pianobook": {
-                return new Format_PianoBook1();
+                Format_PianoBook1 f = new Format_PianoBook1();
+                f.octaves = octaves;
+                return f;
             }
             case "format1": {
-                return new Format1();
+                Format1 f = new Format1();
+                f.octaves = octaves;
+                return f;
             }
             case "format2": {
-                return new Format2();
+                Format2 f = new Format2();
+                f.octaves = octaves;
+                return f;
+            }
+            case "detect": {
+                Format_Detect f = new Format_Detect();
+                f.octaves = octaves;
+                return f;
             }
             default:
                 return null;
@@ -364,60 +1126,240 @@ public class CreateSFZ {
      * Probe the files in a directory for the sample Format with the most
      * recognised Samples.
      *
+     * The directory is listed once, each filename is matched against all
+     * known formats, and the SampleCollection for the best format is built
+     * from its matches.
+     *
      * @param sampleDirName
+     * @param scanner lists the directory
      * @param filenameFilter
-     * @param sampleNames
-     * @return Format or null
+     * @param probeLimit decide using only the first probeLimit files, if
+     * positive
+     * @return SampleCollection or null
+     * @throws IOException
      */
-    public Format formatProbe(String sampleDirName, String filenameFilter, List<String> sampleNames) {
-        System.out.println("Probing for recognised sample filename format...");
-        int mostFound = 0;
-        String bestName = null;
-        Format bestFormat = null;
-        for (String fn : KNOWN_FORMATS) {
-            try {
-                System.out.println("Trying filename format: " + fn);
-                Format f = formatForName(fn);
-                SampleCollection sc = createSampleCollection(f, sampleDirName, filenameFilter, sampleNames);
-                if (sc.samples.size() > mostFound) {
-                    bestName = fn;
-                    bestFormat = f;
-                }
-            } catch (IOException ioe) {
-                // ignore this Format...
-            }
+    public SampleCollection formatProbe(String sampleDirName, DirectoryScanner scanner, String filenameFilter, int probeLimit)
+            throws IOException {
+        return formatProbe(sampleDirName, scanner, filenameFilter, probeLimit, new FormatProbe(this, KNOWN_FORMATS));
+    }
+
+    protected SampleCollection formatProbe(String sampleDirName, DirectoryScanner scanner, String filenameFilter, int probeLimit,
+            FormatProbe probe) throws IOException {
+        Log.info("Probing for recognised sample filename format...");
+        SampleCollection sc = probe.probe(sampleDirName, scanner, filenameFilter, probeLimit);
+        if (sc != null) {
+            Log.info("Using format: " + probe.getBestName());
         }
-        if (bestName != null) {
-            System.out.println("Using format: " + bestName);
-            return bestFormat;
+        return sc;
+    }
+
+    /**
+     * Return the scan cache file: as given, or next to the output file, or
+     * named after the sample directory.
+     *
+     * @param sampleDirName
+     * @return File
+     * @throws IOException
+     */
+    protected File scanCacheFile(String sampleDirName) throws IOException {
+        if (options.cacheFilename != null) {
+            return new File(options.cacheFilename);
+        } else if (options.outputFilename != null) {
+            return new File(options.outputFilename + ".scancache");
         } else {
-            return null;
+            return new File(new File(sampleDirName).getCanonicalFile().getName() + ".scancache");
+        }
+    }
+
+    /**
+     * Write out the SFZ file.
+     *
+     * @param outputFilename
+     * @return the filename written
+     * @throws IOException
+     */
+    protected String writeSFZ(String outputFilename) throws IOException {
+
+        outputFilename = checkOutputFilename(outputFilename);
+        SampleCollection lite = sampleCollection.getLite();
+        String liteFilename = SampleCollection.liteFilename(outputFilename);
+        if (lite != null) {
+            checkOutputFilenames(liteFilename);
         }
+        sampleCollection.writeSFZ(outputFilename, KEY_RANGE, KEY_RANGE, releaseLevel);
+        if (lite != null) {
+            lite.writeSFZ(liteFilename, KEY_RANGE, KEY_RANGE, releaseLevel);
+        }
+        written = outputFilename;
+        return outputFilename;
+    }
+
+    /**
+     * End the run: commit its JFR event, and write the Stats if -stats was
+     * given.
+     *
+     * @throws IOException
+     */
+    protected void endRun() throws IOException {
+        if (sampleCollection == null) {
+            return;
+        }
+        runStats().commitRun(runEvent, sampleCollection.filesUsed.size());
+        if (options.statsFilename != null) {
+            writeStats(options.statsFilename, statsJSON());
+        }
+    }
+
+    /**
+     * @return the Stats of this run, not of earlier runs using the same
+     * SampleCollection
+     */
+    protected Stats runStats() {
+        Stats stats = sampleCollection.getStats();
+        return statsBefore != null ? stats.since(statsBefore) : stats;
     }
 
-    public SampleCollection createSampleCollection(Format format, String sampleDirName, String filenameFilter,
-            List<String> sampleNames) throws IOException {
+    /**
+     * @return the Stats of this run as a JSON object
+     */
+    protected String statsJSON() {
+        return runStats().toJSON(written, sampleCollection.filesUsed.size(),
+                sampleCollection.unpitched.size(), System.nanoTime() - started);
+    }
 
-        SampleCollection s = null;
-        if (!sampleNames.isEmpty()) {
-            s = new SampleCollection(format, sampleNames, 0 /* just probing... */);
+    /**
+     * Write JSON to a file, or to System.out for "-".
+     *
+     * @param filename
+     * @param json
+     * @throws IOException
+     */
+    protected static void writeStats(String filename, String json) throws IOException {
+        if (filename.equals("-")) {
+            System.out.println(json);
         } else {
-            s = new SampleCollection(format, sampleDirName, filenameFilter);
+            Files.write(new File(filename).toPath(), (json + "\n").getBytes(StandardCharsets.UTF_8));
         }
-        return s;
     }
 
     /**
-     * Write out the SFZ file.
+     * Split the samples by base name, and write one .sfz file per base name
+     * into the given directory (or the current directory). The directory was
+     * listed and the samples analysed once, for all instruments, and the
+     * instruments are written concurrently on up to options.jobs threads. A
+     * failure in one instrument is reported without stopping the others.
+     *
+     * @param outputDirName or null
+     * @return true if every instrument was written
+     * @throws IOException
+     */
+    protected boolean writeSplitSFZ(String outputDirName) throws IOException {
+        if (sampleCollection == null) {
+            throw new IOException("no samples");
+        }
+        File outputDir = outputDirName != null ? new File(outputDirName) : null;
+        if (outputDir != null && !outputDir.isDirectory()) {
+            throw new IOException("split output directory does not exist: " + outputDir);
+        }
+        List<SampleCollection> instruments = sampleCollection.splitByBaseName();
+        if (instruments.isEmpty()) {
+            throw new IOException("no samples");
+        }
+        // Check every output file before writing any:
+        List<String> outputs = new ArrayList<>();
+        Set<String> outputsClaimed = new HashSet<>();
+        for (SampleCollection sc : instruments) {
+            File output = new File(outputDir, sc.outputFilename);
+            if (!outputsClaimed.add(output.getCanonicalPath())) {
+                throw new IOException("two base names would be written to the same output file: " + output);
+            }
+            checkOutputFilenames(output.getPath());
+            outputs.add(output.getPath());
+        }
+        int jobs = Math.max(1, Math.min(options.jobs, instruments.size()));
+        Log.info("Split: " + instruments.size() + " instruments by sample base name, " + jobs + " written at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<?>> futures = new ArrayList<>();
+        boolean ok = true;
+        try {
+            for (int i = 0; i < instruments.size(); i++) {
+                final SampleCollection sc = instruments.get(i);
+                final String output = outputs.get(i);
+                futures.add(executor.submit(() -> {
+                    sc.writeSFZ(output, KEY_RANGE, KEY_RANGE, releaseLevel);
+                    return null;
+                }));
+            }
+            Log.info("\nSplit summary:");
+            for (int i = 0; i < instruments.size(); i++) {
+                SampleCollection sc = instruments.get(i);
+                try {
+                    futures.get(i).get();
+                    Log.info("  OK      " + sc.sampleGroupBaseName + " -> " + outputs.get(i) + " (" + sc.filesUsed.size() + " files)");
+                } catch (ExecutionException ee) {
+                    ok = false;
+                    Log.warn("  FAILED  " + sc.sampleGroupBaseName + ": " + ee.getCause());
+                } catch (InterruptedException ie) {
+                    throw new IOException("split interrupted", ie);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return ok;
+    }
+
+    /**
+     * Write out the SFZ file, then keep rewriting it as sample files are
+     * created, modified or deleted in the directory, until interrupted.
      *
      * @param outputFilename
      * @throws IOException
      */
-    protected void writeSFZ(String outputFilename) throws IOException {
+    protected void watch(String outputFilename) throws IOException {
+
+        outputFilename = checkOutputFilename(outputFilename);
+        new Watcher(this, outputFilename, options.watchDelay).run();
+    }
 
-        if (!overwrite && new File(outputFilename).exists()) {
-            throw new IOException("destination/output file exists: " + outputFilename);
+    /**
+     * Return the output filename to use, the given name or one from the
+     * samples, throwing an IOException if it exists and overwrite is not set.
+     *
+     * @param outputFilename
+     * @return output filename
+     * @throws IOException
+     */
+    protected String checkOutputFilename(String outputFilename) throws IOException {
+        if (sampleCollection == null) {
+            throw new IOException("no samples");
+        }
+        if (outputFilename == null) {
+            outputFilename = sampleCollection.outputFilename;
+        }
+        if (outputFilename == null) {
+            throw new IOException("no output file");
+        }
+        checkOutputFilenames(outputFilename);
+        return outputFilename;
+    }
+
+    /**
+     * Throw an IOException if the file of any OutputTarget exists, and
+     * overwrite is not set.
+     *
+     * @param outputFilename the .sfz filename
+     * @throws IOException
+     */
+    protected void checkOutputFilenames(String outputFilename) throws IOException {
+        if (overwrite) {
+            return;
+        }
+        for (OutputTarget target : sampleCollection.getTargets()) {
+            String filename = target.filename(outputFilename);
+            if (new File(filename).exists()) {
+                throw new IOException("destination/output file exists: " + filename);
+            }
         }
-        sampleCollection.writeSFZ(outputFilename, KEY_RANGE, KEY_RANGE, releaseLevel);
     }
 }
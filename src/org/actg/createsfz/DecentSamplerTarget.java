@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.PrintStream;
+
+/**
+ * Write a DecentSampler .dspreset file: a <group> for each velocity layer of
+ * each note, round robin, with a <sample> for each Sample. Sample paths
+ * include the .sfz default_path, as DecentSampler has none.
+ *
+ * DecentSampler has no equivalent of amp_velcurve_N, so -velcurve only
+ * changes the .sfz and JSON targets.
+ */
+public class DecentSamplerTarget extends OutputTarget {
+
+    @Override
+    public String getName() {
+        return "dspreset";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".dspreset";
+    }
+
+    @Override
+    public void printStart(SampleCollection c, PrintStream out) {
+        out.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.print("<!-- DecentSampler preset created by CreateSFZ. -->\n");
+        out.print("<DecentSampler minVersion=\"1.0.0\">\n");
+        out.print("  <groups>\n");
+    }
+
+    @Override
+    public void printNotesStart(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+        if (releaseTriggers && !notes.isEmpty()) {
+            out.print("\n    <!-- Release triggers -->\n");
+        }
+    }
+
+    @Override
+    public void printNotesEnd(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+    }
+
+    @Override
+    public void printEnd(SampleCollection c, PrintStream out) {
+        out.print("  </groups>\n");
+        out.print("</DecentSampler>\n");
+    }
+
+    @Override
+    public void note(Region r, StringBuilder out) {
+        out.append("    <!-- Note: ").append(r.noteNumber).append(' ').append(r.noteName).append(" -->\n");
+    }
+
+    @Override
+    public void group(Region r, StringBuilder out) {
+        out.append("    <group");
+        if (r.lovel >= 0) {
+            out.append(" loVel=\"").append(r.lovel).append("\" hiVel=\"").append(r.hivel).append('"');
+        }
+        out.append(" seqMode=\"round_robin\" seqLength=\"").append(r.seqLength).append('"');
+        if (r.release) {
+            out.append(" trigger=\"release\"");
+        }
+        out.append(">\n");
+    }
+
+    @Override
+    public void region(Region r, StringBuilder out) {
+        out.append("      <sample path=\"");
+        escape(r.getPath(), out);
+        out.append("\" rootNote=\"").append(r.rootNote >= 0 ? r.rootNote : r.noteNumber)
+                .append("\" loNote=\"").append(r.lokey).append("\" hiNote=\"").append(r.hikey)
+                .append("\" seqPosition=\"").append(r.seq).append('"');
+        if (r.offset > 0) {
+            out.append(" start=\"").append(r.offset).append('"');
+        }
+        if (r.end >= 0) {
+            out.append(" end=\"").append(r.end).append('"');
+        }
+        if (r.loopStart >= 0) {
+            out.append(" loopStart=\"").append(r.loopStart).append("\" loopEnd=\"").append(r.loopEnd)
+                    .append("\" loopEnabled=\"true\"");
+        }
+        String volume = r.getVolume();
+        if (volume != null) {
+            out.append(" volume=\"").append(volume).append("dB\"");
+        }
+        out.append("/>\n");
+    }
+
+    @Override
+    public void endGroup(Region r, StringBuilder out) {
+        out.append("    </group>\n");
+    }
+
+    @Override
+    public void endNote(Region r, int noteCount, StringBuilder out) {
+    }
+
+    /**
+     * Append text to an XML attribute value.
+     *
+     * @param s
+     * @param out
+     */
+    protected static void escape(String s, StringBuilder out) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Find samples whose files have identical content, e.g. a vendor's copy of a
+ * soft layer as the medium layer, or release samples shared between
+ * instruments, so their regions can all use one file.
+ *
+ * Files are first grouped by size, which costs nothing more than the listing,
+ * and only files sharing a size are hashed (SHA-256), in parallel using the
+ * scanner's threads. Of each set of identical files, the first in the order of
+ * the collections and their samples is kept, and the others are marked as its
+ * duplicates (Sample.duplicateOf), so the same files are chosen on every run.
+ */
+public class Deduplicator {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    protected static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /**
+     * The outcome of a deduplication.
+     */
+    public static class Result {
+
+        protected int files;
+        protected int hashed;
+        protected long hashedBytes;
+        protected int duplicates;
+        protected long savedBytes;
+        protected long nanos;
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getHashed() {
+            return hashed;
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return the size of the duplicate files no longer used
+         */
+        public long getSavedBytes() {
+            return savedBytes;
+        }
+
+        public String report() {
+            double seconds = nanos / 1e9;
+            return "Dedupe: " + duplicates + " duplicates of " + files + " files" + String.format(Locale.ROOT,
+                    ", %.1f MB saved, %d hashed (%.1f MB) at %.1f MB/s", savedBytes / 1e6, hashed, hashedBytes / 1e6,
+                    seconds > 0 ? hashedBytes / 1e6 / seconds : 0.0);
+        }
+    }
+
+    /**
+     * A Sample's file, and the collection it is in.
+     */
+    protected static class Entry {
+
+        protected final SampleCollection collection;
+        protected final Sample sample;
+        protected final File file;
+        protected final long size;
+
+        Entry(SampleCollection collection, Sample sample, File file) {
+            this.collection = collection;
+            this.sample = sample;
+            this.file = file;
+            this.size = file.length();
+        }
+    }
+
+    /**
+     * Mark the Samples of the collections which duplicate another's file.
+     * Samples already marked, e.g. by deduplicating each collection before a
+     * batch, are left as they are. Samples in one collection may duplicate
+     * those in another: the duplicate's region then uses the other
+     * collection's file.
+     *
+     * @param scanner for its threads
+     * @param collections
+     * @return Result
+     * @throws IOException
+     */
+    public static Result dedupe(DirectoryScanner scanner, List<SampleCollection> collections) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        // Files by size, in order:
+        Map<Long, List<Entry>> bySize = new LinkedHashMap<>();
+        for (SampleCollection c : collections) {
+            File dir = c.sampleDirName != null ? new File(c.sampleDirName) : null;
+            for (Sample s : c.allSamples()) {
+                if (s.duplicateOf != null) {
+                    continue;
+                }
+                Entry e = new Entry(c, s, new File(dir, s.filename));
+                if (e.size == 0) {
+                    continue; // missing
+                }
+                result.files++;
+                bySize.computeIfAbsent(e.size, k -> new ArrayList<>()).add(e);
+            }
+        }
+        List<Entry> toHash = new ArrayList<>();
+        for (List<Entry> same : bySize.values()) {
+            if (same.size() > 1) {
+                for (Entry e : same) {
+                    if (e.sample.contentHash == null) {
+                        toHash.add(e);
+                    }
+                }
+            }
+        }
+        List<byte[]> hashes = scanner.map(toHash, e -> {
+            try {
+                return hash(e.file);
+            } catch (IOException ioe) {
+                Log.warn("Cannot hash, not deduplicated: " + e.file + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        for (int i = 0; i < toHash.size(); i++) {
+            Entry e = toHash.get(i);
+            e.sample.contentHash = hashes.get(i);
+            if (e.sample.contentHash != null) {
+                result.hashed++;
+                result.hashedBytes += e.size;
+            }
+        }
+        for (List<Entry> same : bySize.values()) {
+            if (same.size() < 2) {
+                continue;
+            }
+            Map<ByteBuffer, Entry> first = new HashMap<>();
+            for (Entry e : same) {
+                if (e.sample.contentHash == null) {
+                    continue;
+                }
+                Entry original = first.putIfAbsent(ByteBuffer.wrap(e.sample.contentHash), e);
+                if (original != null && !original.file.getAbsoluteFile().equals(e.file.getAbsoluteFile())) {
+                    e.sample.duplicateOf = original.sample;
+                    e.sample.duplicateIn = original.collection != e.collection ? original.collection : null;
+                    result.duplicates++;
+                    result.savedBytes += e.size;
+                    e.collection.stats.count(Stats.Counter.DUPLICATES);
+                    Log.debug("Duplicate: " + e.file + " of " + original.file);
+                }
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * @param file
+     * @return the SHA-256 of a file's content
+     * @throws IOException
+     */
+    public static byte[] hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (ch.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * List the sample files in a directory, optionally recursing into
+ * sub-directories, using a ForkJoinPool of limited parallelism for listing and
+ * for filename parsing.
+ *
+ * Filenames are returned relative to the scanned directory, using '/' as the
+ * separator, sorted so the same directory always gives the same order.
+ */
+public class DirectoryScanner implements Closeable {
+
+    protected final File dir;
+    protected final boolean recursive;
+    protected final int parallelism;
+    protected ForkJoinPool pool;
+
+    /**
+     * Create a DirectoryScanner.
+     *
+     * @param dir
+     * @param recursive true to include files in sub-directories
+     * @param parallelism maximum threads used, 1 for single-threaded
+     */
+    public DirectoryScanner(File dir, boolean recursive, int parallelism) {
+        this.dir = dir;
+        this.recursive = recursive;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @return maximum threads used by list() and map()
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * List the files in the directory (and sub-directories if recursive).
+     *
+     * @return sorted List of relative filenames
+     * @throws IOException
+     */
+    public List<String> list() throws IOException {
+        if (!dir.exists() || !dir.isDirectory() || !dir.canRead()) {
+            throw new IOException("bad directory: " + dir);
+        }
+        List<String> names;
+        try {
+            names = pool().invoke(new ListTask(dir.toPath(), ""));
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Apply a function to each filename (or Sample, etc.) in parallel, keeping
+     * the order of the given List in the results.
+     *
+     * @param <S>
+     * @param <T>
+     * @param items
+     * @param f
+     * @return List of results, in the same order as the items
+     * @throws IOException
+     */
+    public <S, T> List<T> map(final List<S> items, final Function<S, T> f) throws IOException {
+        if (parallelism == 1) {
+            List<T> results = new ArrayList<>(items.size());
+            for (S item : items) {
+                results.add(f.apply(item));
+            }
+            return results;
+        }
+        try {
+            return pool().submit(() -> items.parallelStream().map(f).collect(Collectors.toList())).get();
+        } catch (InterruptedException ie) {
+            throw new IOException("interrupted", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        }
+    }
+
+    /**
+     * Return the last element of a relative filename.
+     *
+     * @param filename
+     * @return filename without directories
+     */
+    public static String leafName(String filename) {
+        return filename.substring(leafStart(filename));
+    }
+
+    /**
+     * Return the offset of the last element of a relative filename.
+     *
+     * @param filename
+     * @return offset of the filename without directories
+     */
+    public static int leafStart(String filename) {
+        return filename.lastIndexOf('/') + 1;
+    }
+
+    protected synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * List one directory, forking a task per sub-directory.
+     */
+    protected class ListTask extends RecursiveTask<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final Path path;
+        protected final String prefix;
+
+        ListTask(Path path, String prefix) {
+            this.path = path;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> names = new ArrayList<>();
+            List<ListTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path p : stream) {
+                    String name = prefix + p.getFileName().toString();
+                    if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                        if (recursive) {
+                            ListTask t = new ListTask(p, name + "/");
+                            t.fork();
+                            subdirs.add(t);
+                        }
+                    } else if (Files.isRegularFile(p)) {
+                        names.add(name);
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            for (ListTask t : subdirs) {
+                names.addAll(t.join());
+            }
+            return names;
+        }
+    }
+}
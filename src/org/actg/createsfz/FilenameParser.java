@@ -0,0 +1,393 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Match filenames against a Format's filenameRegex(), giving the start and end
+ * offset of each group in the filename.
+ *
+ * The regex is compiled once. A subclass for a known regex parses the name
+ * directly, in a single pass over a CharSequence without creating Strings or
+ * backtracking. Any name it cannot decide exactly, such as one with ".wav"
+ * more than once, is matched with the regex instead, so the groups found are
+ * always those the regex gives.
+ */
+public class FilenameParser {
+
+    // Results of parse():
+    public static final int NO_MATCH = 0;
+    public static final int MATCH = 1;
+    public static final int FALLBACK = 2; // use the regex
+
+    protected static final Map<String, FilenameParser> PARSERS = new ConcurrentHashMap<>();
+
+    protected final String regex;
+    protected final Pattern pattern;
+    protected final int groupCount;
+
+    public FilenameParser(String regex) {
+        this.regex = regex;
+        this.pattern = Pattern.compile(regex);
+        this.groupCount = pattern.matcher("").groupCount();
+    }
+
+    /**
+     * A parser which only uses the regex, compiled once for each regex.
+     *
+     * @param regex
+     * @return FilenameParser
+     */
+    public static FilenameParser forRegex(String regex) {
+        return PARSERS.computeIfAbsent(regex, FilenameParser::new);
+    }
+
+    public String getRegex() {
+        return regex;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public int groupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @return an array for the offsets of the groups found by match()
+     */
+    public int[] newGroups() {
+        return new int[(groupCount + 1) * 2];
+    }
+
+    /**
+     * Find the regex in part of a CharSequence, as Matcher.find() does.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @param groups set to the start and end offset in s of each group, from
+     * group 0 (the whole match), -1 for a group which did not match
+     * @return true if found
+     */
+    public boolean match(CharSequence s, int start, int end, int[] groups) {
+        int result = parse(s, start, end, groups);
+        if (result == FALLBACK) {
+            return matchRegex(s, start, end, groups);
+        }
+        return result == MATCH;
+    }
+
+    /**
+     * Find the regex in part of a CharSequence using the compiled Pattern.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @param groups
+     * @return true if found
+     */
+    public boolean matchRegex(CharSequence s, int start, int end, int[] groups) {
+        Matcher m = pattern.matcher(s);
+        m.region(start, end);
+        if (!m.find()) {
+            return false;
+        }
+        for (int g = 0; g <= groupCount; g++) {
+            groups[g * 2] = m.start(g);
+            groups[g * 2 + 1] = m.end(g);
+        }
+        return true;
+    }
+
+    /**
+     * Parse a name directly, setting groups as matchRegex() would.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @param groups
+     * @return MATCH, NO_MATCH, or FALLBACK if the regex must decide
+     */
+    protected int parse(CharSequence s, int start, int end, int[] groups) {
+        return FALLBACK;
+    }
+
+    protected static void setGroup(int[] groups, int group, int start, int end) {
+        groups[group * 2] = start;
+        groups[group * 2 + 1] = end;
+    }
+
+    /**
+     * Find ".wav" in a name, for the regexes here which end with it.
+     *
+     * @return the offset of ".wav" if it is found once, at the end, -1 if it
+     * is not found, or -2 if it is found elsewhere, or there is a line
+     * terminator, which '.' in a regex does not match
+     */
+    protected static int wavSuffix(CharSequence s, int start, int end) {
+        int found = -1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && i + 4 <= end && s.charAt(i + 1) == 'w' && s.charAt(i + 2) == 'a' && s.charAt(i + 3) == 'v') {
+                if (found >= 0) {
+                    return -2;
+                }
+                found = i;
+            } else if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return -2;
+            }
+        }
+        return found < 0 || found == end - 4 ? found : -2;
+    }
+
+    protected static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static int lastIndexOf(CharSequence s, char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    protected static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Parse a decimal integer from part of a CharSequence, as
+     * Integer.parseInt() does from a String.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @return int
+     * @throws NumberFormatException
+     */
+    public static int parseInt(CharSequence s, int start, int end) throws NumberFormatException {
+        int i = start;
+        boolean negative = i < end && s.charAt(i) == '-';
+        if (negative || (i < end && s.charAt(i) == '+')) {
+            i++;
+        }
+        if (i == end) {
+            throw forInputString(s, start, end);
+        }
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 10);
+            if (digit < 0) {
+                throw forInputString(s, start, end);
+            }
+            result = result * 10 + digit;
+            if (result > limit) {
+                throw forInputString(s, start, end);
+            }
+        }
+        return (int) (negative ? -result : result);
+    }
+
+    protected static NumberFormatException forInputString(CharSequence s, int start, int end) {
+        return new NumberFormatException("For input string: \"" + s.subSequence(start, end) + "\"");
+    }
+
+    /**
+     * Parser for Format1: "(.*)_([a-zA-Z]+)\\-(.*)\\-(\\d+)\\.wav"
+     */
+    public static class Format1Parser extends FilenameParser {
+
+        public Format1Parser(String regex) {
+            super(regex);
+        }
+
+        @Override
+        protected int parse(CharSequence s, int start, int end, int[] groups) {
+            int wav = wavSuffix(s, start, end);
+            if (wav < 0) {
+                return wav == -1 ? NO_MATCH : FALLBACK;
+            }
+            // The variation number follows the last '-':
+            int dash = lastIndexOf(s, '-', start, wav);
+            if (dash < 0 || dash + 1 == wav) {
+                return NO_MATCH;
+            }
+            for (int i = dash + 1; i < wav; i++) {
+                if (!isDigit(s.charAt(i))) {
+                    return NO_MATCH;
+                }
+            }
+            // The base name is greedy: the last '_' followed by letters and a '-' before that one:
+            for (int u = lastIndexOf(s, '_', start, dash); u >= 0; u = lastIndexOf(s, '_', start, u)) {
+                int p = u + 1;
+                while (p < dash && isLetter(s.charAt(p))) {
+                    p++;
+                }
+                if (p > u + 1 && p < dash && s.charAt(p) == '-') {
+                    setGroup(groups, 0, start, wav + 4);
+                    setGroup(groups, 1, start, u);
+                    setGroup(groups, 2, u + 1, p);
+                    setGroup(groups, 3, p + 1, dash);
+                    setGroup(groups, 4, dash + 1, wav);
+                    return MATCH;
+                }
+            }
+            return NO_MATCH;
+        }
+    }
+
+    /**
+     * Parser for Format2: "(.*?) (RT )?(.*)\\.wav"
+     */
+    public static class Format2Parser extends FilenameParser {
+
+        public Format2Parser(String regex) {
+            super(regex);
+        }
+
+        @Override
+        protected int parse(CharSequence s, int start, int end, int[] groups) {
+            int wav = wavSuffix(s, start, end);
+            if (wav < 0) {
+                return wav == -1 ? NO_MATCH : FALLBACK;
+            }
+            int space = indexOf(s, ' ', start, wav);
+            if (space < 0) {
+                return NO_MATCH;
+            }
+            int note = space + 1;
+            setGroup(groups, 0, start, wav + 4);
+            setGroup(groups, 1, start, space);
+            if (note + 3 <= wav && s.charAt(note) == 'R' && s.charAt(note + 1) == 'T' && s.charAt(note + 2) == ' ') {
+                setGroup(groups, 2, note, note + 3);
+                note += 3;
+            } else {
+                setGroup(groups, 2, -1, -1);
+            }
+            setGroup(groups, 3, note, wav);
+            return MATCH;
+        }
+    }
+
+    /**
+     * Parser for Format_PianoBook1:
+     * "([A-Za-z]*)?\\s+([mpf]+)?\\s*?([A-Z#0-9]*?)(\\s+RT)?\\.wav"
+     *
+     * Only names of the form "Name velocity? NOTE( RT)?.wav", with single
+     * spaces, are parsed directly: the regex can find a match starting
+     * within other names.
+     */
+    public static class PianoBookParser extends FilenameParser {
+
+        public PianoBookParser(String regex) {
+            super(regex);
+        }
+
+        @Override
+        protected int parse(CharSequence s, int start, int end, int[] groups) {
+            int wav = wavSuffix(s, start, end);
+            if (wav < 0) {
+                return wav == -1 ? NO_MATCH : FALLBACK;
+            }
+            int p = start;
+            while (p < wav && isLetter(s.charAt(p))) {
+                p++;
+            }
+            if (p == start || p == wav || s.charAt(p) != ' ') {
+                for (int i = start; i < wav; i++) {
+                    if (Character.isWhitespace(s.charAt(i))) {
+                        return FALLBACK;
+                    }
+                }
+                return NO_MATCH; // no whitespace for \\s+
+            }
+            int base = p++;
+            int velocity = -1;
+            int q = p;
+            while (q < wav && (s.charAt(q) == 'm' || s.charAt(q) == 'p' || s.charAt(q) == 'f')) {
+                q++;
+            }
+            if (q > p && q < wav && s.charAt(q) == ' ') {
+                velocity = p;
+                p = q + 1;
+            }
+            int note = p;
+            while (p < wav && (s.charAt(p) == '#' || isDigit(s.charAt(p)) || (s.charAt(p) >= 'A' && s.charAt(p) <= 'Z'))) {
+                p++;
+            }
+            int noteEnd = p;
+            boolean rt = false;
+            if (p + 3 == wav && s.charAt(p) == ' ' && s.charAt(p + 1) == 'R' && s.charAt(p + 2) == 'T') {
+                rt = true;
+            } else if (p != wav) {
+                return FALLBACK;
+            }
+            if (noteEnd == note) {
+                return FALLBACK;
+            }
+            if (velocity >= 0 && !rt && noteEnd - note == 2 && s.charAt(note) == 'R' && s.charAt(note + 1) == 'T') {
+                return FALLBACK; // " RT" is taken as the release trigger, with no note
+            }
+            setGroup(groups, 0, start, wav + 4);
+            setGroup(groups, 1, start, base);
+            setGroup(groups, 2, velocity, velocity >= 0 ? q : -1);
+            setGroup(groups, 3, note, noteEnd);
+            setGroup(groups, 4, rt ? noteEnd : -1, rt ? wav : -1);
+            return MATCH;
+        }
+    }
+
+    /**
+     * Parser for Format_Detect: "(.*)\\.wav"
+     */
+    public static class DetectParser extends FilenameParser {
+
+        public DetectParser(String regex) {
+            super(regex);
+        }
+
+        @Override
+        protected int parse(CharSequence s, int start, int end, int[] groups) {
+            int wav = wavSuffix(s, start, end);
+            if (wav < 0) {
+                return wav == -1 ? NO_MATCH : FALLBACK;
+            }
+            setGroup(groups, 0, start, wav + 4);
+            setGroup(groups, 1, start, wav);
+            return MATCH;
+        }
+    }
+}
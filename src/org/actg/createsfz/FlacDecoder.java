@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Decode a FLAC file, checking frame CRCs, e.g. to verify what FlacEncoder
+ * wrote before a WAV file is replaced by it.
+ *
+ * All FLAC subframe types are decoded, including LPC, so files from other
+ * encoders can be read, up to 24 bits per sample. Variable block sizes and
+ * metadata other than STREAMINFO are skipped over.
+ */
+public class FlacDecoder implements Closeable {
+
+    protected final InputStream in;
+    protected final byte[] buf = new byte[1 << 16];
+    protected int pos;
+    protected int limit;
+    protected long cache;
+    protected int cacheBits;
+    protected int crc8;
+    protected int crc16;
+
+    protected int sampleRate;
+    protected int channels;
+    protected int bitsPerSample;
+    protected long totalSamples;
+    protected byte[] md5 = new byte[16];
+    protected int[][] samples;
+    protected int[] residual;
+
+    public FlacDecoder(File file) throws IOException {
+        in = new FileInputStream(file);
+        try {
+            readMetadata();
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    /**
+     * @return the MD5 of the audio from STREAMINFO, all zero if not known
+     */
+    public byte[] getMD5() {
+        return md5;
+    }
+
+    /**
+     * @param channel
+     * @return the samples of a channel decoded by the last readFrame()
+     */
+    public int[] getSamples(int channel) {
+        return samples[channel];
+    }
+
+    protected void readMetadata() throws IOException {
+        if (readBits(32) != 0x664c6143) { // fLaC
+            throw new IOException("not a FLAC file");
+        }
+        boolean last = false;
+        boolean first = true;
+        while (!last) {
+            last = readBits(1) == 1;
+            int type = readBits(7);
+            int length = readBits(24);
+            if (first && type != 0) {
+                throw new IOException("FLAC file does not start with STREAMINFO");
+            }
+            if (type == 0) {
+                readBits(16); // min block size
+                int maxBlockSize = readBits(16);
+                readBits(24); // min frame size
+                readBits(24); // max frame size
+                sampleRate = readBits(20);
+                channels = readBits(3) + 1;
+                bitsPerSample = readBits(5) + 1;
+                totalSamples = ((long) readBits(4) << 32) | (readBits(32) & 0xffffffffL);
+                for (int i = 0; i < 16; i++) {
+                    md5[i] = (byte) readBits(8);
+                }
+                if (bitsPerSample > 24) {
+                    throw new IOException("FLAC bits per sample not supported: " + bitsPerSample);
+                }
+                samples = new int[channels][Math.max(maxBlockSize, 16)];
+                residual = new int[samples[0].length];
+                length -= 34;
+            }
+            for (int i = 0; i < length; i++) {
+                readBits(8);
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * Decode the next frame into getSamples().
+     *
+     * @return the number of samples per channel, or -1 at the end of the file
+     * @throws IOException if the frame is not valid FLAC, or its CRC is wrong
+     */
+    public int readFrame() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        crc8 = 0;
+        crc16 = 0;
+        int sync = readBits(16);
+        if ((sync & 0xfffe) != 0xfff8) {
+            throw new IOException("FLAC frame sync not found");
+        }
+        int blockSizeCode = readBits(4);
+        int rateCode = readBits(4);
+        int assignment = readBits(4);
+        int sizeCode = readBits(3);
+        readBits(1);
+        readCodedNumber();
+        int n;
+        if (blockSizeCode == 1) {
+            n = 192;
+        } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+            n = 576 << (blockSizeCode - 2);
+        } else if (blockSizeCode == 6) {
+            n = readBits(8) + 1;
+        } else if (blockSizeCode == 7) {
+            n = readBits(16) + 1;
+        } else if (blockSizeCode >= 8) {
+            n = 256 << (blockSizeCode - 8);
+        } else {
+            throw new IOException("FLAC block size code reserved");
+        }
+        if (rateCode == 12) {
+            readBits(8);
+        } else if (rateCode == 13 || rateCode == 14) {
+            readBits(16);
+        }
+        int bps = sizeCode == 0 ? bitsPerSample : new int[]{0, 8, 12, 0, 16, 20, 24, 32}[sizeCode];
+        if (bps == 0 || bps > 24) {
+            throw new IOException("FLAC bits per sample not supported: code " + sizeCode);
+        }
+        int expected8 = crc8;
+        if (readBits(8) != expected8) {
+            throw new IOException("FLAC frame header CRC mismatch");
+        }
+        int nch = assignment < 8 ? assignment + 1 : 2;
+        if (assignment > 10 || nch != channels) {
+            throw new IOException("FLAC channel assignment not valid: " + assignment);
+        }
+        if (n > samples[0].length) {
+            samples = new int[channels][n];
+            residual = new int[n];
+        }
+        for (int c = 0; c < nch; c++) {
+            boolean side = (assignment == FlacEncoder.LEFT_SIDE && c == 1) || (assignment == FlacEncoder.SIDE_RIGHT && c == 0)
+                    || (assignment == FlacEncoder.MID_SIDE && c == 1);
+            readSubframe(samples[c], n, side ? bps + 1 : bps);
+        }
+        cacheBits -= cacheBits & 7; // zero padding
+        int expected16 = crc16;
+        if (readBits(16) != expected16) {
+            throw new IOException("FLAC frame CRC mismatch");
+        }
+        if (assignment >= 8) {
+            int[] a = samples[0];
+            int[] b = samples[1];
+            for (int i = 0; i < n; i++) {
+                if (assignment == FlacEncoder.LEFT_SIDE) {
+                    b[i] = a[i] - b[i];
+                } else if (assignment == FlacEncoder.SIDE_RIGHT) {
+                    a[i] += b[i];
+                } else {
+                    int side = b[i];
+                    int mid = (a[i] << 1) | (side & 1);
+                    a[i] = (mid + side) >> 1;
+                    b[i] = (mid - side) >> 1;
+                }
+            }
+        }
+        return n;
+    }
+
+    protected void readCodedNumber() throws IOException {
+        int b = readBits(8);
+        int extra = 0;
+        while (extra < 7 && (b & (0x80 >> extra)) != 0) {
+            extra++;
+        }
+        if (extra == 1 || extra == 7 && b != 0xfe) {
+            throw new IOException("FLAC frame number not valid");
+        }
+        for (int i = 1; i < extra; i++) {
+            if ((readBits(8) & 0xc0) != 0x80) {
+                throw new IOException("FLAC frame number not valid");
+            }
+        }
+    }
+
+    protected void readSubframe(int[] x, int n, int bps) throws IOException {
+        if (readBits(1) != 0) {
+            throw new IOException("FLAC subframe padding not zero");
+        }
+        int type = readBits(6);
+        int wasted = 0;
+        if (readBits(1) == 1) {
+            wasted = readUnary() + 1;
+            bps -= wasted;
+        }
+        if (type == FlacEncoder.CONSTANT) {
+            Arrays.fill(x, 0, n, readSigned(bps));
+        } else if (type == FlacEncoder.VERBATIM) {
+            for (int i = 0; i < n; i++) {
+                x[i] = readSigned(bps);
+            }
+        } else if (type >= FlacEncoder.FIXED && type <= FlacEncoder.FIXED + FlacEncoder.MAX_FIXED_ORDER) {
+            int order = type - FlacEncoder.FIXED;
+            readWarmUp(x, order, n, bps);
+            readResidual(n, order);
+            restoreFixed(x, order, n);
+        } else if (type >= 32) {
+            int order = type - 31;
+            readWarmUp(x, order, n, bps);
+            int precision = readBits(4) + 1;
+            int shift = readSigned(5);
+            if (precision == 16 || shift < 0) {
+                throw new IOException("FLAC LPC precision or shift not valid");
+            }
+            int[] coefs = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefs[i] = readSigned(precision);
+            }
+            readResidual(n, order);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefs[j] * x[i - j - 1];
+                }
+                x[i] = residual[i] + (int) (sum >> shift);
+            }
+        } else {
+            throw new IOException("FLAC subframe type reserved: " + type);
+        }
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) {
+                x[i] <<= wasted;
+            }
+        }
+    }
+
+    protected void readWarmUp(int[] x, int order, int n, int bps) throws IOException {
+        if (order > n) {
+            throw new IOException("FLAC predictor order " + order + " exceeds block size " + n);
+        }
+        for (int i = 0; i < order; i++) {
+            x[i] = readSigned(bps);
+        }
+    }
+
+    protected void restoreFixed(int[] x, int order, int n) {
+        int[] r = residual;
+        switch (order) {
+            case 0:
+                System.arraycopy(r, 0, x, 0, n);
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    x[i] = r[i] + x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    x[i] = r[i] + 2 * x[i - 1] - x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    x[i] = r[i] + 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    x[i] = r[i] + 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                }
+        }
+    }
+
+    protected void readResidual(int n, int order) throws IOException {
+        int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("FLAC residual coding method reserved");
+        }
+        int paramBits = method == 0 ? 4 : 5;
+        int escape = (1 << paramBits) - 1;
+        int partitionOrder = readBits(4);
+        int parts = 1 << partitionOrder;
+        int each = n >> partitionOrder;
+        if ((each << partitionOrder) != n || each < order) {
+            throw new IOException("FLAC partition order not valid: " + partitionOrder);
+        }
+        int[] r = residual;
+        for (int p = 0, i = order; p < parts; p++) {
+            int k = readBits(paramBits);
+            int end = (p + 1) * each;
+            if (k == escape) {
+                int bits = readBits(5);
+                for (; i < end; i++) {
+                    r[i] = bits == 0 ? 0 : readSigned(bits);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int u = (readUnary() << k) | readBits(k);
+                    r[i] = (u >>> 1) ^ -(u & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode every frame, and check the sample count and MD5 match
+     * STREAMINFO.
+     *
+     * @param file
+     * @return the number of samples per channel
+     * @throws IOException if the file does not decode, or does not match
+     */
+    public static long verify(File file) throws IOException {
+        try (FlacDecoder d = new FlacDecoder(file)) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IOException(nsae);
+            }
+            int bytesPerSample = (d.bitsPerSample + 7) / 8;
+            byte[] bytes = new byte[0];
+            long total = 0;
+            int n;
+            while ((n = d.readFrame()) >= 0) {
+                int len = n * d.channels * bytesPerSample;
+                if (bytes.length < len) {
+                    bytes = new byte[len];
+                }
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int c = 0; c < d.channels; c++) {
+                        int v = d.samples[c][i];
+                        for (int b = 0; b < bytesPerSample; b++) {
+                            bytes[k++] = (byte) (v >> (8 * b));
+                        }
+                    }
+                }
+                md.update(bytes, 0, k);
+                total += n;
+            }
+            if (d.totalSamples != 0 && total != d.totalSamples) {
+                throw new IOException("FLAC decoded " + total + " samples, STREAMINFO says " + d.totalSamples);
+            }
+            if (!Arrays.equals(d.md5, new byte[16]) && !Arrays.equals(d.md5, md.digest())) {
+                throw new IOException("FLAC decoded audio MD5 mismatch");
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @return false at the end of the file, when on a byte boundary
+     */
+    protected boolean fill() throws IOException {
+        return cacheBits > 0 || pos < limit || refill();
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    protected boolean refill() throws IOException {
+        limit = in.read(buf);
+        pos = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    protected void readByte() throws IOException {
+        if (pos == limit && !refill()) {
+            throw new IOException("FLAC file ends early");
+        }
+        int b = buf[pos++] & 0xff;
+        crc8 = FlacEncoder.CRC8[crc8 ^ b];
+        crc16 = ((crc16 << 8) ^ FlacEncoder.CRC16[(crc16 >> 8) ^ b]) & 0xffff;
+        cache = (cache << 8) | b;
+        cacheBits += 8;
+    }
+
+    /**
+     * @param n 0 to 32
+     */
+    protected int readBits(int n) throws IOException {
+        while (cacheBits < n) {
+            readByte();
+        }
+        cacheBits -= n;
+        return (int) ((cache >>> cacheBits) & (0xffffffffL >>> (32 - n)));
+    }
+
+    protected int readSigned(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        return (readBits(n) << (32 - n)) >> (32 - n);
+    }
+
+    /**
+     * @return the number of zero bits before the next one bit
+     */
+    protected int readUnary() throws IOException {
+        int q = 0;
+        while (true) {
+            long bits = cache & ((1L << cacheBits) - 1);
+            if (bits != 0) {
+                int zeros = Long.numberOfLeadingZeros(bits) - (64 - cacheBits);
+                cacheBits -= zeros + 1;
+                return q + zeros;
+            }
+            q += cacheBits;
+            cacheBits = 0;
+            readByte();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
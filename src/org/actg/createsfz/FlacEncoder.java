@@ -0,0 +1,800 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Encode a WAV file as FLAC, losslessly.
+ *
+ * Blocks of BLOCK_SIZE frames are encoded with a FLAC fixed predictor (order
+ * 0 to 4) chosen per block and channel, and Rice coded residuals in up to
+ * 2^MAX_PARTITION_ORDER partitions. Stereo blocks use whichever of left/right,
+ * left/side, side/right or mid/side is smallest. Samples whose low bits are
+ * always zero (e.g. 20 bit audio in 24 bit WAV data) have those "wasted" bits
+ * removed. This is about the compression of "flac -2", within the streamable
+ * subset.
+ *
+ * 8, 16 and 24 bit integer PCM, of 1 to 8 channels, is supported. An encoder
+ * keeps its buffers between files, but is not thread safe.
+ */
+public class FlacEncoder {
+
+    public static final int BLOCK_SIZE = 4096;
+    public static final int MAX_FIXED_ORDER = 4;
+    public static final int MAX_PARTITION_ORDER = 8;
+    public static final int MAX_CHANNELS = 8;
+
+    protected static final int CONSTANT = 0;
+    protected static final int VERBATIM = 1;
+    protected static final int FIXED = 8; // plus order
+
+    // Stereo channel assignments:
+    protected static final int LEFT_SIDE = 8;
+    protected static final int SIDE_RIGHT = 9;
+    protected static final int MID_SIDE = 10;
+
+    protected static final int[] CRC8 = new int[256];
+    protected static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c8 = i;
+            int c16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+                c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+            }
+            CRC8[i] = c8 & 0xff;
+            CRC16[i] = c16 & 0xffff;
+        }
+    }
+
+    /**
+     * The outcome of encoding one file.
+     */
+    public static class Result {
+
+        protected long frames;
+        protected long pcmBytes; // audio data read from the WAV file
+        protected long flacBytes;
+        protected byte[] md5;
+        protected boolean encoded; // false if the FLAC file was up to date
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getPcmBytes() {
+            return pcmBytes;
+        }
+
+        public long getFlacBytes() {
+            return flacBytes;
+        }
+
+        public byte[] getMD5() {
+            return md5;
+        }
+
+        public boolean isEncoded() {
+            return encoded;
+        }
+    }
+
+    /**
+     * One channel of a block, and how it is best encoded.
+     */
+    protected static class Subframe {
+
+        protected int[] data = new int[BLOCK_SIZE]; // samples, without wasted bits
+        protected int[] residual = new int[BLOCK_SIZE];
+        protected int[] params = new int[1 << MAX_PARTITION_ORDER];
+        protected long[] sums = new long[1 << MAX_PARTITION_ORDER];
+        protected int[] tryParams = new int[1 << MAX_PARTITION_ORDER];
+        protected int type;
+        protected int order;
+        protected int wasted;
+        protected int bps; // bits per sample, less wasted bits
+        protected int partitionOrder;
+        protected boolean rice2; // 5 bit Rice parameters
+        protected long bits;
+    }
+
+    protected final Subframe[] subframes = new Subframe[MAX_CHANNELS];
+    protected final Subframe[] stereo = new Subframe[4]; // left, right, mid, side
+    protected int[][] channels = new int[MAX_CHANNELS][BLOCK_SIZE];
+    protected int[] interleaved;
+    protected byte[] md5Bytes;
+    protected final BitWriter w = new BitWriter();
+
+    public FlacEncoder() {
+        for (int i = 0; i < subframes.length; i++) {
+            subframes[i] = new Subframe();
+        }
+        for (int i = 0; i < stereo.length; i++) {
+            stereo[i] = new Subframe();
+        }
+    }
+
+    /**
+     * @param info
+     * @return true if the WAV data can be encoded: 8, 16 or 24 bit integer
+     * PCM with 1 to 8 channels
+     */
+    public static boolean canEncode(WavInfo info) {
+        int bytesPerSample = (info.getBitsPerSample() + 7) / 8;
+        return info.isPCM() && bytesPerSample >= 1 && bytesPerSample <= 3
+                && info.getChannels() >= 1 && info.getChannels() <= MAX_CHANNELS
+                && info.getBlockAlign() == info.getChannels() * bytesPerSample
+                && info.getSampleRate() > 0 && info.getSampleRate() < (1 << 20);
+    }
+
+    /**
+     * Encode a WAV file as a FLAC file. The FLAC file has the bit depth of the
+     * WAV data (8, 16 or 24 bits), and the MD5 of the audio in its STREAMINFO.
+     *
+     * @param wav
+     * @param info the WAV file's header
+     * @param flac the file to write
+     * @return Result
+     * @throws IOException if the WAV data cannot be encoded or read
+     */
+    public Result encode(File wav, WavInfo info, File flac) throws IOException {
+        if (!canEncode(info)) {
+            throw new IOException("cannot encode as FLAC: " + info);
+        }
+        int nch = info.getChannels();
+        int bps = ((info.getBitsPerSample() + 7) / 8) * 8;
+        int bytesPerSample = bps / 8;
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+        if (interleaved == null || interleaved.length < BLOCK_SIZE * nch) {
+            interleaved = new int[BLOCK_SIZE * MAX_CHANNELS];
+            md5Bytes = new byte[BLOCK_SIZE * MAX_CHANNELS * 3];
+        }
+        Result result = new Result();
+        long frames = info.getFrames();
+        int minFrameSize = Integer.MAX_VALUE;
+        int maxFrameSize = 0;
+        try (PcmReader reader = new PcmReader(wav, info);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(flac), 1 << 16)) {
+            out.write(new byte[]{'f', 'L', 'a', 'C'});
+            out.write(streamInfo(info, bps, 0, 0, frames, new byte[16]));
+            long frameNumber = 0;
+            while (true) {
+                // Fill a block: the reader may return fewer frames than asked
+                int n = 0;
+                while (n < BLOCK_SIZE) {
+                    int got = reader.readInterleaved(interleaved, BLOCK_SIZE - n);
+                    if (got < 0) {
+                        break;
+                    }
+                    deinterleave(interleaved, got, nch, n);
+                    n += got;
+                }
+                if (n == 0) {
+                    break;
+                }
+                updateMD5(md5, n, nch, bytesPerSample);
+                int size = encodeFrame(frameNumber++, n, nch, bps, info.getSampleRate());
+                w.writeTo(out);
+                minFrameSize = Math.min(minFrameSize, size);
+                maxFrameSize = Math.max(maxFrameSize, size);
+                result.frames += n;
+                if (n < BLOCK_SIZE) {
+                    break;
+                }
+            }
+        }
+        if (result.frames != frames) {
+            throw new IOException("WAV data ends early: " + result.frames + " of " + frames + " frames");
+        }
+        result.md5 = md5.digest();
+        try (RandomAccessFile raf = new RandomAccessFile(flac, "rw")) {
+            raf.seek(4);
+            raf.write(streamInfo(info, bps, minFrameSize == Integer.MAX_VALUE ? 0 : minFrameSize, maxFrameSize, frames, result.md5));
+        }
+        result.pcmBytes = frames * info.getBlockAlign();
+        result.flacBytes = flac.length();
+        return result;
+    }
+
+    /**
+     * Encode a WAV file as FLAC, unless the FLAC file is up to date: it has
+     * the WAV file's modification time. The FLAC file is written to a .part
+     * file, decoded and checked against the MD5 of the WAV audio, then moved
+     * into place, so a failed or interrupted encoding never leaves a bad FLAC
+     * file.
+     *
+     * @param wav
+     * @param info the WAV file's header
+     * @param flac the file to write, creating its directory if needed
+     * @return Result, not encoded if the FLAC file was up to date
+     * @throws IOException if the file cannot be encoded, or does not verify
+     */
+    public Result transcode(File wav, WavInfo info, File flac) throws IOException {
+        long modified = wav.lastModified();
+        if (modified != 0 && flac.isFile() && flac.lastModified() == modified) {
+            Result result = new Result();
+            result.frames = info.getFrames();
+            result.pcmBytes = info.getFrames() * info.getBlockAlign();
+            result.flacBytes = flac.length();
+            return result;
+        }
+        File parent = flac.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("cannot create directory: " + parent);
+        }
+        File part = new File(parent, flac.getName() + ".part");
+        try {
+            Result result = encode(wav, info, part);
+            if (FlacDecoder.verify(part) != result.frames) {
+                throw new IOException("FLAC file does not decode to " + result.frames + " frames");
+            }
+            if (modified != 0) {
+                part.setLastModified(modified);
+            }
+            Files.move(part.toPath(), flac.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            result.encoded = true;
+            return result;
+        } finally {
+            part.delete();
+        }
+    }
+
+    protected void deinterleave(int[] src, int frames, int nch, int offset) {
+        for (int c = 0; c < nch; c++) {
+            int[] dst = channels[c];
+            for (int i = 0, j = c; i < frames; i++, j += nch) {
+                dst[offset + i] = src[j];
+            }
+        }
+    }
+
+    /**
+     * Add a block to the MD5 of the audio: interleaved, signed, little
+     * endian samples of bps / 8 bytes.
+     */
+    protected void updateMD5(MessageDigest md5, int n, int nch, int bytesPerSample) {
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < nch; c++) {
+                int v = channels[c][i];
+                md5Bytes[k++] = (byte) v;
+                if (bytesPerSample > 1) {
+                    md5Bytes[k++] = (byte) (v >> 8);
+                    if (bytesPerSample > 2) {
+                        md5Bytes[k++] = (byte) (v >> 16);
+                    }
+                }
+            }
+        }
+        md5.update(md5Bytes, 0, k);
+    }
+
+    /**
+     * @return the STREAMINFO metadata block, marked as the last block
+     */
+    protected static byte[] streamInfo(WavInfo info, int bps, int minFrameSize, int maxFrameSize, long frames, byte[] md5) {
+        BitWriter b = new BitWriter();
+        b.writeBits(0x80, 8); // last metadata block, type 0: STREAMINFO
+        b.writeBits(34, 24);
+        b.writeBits(BLOCK_SIZE, 16);
+        b.writeBits(BLOCK_SIZE, 16);
+        b.writeBits(minFrameSize, 24);
+        b.writeBits(maxFrameSize, 24);
+        b.writeBits(info.getSampleRate(), 20);
+        b.writeBits(info.getChannels() - 1, 3);
+        b.writeBits(bps - 1, 5);
+        b.writeBits((int) (frames >>> 32) & 0xf, 4);
+        b.writeBits((int) frames, 32);
+        for (byte m : md5) {
+            b.writeBits(m & 0xff, 8);
+        }
+        b.flush();
+        return Arrays.copyOf(b.buf, b.length);
+    }
+
+    /**
+     * Encode one block into the BitWriter.
+     *
+     * @return the size of the frame in bytes
+     */
+    protected int encodeFrame(long frameNumber, int n, int nch, int bps, int sampleRate) {
+        Subframe[] chosen;
+        int assignment;
+        if (nch == 2) {
+            int[] left = channels[0];
+            int[] right = channels[1];
+            int[] mid = stereo[2].data;
+            int[] side = stereo[3].data;
+            for (int i = 0; i < n; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            plan(stereo[0], left, n, bps);
+            plan(stereo[1], right, n, bps);
+            plan(stereo[2], mid, n, bps);
+            plan(stereo[3], side, n, bps + 1);
+            long lr = stereo[0].bits + stereo[1].bits;
+            long ls = stereo[0].bits + stereo[3].bits;
+            long sr = stereo[3].bits + stereo[1].bits;
+            long ms = stereo[2].bits + stereo[3].bits;
+            long best = Math.min(Math.min(lr, ls), Math.min(sr, ms));
+            if (best == lr) {
+                assignment = 1;
+                chosen = new Subframe[]{stereo[0], stereo[1]};
+            } else if (best == ms) {
+                assignment = MID_SIDE;
+                chosen = new Subframe[]{stereo[2], stereo[3]};
+            } else if (best == ls) {
+                assignment = LEFT_SIDE;
+                chosen = new Subframe[]{stereo[0], stereo[3]};
+            } else {
+                assignment = SIDE_RIGHT;
+                chosen = new Subframe[]{stereo[3], stereo[1]};
+            }
+        } else {
+            assignment = nch - 1;
+            chosen = subframes;
+            for (int c = 0; c < nch; c++) {
+                plan(subframes[c], channels[c], n, bps);
+            }
+        }
+        w.reset();
+        writeHeader(frameNumber, n, assignment, bps, sampleRate);
+        for (int c = 0; c < nch; c++) {
+            writeSubframe(chosen[c], n);
+        }
+        w.alignToByte();
+        int crc = crc16(w.buf, 0, w.length);
+        w.writeBits(crc, 16);
+        w.flush();
+        return w.length;
+    }
+
+    protected void writeHeader(long frameNumber, int n, int assignment, int bps, int sampleRate) {
+        w.writeBits(0xfff8, 16); // sync code, fixed block size
+        int blockSizeCode = n == BLOCK_SIZE ? 12 : n <= 256 ? 6 : 7;
+        int rateCode = sampleRateCode(sampleRate);
+        w.writeBits(blockSizeCode, 4);
+        w.writeBits(rateCode, 4);
+        w.writeBits(assignment, 4);
+        w.writeBits(bps == 8 ? 1 : bps == 16 ? 4 : 6, 3);
+        w.writeBits(0, 1);
+        writeCodedNumber(frameNumber);
+        if (blockSizeCode == 6) {
+            w.writeBits(n - 1, 8);
+        } else if (blockSizeCode == 7) {
+            w.writeBits(n - 1, 16);
+        }
+        if (rateCode == 12) {
+            w.writeBits(sampleRate / 1000, 8);
+        } else if (rateCode == 13) {
+            w.writeBits(sampleRate, 16);
+        } else if (rateCode == 14) {
+            w.writeBits(sampleRate / 10, 16);
+        }
+        w.flush();
+        w.writeBits(crc8(w.buf, 0, w.length), 8);
+    }
+
+    protected static int sampleRateCode(int rate) {
+        switch (rate) {
+            case 88200:
+                return 1;
+            case 176400:
+                return 2;
+            case 192000:
+                return 3;
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                if (rate % 1000 == 0 && rate / 1000 < 256) {
+                    return 12;
+                } else if (rate < 65536) {
+                    return 13;
+                } else if (rate % 10 == 0 && rate / 10 < 65536) {
+                    return 14;
+                }
+                return 0; // from STREAMINFO
+        }
+    }
+
+    /**
+     * Write the frame number in the UTF-8 like coding of FLAC frame headers.
+     */
+    protected void writeCodedNumber(long v) {
+        if (v < 0x80) {
+            w.writeBits((int) v, 8);
+            return;
+        }
+        int bytes = v < 0x800 ? 2 : v < 0x10000 ? 3 : v < 0x200000 ? 4 : v < 0x4000000 ? 5 : v < 0x80000000L ? 6 : 7;
+        int shift = (bytes - 1) * 6;
+        w.writeBits((0xff00 >> bytes) & 0xff | (int) (v >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            w.writeBits(0x80 | (int) ((v >>> shift) & 0x3f), 8);
+        }
+    }
+
+    /**
+     * Choose how to encode one channel of a block, and estimate its size.
+     *
+     * @param sf
+     * @param src the samples
+     * @param n
+     * @param bps bits per sample of this channel (one more for side)
+     */
+    protected void plan(Subframe sf, int[] src, int n, int bps) {
+        int[] x = sf.data;
+        int or = 0;
+        boolean constant = true;
+        int first = src[0];
+        for (int i = 0; i < n; i++) {
+            int v = src[i];
+            x[i] = v;
+            or |= v;
+            constant &= v == first;
+        }
+        sf.wasted = 0;
+        sf.bps = bps;
+        if (constant) {
+            sf.type = CONSTANT;
+            sf.bits = 8 + bps;
+            return;
+        }
+        int wasted = Integer.numberOfTrailingZeros(or);
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) {
+                x[i] >>= wasted;
+            }
+            sf.wasted = wasted;
+            sf.bps = bps - wasted;
+        }
+        long header = 8 + sf.wasted;
+        sf.type = VERBATIM;
+        sf.bits = header + (long) n * sf.bps;
+        if (n <= MAX_FIXED_ORDER * 2) {
+            return;
+        }
+        int order = bestFixedOrder(x, n);
+        long bits = header + (long) order * sf.bps + residual(sf, order, n);
+        if (bits < sf.bits) {
+            sf.type = FIXED;
+            sf.order = order;
+            sf.bits = bits;
+        }
+    }
+
+    /**
+     * @return the fixed predictor order with the smallest sum of absolute
+     * residuals
+     */
+    protected static int bestFixedOrder(int[] x, int n) {
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        int last0 = x[3];
+        int last1 = x[3] - x[2];
+        int last2 = last1 - (x[2] - x[1]);
+        int last3 = last2 - (x[2] - x[1] - (x[1] - x[0]));
+        for (int i = 4; i < n; i++) {
+            int r0 = x[i];
+            int r1 = r0 - last0;
+            int r2 = r1 - last1;
+            int r3 = r2 - last2;
+            int r4 = r3 - last3;
+            e0 += Math.abs(r0);
+            e1 += Math.abs(r1);
+            e2 += Math.abs(r2);
+            e3 += Math.abs(r3);
+            e4 += Math.abs(r4);
+            last0 = r0;
+            last1 = r1;
+            last2 = r2;
+            last3 = r3;
+        }
+        int order = 0;
+        long best = e0;
+        long[] e = {e1, e2, e3, e4};
+        for (int o = 1; o <= MAX_FIXED_ORDER; o++) {
+            if (e[o - 1] < best) {
+                best = e[o - 1];
+                order = o;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Compute the residual of a fixed predictor, and choose the Rice
+     * partition order and parameters for it.
+     *
+     * @return the size of the coded residual in bits
+     */
+    protected static long residual(Subframe sf, int order, int n) {
+        int[] x = sf.data;
+        int[] r = sf.residual;
+        switch (order) {
+            case 0:
+                System.arraycopy(x, 0, r, 0, n);
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    r[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    r[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+        }
+        // The highest partition order dividing the block, with more samples per partition than the order:
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER && (n & ((1 << (maxOrder + 1)) - 1)) == 0 && (n >> (maxOrder + 1)) > order) {
+            maxOrder++;
+        }
+        // Sums of the folded residuals per partition at the highest order, then merged for lower orders:
+        long[] sums = sf.sums;
+        int partitions = 1 << maxOrder;
+        int each = n >> maxOrder;
+        for (int p = 0, i = order; p < partitions; p++) {
+            long sum = 0;
+            int end = (p + 1) * each;
+            for (; i < end; i++) {
+                int v = r[i];
+                sum += (v << 1) ^ (v >> 31);
+            }
+            sums[p] = sum;
+        }
+        long bestBits = Long.MAX_VALUE;
+        int bestOrder = 0;
+        boolean bestRice2 = false;
+        int[] params = sf.params;
+        int[] tryParams = sf.tryParams;
+        for (int po = maxOrder; po >= 0; po--) {
+            int parts = 1 << po;
+            long bits = 0;
+            boolean rice2 = false;
+            for (int p = 0; p < parts; p++) {
+                int count = (n >> po) - (p == 0 ? order : 0);
+                int k = riceParameter(sums[p], count);
+                tryParams[p] = k;
+                rice2 |= k > 14;
+                bits += (long) count * (k + 1) + (sums[p] >>> k);
+            }
+            bits += 6 + (long) parts * (rice2 ? 5 : 4);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = po;
+                bestRice2 = rice2;
+                System.arraycopy(tryParams, 0, params, 0, parts);
+            }
+            // Merge pairs of partitions for the next lower order:
+            for (int p = 0; p < parts / 2; p++) {
+                sums[p] = sums[2 * p] + sums[2 * p + 1];
+            }
+        }
+        sf.partitionOrder = bestOrder;
+        sf.rice2 = bestRice2;
+        return bestBits;
+    }
+
+    /**
+     * @return the Rice parameter for count folded residuals summing to sum
+     */
+    protected static int riceParameter(long sum, int count) {
+        int k = 0;
+        while (k < 30 && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    protected void writeSubframe(Subframe sf, int n) {
+        w.writeBits(0, 1);
+        w.writeBits(sf.type == FIXED ? FIXED + sf.order : sf.type, 6);
+        if (sf.wasted > 0) {
+            w.writeBits(1, 1);
+            w.writeUnary(sf.wasted - 1);
+        } else {
+            w.writeBits(0, 1);
+        }
+        int[] x = sf.data;
+        if (sf.type == CONSTANT) {
+            w.writeSigned(x[0], sf.bps);
+        } else if (sf.type == VERBATIM) {
+            for (int i = 0; i < n; i++) {
+                w.writeSigned(x[i], sf.bps);
+            }
+        } else {
+            for (int i = 0; i < sf.order; i++) {
+                w.writeSigned(x[i], sf.bps);
+            }
+            writeResidual(sf, n);
+        }
+    }
+
+    protected void writeResidual(Subframe sf, int n) {
+        w.writeBits(sf.rice2 ? 1 : 0, 2);
+        w.writeBits(sf.partitionOrder, 4);
+        int[] r = sf.residual;
+        int parts = 1 << sf.partitionOrder;
+        int each = n >> sf.partitionOrder;
+        int paramBits = sf.rice2 ? 5 : 4;
+        for (int p = 0, i = sf.order; p < parts; p++) {
+            int k = sf.params[p];
+            w.writeBits(k, paramBits);
+            int end = (p + 1) * each;
+            for (; i < end; i++) {
+                int v = r[i];
+                w.writeRice((v << 1) ^ (v >> 31), k);
+            }
+        }
+    }
+
+    protected static int crc8(byte[] b, int off, int len) {
+        int crc = 0;
+        for (int i = off; i < off + len; i++) {
+            crc = CRC8[(crc ^ b[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    protected static int crc16(byte[] b, int off, int len) {
+        int crc = 0;
+        for (int i = off; i < off + len; i++) {
+            crc = ((crc << 8) ^ CRC16[((crc >> 8) ^ b[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes bits, most significant first, into a growing byte array.
+     */
+    protected static class BitWriter {
+
+        protected byte[] buf = new byte[1 << 16];
+        protected int length; // whole bytes written
+        protected long acc;
+        protected int accBits;
+
+        protected void reset() {
+            length = 0;
+            acc = 0;
+            accBits = 0;
+        }
+
+        /**
+         * Bits are moved to the buffer 32 at a time, or by flush().
+         *
+         * @param value the low n bits are written
+         * @param n 0 to 32
+         */
+        protected void writeBits(int value, int n) {
+            acc = (acc << n) | (value & (0xffffffffL >>> (32 - n)));
+            accBits += n;
+            if (accBits >= 32) {
+                if (length + 4 > buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                accBits -= 32;
+                int v = (int) (acc >>> accBits);
+                buf[length] = (byte) (v >>> 24);
+                buf[length + 1] = (byte) (v >>> 16);
+                buf[length + 2] = (byte) (v >>> 8);
+                buf[length + 3] = (byte) v;
+                length += 4;
+            }
+        }
+
+        protected void writeSigned(int value, int n) {
+            writeBits(value, n);
+        }
+
+        /**
+         * Write q zero bits, then a one bit.
+         */
+        protected void writeUnary(int q) {
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            writeBits(1, q + 1);
+        }
+
+        /**
+         * Write an unsigned value Rice coded with parameter k: the quotient
+         * in unary, then the low k bits.
+         */
+        protected void writeRice(int u, int k) {
+            int q = u >>> k;
+            if (q + 1 + k <= 32) {
+                writeBits((1 << k) | (u & ((1 << k) - 1)), q + 1 + k);
+            } else {
+                writeUnary(q);
+                writeBits(u, k);
+            }
+        }
+
+        /**
+         * Pad with zero bits to a byte boundary, and move all whole bytes to
+         * the buffer.
+         */
+        protected void alignToByte() {
+            if ((accBits & 7) != 0) {
+                writeBits(0, 8 - (accBits & 7));
+            }
+            flush();
+        }
+
+        protected void flush() {
+            if (accBits >= 8) {
+                if (length + 8 > buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                while (accBits >= 8) {
+                    accBits -= 8;
+                    buf[length++] = (byte) (acc >>> accBits);
+                }
+            }
+        }
+
+        protected void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, length);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.actg.createsfz.CreateSFZ.Format;
+import org.actg.createsfz.SampleCollection.FileMatch;
+
+/**
+ * Probe a single listing of filenames against several Formats at once.
+ *
+ * Each filename is tested against every Format's pattern, and the matches are
+ * kept per Format. Formats are scored by their matches whose note can be
+ * decoded, and only the winning Format's SampleCollection is built, from its
+ * matches, without listing or matching the directory again.
+ */
+public class FormatProbe {
+
+    protected final String[] names;
+    protected final Format[] formats;
+    protected final FilenameParser[] parsers;
+    protected final List<List<FileMatch>> matches;
+    protected final boolean splitBaseNames; // score and keep samples of every base name
+
+    protected final int[] scores;
+    protected int best = -1;
+    protected SampleCollection bestCollection;
+    protected final Stats stats = new Stats(); // listing and matching, added to the best collection's Stats
+
+    /**
+     * Create a FormatProbe for the given format names.
+     *
+     * @param createSFZ used to create the Format for each name, and whose
+     * Options say whether to split by base name
+     * @param formatNames
+     */
+    public FormatProbe(CreateSFZ createSFZ, String[] formatNames) {
+        this.names = formatNames;
+        this.splitBaseNames = createSFZ.options != null && createSFZ.options.split;
+        formats = new Format[formatNames.length];
+        parsers = new FilenameParser[formatNames.length];
+        matches = new ArrayList<>();
+        scores = new int[formatNames.length];
+        for (int i = 0; i < formatNames.length; i++) {
+            formats[i] = createSFZ.formatForName(formatNames[i]);
+            parsers[i] = formats[i].parser();
+            matches.add(new ArrayList<FileMatch>());
+        }
+    }
+
+    /**
+     * Match the filenames listed by a DirectoryScanner against all Formats,
+     * and choose the Format which recognises the most samples.
+     *
+     * If probeLimit is positive, only the first probeLimit files (after
+     * filtering) decide the Format: the remaining files are matched against
+     * the chosen Format only. If no Format recognises a sample among the
+     * first files, e.g. as they are not samples, the remaining files are
+     * probed against all Formats too.
+     *
+     * @param sampleDirName
+     * @param scanner
+     * @param filenameFilter
+     * @param probeLimit
+     * @return SampleCollection for the best Format, or null if none recognised
+     * @throws IOException
+     */
+    public SampleCollection probe(String sampleDirName, DirectoryScanner scanner, String filenameFilter, int probeLimit)
+            throws IOException {
+        List<String> listed;
+        Stats.Timer listTimer = stats.time(Stats.Phase.LIST);
+        try {
+            listed = scanner.list();
+        } finally {
+            listTimer.stop();
+        }
+        List<String> filenames = new ArrayList<>();
+        for (String filename : listed) {
+            if (filenameFilter == null || filename.contains(filenameFilter)) {
+                filenames.add(filename);
+            }
+        }
+        stats.count(Stats.Counter.LISTED, listed.size());
+        stats.count(Stats.Counter.FILTERED, listed.size() - filenames.size());
+        List<String> probed = filenames;
+        List<String> remaining = Collections.emptyList();
+        if (probeLimit > 0 && filenames.size() > probeLimit) {
+            probed = filenames.subList(0, probeLimit);
+            remaining = filenames.subList(probeLimit, filenames.size());
+        }
+        score(scanner, probed);
+        if (maxScore() == 0 && !remaining.isEmpty()) {
+            Log.info("No format recognised in the first " + probed.size() + " files, probing " + remaining.size() + " more");
+            score(scanner, remaining);
+            remaining = Collections.emptyList();
+        }
+        // Choose the Format with the most matches whose note can be decoded, the first if equal:
+        for (int i = 0; i < formats.length; i++) {
+            if (!matches.get(i).isEmpty()) {
+                Log.debug("Filename format: " + names[i] + ": " + matches.get(i).size() + " matches, " + scores[i] + " with notes");
+            }
+            if (scores[i] > 0 && (best < 0 || scores[i] > scores[best])) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        if (!remaining.isEmpty()) {
+            Log.info("Format decided from the first " + probed.size() + " files, matching " + remaining.size() + " more");
+            final FilenameParser bestParser = parsers[best];
+            List<FileMatch> rest;
+            Stats.Timer restTimer = stats.time(Stats.Phase.MATCH);
+            try {
+                rest = scanner.map(remaining, filename -> SampleCollection.match(bestParser, filename, null));
+            } finally {
+                restTimer.stop();
+            }
+            rest.removeAll(Collections.singleton(null));
+            matches.get(best).addAll(rest);
+        }
+        bestCollection = new SampleCollection(formats[best], sampleDirName, matches.get(best), splitBaseNames);
+        stats.count(Stats.Counter.UNMATCHED, filenames.size() - matches.get(best).size());
+        bestCollection.getStats().add(stats);
+        return bestCollection;
+    }
+
+    /**
+     * Match filenames against all Formats, keeping the matches and adding to
+     * the scores.
+     */
+    protected void score(DirectoryScanner scanner, List<String> filenames) throws IOException {
+        List<FileMatch[]> results;
+        Stats.Timer matchTimer = stats.time(Stats.Phase.MATCH);
+        try {
+            results = scanner.map(filenames, filename -> {
+                FileMatch[] fm = new FileMatch[parsers.length];
+                for (int i = 0; i < parsers.length; i++) {
+                    fm[i] = SampleCollection.match(parsers[i], filename, null);
+                }
+                return fm;
+            });
+        } finally {
+            matchTimer.stop();
+        }
+        for (FileMatch[] fm : results) {
+            for (int i = 0; i < fm.length; i++) {
+                if (fm[i] != null) {
+                    matches.get(i).add(fm[i]);
+                    if (SampleCollection.decodes(formats[i], fm[i])) {
+                        scores[i]++;
+                    }
+                }
+            }
+        }
+    }
+
+    protected int maxScore() {
+        int max = 0;
+        for (int score : scores) {
+            max = Math.max(max, score);
+        }
+        return max;
+    }
+
+    /**
+     * @return the name of the Format chosen by probe(), or null
+     */
+    public String getBestName() {
+        return best < 0 ? null : names[best];
+    }
+
+    /**
+     * @return the Format chosen by probe(), or null
+     */
+    public Format getBestFormat() {
+        return best < 0 ? null : formats[best];
+    }
+
+    /**
+     * @param formatIndex index into the format names given to the constructor
+     * @return the number of that Format's matches whose note can be decoded
+     */
+    public int getScore(int formatIndex) {
+        return scores[formatIndex];
+    }
+
+    /**
+     * @param formatIndex index into the format names given to the constructor
+     * @return the filename matches kept for that Format
+     */
+    public List<FileMatch> getMatches(int formatIndex) {
+        return matches.get(formatIndex);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events, e.g. for java -XX:StartFlightRecording.
+ *
+ * Only used through Stats, which loads this class by name if JFR is present,
+ * so CreateSFZ still builds with JDK 8 and runs on a JVM without jdk.jfr.
+ * Needs JDK 11 or later to compile: "make jfr" adds it to the jar.
+ *
+ * Events are only created once Flight Recorder has started: creating the
+ * first event loads much of JFR, adding to the startup time of every run.
+ */
+class JfrEvents implements Stats.Recorder {
+
+    @Override
+    public boolean isRecording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Name("org.actg.createsfz.Phase")
+    @Label("CreateSFZ Phase")
+    @Category("CreateSFZ")
+    @Description("A phase of creating an instrument: list, match, build, extract, analyse or emit")
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Directory")
+        String directory;
+    }
+
+    @Name("org.actg.createsfz.Run")
+    @Label("CreateSFZ Run")
+    @Category("CreateSFZ")
+    @Description("Creating one instrument, with counts of the files seen")
+    static class RunEvent extends Event {
+
+        @Label("Directory")
+        String directory;
+
+        @Label("Format")
+        String format;
+
+        @Label("Files Listed")
+        long listed;
+
+        @Label("Files Matched")
+        long matched;
+
+        @Label("Files Filtered")
+        long filtered;
+
+        @Label("Files Skipped")
+        long skipped;
+
+        @Label("Files Ignored")
+        long ignored;
+
+        @Label("Files Used")
+        long used;
+    }
+
+    @Override
+    public Object beginPhase() {
+        PhaseEvent e = new PhaseEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void commitPhase(Object event, String phase, String directory) {
+        PhaseEvent e = (PhaseEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.phase = phase;
+            e.directory = directory;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginRun() {
+        RunEvent e = new RunEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void commitRun(Object event, String directory, String format, long listed, long matched, long filtered,
+            long skipped, long ignored, long used) {
+        RunEvent e = (RunEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.directory = directory;
+            e.format = format;
+            e.listed = listed;
+            e.matched = matched;
+            e.filtered = filtered;
+            e.skipped = skipped;
+            e.ignored = ignored;
+            e.used = used;
+            e.commit();
+        }
+    }
+}
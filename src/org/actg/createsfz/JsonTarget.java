@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Write a JSON manifest of the mapping: an object with the instrument's
+ * "notes", and "releaseTriggers" if any, each a note with its "layers", each
+ * a velocity layer with its "regions". Layers and regions use the names of
+ * their .sfz opcodes, and have only those the .sfz would.
+ */
+public class JsonTarget extends OutputTarget {
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".json";
+    }
+
+    @Override
+    public void printStart(SampleCollection c, PrintStream out) {
+        out.print("{\"instrument\": " + Stats.quote(c.sampleGroupBaseName));
+        out.print(", \"format\": " + Stats.quote(c.stats.getFormatName()));
+        String defaultPath = c.defaultPath();
+        if (defaultPath != null) {
+            defaultPath = defaultPath.replace(File.separatorChar, '/');
+        }
+        out.print(", \"defaultPath\": " + Stats.quote(defaultPath));
+    }
+
+    @Override
+    public void printNotesStart(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+        out.print(releaseTriggers ? ",\n  \"releaseTriggers\": [" : ",\n  \"notes\": [");
+        if (!notes.isEmpty()) {
+            out.print("\n");
+        }
+    }
+
+    @Override
+    public String noteSeparator() {
+        return ",\n";
+    }
+
+    @Override
+    public void printNotesEnd(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+        out.print(notes.isEmpty() ? "]" : "\n  ]");
+    }
+
+    @Override
+    public void printEnd(SampleCollection c, PrintStream out) {
+        out.print("\n}\n");
+    }
+
+    @Override
+    public void note(Region r, StringBuilder out) {
+        out.append("    {\"note\": ").append(r.noteNumber).append(", \"name\": ").append(Stats.quote(r.noteName))
+                .append(", \"lokey\": ").append(r.lokey).append(", \"hikey\": ").append(r.hikey).append(", \"layers\": [\n");
+    }
+
+    @Override
+    public void group(Region r, StringBuilder out) {
+        if (r.layer > 0) {
+            out.append(",\n");
+        }
+        out.append("      {");
+        if (r.lovel >= 0) {
+            out.append("\"lovel\": ").append(r.lovel).append(", \"hivel\": ").append(r.hivel).append(", ");
+        }
+        out.append("\"seq_length\": ").append(r.seqLength);
+        if (r.hasVelocityCurve()) {
+            out.append(", \"amp_velcurve_").append(r.lovel).append("\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", r.getVelocityCurveAmplitude()))
+                    .append(", \"amp_velcurve_").append(r.hivel).append("\": 1");
+        }
+        out.append(", \"regions\": [\n");
+    }
+
+    @Override
+    public void region(Region r, StringBuilder out) {
+        if (r.seq > 1) {
+            out.append(",\n");
+        }
+        out.append("        {\"sample\": ").append(Stats.quote(r.filename.replace(File.separatorChar, '/')))
+                .append(", \"seq_position\": ").append(r.seq);
+        if (r.rootNote >= 0) {
+            out.append(", \"pitch_keycenter\": ").append(r.rootNote);
+        }
+        if (r.offset > 0) {
+            out.append(", \"offset\": ").append(r.offset);
+        }
+        if (r.end >= 0) {
+            out.append(", \"end\": ").append(r.end);
+        }
+        if (r.loopStart >= 0) {
+            if (r.loopFound) {
+                out.append(", \"loop_mode\": \"loop_continuous\"");
+            }
+            out.append(", \"loop_start\": ").append(r.loopStart).append(", \"loop_end\": ").append(r.loopEnd);
+        }
+        if (r.release) {
+            out.append(", \"trigger\": \"release\"");
+        }
+        String volume = r.getVolume();
+        if (volume != null) {
+            out.append(", \"volume\": ").append(volume);
+        }
+        out.append('}');
+    }
+
+    @Override
+    public void endGroup(Region r, StringBuilder out) {
+        out.append("\n      ]}");
+    }
+
+    @Override
+    public void endNote(Region r, int noteCount, StringBuilder out) {
+        out.append("\n    ]}");
+    }
+}
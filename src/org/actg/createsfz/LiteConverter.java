@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Convert a WAV file to a lower sample rate and bit depth, for a "lite"
+ * variant of an instrument, e.g. 96kHz 24 bit samples to 44.1kHz 16 bit.
+ *
+ * The audio is streamed through a Resampler in blocks of BLOCK_SIZE frames,
+ * so a file of any length needs the same memory, and reduced to the new bit
+ * depth with triangular (TPDF) dither. Files already at or below the rate and
+ * bit depth are copied sample for sample. A smpl chunk is kept, with its loop
+ * moved to the new rate.
+ *
+ * A converter keeps its buffers between files, but is not thread safe. The
+ * Resamplers, one per pair of rates, are shared by all converters.
+ */
+public class LiteConverter {
+
+    public static final int BLOCK_SIZE = 4096;
+
+    protected static final Map<Long, Resampler> RESAMPLERS = new ConcurrentHashMap<>();
+
+    protected final int maxRate;
+    protected final int maxBits;
+    protected double[][] in = new double[0][];
+    protected int[] ints = new int[0];
+    protected ByteBuffer out = ByteBuffer.allocate(0);
+    protected long seed;
+
+    /**
+     * The outcome of converting one file.
+     */
+    public static class Result {
+
+        protected long inBytes;
+        protected long outBytes;
+        protected long nanos; // time converting, 0 if up to date
+        protected WavInfo info; // of the file written
+
+        public long getInBytes() {
+            return inBytes;
+        }
+
+        public long getOutBytes() {
+            return outBytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public boolean isConverted() {
+            return nanos > 0;
+        }
+
+        public WavInfo getInfo() {
+            return info;
+        }
+    }
+
+    /**
+     * @param maxRate e.g. 44100
+     * @param maxBits 8, 16 or 24
+     */
+    public LiteConverter(int maxRate, int maxBits) {
+        if (maxBits != 8 && maxBits != 16 && maxBits != 24) {
+            throw new IllegalArgumentException("bits per sample must be 8, 16 or 24: " + maxBits);
+        }
+        this.maxRate = maxRate;
+        this.maxBits = maxBits;
+    }
+
+    /**
+     * @param info
+     * @return the sample rate a file is converted to
+     */
+    public int outRate(WavInfo info) {
+        return Math.min(info.getSampleRate(), maxRate);
+    }
+
+    /**
+     * @param info
+     * @return the bits per sample a file is converted to
+     */
+    public int outBits(WavInfo info) {
+        return Math.min(inBits(info), maxBits);
+    }
+
+    /**
+     * @return the bits per sample of PcmReader's integers: float is read as
+     * 24 bit
+     */
+    protected static int inBits(WavInfo info) {
+        return info.isFloat() ? 24 : ((info.getBitsPerSample() + 7) / 8) * 8;
+    }
+
+    /**
+     * @param info
+     * @return the Resampler for a file, or null if its rate is kept
+     */
+    public Resampler resampler(WavInfo info) {
+        final int outRate = outRate(info);
+        if (outRate == info.getSampleRate()) {
+            return null;
+        }
+        final int inRate = info.getSampleRate();
+        return RESAMPLERS.computeIfAbsent(((long) inRate << 32) | outRate, k -> new Resampler(inRate, outRate));
+    }
+
+    /**
+     * @param info
+     * @param frame a frame of the input, e.g. a loop point
+     * @return the frame in the converted file
+     */
+    public long scale(WavInfo info, long frame) {
+        Resampler r = resampler(info);
+        return r == null || frame < 0 ? frame : Math.min(r.scale(frame), r.outputFrames(info.getFrames()) - 1);
+    }
+
+    /**
+     * Convert a WAV file, unless the output is up to date: it has the input
+     * file's modification time. The output is written to a .part file and
+     * moved into place.
+     *
+     * @param wav
+     * @param info the WAV file's header
+     * @param lite the file to write, creating its directory if needed
+     * @return Result
+     * @throws IOException
+     */
+    public Result convert(File wav, WavInfo info, File lite) throws IOException {
+        if (info.getChannels() < 1 || !(info.isPCM() || info.isFloat())) {
+            throw new IOException("cannot convert: " + info);
+        }
+        Result result = new Result();
+        result.inBytes = info.getDataSize();
+        long modified = wav.lastModified();
+        if (modified != 0 && lite.isFile() && lite.lastModified() == modified) {
+            result.info = WavInfo.read(lite);
+            result.outBytes = result.info.getDataSize();
+            return result;
+        }
+        long start = System.nanoTime();
+        File parent = lite.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("cannot create directory: " + parent);
+        }
+        File part = new File(parent, lite.getName() + ".part");
+        try {
+            seed = lite.getName().hashCode() | 1L; // the same dither for the same file
+            write(wav, info, part);
+            if (modified != 0) {
+                part.setLastModified(modified);
+            }
+            Files.move(part.toPath(), lite.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            part.delete();
+        }
+        result.info = WavInfo.read(lite);
+        result.outBytes = result.info.getDataSize();
+        result.nanos = Math.max(1, System.nanoTime() - start);
+        return result;
+    }
+
+    protected void write(File wav, WavInfo info, File part) throws IOException {
+        Resampler r = resampler(info);
+        int nch = info.getChannels();
+        int rate = outRate(info);
+        int bits = outBits(info);
+        int bytesPerSample = bits / 8;
+        long inFrames = info.getFrames();
+        long outFrames = r != null ? r.outputFrames(inFrames) : inFrames;
+        boolean smpl = info.getRootNote() >= 0;
+        long dataSize = outFrames * nch * bytesPerSample;
+        if (dataSize > 0xffffffffL - 200) {
+            throw new IOException("converted file would be over 4GB");
+        }
+        int taps = r != null ? r.getTaps() : 0;
+        int capacity = BLOCK_SIZE + taps;
+        if (in.length < nch || in[0].length < capacity) {
+            in = new double[Math.max(nch, in.length)][capacity];
+        }
+        if (ints.length < BLOCK_SIZE * nch) {
+            ints = new int[BLOCK_SIZE * nch];
+        }
+        if (out.capacity() < BLOCK_SIZE * nch * 3) {
+            out = ByteBuffer.allocate(BLOCK_SIZE * nch * 3).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try (PcmReader reader = new PcmReader(wav, info);
+                FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(ch, nch, rate, bits, dataSize, smpl);
+            double inScale = 1.0 / reader.fullScale();
+            double outScale = 1 << (bits - 1);
+            // Copy exactly when neither the rate nor bit depth changes:
+            boolean exact = r == null && !info.isFloat() && bits == inBits(info);
+            if (r == null) {
+                copy(reader, ch, nch, inScale, outScale, exact, bytesPerSample);
+            } else {
+                resample(reader, r, ch, nch, outFrames, inScale, outScale, bytesPerSample);
+            }
+            if (smpl) {
+                writeSmpl(ch, info, rate, scale(info, info.getLoopStart()), info.hasLoop() ? scale(info, info.getLoopEnd()) : -1);
+            }
+        }
+    }
+
+    protected void copy(PcmReader reader, FileChannel ch, int nch, double inScale, double outScale, boolean exact,
+            int bytesPerSample) throws IOException {
+        int n;
+        while ((n = reader.readInterleaved(ints, BLOCK_SIZE)) > 0) {
+            out.clear();
+            for (int i = 0; i < n * nch; i++) {
+                putSample(exact ? ints[i] : quantize(ints[i] * inScale * outScale, outScale), bytesPerSample);
+            }
+            flush(ch);
+        }
+    }
+
+    /**
+     * Stream the input through the Resampler. The buffer holds input frames
+     * from bufStart, zero before the start and after the end of the audio.
+     */
+    protected void resample(PcmReader reader, Resampler r, FileChannel ch, int nch, long outFrames, double inScale,
+            double outScale, int bytesPerSample) throws IOException {
+        int taps = r.getTaps();
+        int half = taps / 2;
+        int up = r.getUp();
+        int down = r.getDown();
+        long bufStart = 1 - half;
+        int bufLength = half - 1;
+        for (int c = 0; c < nch; c++) {
+            Arrays.fill(in[c], 0, bufLength, 0.0);
+        }
+        boolean eof = false;
+        long base = 0; // floor(t)
+        int phase = 0; // frac(t) * up
+        int step = down / up;
+        int stepPhase = down % up;
+        out.clear();
+        for (long n = 0; n < outFrames; n++) {
+            long last = base + half; // the last input frame needed
+            while (bufStart + bufLength <= last) {
+                // Drop the frames before those needed, and read more:
+                int keep = (int) (base - half + 1 - bufStart);
+                if (keep > 0) {
+                    for (int c = 0; c < nch; c++) {
+                        System.arraycopy(in[c], keep, in[c], 0, bufLength - keep);
+                    }
+                    bufStart += keep;
+                    bufLength -= keep;
+                }
+                int want = Math.min(BLOCK_SIZE, in[0].length - bufLength);
+                int got = eof ? -1 : reader.readInterleaved(ints, want);
+                if (got < 0) {
+                    eof = true;
+                    got = want;
+                    for (int c = 0; c < nch; c++) {
+                        Arrays.fill(in[c], bufLength, bufLength + got, 0.0);
+                    }
+                } else {
+                    for (int c = 0; c < nch; c++) {
+                        double[] x = in[c];
+                        for (int i = 0, j = c; i < got; i++, j += nch) {
+                            x[bufLength + i] = ints[j] * inScale;
+                        }
+                    }
+                }
+                bufLength += got;
+            }
+            int first = (int) (base - half + 1 - bufStart);
+            for (int c = 0; c < nch; c++) {
+                putSample(quantize(r.filter(in[c], first, phase) * outScale, outScale), bytesPerSample);
+            }
+            if (!out.hasRemaining() || out.remaining() < nch * bytesPerSample) {
+                flush(ch);
+            }
+            base += step;
+            phase += stepPhase;
+            if (phase >= up) {
+                phase -= up;
+                base++;
+            }
+        }
+        flush(ch);
+    }
+
+    /**
+     * Round to an integer sample with TPDF dither of +/- 1 LSB, and clip.
+     */
+    protected int quantize(double v, double outScale) {
+        // xorshift: two uniform values from one 64 bit random number
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        double dither = ((seed & 0xffffffffL) - (seed >>> 32)) * (1.0 / 4294967296.0);
+        long q = (long) Math.floor(v + dither + 0.5);
+        return (int) Math.max(-outScale, Math.min(outScale - 1, q));
+    }
+
+    protected void putSample(int v, int bytesPerSample) {
+        switch (bytesPerSample) {
+            case 1:
+                out.put((byte) (v + 128));
+                break;
+            case 2:
+                out.putShort((short) v);
+                break;
+            default:
+                out.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+        }
+    }
+
+    protected void flush(FileChannel ch) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            ch.write(out);
+        }
+        out.clear();
+    }
+
+    protected static void writeHeader(FileChannel ch, int nch, int rate, int bits, long dataSize, boolean smpl) throws IOException {
+        int blockAlign = nch * bits / 8;
+        long riffSize = 4 + 8 + 16 + 8 + dataSize + (dataSize & 1) + (smpl ? 8 + 60 : 0);
+        ByteBuffer b = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt((int) riffSize).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) WavInfo.WAVE_FORMAT_PCM).putShort((short) nch).putInt(rate).putInt(rate * blockAlign)
+                .putShort((short) blockAlign).putShort((short) bits);
+        b.put("data".getBytes()).putInt((int) dataSize);
+        b.flip();
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+
+    /**
+     * Write a smpl chunk, after the data, with the root note and any loop.
+     */
+    protected static void writeSmpl(FileChannel ch, WavInfo info, int rate, long loopStart, long loopEnd) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1 + 8 + 60).order(ByteOrder.LITTLE_ENDIAN);
+        if ((ch.position() & 1) != 0) {
+            b.put((byte) 0);
+        }
+        boolean loop = loopEnd > loopStart && loopStart >= 0;
+        b.put("smpl".getBytes()).putInt(60);
+        b.putInt(0).putInt(0).putInt((int) (1e9 / rate)).putInt(info.getRootNote()).putInt(0).putInt(0).putInt(0);
+        b.putInt(loop ? 1 : 0).putInt(0);
+        // One loop: cue id, type (forward), start, end, fraction, play count (forever)
+        b.putInt(0).putInt(0).putInt((int) (loop ? loopStart : 0)).putInt((int) (loop ? loopEnd : 0)).putInt(0).putInt(0);
+        b.flip();
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+}
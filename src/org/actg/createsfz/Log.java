@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * The messages CreateSFZ prints, behind a level set by -log.
+ *
+ * Warnings always go to System.err. Progress and summary lines are printed at
+ * INFO, the default, and a line per file or note only at DEBUG, so a huge
+ * directory is not slowed down by printing. Callers building a DEBUG message
+ * in a loop should check isEnabled() first.
+ */
+public class Log {
+
+    public enum Level {
+        QUIET, INFO, DEBUG
+    }
+
+    protected static volatile Level level = Level.INFO;
+    protected static volatile PrintStream out; // null for System.out
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Print INFO and DEBUG lines to another stream, e.g. System.err when
+     * System.out is used for -stats.
+     *
+     * @param out or null for System.out
+     */
+    public static void setOut(PrintStream out) {
+        Log.out = out;
+    }
+
+    /**
+     * @return the stream INFO and DEBUG lines are printed to
+     */
+    public static PrintStream out() {
+        PrintStream o = out;
+        return o != null ? o : System.out;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l != Level.QUIET && l.compareTo(level) <= 0;
+    }
+
+    public static void warn(String message) {
+        System.err.println(message);
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            out().println(message);
+        }
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            out().println(message);
+        }
+    }
+
+    /**
+     * @param name quiet, info or debug
+     * @return Level
+     * @throws IllegalArgumentException if not a level
+     */
+    public static Level levelForName(String name) {
+        return Level.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Find a loop in the sustain of a sample: a start and end at rising zero
+ * crossings, where the waveform after the end best matches the waveform at
+ * the start.
+ *
+ * The search is coarse to fine. The sustain is first read once, decimated,
+ * and every start is scored against a few ends. Only the best candidates are
+ * then read again at full rate, and moved to nearby zero crossings.
+ */
+public class LoopFinder {
+
+    public static final double SUSTAIN_START = 0.25; // of the sound, after the attack
+    public static final double SUSTAIN_END = 0.9; // of the sound, before any release
+    public static final double MIN_LOOP_SECONDS = 0.25;
+    public static final double MAX_SCORE = 0.2; // worst similarity score used
+    public static final double SCORE_STEP = 0.01; // scores this close are equal, and the longer loop is preferred
+    public static final int COARSE_RATE = 4000; // Hz, approximately
+    public static final int COARSE_WINDOW = 128; // decimated frames compared
+    public static final int FINE_WINDOW = 1024; // frames compared
+    public static final int ENDS = 4; // loop ends tried in the coarse search
+    public static final int CANDIDATES = 8; // coarse results refined
+    public static final double MIN_FREQUENCY = 30.0; // Hz, for the zero crossing search range
+    protected static final int CHUNK = 4096;
+
+    /**
+     * A loop found, in frames.
+     */
+    public static class Result {
+
+        protected final long start;
+        protected final long end;
+        protected final double score;
+
+        public Result(long start, long end, double score) {
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+
+        /**
+         * @return first frame of the loop, for loop_start=
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return last frame of the loop, for loop_end=
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return squared difference of the waveforms at the loop point,
+         * relative to their energy: 0 is a perfect match
+         */
+        public double getScore() {
+            return score;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeLong(start);
+            out.writeLong(end);
+            out.writeDouble(score);
+        }
+
+        public static Result readFrom(DataInputStream in) throws IOException {
+            return new Result(in.readLong(), in.readLong(), in.readDouble());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "loop %d to %d, score %.4f", start, end, score);
+        }
+    }
+
+    /**
+     * A candidate from the coarse search, in decimated frames.
+     */
+    protected static class Candidate implements Comparable<Candidate> {
+
+        final int start;
+        final int end;
+        final double score;
+
+        Candidate(int start, int end, double score) {
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int result = compareScores(score, other.score);
+            if (result == 0) {
+                result = (other.end - other.start) - (end - start);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Find a loop in a WAV file.
+     *
+     * @param file
+     * @param info
+     * @param first first frame of the sound, e.g. after leading silence
+     * @param last last frame of the sound
+     * @return Result, or null if no loop scores MAX_SCORE or better
+     * @throws IOException
+     */
+    public Result find(File file, WavInfo info, long first, long last) throws IOException {
+        int rate = info.getSampleRate();
+        long length = last - first + 1;
+        long sustainStart = first + (long) (length * SUSTAIN_START);
+        long sustainEnd = first + (long) (length * SUSTAIN_END);
+        long minLoop = (long) (rate * MIN_LOOP_SECONDS);
+        int factor = Math.max(1, rate / COARSE_RATE);
+        int range = Math.max(2 * factor, (int) (rate / MIN_FREQUENCY));
+        if (sustainEnd - sustainStart < minLoop + 2L * (range + FINE_WINDOW) || rate <= 0) {
+            return null;
+        }
+        try (PcmReader reader = new PcmReader(file, info)) {
+            float[] coarse = readDecimated(reader, sustainStart, sustainEnd, factor);
+            List<Candidate> candidates = coarseSearch(coarse, (int) (minLoop / factor));
+            Result best = null;
+            float[] a = new float[2 * range + FINE_WINDOW + 1];
+            float[] b = new float[2 * range + FINE_WINDOW + 1];
+            for (Candidate c : candidates) {
+                Result r = refine(reader, sustainStart + (long) c.start * factor, sustainStart + (long) c.end * factor,
+                        range, a, b);
+                if (r != null && (best == null || isBetter(r, best))) {
+                    best = r;
+                }
+            }
+            return best != null && best.score <= MAX_SCORE ? best : null;
+        }
+    }
+
+    /**
+     * Read frames mixed to mono, averaging each group of factor frames.
+     */
+    protected float[] readDecimated(PcmReader reader, long from, long to, int factor) throws IOException {
+        float[] coarse = new float[(int) ((to - from) / factor)];
+        float[] chunk = new float[CHUNK / factor * factor];
+        reader.seek(from);
+        int i = 0;
+        while (i < coarse.length) {
+            int n = reader.read(chunk, 0, (int) Math.min(chunk.length, (long) (coarse.length - i) * factor));
+            if (n < factor) {
+                break;
+            }
+            for (int j = 0; j + factor <= n; j += factor) {
+                float sum = 0;
+                for (int k = 0; k < factor; k++) {
+                    sum += chunk[j + k];
+                }
+                coarse[i++] = sum / factor;
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * Score every start against a few ends near the end of the sustain, on
+     * decimated frames.
+     *
+     * @return the best candidates, each a local best along its end's row
+     */
+    protected List<Candidate> coarseSearch(float[] x, int minLoop) {
+        List<Candidate> best = new ArrayList<>();
+        int w = COARSE_WINDOW;
+        int lastEnd = x.length - w;
+        double[] row = new double[Math.max(0, lastEnd - minLoop + 1)];
+        for (int e = 0; e < ENDS; e++) {
+            int end = lastEnd - e * w;
+            int starts = end - minLoop + 1;
+            for (int start = 0; start < starts; start++) {
+                row[start] = score(x, start, x, end, w);
+            }
+            for (int start = 0; start < starts; start++) {
+                boolean localBest = (start == 0 || row[start] <= row[start - 1])
+                        && (start == starts - 1 || row[start] < row[start + 1]);
+                if (localBest) {
+                    Candidate c = new Candidate(start, end, row[start]);
+                    if (best.size() < CANDIDATES || c.compareTo(best.get(best.size() - 1)) < 0) {
+                        if (best.size() == CANDIDATES) {
+                            best.remove(best.size() - 1);
+                        }
+                        best.add(c);
+                        Collections.sort(best);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Move a candidate loop's end to the nearest rising zero crossing, and
+     * find the rising zero crossing near its start which matches it best, at
+     * full rate.
+     *
+     * @return Result, or null if there is no zero crossing near the end
+     */
+    protected Result refine(PcmReader reader, long start, long end, int range, float[] a, float[] b) throws IOException {
+        // a and b hold the frames from range + FINE_WINDOW / 2 before each point
+        int half = FINE_WINDOW / 2;
+        reader.seek(end - range - half);
+        if (reader.read(b, 0, b.length) < b.length) {
+            return null;
+        }
+        int e = nearestRisingZeroCrossing(b, range + half, half, b.length - half);
+        if (e < 0) {
+            return null;
+        }
+        reader.seek(start - range - half);
+        if (reader.read(a, 0, a.length) < a.length) {
+            return null;
+        }
+        Result best = null;
+        for (int s = half + 1; s < a.length - half; s++) {
+            if (a[s - 1] < 0 && a[s] >= 0) {
+                double score = score(a, s - half, b, e - half, FINE_WINDOW);
+                if (best == null || score < best.score) {
+                    long loopStart = start - range - half + s;
+                    long loopEnd = end - range - half + e - 1; // the frame before the matching crossing
+                    best = new Result(loopStart, loopEnd, score);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Compare scores to within SCORE_STEP.
+     */
+    protected static int compareScores(double a, double b) {
+        return Double.compare(Math.floor(a / SCORE_STEP), Math.floor(b / SCORE_STEP));
+    }
+
+    /**
+     * @return true if r scores better than best, or as well and is longer
+     */
+    protected static boolean isBetter(Result r, Result best) {
+        int result = compareScores(r.score, best.score);
+        return result < 0 || (result == 0 && r.end - r.start > best.end - best.start);
+    }
+
+    protected static int nearestRisingZeroCrossing(float[] x, int centre, int from, int to) {
+        for (int d = 0; centre - d > from || centre + d < to; d++) {
+            int i = centre - d;
+            if (i > from && i < to && x[i - 1] < 0 && x[i] >= 0) {
+                return i;
+            }
+            i = centre + d;
+            if (i > from && i < to && x[i - 1] < 0 && x[i] >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Squared difference of two windows, relative to their energy: 0 for a
+     * perfect match, 1 for unrelated waveforms, 2 for inverted ones.
+     */
+    protected static double score(float[] x, int i, float[] y, int j, int length) {
+        double diff = 0;
+        double energy = 0;
+        for (int k = 0; k < length; k++) {
+            float p = x[i + k];
+            float q = y[j + k];
+            diff += (p - q) * (p - q);
+            energy += p * p + q * q;
+        }
+        return energy > 0 ? diff / energy : 2.0;
+    }
+}
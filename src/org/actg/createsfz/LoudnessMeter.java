@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Measure the peak, RMS and loudness of a sample in one pass over its audio.
+ *
+ * Loudness is integrated over gated 400ms blocks of K-weighted audio, in the
+ * style of ITU-R BS.1770 (LUFS). Block loudness is kept in a histogram, so
+ * the memory used does not depend on the length of the sample: each thread
+ * reuses one read buffer for every file it measures.
+ */
+public class LoudnessMeter {
+
+    public static final double BLOCK_SECONDS = 0.4;
+    public static final int SUB_BLOCKS = 4; // blocks overlap by 75%
+    public static final double ABSOLUTE_GATE = -70.0; // LUFS
+    public static final double RELATIVE_GATE = -10.0; // dB below the absolute-gated loudness
+    protected static final double HISTOGRAM_MAX = 10.0;
+    protected static final double HISTOGRAM_STEP = 0.1;
+    protected static final int HISTOGRAM_BINS = (int) ((HISTOGRAM_MAX - ABSOLUTE_GATE) / HISTOGRAM_STEP);
+
+    protected final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(PcmReader::allocateBuffer);
+    protected final ThreadLocal<int[]> ints = ThreadLocal.withInitial(() -> new int[PcmReader.BUFFER_SIZE]);
+
+    /**
+     * Levels measured for a sample, in dB relative to full scale.
+     * Silence is negative infinity.
+     */
+    public static class Result {
+
+        protected final double peak;
+        protected final double rms;
+        protected final double loudness;
+
+        public Result(double peak, double rms, double loudness) {
+            this.peak = peak;
+            this.rms = rms;
+            this.loudness = loudness;
+        }
+
+        /**
+         * @return peak sample level, dBFS
+         */
+        public double getPeak() {
+            return peak;
+        }
+
+        /**
+         * @return RMS level over all channels, dBFS
+         */
+        public double getRMS() {
+            return rms;
+        }
+
+        /**
+         * @return gated K-weighted loudness, LUFS
+         */
+        public double getLoudness() {
+            return loudness;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeDouble(peak);
+            out.writeDouble(rms);
+            out.writeDouble(loudness);
+        }
+
+        public static Result readFrom(DataInputStream in) throws IOException {
+            return new Result(in.readDouble(), in.readDouble(), in.readDouble());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "peak %.1fdBFS, RMS %.1fdBFS, loudness %.1fLUFS", peak, rms, loudness);
+        }
+    }
+
+    /**
+     * Measure a WAV file.
+     *
+     * @param file
+     * @param info
+     * @return Result
+     * @throws IOException
+     */
+    public Result measure(File file, WavInfo info) throws IOException {
+        int rate = info.getSampleRate();
+        if (rate <= 0) {
+            throw new IOException("bad sample rate: " + rate);
+        }
+        int channels = info.getChannels();
+        double[][] filters = kWeighting(rate);
+        double[][] state = new double[channels][4];
+        long subBlockFrames = Math.max(1, Math.round(rate * BLOCK_SECONDS / SUB_BLOCKS));
+        double[] recent = new double[SUB_BLOCKS]; // mean square of the latest sub-blocks
+        long[] binCount = new long[HISTOGRAM_BINS];
+        double[] binEnergy = new double[HISTOGRAM_BINS];
+        long peak = 0;
+        double sumSquares = 0;
+        double weighted = 0; // K-weighted sum of squares, for samples shorter than a block
+        double subBlock = 0;
+        long subFrames = 0;
+        long subBlocks = 0;
+        long frames = 0;
+        int[] buf = ints.get();
+        try (PcmReader reader = new PcmReader(file, info, buffers.get())) {
+            double scale = 1.0 / reader.fullScale();
+            int n;
+            while ((n = reader.readInterleaved(buf, buf.length / channels)) > 0) {
+                for (int i = 0, j = 0; i < n; i++) {
+                    double frameEnergy = 0;
+                    for (int c = 0; c < channels; c++) {
+                        int v = buf[j++];
+                        peak = Math.max(peak, Math.abs((long) v));
+                        double x = v * scale;
+                        sumSquares += x * x;
+                        double y = filter(filters, state[c], x);
+                        frameEnergy += y * y;
+                    }
+                    weighted += frameEnergy;
+                    subBlock += frameEnergy;
+                    if (++subFrames == subBlockFrames) {
+                        recent[(int) (subBlocks++ % SUB_BLOCKS)] = subBlock / subBlockFrames;
+                        subBlock = 0;
+                        subFrames = 0;
+                        if (subBlocks >= SUB_BLOCKS) {
+                            double z = 0;
+                            for (double r : recent) {
+                                z += r;
+                            }
+                            addBlock(z / SUB_BLOCKS, binCount, binEnergy);
+                        }
+                    }
+                }
+                frames += n;
+            }
+            return new Result(decibels(peak * scale), decibels(Math.sqrt(sumSquares / Math.max(1, frames * channels))),
+                    integrate(binCount, binEnergy, frames > 0 ? weighted / frames : 0));
+        }
+    }
+
+    /**
+     * @param linear amplitude
+     * @return dB, negative infinity for 0
+     */
+    public static double decibels(double linear) {
+        return linear > 0 ? 20.0 * Math.log10(linear) : Double.NEGATIVE_INFINITY;
+    }
+
+    protected static double blockLoudness(double meanSquare) {
+        return meanSquare > 0 ? -0.691 + 10.0 * Math.log10(meanSquare) : Double.NEGATIVE_INFINITY;
+    }
+
+    protected static void addBlock(double meanSquare, long[] binCount, double[] binEnergy) {
+        double l = blockLoudness(meanSquare);
+        if (l > ABSOLUTE_GATE) {
+            int bin = Math.min(HISTOGRAM_BINS - 1, (int) ((l - ABSOLUTE_GATE) / HISTOGRAM_STEP));
+            binCount[bin]++;
+            binEnergy[bin] += meanSquare;
+        }
+    }
+
+    /**
+     * Apply the absolute then relative gate to the block histogram. The
+     * relative gate is applied to within a histogram step.
+     *
+     * @param binCount
+     * @param binEnergy
+     * @param whole mean square of the whole sample, used if it is shorter
+     * than one block
+     * @return loudness, LUFS
+     */
+    protected static double integrate(long[] binCount, double[] binEnergy, double whole) {
+        long count = 0;
+        double energy = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            count += binCount[i];
+            energy += binEnergy[i];
+        }
+        if (count == 0) {
+            double l = blockLoudness(whole);
+            return l > ABSOLUTE_GATE ? l : Double.NEGATIVE_INFINITY;
+        }
+        double gate = blockLoudness(energy / count) + RELATIVE_GATE;
+        int first = Math.max(0, (int) ((gate - ABSOLUTE_GATE) / HISTOGRAM_STEP));
+        count = 0;
+        energy = 0;
+        for (int i = first; i < HISTOGRAM_BINS; i++) {
+            count += binCount[i];
+            energy += binEnergy[i];
+        }
+        return blockLoudness(energy / count);
+    }
+
+    /**
+     * The two biquad stages of the BS.1770 K-weighting filter, a high shelf
+     * then a high pass, for a sample rate.
+     *
+     * @param rate
+     * @return {b0, b1, b2, a1, a2} for each stage
+     */
+    protected static double[][] kWeighting(int rate) {
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / rate);
+        double vh = Math.pow(10.0, gain / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        double[] shelf = {(vh + vb * k / q + k * k) / a0, 2.0 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+            2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0};
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / rate);
+        a0 = 1.0 + k / q + k * k;
+        double[] highPass = {1.0, -2.0, 1.0, 2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0};
+        return new double[][]{shelf, highPass};
+    }
+
+    /**
+     * Filter one sample through both stages (transposed direct form II).
+     *
+     * @param filters from kWeighting()
+     * @param state four values per channel
+     * @param x
+     * @return filtered sample
+     */
+    protected static double filter(double[][] filters, double[] state, double x) {
+        for (int s = 0; s < 2; s++) {
+            double[] f = filters[s];
+            double y = f[0] * x + state[2 * s];
+            state[2 * s] = f[1] * x - f[3] * y + state[2 * s + 1];
+            state[2 * s + 1] = f[2] * x - f[4] * y;
+            x = y;
+        }
+        return x;
+    }
+}
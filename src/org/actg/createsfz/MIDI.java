@@ -17,36 +17,157 @@
  */
 package org.actg.createsfz;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 /**
  * MIDI note utilities.
+ *
+ * Note names are parsed using a table of note letters, reading directly from
+ * a CharSequence. The tables are only written when the class is initialised,
+ * so parsing is safe from any number of threads.
  */
 public class MIDI {
 
     public static String[] notes = new String[]{"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
 
+    public static final int MAX_NOTE = 127;
+
+    // Semitones above C for each note letter, upper or lower case, else -1:
+    protected static final byte[] LETTERS = new byte[128];
+
+    static {
+        Arrays.fill(LETTERS, (byte) -1);
+        String letters = "C D EF G A B";
+        for (int i = 0; i < letters.length(); i++) {
+            char c = letters.charAt(i);
+            if (c != ' ') {
+                LETTERS[c] = (byte) i;
+                LETTERS[Character.toLowerCase(c)] = (byte) i;
+            }
+        }
+    }
+
     /**
-     * For a note name such as "C3", "A#4", return the MIDI note number.
-     *
-     * Recognise # for sharp, no flats. The number in the String is the octave
-     * number, from -1 to 9.
-     *
-     * C-2 (C in octave number minus two) maps to note zero.
+     * Octave numbering: the octave number of middle C, note 60.
+     */
+    public enum Octaves {
+        YAMAHA(3), // C3 is middle C, C-2 is note 0
+        ROLAND(4); // C4 is middle C, C-1 is note 0
+
+        protected final int middleC;
+        protected final String[] names = new String[MAX_NOTE + 1];
+
+        Octaves(int middleC) {
+            this.middleC = middleC;
+            // As notes, which is not initialised yet if this is:
+            String[] sharps = new String[]{"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+            for (int n = 0; n <= MAX_NOTE; n++) {
+                names[n] = sharps[n % 12] + (n / 12 + middleC - 5);
+            }
+        }
+
+        /**
+         * @param name "yamaha" or "roland", in any case
+         * @return Octaves
+         * @throws IllegalArgumentException if not known
+         */
+        public static Octaves forName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * For a note name such as "C3", "A#4", return the MIDI note number, with
+     * C3 as middle C.
      *
      * @param name
      * @return note number
+     * @throws NumberFormatException if not a note name, or not a note from 0
+     * to 127
      */
     public static int noteNameToNumber(String name) throws NumberFormatException {
-        String noteName = null;
-        int octave;
-        if (name.charAt(1) == '#') {
-            noteName = name.substring(0, 2);
-            octave = Integer.parseInt(name.substring(2));
-        } else {
-            noteName = name.substring(0, 1);
-            octave = Integer.parseInt(name.substring(1));
-        }
-        int noteNumber = findStringInArray(noteName, notes);
-        return (octave + 2) * 12 + noteNumber;
+        return noteNameToNumber(name, 0, name.length(), Octaves.YAMAHA);
+    }
+
+    /**
+     * For a note name in part of a CharSequence, such as a filename, return
+     * the MIDI note number, without creating Strings.
+     *
+     * @param name
+     * @param start
+     * @param end
+     * @return note number
+     * @throws NumberFormatException if not a note name
+     */
+    public static int noteNameToNumber(CharSequence name, int start, int end) throws NumberFormatException {
+        return noteNameToNumber(name, start, end, Octaves.YAMAHA);
+    }
+
+    /**
+     * For a note name in part of a CharSequence, return the MIDI note number.
+     *
+     * The name is a note letter, upper or lower case, an optional # or b (or
+     * the sharp and flat signs), then the octave number, e.g. "C3", "Bb2",
+     * "f#-1". Cb and B# are in the octave of the B and C they are written as.
+     *
+     * @param name
+     * @param start
+     * @param end
+     * @param octaves the octave numbering used in the name
+     * @return note number, 0 to 127
+     * @throws NumberFormatException if not a note name, or not a note from 0
+     * to 127
+     */
+    public static int noteNameToNumber(CharSequence name, int start, int end, Octaves octaves) throws NumberFormatException {
+        char c = start < end ? name.charAt(start) : 0;
+        int semitone = c < LETTERS.length ? LETTERS[c] : -1;
+        if (semitone < 0 || end - start < 2) {
+            throw new NumberFormatException("Not a note name: \"" + name.subSequence(start, end) + "\"");
+        }
+        int i = start + 1;
+        char accidental = name.charAt(i);
+        if (accidental == '#' || accidental == '\u266f') {
+            semitone++;
+            i++;
+        } else if ((accidental == 'b' || accidental == '\u266d') && i + 1 < end) {
+            semitone--;
+            i++;
+        }
+        int octave = FilenameParser.parseInt(name, i, end);
+        int note = -1;
+        if (octave > -10 && octave < 20) {
+            note = (octave - octaves.middleC + 5) * 12 + semitone;
+        }
+        if (note < 0 || note > MAX_NOTE) {
+            throw new NumberFormatException("Note out of range: \"" + name.subSequence(start, end) + "\"");
+        }
+        return note;
+    }
+
+    /**
+     * The name of a note, using sharps, with C3 as middle C.
+     *
+     * @param noteNumber 0 to 127
+     * @return note name, e.g. "C#3"
+     */
+    public static String noteNumberToName(int noteNumber) {
+        return noteNumberToName(noteNumber, Octaves.YAMAHA);
+    }
+
+    /**
+     * The name of a note, using sharps.
+     *
+     * @param noteNumber 0 to 127
+     * @param octaves
+     * @return note name, e.g. "C#4" for note 61 in Roland numbering
+     * @throws IllegalArgumentException if not a note from 0 to 127
+     */
+    public static String noteNumberToName(int noteNumber, Octaves octaves) {
+        if (noteNumber < 0 || noteNumber > MAX_NOTE) {
+            throw new IllegalArgumentException("not a MIDI note: " + noteNumber);
+        }
+        return octaves.names[noteNumber];
     }
 
     public static int findStringInArray(String s, String[] array) {
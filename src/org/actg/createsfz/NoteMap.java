@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The Samples of a collection by MIDI note: an array of 128 notes, each
+ * holding its Samples in one array, sorted by velocity then round robin id,
+ * with the start of each velocity layer.
+ *
+ * Samples are appended, and a note is sorted and split into layers when it is
+ * next read, so adding Samples in any order is cheap. Not synchronized: the
+ * SampleCollection using it is.
+ */
+public class NoteMap implements Iterable<NoteMap.Note> {
+
+    protected final Note[] notes = new Note[MIDI.MAX_NOTE + 1];
+    protected int noteCount;
+
+    /**
+     * The Samples for one note.
+     */
+    public static class Note {
+
+        protected final int number;
+        protected Sample[] samples = new Sample[4];
+        protected int size;
+        protected boolean sorted = true;
+        // Start of each velocity layer, then size:
+        protected int[] layers;
+        protected int layerCount;
+        // Text printed for this note, if kept between writes:
+        protected SampleCollection.RenderedNote rendered;
+
+        Note(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return count of Samples
+         */
+        public int size() {
+            sort();
+            return size;
+        }
+
+        /**
+         * @param i from 0 to size() - 1
+         * @return the Sample at that position, from soft to hard
+         */
+        public Sample get(int i) {
+            sort();
+            return samples[i];
+        }
+
+        /**
+         * @return count of velocity layers
+         */
+        public int layerCount() {
+            sort();
+            return layerCount;
+        }
+
+        /**
+         * @param layer
+         * @return position of the first Sample of a velocity layer
+         */
+        public int layerStart(int layer) {
+            sort();
+            return layers[layer];
+        }
+
+        /**
+         * @param layer
+         * @return position after the last Sample of a velocity layer
+         */
+        public int layerEnd(int layer) {
+            sort();
+            return layers[layer + 1];
+        }
+
+        protected void add(Sample s) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = s;
+            sorted = false;
+            rendered = null;
+        }
+
+        protected boolean remove(String filename) {
+            for (int i = 0; i < size; i++) {
+                if (samples[i].filename.equals(filename)) {
+                    System.arraycopy(samples, i + 1, samples, i, size - i - 1);
+                    samples[--size] = null;
+                    sorted = false;
+                    rendered = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sort the Samples, dropping any equal to one added before, as a
+         * TreeSet would, and find the velocity layers.
+         */
+        protected void sort() {
+            if (sorted) {
+                return;
+            }
+            Arrays.sort(samples, 0, size); // stable, so the first added of equal Samples is kept
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || samples[i].compareTo(samples[n - 1]) != 0) {
+                    samples[n++] = samples[i];
+                }
+            }
+            Arrays.fill(samples, n, size, null);
+            size = n;
+            // A layer starts where the velocity changes, with any Samples without a velocity
+            // (-1) in the layer after them, as the layers have always been split:
+            if (layers == null || layers.length < size + 1) {
+                layers = new int[size + 1];
+            }
+            layerCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || (samples[i - 1].velocity >= 0 && samples[i].velocity != samples[i - 1].velocity)) {
+                    layers[layerCount++] = i;
+                }
+            }
+            layers[layerCount] = size;
+            sorted = true;
+        }
+    }
+
+    /**
+     * Add a Sample, for its note number from 0 to 127.
+     *
+     * @param s
+     * @return the Note the Sample was added to
+     */
+    public Note add(Sample s) {
+        if (s.noteNumber < 0 || s.noteNumber > MIDI.MAX_NOTE) {
+            throw new IllegalArgumentException("not a MIDI note: " + s.noteNumber + ": " + s.filename);
+        }
+        Note note = notes[s.noteNumber];
+        if (note == null) {
+            note = new Note(s.noteNumber);
+            notes[s.noteNumber] = note;
+            noteCount++;
+        }
+        note.add(s);
+        return note;
+    }
+
+    /**
+     * Remove the Sample for a filename.
+     *
+     * @param filename
+     * @return the note number it was removed from, or -1 if not found
+     */
+    public int remove(String filename) {
+        for (Note note : notes) {
+            if (note != null && note.remove(filename)) {
+                if (note.size == 0) {
+                    notes[note.number] = null;
+                    noteCount--;
+                }
+                return note.number;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param noteNumber
+     * @return the Note, or null if it has no Samples
+     */
+    public Note get(int noteNumber) {
+        return noteNumber < 0 || noteNumber > MIDI.MAX_NOTE ? null : notes[noteNumber];
+    }
+
+    public boolean isEmpty() {
+        return noteCount == 0;
+    }
+
+    /**
+     * @return count of notes with Samples
+     */
+    public int noteCount() {
+        return noteCount;
+    }
+
+    /**
+     * @return count of Samples
+     */
+    public int size() {
+        int size = 0;
+        for (Note note : this) {
+            size += note.size();
+        }
+        return size;
+    }
+
+    /**
+     * Iterate the notes with Samples, from the lowest.
+     */
+    @Override
+    public Iterator<Note> iterator() {
+        return new Iterator<Note>() {
+            int next = find(0);
+
+            int find(int from) {
+                while (from < notes.length && notes[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < notes.length;
+            }
+
+            @Override
+            public Note next() {
+                if (next >= notes.length) {
+                    throw new NoSuchElementException();
+                }
+                Note note = notes[next];
+                next = find(next + 1);
+                return note;
+            }
+        };
+    }
+
+    /**
+     * @return the note numbers with Samples, e.g. "[60, 62]"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (Note note : this) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(note.number);
+        }
+        return sb.append(']').toString();
+    }
+}
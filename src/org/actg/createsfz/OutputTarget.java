@@ -0,0 +1,381 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A kind of file written for a SampleCollection: the .sfz file, or the same
+ * mapping of samples for another sampler or tool.
+ *
+ * A target is driven by the collection's iteration over notes, velocity
+ * layers and round robins (SampleCollection.printNote), the same for every
+ * target: note(), then for each layer group(), region() for each of its
+ * Samples, and endGroup(), then endNote(). Each note is rendered on its own,
+ * possibly in parallel with others, so those methods only append to the
+ * buffer given, keeping no state between calls.
+ */
+public abstract class OutputTarget {
+
+    protected static final String NL = System.lineSeparator();
+
+    /**
+     * The position of the iteration: the note, velocity layer and region
+     * being rendered. One Region is updated as the iteration moves on.
+     */
+    public static class Region {
+
+        // The note:
+        protected int noteNumber;
+        protected String noteName;
+        protected int lokey;
+        protected int hikey;
+        protected boolean release;
+        protected int level;
+        protected String defaultPath;
+        // The velocity layer:
+        protected int layer;
+        protected int lovel;
+        protected int hivel;
+        protected String velocityRange;
+        protected int seqLength;
+        protected double velocityCurveSofter;
+        // The region:
+        protected Sample sample;
+        protected String filename;
+        protected int seq;
+        protected int rootNote;
+        protected long offset;
+        protected long end;
+        protected long loopStart;
+        protected long loopEnd;
+        protected boolean loopFound;
+        protected double gain;
+
+        public int getNoteNumber() {
+            return noteNumber;
+        }
+
+        /**
+         * @return the note name, in the Format's octave numbering
+         */
+        public String getNoteName() {
+            return noteName;
+        }
+
+        /**
+         * @return lowest key the note's samples play on
+         */
+        public int getLokey() {
+            return lokey;
+        }
+
+        public int getHikey() {
+            return hikey;
+        }
+
+        /**
+         * @return true for release triggers
+         */
+        public boolean isRelease() {
+            return release;
+        }
+
+        /**
+         * @return the level of every region, in dB: the release level for
+         * release triggers, otherwise 0
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the directory sample filenames are relative to, or null
+         */
+        public String getDefaultPath() {
+            return defaultPath;
+        }
+
+        /**
+         * @return the velocity layer, in the order rendered
+         */
+        public int getLayer() {
+            return layer;
+        }
+
+        /**
+         * @return lowest velocity of the layer, or -1 if its Samples have no
+         * velocity
+         */
+        public int getLovel() {
+            return lovel;
+        }
+
+        /**
+         * @return highest velocity of the layer, or -1 if its Samples have no
+         * velocity
+         */
+        public int getHivel() {
+            return hivel;
+        }
+
+        /**
+         * @return the layer's velocities as .sfz opcodes, e.g. "lovel=0
+         * hivel=41", or "" if none
+         */
+        public String getVelocityRange() {
+            return velocityRange;
+        }
+
+        /**
+         * @return count of round robins in the layer
+         */
+        public int getSeqLength() {
+            return seqLength;
+        }
+
+        /**
+         * @return true if the level rises from lovel to hivel (-velcurve)
+         */
+        public boolean hasVelocityCurve() {
+            return !Double.isNaN(velocityCurveSofter);
+        }
+
+        /**
+         * @return the amplitude at lovel relative to that at hivel, with a
+         * velocity curve
+         */
+        public double getVelocityCurveAmplitude() {
+            return Math.pow(10.0, velocityCurveSofter / 20.0);
+        }
+
+        public Sample getSample() {
+            return sample;
+        }
+
+        /**
+         * @return the sample filename, relative to the default path
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * @return the sample path, with the default path, using '/' as the
+         * separator
+         */
+        public String getPath() {
+            String path = defaultPath != null ? defaultPath + filename : filename;
+            return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+        }
+
+        /**
+         * @return position in the round robin sequence, from 1
+         */
+        public int getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return the smpl chunk's root note if it differs from the note, or
+         * -1
+         */
+        public int getRootNote() {
+            return rootNote;
+        }
+
+        /**
+         * @return the first frame played, after any silence trimmed
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the last frame played, or -1 if not known
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the loop's first frame, or -1 for no loop
+         */
+        public long getLoopStart() {
+            return loopStart;
+        }
+
+        public long getLoopEnd() {
+            return loopEnd;
+        }
+
+        /**
+         * @return true if the loop was found (-findLoops), rather than read
+         * from the smpl chunk
+         */
+        public boolean isLoopFound() {
+            return loopFound;
+        }
+
+        /**
+         * @return dB to level the Sample within its layer (-normalize), or 0
+         */
+        public double getGain() {
+            return gain;
+        }
+
+        /**
+         * @return the region's volume as printed: with a gain, rounded to
+         * 0.1dB, otherwise the level, or null for none
+         */
+        public String getVolume() {
+            if (gain != 0) {
+                return String.format(Locale.ROOT, "%.1f", level + gain);
+            } else if (level != 0) {
+                return Integer.toString(level);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the name given to -targets
+     */
+    public abstract String getName();
+
+    /**
+     * @return the filename extension, e.g. ".sfz"
+     */
+    public abstract String getExtension();
+
+    /**
+     * @return the encoding of the file
+     */
+    public Charset getCharset() {
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * @param sfzFilename the .sfz filename given
+     * @return the filename for this target, with its extension in place of
+     * .sfz
+     */
+    public String filename(String sfzFilename) {
+        if (sfzFilename.toLowerCase(Locale.ROOT).endsWith(".sfz")) {
+            sfzFilename = sfzFilename.substring(0, sfzFilename.length() - 4);
+        }
+        return sfzFilename + getExtension();
+    }
+
+    /**
+     * Print the start of the file, before the notes.
+     *
+     * @param c
+     * @param out
+     */
+    public abstract void printStart(SampleCollection c, PrintStream out);
+
+    /**
+     * Print before the notes, or the release triggers.
+     *
+     * @param notes
+     * @param releaseTriggers
+     * @param out
+     */
+    public abstract void printNotesStart(NoteMap notes, boolean releaseTriggers, PrintStream out);
+
+    /**
+     * @return text printed between the notes
+     */
+    public String noteSeparator() {
+        return "";
+    }
+
+    /**
+     * Print after the notes, or the release triggers.
+     *
+     * @param notes
+     * @param releaseTriggers
+     * @param out
+     */
+    public abstract void printNotesEnd(NoteMap notes, boolean releaseTriggers, PrintStream out);
+
+    /**
+     * Print the end of the file, after the notes.
+     *
+     * @param c
+     * @param out
+     */
+    public abstract void printEnd(SampleCollection c, PrintStream out);
+
+    public abstract void note(Region r, StringBuilder out);
+
+    public abstract void group(Region r, StringBuilder out);
+
+    public abstract void region(Region r, StringBuilder out);
+
+    public abstract void endGroup(Region r, StringBuilder out);
+
+    /**
+     * @param r
+     * @param noteCount count of velocity layers rendered including this note
+     * @param out
+     */
+    public abstract void endNote(Region r, int noteCount, StringBuilder out);
+
+    /**
+     * @param name
+     * @return a new target of the given name
+     */
+    public static OutputTarget forName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "sfz":
+                return new SfzTarget();
+            case "dspreset":
+                return new DecentSamplerTarget();
+            case "json":
+                return new JsonTarget();
+            default:
+                throw new RuntimeException("unknown output target: " + name + " (use sfz, dspreset or json)");
+        }
+    }
+
+    /**
+     * @param names comma separated, e.g. "sfz,dspreset,json"
+     * @return a new target for each name
+     */
+    public static List<OutputTarget> forNames(String names) {
+        List<OutputTarget> targets = new ArrayList<>();
+        for (String name : names.split(",")) {
+            OutputTarget t = forName(name.trim());
+            for (OutputTarget other : targets) {
+                if (other.getName().equals(t.getName())) {
+                    throw new RuntimeException("output target given twice: " + name);
+                }
+            }
+            targets.add(t);
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stream the audio data of a WAV file in fixed-size blocks.
+ *
+ * Frames are returned either as integers, interleaved, at the file's bit
+ * depth, or mixed down to mono floats in the range -1 to 1. Memory used does
+ * not depend on the length of the file.
+ */
+public class PcmReader implements Closeable {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final FileChannel ch;
+    protected final WavInfo info;
+    protected final int channels;
+    protected final int bytesPerSample;
+    protected final boolean isFloat;
+    protected final ByteBuffer buf;
+    protected final long frames;
+    protected long frame; // next frame to read
+    protected int[] ints;
+
+    /**
+     * Open a WAV file for reading its audio data.
+     *
+     * @param file
+     * @param info the file's header, from WavInfo.read()
+     * @throws IOException if the data is not 8, 16, 24 or 32 bit PCM, or 32
+     * bit float
+     */
+    public PcmReader(File file, WavInfo info) throws IOException {
+        this(file, info, allocateBuffer());
+    }
+
+    /**
+     * Open a WAV file for reading its audio data, using a buffer which may be
+     * reused for other files once this reader is closed.
+     *
+     * @param file
+     * @param info
+     * @param buf from allocateBuffer()
+     * @throws IOException
+     */
+    public PcmReader(File file, WavInfo info, ByteBuffer buf) throws IOException {
+        this.info = info;
+        this.channels = info.getChannels();
+        this.bytesPerSample = (info.getBitsPerSample() + 7) / 8;
+        this.isFloat = info.isFloat();
+        if (!(info.isPCM() || (isFloat && bytesPerSample == 4)) || bytesPerSample < 1 || bytesPerSample > 4
+                || channels < 1 || info.getBlockAlign() != channels * bytesPerSample) {
+            throw new IOException("unsupported WAV data format: " + info);
+        }
+        this.frames = info.getFrames();
+        this.ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.buf = buf;
+    }
+
+    /**
+     * @return a read buffer of BUFFER_SIZE bytes
+     */
+    public static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public WavInfo getInfo() {
+        return info;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getPosition() {
+        return frame;
+    }
+
+    /**
+     * Set the next frame to read.
+     *
+     * @param frame
+     */
+    public void seek(long frame) {
+        this.frame = Math.max(0, Math.min(frame, frames));
+    }
+
+    /**
+     * Read interleaved integer samples, at the file's bit depth (8 bit data is
+     * made signed). Float data is scaled to 24 bit integers.
+     *
+     * @param dst interleaved samples, at least maxFrames * channels long
+     * @param maxFrames
+     * @return number of frames read, or -1 at the end of the data
+     * @throws IOException
+     */
+    public int readInterleaved(int[] dst, int maxFrames) throws IOException {
+        int n = (int) Math.min(Math.min(maxFrames, frames - frame), buf.capacity() / info.getBlockAlign());
+        if (n <= 0) {
+            return -1;
+        }
+        buf.clear();
+        buf.limit(n * info.getBlockAlign());
+        long pos = info.getDataOffset() + frame * info.getBlockAlign();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("WAV data ends early");
+            }
+        }
+        buf.flip();
+        int count = n * channels;
+        for (int i = 0; i < count; i++) {
+            dst[i] = readSample();
+        }
+        frame += n;
+        return n;
+    }
+
+    protected int readSample() {
+        switch (bytesPerSample) {
+            case 1:
+                return (buf.get() & 0xff) - 128;
+            case 2:
+                return buf.getShort();
+            case 3: {
+                int lo = buf.get() & 0xff;
+                int mid = buf.get() & 0xff;
+                int hi = buf.get(); // sign extends
+                return (hi << 16) | (mid << 8) | lo;
+            }
+            default:
+                if (isFloat) {
+                    return (int) Math.max(-8388608, Math.min(8388607, buf.getFloat() * 8388608.0f));
+                }
+                return buf.getInt();
+        }
+    }
+
+    /**
+     * @return the value of a full-scale integer sample from readInterleaved()
+     */
+    public double fullScale() {
+        if (isFloat) {
+            return 8388608.0;
+        }
+        return (double) (1L << (bytesPerSample * 8 - 1));
+    }
+
+    /**
+     * Read frames mixed down to mono, scaled to -1 to 1.
+     *
+     * @param mono
+     * @param offset
+     * @param length
+     * @return number of frames read, or -1 at the end of the data
+     * @throws IOException
+     */
+    public int read(float[] mono, int offset, int length) throws IOException {
+        int total = 0;
+        double scale = 1.0 / (fullScale() * channels);
+        while (total < length) {
+            int want = Math.min(length - total, buf.capacity() / info.getBlockAlign());
+            if (ints == null || ints.length < want * channels) {
+                ints = new int[buf.capacity() / info.getBlockAlign() * channels];
+            }
+            int n = readInterleaved(ints, want);
+            if (n < 0) {
+                break;
+            }
+            for (int i = 0, j = 0; i < n; i++) {
+                long sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += ints[j++];
+                }
+                mono[offset + total + i] = (float) (sum * scale);
+            }
+            total += n;
+        }
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+}
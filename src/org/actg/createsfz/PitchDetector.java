@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimate the fundamental frequency of a sample using the YIN method.
+ *
+ * A few windows are analysed in the steady part of the sample, after the
+ * attack, and the median estimate is used. Only those windows are read from
+ * the file, into a buffer sized for the lowest frequency detected.
+ */
+public class PitchDetector {
+
+    public static final double MIN_FREQUENCY = 27.5; // A-1, MIDI note 21
+    public static final double MAX_FREQUENCY = 4186.0; // C7, MIDI note 108
+    public static final double THRESHOLD = 0.15;
+    public static final int WINDOWS = 5;
+    public static final double MIN_CONFIDENCE = 0.5; // to use a detected note
+
+    /**
+     * A detected pitch.
+     */
+    public static class Result {
+
+        protected final double frequency;
+        protected final double confidence;
+
+        public Result(double frequency, double confidence) {
+            this.frequency = frequency;
+            this.confidence = confidence;
+        }
+
+        public double getFrequency() {
+            return frequency;
+        }
+
+        /**
+         * @return confidence from 0 (none) to 1
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        /**
+         * @return nearest MIDI note number, 69 being A at 440Hz
+         */
+        public int getNoteNumber() {
+            return (int) Math.round(midiNote(frequency));
+        }
+
+        /**
+         * @return cents from the nearest note, -50 to 50
+         */
+        public double getCents() {
+            return (midiNote(frequency) - getNoteNumber()) * 100.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1fHz note %s %+.0f cents, confidence %.2f", frequency, MIDI.noteNumberToName(getNoteNumber()),
+                    getCents(), confidence);
+        }
+    }
+
+    public static double midiNote(double frequency) {
+        return 69.0 + 12.0 * Math.log(frequency / 440.0) / Math.log(2.0);
+    }
+
+    /**
+     * Detect the pitch of a WAV file.
+     *
+     * @param file
+     * @param info
+     * @return Result, or null if no pitch was found
+     * @throws IOException
+     */
+    public Result detect(File file, WavInfo info) throws IOException {
+        int rate = info.getSampleRate();
+        int maxLag = (int) Math.ceil(rate / MIN_FREQUENCY);
+        int minLag = Math.max(2, (int) (rate / MAX_FREQUENCY));
+        int window = maxLag; // integration window
+        float[] x = new float[window + maxLag + 2];
+        float[] d = new float[maxLag + 2];
+        List<Result> results = new ArrayList<>();
+        try (PcmReader reader = new PcmReader(file, info)) {
+            long frames = reader.getFrames();
+            if (frames < x.length) {
+                return null;
+            }
+            // Skip the attack: analyse windows spread from 10% to 60% of the sample.
+            long first = frames / 10;
+            long last = Math.max(first, Math.min(frames * 6 / 10, frames - x.length));
+            for (int w = 0; w < WINDOWS; w++) {
+                reader.seek(first + (last - first) * w / Math.max(1, WINDOWS - 1));
+                if (reader.read(x, 0, x.length) < x.length) {
+                    break;
+                }
+                Result r = yin(x, window, minLag, maxLag, rate, d);
+                if (r != null) {
+                    results.add(r);
+                }
+            }
+        }
+        if (results.isEmpty()) {
+            return null;
+        }
+        // Use the median frequency, scaling its confidence by how many windows agree within 50 cents:
+        Collections.sort(results, (a, b) -> Double.compare(a.frequency, b.frequency));
+        Result median = results.get(results.size() / 2);
+        int agree = 0;
+        for (Result r : results) {
+            if (Math.abs(midiNote(r.frequency) - midiNote(median.frequency)) < 0.5) {
+                agree++;
+            }
+        }
+        return new Result(median.frequency, median.confidence * agree / results.size());
+    }
+
+    /**
+     * The YIN estimate for one window.
+     *
+     * @param x at least window + maxLag + 2 samples
+     * @param window integration window
+     * @param minLag
+     * @param maxLag
+     * @param rate
+     * @param d work array, at least maxLag + 2 long
+     * @return Result, or null for a silent window
+     */
+    protected Result yin(float[] x, int window, int minLag, int maxLag, int rate, float[] d) {
+        double energy = 0;
+        for (int j = 0; j < window; j++) {
+            energy += x[j] * x[j];
+        }
+        if (energy / window < 1e-8) {
+            return null; // silence
+        }
+        // Difference function, and cumulative mean normalised difference:
+        d[0] = 1;
+        double sum = 0;
+        for (int tau = 1; tau <= maxLag + 1; tau++) {
+            double diff = 0;
+            for (int j = 0; j < window; j++) {
+                double delta = x[j] - x[j + tau];
+                diff += delta * delta;
+            }
+            sum += diff;
+            d[tau] = sum == 0 ? 1 : (float) (diff * tau / sum);
+        }
+        // First dip below the threshold, followed to its minimum, else the overall minimum:
+        int best = -1;
+        for (int tau = minLag; tau <= maxLag; tau++) {
+            if (d[tau] < THRESHOLD) {
+                while (tau + 1 <= maxLag && d[tau + 1] < d[tau]) {
+                    tau++;
+                }
+                best = tau;
+                break;
+            }
+        }
+        if (best < 0) {
+            best = minLag;
+            for (int tau = minLag; tau <= maxLag; tau++) {
+                if (d[tau] < d[best]) {
+                    best = tau;
+                }
+            }
+        }
+        // Parabolic interpolation around the minimum:
+        double period = best;
+        double a = d[best - 1], b = d[best], c = d[best + 1];
+        double denominator = a - 2 * b + c;
+        if (denominator > 0) {
+            period = best + 0.5 * (a - c) / denominator;
+        }
+        return new Result(rate / period, Math.max(0, 1 - b));
+    }
+}
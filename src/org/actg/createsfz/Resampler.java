@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+/**
+ * A polyphase filter to change the sample rate of audio by a ratio of whole
+ * numbers, outRate / inRate = up / down (e.g. 147 / 320 for 96kHz to
+ * 44.1kHz).
+ *
+ * Output frame n falls at input time t = n * down / up. It is the sum of the
+ * taps input frames around t, weighted by a Kaiser windowed sinc shifted by
+ * the fraction of t, which is one of up phases computed once. The filter
+ * passes PASSBAND of the lower Nyquist frequency, and attenuates by
+ * ATTENUATION dB from the lower Nyquist frequency up, so nothing is aliased
+ * into the audio band.
+ *
+ * A Resampler holds only its filter, so is shared by threads.
+ */
+public class Resampler {
+
+    public static final double PASSBAND = 0.907; // 20kHz of 22.05kHz
+    public static final double ATTENUATION = 100; // dB
+    public static final int MAX_PHASES = 4096;
+
+    protected final int inRate;
+    protected final int outRate;
+    protected final int up;
+    protected final int down;
+    protected final int taps;
+    protected final double[] coefs; // taps per phase, phase by phase
+
+    /**
+     * @param inRate
+     * @param outRate
+     * @throws IllegalArgumentException if the ratio of the rates needs more
+     * than MAX_PHASES phases
+     */
+    public Resampler(int inRate, int outRate) {
+        int g = gcd(inRate, outRate);
+        this.inRate = inRate;
+        this.outRate = outRate;
+        this.up = outRate / g;
+        this.down = inRate / g;
+        if (up > MAX_PHASES) {
+            throw new IllegalArgumentException("cannot resample " + inRate + "Hz to " + outRate + "Hz: " + up + " phases");
+        }
+        // Design in cycles per input frame:
+        double nyquist = Math.min(inRate, outRate) / 2.0;
+        double pass = nyquist * PASSBAND;
+        double cutoff = (nyquist + pass) / 2 / inRate;
+        double width = (nyquist - pass) / inRate;
+        double beta = 0.1102 * (ATTENUATION - 8.7);
+        int n = (int) Math.ceil((ATTENUATION - 7.95) / (2.285 * 2 * Math.PI * width));
+        taps = Math.max(4, (n + 3) & ~3); // a multiple of 4, for filter()
+        coefs = new double[up * taps];
+        int half = taps / 2;
+        double i0Beta = besselI0(beta);
+        for (int p = 0; p < up; p++) {
+            double frac = (double) p / up;
+            double[] h = new double[taps];
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                // Tap k is input frame floor(t) - half + 1 + k, at d frames before t:
+                double d = frac + half - 1 - k;
+                double x = d / half;
+                double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - x * x))) / i0Beta;
+                h[k] = 2 * cutoff * sinc(2 * cutoff * d) * window;
+                sum += h[k];
+            }
+            // Each phase passes DC at unity gain:
+            for (int k = 0; k < taps; k++) {
+                coefs[p * taps + k] = h[k] / sum;
+            }
+        }
+    }
+
+    protected static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    protected static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /**
+     * The modified Bessel function of the first kind, order 0, for the Kaiser
+     * window.
+     */
+    protected static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    public int getInRate() {
+        return inRate;
+    }
+
+    public int getOutRate() {
+        return outRate;
+    }
+
+    public int getUp() {
+        return up;
+    }
+
+    public int getDown() {
+        return down;
+    }
+
+    /**
+     * @return input frames weighted for each output frame
+     */
+    public int getTaps() {
+        return taps;
+    }
+
+    /**
+     * @param inFrames
+     * @return the number of output frames for inFrames input frames
+     */
+    public long outputFrames(long inFrames) {
+        return (inFrames * up + down - 1) / down;
+    }
+
+    /**
+     * @param frame an input frame, e.g. a loop point
+     * @return the nearest output frame
+     */
+    public long scale(long frame) {
+        return (frame * up * 2 + down) / (down * 2);
+    }
+
+    /**
+     * Filter one output frame of one channel.
+     *
+     * @param x input frames of the channel
+     * @param first index in x of input frame floor(t) - taps / 2 + 1
+     * @param phase the fraction of t, in 1 / up
+     * @return the output frame
+     */
+    public double filter(double[] x, int first, int phase) {
+        double[] h = coefs;
+        int c = phase * taps;
+        // Four sums, so the additions need not wait on each other:
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int k = 0; k < taps; k += 4) {
+            s0 += h[c + k] * x[first + k];
+            s1 += h[c + k + 1] * x[first + k + 1];
+            s2 += h[c + k + 2] * x[first + k + 2];
+            s3 += h[c + k + 3] * x[first + k + 3];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rewrite a .sfz file so it maps the same, but is smaller and faster for a
+ * player to parse.
+ *
+ * Opcodes with the same value in every region of a group are moved to the
+ * &lt;group&gt;, then those shared by every group of a note to a
+ * &lt;master&gt;, then those shared by every note to the &lt;global&gt;.
+ * Opcodes at their default value are left out, and directories used by many
+ * sample= paths are replaced with #define variables, e.g. sample=$P1/name.wav
+ *
+ * The input is read as written by SampleCollection: one opcode per line,
+ * except on a &lt;group&gt; line, and comments on lines of their own.
+ */
+public class SFZOptimizer {
+
+    /**
+     * Opcodes which may be left out when they have this value.
+     */
+    protected static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("lokey", "0");
+        DEFAULTS.put("hikey", "127");
+        DEFAULTS.put("lovel", "0");
+        DEFAULTS.put("hivel", "127");
+        DEFAULTS.put("seq_length", "1");
+        DEFAULTS.put("seq_position", "1");
+        DEFAULTS.put("offset", "0");
+        DEFAULTS.put("volume", "0");
+        DEFAULTS.put("trigger", "attack");
+    }
+
+    /**
+     * Opcodes kept on each region, as moving them saves nothing.
+     */
+    protected static final List<String> NOT_HOISTED = Arrays.asList("sample");
+
+    public static final String DEFINE_PREFIX = "$P";
+
+    /**
+     * A header and its opcodes: the root (the &lt;global&gt;), a note's
+     * &lt;master&gt;, a &lt;group&gt;, or a &lt;region&gt;.
+     */
+    protected static class Node {
+
+        final Map<String, String> opcodes = new LinkedHashMap<>();
+        final List<Node> children = new ArrayList<>();
+    }
+
+    protected final Charset charset; // of the file, for its size
+    protected final List<String> head = new ArrayList<>(); // comments and the <control> section, as given
+    protected final Node root = new Node();
+    protected final Map<String, String> defines = new LinkedHashMap<>(); // path prefix to variable
+    protected int bytesBefore;
+    protected int linesBefore;
+    protected int bytesAfter;
+    protected int linesAfter;
+
+    public SFZOptimizer() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param charset the .sfz file is written in, to report its size in bytes
+     */
+    public SFZOptimizer(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Optimize the text of a .sfz file.
+     *
+     * @param sfz
+     * @return the optimized text, which maps each region the same
+     * @throws IllegalArgumentException if the text uses headers other than
+     * control, global, master, group and region
+     */
+    public String optimize(String sfz) {
+        bytesBefore = sfz.getBytes(charset).length;
+        linesBefore = countLines(sfz);
+        parse(sfz);
+        hoist(root);
+        findDefines();
+        StringBuilder out = new StringBuilder(sfz.length() / 2);
+        for (String line : head) {
+            out.append(line).append('\n');
+        }
+        for (Map.Entry<String, String> d : defines.entrySet()) {
+            out.append("#define ").append(d.getValue()).append(' ').append(d.getKey()).append('\n');
+        }
+        print("<global>", root, out);
+        for (Node master : root.children) {
+            print("<master>", master, out);
+            for (Node group : master.children) {
+                print("<group>", group, out);
+                for (Node region : group.children) {
+                    print("<region>", region, out);
+                }
+            }
+        }
+        out.append(SampleCollection.FOOTER).append('\n');
+        String result = out.toString();
+        bytesAfter = result.getBytes(charset).length;
+        linesAfter = countLines(result);
+        return result;
+    }
+
+    /**
+     * Read the regions into a tree: each &lt;global&gt; or &lt;master&gt;
+     * starts a note. Every region holds all the opcodes which apply to it.
+     */
+    protected void parse(String sfz) {
+        Map<String, String> global = new LinkedHashMap<>();
+        Map<String, String> master = new LinkedHashMap<>();
+        Map<String, String> group = new LinkedHashMap<>();
+        Map<String, String> current = null;
+        Node note = null;
+        Node groupNode = null;
+        boolean control = false;
+        boolean seenControl = false;
+        for (String line : sfz.split("\r?\n")) {
+            String t = line.trim();
+            if (t.isEmpty()) {
+                continue;
+            }
+            if (t.startsWith("//") || t.startsWith("#") || (control && !t.startsWith("<"))) {
+                if (!seenControl || (control && !t.startsWith("//"))) {
+                    // Keep the header comments, and the <control> section:
+                    head.add(line);
+                }
+                continue;
+            }
+            if (t.startsWith("<")) {
+                int close = t.indexOf('>');
+                String header = t.substring(0, close + 1);
+                control = false;
+                switch (header) {
+                    case "<control>":
+                        head.add(line);
+                        control = true;
+                        seenControl = true;
+                        continue;
+                    case "<global>":
+                    case "<master>":
+                        // Our own output starts each note with a <global>:
+                        if (header.equals("<global>")) {
+                            global.clear();
+                        }
+                        master.clear();
+                        group.clear();
+                        note = new Node();
+                        root.children.add(note);
+                        groupNode = null;
+                        current = header.equals("<global>") ? global : master;
+                        break;
+                    case "<group>":
+                        group.clear();
+                        groupNode = new Node();
+                        if (note == null) {
+                            note = new Node();
+                            root.children.add(note);
+                        }
+                        note.children.add(groupNode);
+                        current = group;
+                        break;
+                    case "<region>":
+                        Node region = new Node();
+                        if (groupNode == null) {
+                            // A region outside any group:
+                            groupNode = new Node();
+                            if (note == null) {
+                                note = new Node();
+                                root.children.add(note);
+                            }
+                            note.children.add(groupNode);
+                        }
+                        region.opcodes.putAll(global);
+                        region.opcodes.putAll(master);
+                        region.opcodes.putAll(group);
+                        groupNode.children.add(region);
+                        current = region.opcodes;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unsupported header: " + header);
+                }
+                for (String opcode : t.substring(close + 1).trim().split("\\s+")) {
+                    put(opcode, current);
+                }
+            } else if (current != null) {
+                put(t, current);
+            }
+        }
+    }
+
+    protected static void put(String opcode, Map<String, String> opcodes) {
+        int eq = opcode.indexOf('=');
+        if (eq > 0) {
+            opcodes.put(opcode.substring(0, eq), opcode.substring(eq + 1));
+        }
+    }
+
+    /**
+     * Move the opcodes shared by all of a node's children up to the node,
+     * from the regions upwards.
+     */
+    protected static void hoist(Node node) {
+        if (node.children.isEmpty()) {
+            return;
+        }
+        for (Node child : node.children) {
+            hoist(child);
+        }
+        node.opcodes.clear();
+        node.opcodes.putAll(node.children.get(0).opcodes);
+        node.opcodes.keySet().removeAll(NOT_HOISTED);
+        for (Node child : node.children) {
+            Iterator<Map.Entry<String, String>> i = node.opcodes.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, String> e = i.next();
+                if (!e.getValue().equals(child.opcodes.get(e.getKey()))) {
+                    i.remove();
+                }
+            }
+        }
+        for (Node child : node.children) {
+            child.opcodes.keySet().removeAll(node.opcodes.keySet());
+        }
+    }
+
+    /**
+     * Choose directories of sample= paths to #define, where that saves
+     * space. Directories with white space, or a '$', are left alone.
+     */
+    protected void findDefines() {
+        Map<String, Integer> uses = new TreeMap<>();
+        List<Node> nodes = new ArrayList<>();
+        collect(root, nodes);
+        for (Node n : nodes) {
+            String sample = n.opcodes.get("sample");
+            if (sample != null) {
+                int slash = sample.lastIndexOf('/');
+                String dir = sample.substring(0, Math.max(0, slash));
+                if (slash > 0 && !dir.matches(".*[\\s$].*")) {
+                    uses.merge(dir, 1, Integer::sum);
+                }
+            }
+        }
+        int width = String.valueOf(uses.size()).length();
+        int n = 0;
+        for (Map.Entry<String, Integer> e : uses.entrySet()) {
+            String name = DEFINE_PREFIX + String.format(Locale.ROOT, "%0" + width + "d", n + 1);
+            int saved = e.getValue() * (e.getKey().length() - name.length());
+            int cost = "#define ".length() + name.length() + 1 + e.getKey().length() + 1;
+            // The '/' after the variable ends its name, so it is kept on each use.
+            if (saved > cost) {
+                defines.put(e.getKey(), name);
+                n++;
+            }
+        }
+    }
+
+    protected static void collect(Node node, List<Node> nodes) {
+        nodes.add(node);
+        for (Node child : node.children) {
+            collect(child, nodes);
+        }
+    }
+
+    /**
+     * Print a header and its opcodes. Every header is printed, even with no
+     * opcodes, so it ends the scope of the one before, except an empty
+     * &lt;global&gt;.
+     */
+    protected void print(String header, Node node, StringBuilder out) {
+        boolean empty = true;
+        for (Map.Entry<String, String> e : node.opcodes.entrySet()) {
+            empty &= e.getValue().equals(DEFAULTS.get(e.getKey()));
+        }
+        if (empty && node == root) {
+            return;
+        }
+        out.append(header).append('\n');
+        for (Map.Entry<String, String> e : node.opcodes.entrySet()) {
+            if (e.getValue().equals(DEFAULTS.get(e.getKey()))) {
+                continue;
+            }
+            String value = e.getValue();
+            if (e.getKey().equals("sample")) {
+                int slash = value.lastIndexOf('/');
+                String define = slash > 0 ? defines.get(value.substring(0, slash)) : null;
+                if (define != null) {
+                    value = define + value.substring(slash);
+                }
+            }
+            out.append(e.getKey()).append('=').append(value).append('\n');
+        }
+    }
+
+    /**
+     * The opcodes which apply to each region of a .sfz file, in order, with
+     * #define variables substituted and default values left out.
+     *
+     * @param sfz
+     * @return a map of opcodes for each region
+     */
+    public static List<Map<String, String>> regions(String sfz) {
+        List<Map<String, String>> regions = new ArrayList<>();
+        Map<String, String> variables = new LinkedHashMap<>();
+        Map<String, String> global = new TreeMap<>();
+        Map<String, String> master = new TreeMap<>();
+        Map<String, String> group = new TreeMap<>();
+        Map<String, String> current = null;
+        for (String line : sfz.split("\r?\n")) {
+            String t = line.trim();
+            if (t.startsWith("#define ")) {
+                String[] d = t.split("\\s+", 3);
+                variables.put(d[1], d.length > 2 ? d[2] : "");
+                continue;
+            }
+            if (t.isEmpty() || t.startsWith("//")) {
+                continue;
+            }
+            if (t.startsWith("<")) {
+                int close = t.indexOf('>');
+                switch (t.substring(0, close + 1)) {
+                    case "<global>":
+                        global.clear();
+                        master.clear();
+                        group.clear();
+                        current = global;
+                        break;
+                    case "<master>":
+                        master.clear();
+                        group.clear();
+                        current = master;
+                        break;
+                    case "<group>":
+                        group.clear();
+                        current = group;
+                        break;
+                    case "<region>":
+                        current = new TreeMap<>(global);
+                        current.putAll(master);
+                        current.putAll(group);
+                        regions.add(current);
+                        break;
+                    default:
+                        current = null; // <control>
+                }
+                if (current != null) {
+                    for (String opcode : t.substring(close + 1).trim().split("\\s+")) {
+                        put(opcode, current);
+                    }
+                }
+            } else if (current != null) {
+                put(t, current);
+            }
+        }
+        // Substitute variables, and leave out defaults:
+        for (Map<String, String> region : regions) {
+            Iterator<Map.Entry<String, String>> i = region.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, String> e = i.next();
+                for (Map.Entry<String, String> v : variables.entrySet()) {
+                    e.setValue(e.getValue().replace(v.getKey(), v.getValue()));
+                }
+                if (e.getValue().equals(DEFAULTS.get(e.getKey()))) {
+                    i.remove();
+                }
+            }
+        }
+        return regions;
+    }
+
+    protected static int countLines(String s) {
+        int lines = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return a one line report of the size before and after
+     */
+    public String report() {
+        return String.format(Locale.ROOT, "Optimized SFZ: %d bytes, %d lines -> %d bytes, %d lines (%.0f%% smaller)",
+                bytesBefore, linesBefore, bytesAfter, linesAfter,
+                bytesBefore > 0 ? 100.0 * (bytesBefore - bytesAfter) / bytesBefore : 0.0);
+    }
+}
@@ -26,6 +26,18 @@ public class Sample implements Comparable {
     protected int noteNumber;
     protected int velocity;
     protected int id;
+    protected String baseName;
+    protected boolean releaseTrigger;
+    protected WavInfo wavInfo; // null unless the file's header has been read
+    protected PitchDetector.Result pitch; // null unless pitch detection has been run
+    protected LoudnessMeter.Result loudness; // null unless the sample has been measured
+    protected SilenceDetector.Result trim; // null unless silence has been detected
+    protected LoopFinder.Result loop; // null unless a loop has been found
+    protected String flacFilename; // relative to the FLAC directory, null unless encoded as FLAC
+    protected byte[] contentHash; // SHA-256 of the file, null unless hashed by Deduplicator
+    protected Sample duplicateOf; // a Sample with identical content, whose file is used instead
+    protected SampleCollection duplicateIn; // the collection of duplicateOf, if another
+    protected Sample lite; // this Sample in the lite variant, from convertLite
 
     public Sample(String filename, int noteNumber, int velocity, int id) {
         this.filename = filename;
@@ -34,6 +46,12 @@ public class Sample implements Comparable {
         this.id = id;
     }
 
+    public Sample(String filename, String baseName, int noteNumber, int velocity, int id, boolean releaseTrigger) {
+        this(filename, noteNumber, velocity, id);
+        this.baseName = baseName;
+        this.releaseTrigger = releaseTrigger;
+    }
+
     @Override
     public int compareTo(Object o) {
         Sample other = (Sample) o;
@@ -44,6 +62,16 @@ public class Sample implements Comparable {
         if (result == 0) {
             result = id - other.id;
         }
+        if (result == 0) {
+            // The same note in different sub-directories, or of different
+            // base names with -split: keep both. Otherwise only the first is
+            // kept, as without -recursive.
+            result = filename.substring(0, DirectoryScanner.leafStart(filename))
+                    .compareTo(other.filename.substring(0, DirectoryScanner.leafStart(other.filename)));
+        }
+        if (result == 0 && baseName != null && other.baseName != null) {
+            result = baseName.compareTo(other.baseName);
+        }
         return result;
     }
 
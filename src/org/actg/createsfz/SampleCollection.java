@@ -17,19 +17,38 @@
  */
 package org.actg.createsfz;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import org.actg.createsfz.CreateSFZ.Format;
 
 /**
@@ -48,15 +67,47 @@ public class SampleCollection {
     protected String outputFilename;
     protected Format format;
     protected List<String> filesUsed;
+    protected ScanCache scanCache;
+    // Keep samples of every base name, to split into instruments later:
+    protected boolean splitBaseNames;
+    // Samples whose note is not known from the filename, waiting for pitch detection:
+    protected List<Sample> unpitched = new ArrayList<>();
 
-    // Map a note Number to a List of samples of increasing velocity/loudness:
-    protected Map<Integer, Set> samples;
+    // The samples of each note, in velocity layers of increasing velocity/loudness:
+    protected NoteMap samples;
     // Release Triggers, effectively another layer...
-    protected Map<Integer, Set> samplesReleaseTriggers;
+    protected NoteMap samplesReleaseTriggers;
+    // Keep the text printed for each note between writes:
+    protected boolean keepRenderedNotes;
+    // With measured loudness, per-region options:
+    protected boolean normalizeVolume;
+    protected boolean velocityCurve;
+    protected boolean optimize; // write with SFZOptimizer
+    // Threads rendering notes in parallel, when writing large collections:
+    protected int emitThreads = Runtime.getRuntime().availableProcessors();
+    // The files written by writeSFZ, the .sfz and others for the same mapping:
+    protected List<OutputTarget> targets = Collections.<OutputTarget>singletonList(new SfzTarget());
+    // With samples encoded as FLAC, default_path= is this directory:
+    protected String flacDirName;
+    // A variant at a lower sample rate and bit depth, from convertLite():
+    protected SampleCollection lite;
+    // Timings and file counts, for -stats and JFR:
+    protected Stats stats = new Stats();
 
     public static String HEADER = "//\n// SFZ file created by CreateSFZ.\n//";
     public static String FOOTER = "//\n// End of SFZ file created by CreateSFZ.\n//";
 
+    // Layers of a note closer than this in loudness (dB) get equal velocity ranges:
+    public static final double MIN_LAYER_STEP = 3.0;
+    // Render notes in parallel for collections of at least this many regions:
+    public static final int PARALLEL_REGIONS = 4096;
+    // The .sfz file is written through a buffer of this size:
+    public static final int WRITE_BUFFER_SIZE = 1 << 20;
+    protected static final int MAX_RENDER_BUFFER = 1 << 22;
+    protected static final ThreadLocal<StringBuilder> RENDER_BUFFERS = ThreadLocal.withInitial(() -> new StringBuilder(1 << 16));
+    // The equal velocity ranges for each number of layers, as they are the same for every note:
+    protected static final Map<Integer, List<String>> VELOCITY_RANGES = new ConcurrentHashMap<>();
+
     protected static String REGEX_NOTENAME_GROUP = "([a-z]#?)";
 
     /**
@@ -70,7 +121,59 @@ public class SampleCollection {
      * @throws IOException
      */
     public SampleCollection(Format format, String dirname, String filenameFilter) throws IOException {
+        this(format, dirname, filenameFilter, new DirectoryScanner(new File(dirname), false, 1));
+    }
+
+    /**
+     * Create a SampleCollection from a named directory, listed by the given
+     * DirectoryScanner.
+     *
+     * @param format
+     * @param dirname
+     * @param filenameFilter
+     * @param scanner
+     * @throws IOException
+     */
+    public SampleCollection(Format format, String dirname, String filenameFilter, DirectoryScanner scanner) throws IOException {
+        this(format, dirname, filenameFilter, scanner, null);
+    }
+
+    /**
+     * Create a SampleCollection from a named directory, listed by the given
+     * DirectoryScanner, using a ScanCache for files decoded before.
+     *
+     * @param format
+     * @param dirname
+     * @param filenameFilter
+     * @param scanner
+     * @param scanCache or null
+     * @throws IOException
+     */
+    public SampleCollection(Format format, String dirname, String filenameFilter, DirectoryScanner scanner,
+            ScanCache scanCache) throws IOException {
+        this(format, dirname, filenameFilter, scanner, scanCache, false);
+    }
+
+    /**
+     * Create a SampleCollection from a named directory, listed by the given
+     * DirectoryScanner, using a ScanCache for files decoded before, and
+     * optionally keeping the samples of every base name, for
+     * splitByBaseName().
+     *
+     * @param format
+     * @param dirname
+     * @param filenameFilter
+     * @param scanner
+     * @param scanCache or null
+     * @param splitBaseNames
+     * @throws IOException
+     */
+    public SampleCollection(Format format, String dirname, String filenameFilter, DirectoryScanner scanner,
+            ScanCache scanCache, boolean splitBaseNames) throws IOException {
         this.sampleDirName = dirname;
+        this.scanCache = scanCache;
+        this.splitBaseNames = splitBaseNames;
+        stats.setDirectory(dirname);
         File dir = new File(dirname);
         if (!dir.exists() || !dir.isDirectory() || !dir.canRead()) {
             throw new IOException("bad directory: " + dirname);
@@ -80,10 +183,10 @@ public class SampleCollection {
         } else {
             this.format = probeFormat(dir);
         }
-        samples = new HashMap<Integer, Set>();
-        samplesReleaseTriggers = new HashMap<Integer, Set>();
-        filesUsed = addFiles(dir, filenameFilter, format);
-        System.out.println(dirname + ": files used: " + filesUsed.size());
+        samples = new NoteMap();
+        samplesReleaseTriggers = new NoteMap();
+        filesUsed = addFiles(scanner, filenameFilter, this.format);
+        logFilesUsed();
     }
 
     /**
@@ -98,10 +201,17 @@ public class SampleCollection {
      */
     public SampleCollection(Format format, List<String> sampleNames, int rootNote) {
         this.format = format;
-        samples = new HashMap<Integer, Set>();
+        samples = new NoteMap();
+        filesUsed = new LinkedList<>();
         int note = rootNote;
         for (String s : sampleNames) {
+            if (rootNote < 0) {
+                // No root note given: leave the note to pitch detection.
+                unpitched.add(new Sample(s, -1, 0 /* velocity */, 1));
+                continue;
+            }
             addSample(new Sample(s, note++, 0 /* velocity */, 1), false);
+            filesUsed.add(s);
         }
     }
 
@@ -109,6 +219,85 @@ public class SampleCollection {
         throw new RuntimeException("missing sample name format");
     }
 
+    /**
+     * Create a SampleCollection from filename matches already made against
+     * the given Format, e.g. by a FormatProbe, without listing the directory
+     * again.
+     *
+     * @param format
+     * @param dirname
+     * @param matches
+     */
+    public SampleCollection(Format format, String dirname, List<FileMatch> matches) {
+        this(format, dirname, matches, false);
+    }
+
+    /**
+     * Create a SampleCollection from filename matches already made against
+     * the given Format, optionally keeping the samples of every base name,
+     * for splitByBaseName().
+     *
+     * @param format
+     * @param dirname
+     * @param matches
+     * @param splitBaseNames
+     */
+    public SampleCollection(Format format, String dirname, List<FileMatch> matches, boolean splitBaseNames) {
+        this.sampleDirName = dirname;
+        this.format = format;
+        this.splitBaseNames = splitBaseNames;
+        stats.setDirectory(dirname);
+        samples = new NoteMap();
+        samplesReleaseTriggers = new NoteMap();
+        filesUsed = new LinkedList<>();
+        addMatches(matches);
+        logFilesUsed();
+    }
+
+    /**
+     * Print the count of files used, and of any ignored for having another
+     * base name.
+     */
+    protected void logFilesUsed() {
+        long ignored = stats.get(Stats.Counter.IGNORED);
+        Log.info(sampleDirName + ": files used: " + filesUsed.size()
+                + (ignored > 0 ? ", ignored with a base name other than " + sampleGroupBaseName + ": " + ignored : ""));
+    }
+
+    /**
+     * @return the timings and file counts of creating this collection
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * A filename and the result of matching it against a Format's
+     * filenameRegex().
+     */
+    public static class FileMatch {
+
+        protected final String filename;
+        protected final int[] groups; // start and end offsets in filename of each group, -1 if not matched
+
+        public FileMatch(String filename, int[] groups) {
+            this.filename = filename;
+            this.groups = groups;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * @param group
+         * @return the text matched by a group, or null if it did not match
+         */
+        public String group(int group) {
+            return groups[group * 2] < 0 ? null : filename.substring(groups[group * 2], groups[group * 2 + 1]);
+        }
+    }
+
     /**
      * Scan a directory of Files and add sample files to this collection.
      *
@@ -121,302 +310,1693 @@ public class SampleCollection {
      * @throws IOException
      */
     public List<String> addFiles(File dir, String filenameFilter, Format format) throws IOException {
-        List<String> filesUsed = new LinkedList<>();
-        List<String> filesNotUsed = new LinkedList<>();
-        Pattern pat_filename = Pattern.compile(format.filenameRegex());
-        for (File f : dir.listFiles()) {
-            String filename = f.getName();
-            if (filenameFilter != null && !filename.contains(filenameFilter)) {
-                filesNotUsed.add(f.getName());
-                continue; // Skip a file that does not contain the given filenameFilter.
-            }
-            Matcher m = pat_filename.matcher(filename);
-            if (m.find()) {
-                // e.g. Name_Hard-C4-1.wav
-                // "(.*)_(.*)\\-()\\-(\\d+)\\.wav";
-                // "baseName_velocity-NOTE-variation"
-                String thisBaseName = m.group(format.getBaseNameGroup());
-                if (sampleGroupBaseName == null) {
-                    // Use first recognised Sample to set a sampleBaseName:
-                    sampleGroupBaseName = thisBaseName;
-                    outputFilename = sampleGroupBaseName + ".sfz";
-                } else {
-                    if (!sampleGroupBaseName.equals(thisBaseName)) {
-                        if (!thisBaseName.startsWith(sampleGroupBaseName)) {
-                            System.err.println("Note: sample base name: " + sampleGroupBaseName
-                                    + ": ignoring sample file with different base name: " + thisBaseName + ": " + f);
-                            continue;
-                        }
-                    }
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 1)) {
+            return addFiles(scanner, filenameFilter, format);
+        }
+    }
+
+    /**
+     * Scan the files listed by a DirectoryScanner and add sample files to
+     * this collection.
+     *
+     * Filenames are matched in parallel, but added in the scanner's sorted
+     * order, so the result does not depend on thread timing.
+     *
+     * @param scanner
+     * @param filenameFilter
+     * @param format
+     * @return List of the filenames used
+     * @throws IOException
+     */
+    public List<String> addFiles(DirectoryScanner scanner, final String filenameFilter, Format format) throws IOException {
+        filesUsed = new LinkedList<>();
+        final FilenameParser parser = format.parser();
+        final ThreadLocal<int[]> groups = ThreadLocal.withInitial(parser::newGroups);
+        List<String> filenames;
+        Stats.Timer listTimer = stats.time(Stats.Phase.LIST);
+        try {
+            filenames = scanner.list();
+        } finally {
+            listTimer.stop();
+        }
+        stats.count(Stats.Counter.LISTED, filenames.size());
+        List<Sample> decoded;
+        Stats.Timer matchTimer = stats.time(Stats.Phase.MATCH);
+        try {
+            decoded = scanner.map(filenames, filename -> {
+                if (filenameFilter != null && !filename.contains(filenameFilter)) {
+                    stats.count(Stats.Counter.FILTERED);
+                    return null; // Skip a file that does not contain the given filenameFilter.
                 }
-                String noteName = m.group(format.getNoteNameGroup());
-                boolean isReleaseTrigger = false;
-                if (format.getReleaseTriggerGroup() >= 0) {
-                    String rt = m.group(format.getReleaseTriggerGroup());
-                    if (rt != null) {
-                        isReleaseTrigger = true;
-                    }
+                ScanCache.Entry e = scanCache != null ? scanCache.lookup(filename) : null;
+                if (e != null && e.isHit()) {
+                    stats.count(Stats.Counter.CACHED);
+                    stats.count(e.getSample() != null ? Stats.Counter.MATCHED : Stats.Counter.UNMATCHED);
+                    return e.getSample();
                 }
-                int velocity = -1;
-                if (format.getVelocityGroup() > 0) {
-                    String velocityName = m.group(format.getVelocityGroup());
-                    // Check as release trigger may not have have velocity:
-                    if (velocityName != null && !velocityName.isEmpty()) {
-                        velocityName = velocityName.trim();
-                        velocity = parseVelocityName(velocityName);
-                    }
+                int[] g = groups.get();
+                Sample s = null;
+                if (parser.match(filename, DirectoryScanner.leafStart(filename), filename.length(), g)) {
+                    stats.count(Stats.Counter.MATCHED);
+                    long start = System.nanoTime();
+                    s = decode(filename, g);
+                    stats.add(Stats.Phase.DECODE, System.nanoTime() - start);
+                } else {
+                    stats.count(Stats.Counter.UNMATCHED);
                 }
-                // Decode note:
-                int noteNumber = -1;
-                try {
-                    noteName = noteName.trim();
-                    noteNumber = MIDI.noteNameToNumber(noteName);
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Skipping: '" + f + " with noteName='" + noteName + "', due to: " + nfe);
-                    continue;
+                if (e != null) {
+                    e.setSample(s);
                 }
-                // Decode optional variation number:
-                int variationNumber = -1;
-                if (format.getVariationNumberGroup() > 0) {
-                    String variation = m.group(format.getVariationNumberGroup());
-                    if (variation != null) {
-                        try {
-                            variationNumber = Integer.parseInt(variation);
-                        } catch (NumberFormatException nfe) {
-                            System.err.println("Skipping: '" + f + " with noteName='" + noteName + "' and variation#='" + variation
-                                    + "', due to: " + nfe);
-                            continue;
-                        }
-                    }
+                return s;
+            });
+        } finally {
+            matchTimer.stop();
+        }
+        Stats.Timer buildTimer = stats.time(Stats.Phase.BUILD);
+        try {
+            for (Sample s : decoded) {
+                if (s != null) {
+                    addDecoded(s);
                 }
-                addSample(new Sample(f.getName(), noteNumber, velocity, variationNumber), isReleaseTrigger);
-                filesUsed.add(f.getName());
-            } else {
-                filesNotUsed.add(f.getName());
             }
+        } finally {
+            buildTimer.stop();
         }
         return filesUsed;
     }
 
     /**
-     * Add a Sample to this SampleCollection.
+     * Match a relative filename using a Format's parser.
      *
-     * @param s
-     * @param isReleaseTrigger
+     * The filter is checked against the whole relative filename, the parser
+     * against the name without directories.
+     *
+     * @param parser
+     * @param filename
+     * @param filenameFilter
+     * @return FileMatch or null if filtered out or not matched
      */
-    protected synchronized void addSample(Sample s, boolean isReleaseTrigger) {
-        if (!isReleaseTrigger) {
-            addSample(samples, s);
-        } else {
-            addSample(samplesReleaseTriggers, s);
+    public static FileMatch match(FilenameParser parser, String filename, String filenameFilter) {
+        if (filenameFilter != null && !filename.contains(filenameFilter)) {
+            return null; // Skip a file that does not contain the given filenameFilter.
         }
+        int[] groups = parser.newGroups();
+        if (parser.match(filename, DirectoryScanner.leafStart(filename), filename.length(), groups)) {
+            return new FileMatch(filename, groups);
+        }
+        return null;
     }
 
     /**
-     * Add a Sample to this SampleCollection.
+     * Add the sample files from a List of filename matches.
+     *
+     * @param matches
+     * @return List of the filenames used
+     */
+    public List<String> addMatches(List<FileMatch> matches) {
+        long start = System.nanoTime();
+        long decoding = 0;
+        for (FileMatch fm : matches) {
+            long decodeStart = System.nanoTime();
+            Sample s = decode(fm);
+            decoding += System.nanoTime() - decodeStart;
+            if (s != null) {
+                addDecoded(s);
+            }
+        }
+        stats.count(Stats.Counter.MATCHED, matches.size());
+        stats.add(Stats.Phase.DECODE, decoding, matches.size());
+        stats.add(Stats.Phase.BUILD, System.nanoTime() - start - decoding);
+        return filesUsed;
+    }
+
+    /**
+     * Decode the base name, note, velocity, variation and release trigger
+     * from a filename match, and add the Sample to this collection.
      *
-     * Place the Sample in a Set of Samples, in a Map of note numbers to those
-     * Sets of Samples.
+     * @param fm
+     * @return true if the file was used
+     */
+    protected boolean addMatch(FileMatch fm) {
+        Sample s = decode(fm);
+        return s != null && addDecoded(s);
+    }
+
+    /**
+     * Check that the note, and any variation number, of a filename match can
+     * be decoded, without decoding the Sample or logging, e.g. to score a
+     * Format.
      *
-     * @param samples
-     * @param s
+     * @param format
+     * @param fm
+     * @return true if decode() would give a Sample
      */
-    protected synchronized void addSample(Map<Integer, Set> samples, Sample s) {
-        Set<Sample> set = samples.get(s.noteNumber);
-        if (set == null) {
-            set = new TreeSet<>();
-            samples.put(s.noteNumber, set);
+    protected static boolean decodes(Format format, FileMatch fm) {
+        int group = format.getNoteNameGroup();
+        if (group < 0) {
+            return true;
+        }
+        String f = fm.filename;
+        int[] groups = fm.groups;
+        int noteStart = trimStart(f, groups[group * 2], groups[group * 2 + 1]);
+        int noteEnd = trimEnd(f, noteStart, groups[group * 2 + 1]);
+        try {
+            MIDI.noteNameToNumber(f, noteStart, noteEnd, format.octaves());
+            group = format.getVariationNumberGroup();
+            if (group > 0 && groups[group * 2] >= 0) {
+                FilenameParser.parseInt(f, groups[group * 2], groups[group * 2 + 1]);
+            }
+        } catch (NumberFormatException nfe) {
+            return false;
         }
-        set.add(s);
+        return true;
     }
 
     /**
-     * Return an int for the velocity. Not a full-MIDI range velocity, just an
-     * int so we can sort samples.
+     * Decode the base name, note, velocity, variation and release trigger
+     * from a filename match.
      *
-     * @param velocityName
-     * @return int velocity value
+     * @param fm
+     * @return Sample, or null if the note or variation cannot be decoded
      */
-    public int parseVelocityName(String velocityName) {
-        int velocity = format.velocities().indexOf(velocityName);
-        if (velocity == -1) {
-            velocity = 1;
+    protected Sample decode(FileMatch fm) {
+        return decode(fm.filename, fm.groups);
+    }
+
+    /**
+     * Decode a Sample from the group offsets found in a filename. Only the
+     * base name is copied out of the filename, except to report an error.
+     *
+     * @param f
+     * @param groups from FilenameParser.match()
+     * @return Sample, or null if the note or variation cannot be decoded
+     */
+    protected Sample decode(String f, int[] groups) {
+        // e.g. Name_Hard-C4-1.wav
+        // "(.*)_(.*)\\-()\\-(\\d+)\\.wav";
+        // "baseName_velocity-NOTE-variation"
+        int group = format.getBaseNameGroup();
+        String thisBaseName = group < 0 ? "" : groups[group * 2] < 0 ? null : f.substring(groups[group * 2], groups[group * 2 + 1]);
+        if (format.getNoteNameGroup() < 0) {
+            // No note in the filename: found later by pitch detection.
+            return new Sample(f, thisBaseName, -1, -1, -1, false);
+        }
+        boolean isReleaseTrigger = false;
+        group = format.getReleaseTriggerGroup();
+        if (group >= 0 && groups[group * 2] >= 0) {
+            isReleaseTrigger = true;
         }
-        return velocity;
+        int velocity = -1;
+        group = format.getVelocityGroup();
+        // Check as release trigger may not have have velocity:
+        if (group > 0 && groups[group * 2] >= 0 && groups[group * 2] < groups[group * 2 + 1]) {
+            velocity = parseVelocityName(f, trimStart(f, groups[group * 2], groups[group * 2 + 1]),
+                    trimEnd(f, groups[group * 2], groups[group * 2 + 1]));
+        }
+        // Decode note:
+        group = format.getNoteNameGroup();
+        int noteStart = trimStart(f, groups[group * 2], groups[group * 2 + 1]);
+        int noteEnd = trimEnd(f, noteStart, groups[group * 2 + 1]);
+        int noteNumber = -1;
+        try {
+            noteNumber = MIDI.noteNameToNumber(f, noteStart, noteEnd, format.octaves());
+        } catch (NumberFormatException nfe) {
+            Log.warn("Skipping: '" + f + " with noteName='" + f.substring(noteStart, noteEnd) + "', due to: " + nfe);
+            stats.count(Stats.Counter.SKIPPED);
+            return null;
+        }
+        // Decode optional variation number:
+        int variationNumber = -1;
+        group = format.getVariationNumberGroup();
+        if (group > 0 && groups[group * 2] >= 0) {
+            try {
+                variationNumber = FilenameParser.parseInt(f, groups[group * 2], groups[group * 2 + 1]);
+            } catch (NumberFormatException nfe) {
+                Log.warn("Skipping: '" + f + " with noteName='" + f.substring(noteStart, noteEnd) + "' and variation#='"
+                        + f.substring(groups[group * 2], groups[group * 2 + 1]) + "', due to: " + nfe);
+                stats.count(Stats.Counter.SKIPPED);
+                return null;
+            }
+        }
+        return new Sample(f, thisBaseName, noteNumber, velocity, variationNumber, isReleaseTrigger);
     }
 
     /**
-     * Export all the samples in SFZ format: i.e. print as plaintext.
+     * @return the start of part of a String without leading spaces, as
+     * String.trim()
      */
-    public void printRegions(Map<Integer, Set> samples, int rangeLow, int rangeHigh, boolean releaseTriggers,
-            int level, PrintStream out) {
+    protected static int trimStart(String s, int start, int end) {
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
 
-        // Get the note names, sorted:
-        Set<Integer> notes = new TreeSet<>();
-        notes.addAll(samples.keySet());
-        // Iterate the notes, retrieve a Set of samples for each note.
-        int noteCount = 0;
-        int prevKey = -1;
-        out.println("// " + notes);
-        for (Integer note : notes) {
-            out.println("\n// Note: " + note);
-            Set<Sample> set = samples.get(note);
-            // Some global info for this note, need to use the first Sample in the set for note value etc...
-            Sample s1 = set.iterator().next();
-            out.println("<global>");
-            out.println("pitch_keycenter=" + s1.noteNumber);
-            // Expand key range downwards, to the note after the previous note seen,
-            // or by KEY_RANGE on first iteration:
-            int lokey = s1.noteNumber;
-            if (noteCount == 0) {
-                lokey = lokey - rangeLow;
-            } else {
-                lokey = prevKey + 1; // ...which can equal s1.noteNumber
-            }
-            out.println("lokey=" + lokey);
-            out.println("hikey=" + s1.noteNumber);
-            // The sample Set sorts samples for that note, from soft to hard.
-            // Get the velocity range for these samples:
-            int velocities = countVelocities(set);  // Redundant: samplesByVelocity.size() should equal velocities.
-            List<String> velocityStrings = getVelocityRanges(velocities);
-            System.out.println("velocities: " + velocities + " : " + velocityStrings);
-            List<Set<Sample>> samplesByVelocity = splitByVelocity(set);
-            for (Set<Sample> setPerVelocity : samplesByVelocity) {
-                // How many samples for that note (and velocity): round-robin sequence.
-                int seq = 1;
-                for (Sample s : setPerVelocity) {
-                    if (seq == 1) {
-                        String velocityInfo = "";
-                        if (s.velocity >= 0) {
-                            velocityInfo = velocityStrings.get(Math.min(s.velocity, velocityStrings.size() - 1));
-                        }
-                        out.println("<group> " + velocityInfo); // e.g. lovel=55 hivel=90
-                        out.println("seq_length=" + setPerVelocity.size());
-                    }
-                    out.println("<region>");
-                    out.println("sample=" + s.filename);
-                    out.println("seq_position=" + seq);
-                    if (releaseTriggers) {
-                        out.println("trigger=release");
-                    }
-                    if (level != 0) {
-                        // Optional volume scale.  Used to trim level of release triggers.
-                        out.println("volume=" + level);
+    /**
+     * @return the end of part of a String without trailing spaces, as
+     * String.trim()
+     */
+    protected static int trimEnd(String s, int start, int end) {
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Create an empty SampleCollection for one base name of a collection
+     * being split, with the same directory, Format and options.
+     *
+     * @param whole
+     * @param baseName
+     */
+    protected SampleCollection(SampleCollection whole, String baseName) {
+        this.sampleDirName = whole.sampleDirName;
+        this.format = whole.format;
+        this.normalizeVolume = whole.normalizeVolume;
+        this.velocityCurve = whole.velocityCurve;
+        this.optimize = whole.optimize;
+        this.emitThreads = whole.emitThreads;
+        this.targets = whole.targets;
+        this.flacDirName = whole.flacDirName;
+        this.stats = whole.stats;
+        samples = new NoteMap();
+        samplesReleaseTriggers = new NoteMap();
+        filesUsed = new LinkedList<>();
+        sampleGroupBaseName = baseName;
+        outputFilename = outputFilename(baseName);
+    }
+
+    /**
+     * Add a decoded Sample to this collection, if its base name is that of
+     * the first Sample added, or for any base name if splitting.
+     *
+     * @param s
+     * @return true if the file was used
+     */
+    protected boolean addDecoded(Sample s) {
+        String thisBaseName = s.baseName;
+        if (sampleGroupBaseName == null) {
+            // Use first recognised Sample to set a sampleBaseName:
+            sampleGroupBaseName = thisBaseName;
+            outputFilename = outputFilename(thisBaseName);
+        } else if (!splitBaseNames) {
+            if (!sampleGroupBaseName.equals(thisBaseName)) {
+                if (!thisBaseName.startsWith(sampleGroupBaseName)) {
+                    stats.count(Stats.Counter.IGNORED);
+                    if (Log.isEnabled(Log.Level.DEBUG)) {
+                        Log.debug("Note: sample base name: " + sampleGroupBaseName
+                                + ": ignoring sample file with different base name: " + thisBaseName + ": " + s.filename);
                     }
-                    out.println();
-                    seq++;
+                    return false;
                 }
-                out.println();
-                prevKey = s1.noteNumber;
-                noteCount++;
             }
-            out.println("// noteCount = " + noteCount);
         }
+        if (s.noteNumber < 0) {
+            unpitched.add(s);
+            return false;
+        }
+        addSample(s, s.releaseTrigger);
+        filesUsed.add(s.filename);
+        return true;
     }
 
     /**
-     * Split the 0-127 range of velocities, to the given number of equal parts.
+     * @param baseName
+     * @return the .sfz filename for samples with the given base name
+     */
+    protected String outputFilename(String baseName) {
+        if (baseName.isEmpty() && sampleDirName != null) {
+            // No base name in the filenames, so use the directory name:
+            return new File(sampleDirName).getAbsoluteFile().toPath().normalize().getFileName() + ".sfz";
+        }
+        return baseName + ".sfz";
+    }
+
+    /**
+     * Split this collection into one SampleCollection per sample base name,
+     * each with the .sfz filename for its base name. The Samples, and any
+     * WavInfo, loudness, trim and loop found for them, are shared, so
+     * analysis done on this collection is not repeated.
      *
-     * @param number
-     * @return
+     * @return the collections, sorted by base name
      */
-    protected List<String> getVelocityRanges(int number) {
-        List<String> v = new ArrayList<String>();
-        int each = 127 / number;
-        for (int i = 0; i < number; i++) {
-            // e.g. lovel=55 hivel=90
-            int lo = i * each;
-            int hi = ((i + 1) * each) - 1;
-            if (i == number - 1 && hi < 127) {
-                hi = 127;
+    public synchronized List<SampleCollection> splitByBaseName() {
+        Map<String, SampleCollection> parts = new TreeMap<>();
+        for (Sample s : allSamples()) {
+            SampleCollection part = parts.get(s.baseName);
+            if (part == null) {
+                part = new SampleCollection(this, s.baseName);
+                parts.put(s.baseName, part);
             }
-            v.add("lovel=" + lo + " hivel=" + hi);
+            part.addSample(s, s.releaseTrigger);
+            part.filesUsed.add(s.filename);
         }
-        return v;
+        return new ArrayList<>(parts.values());
     }
 
     /**
-     * Split a Set of Samples for a note, into Sets into a List of Sets,
-     * separated by different Velocities.
+     * Detect the pitch of each Sample whose pitch has not been detected, in
+     * parallel using the scanner's threads.
      *
-     * @param set
-     * @return
+     * Samples without a note from their filename are given the detected note,
+     * if detected with enough confidence. Samples with a note are reported if
+     * the detected note disagrees.
+     *
+     * @param scanner
+     * @param detector
+     * @return count of Samples given a note
+     * @throws IOException
      */
-    public List<Set<Sample>> splitByVelocity(Set<Sample> set) {
-        List<Set<Sample>> results = new ArrayList<>();
-        int lastVel = -1;
-        int v = 0;
-        Set<Sample> current = new TreeSet<>();
-        results.add(current);
-        for (Sample s : set) {
-            if (lastVel < 0) {
-                // First Sample:
-                lastVel = s.velocity;
-            } else {
-                if (s.velocity != lastVel) {
+    public int detectPitch(DirectoryScanner scanner, final PitchDetector detector) throws IOException {
+        final List<Sample> all = new ArrayList<>(unpitched);
+        for (Sample s : allSamples()) {
+            if (s.pitch == null) {
+                all.add(s);
+            }
+        }
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        List<PitchDetector.Result> results = scanner.map(all, s -> {
+            try {
+                return s.wavInfo != null ? detector.detect(new File(dir, s.filename), s.wavInfo) : null;
+            } catch (IOException ioe) {
+                Log.warn("Cannot detect pitch: " + s.filename + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        int detected = 0;
+        for (int i = 0; i < all.size(); i++) {
+            Sample s = all.get(i);
+            PitchDetector.Result r = results.get(i);
+            s.pitch = r;
+            boolean confident = r != null && r.getConfidence() >= PitchDetector.MIN_CONFIDENCE;
+            if (s.noteNumber < 0) {
+                if (confident) {
+                    s.noteNumber = r.getNoteNumber();
+                    addSample(s, s.releaseTrigger);
+                    filesUsed.add(s.filename);
+                    detected++;
+                    Log.debug("Detected pitch: " + s.filename + ": " + r);
+                } else {
+                    Log.warn("No pitch detected, skipping: " + s.filename + (r != null ? ": " + r : ""));
+                }
+            } else if (confident && r.getNoteNumber() != s.noteNumber) {
+                Log.warn("Pitch mismatch: " + s.filename + ": named note " + MIDI.noteNumberToName(s.noteNumber, format.octaves())
+                        + ", detected " + r);
+            }
+        }
+        unpitched.clear();
+        return detected;
+    }
+
+    /**
+     * Read the WAV header of each Sample which does not have its WavInfo
+     * yet, in parallel using the scanner's threads.
+     *
+     * A file which cannot be read as a WAV file is reported, and keeps no
+     * WavInfo.
+     *
+     * @param scanner
+     * @return count of headers read
+     * @throws IOException
+     */
+    public int readWavInfo(DirectoryScanner scanner) throws IOException {
+        final List<Sample> unread = new ArrayList<>();
+        List<Sample> all = new ArrayList<>(unpitched);
+        all.addAll(allSamples());
+        for (Sample s : all) {
+            if (s.wavInfo == null) {
+                unread.add(s);
+            }
+        }
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        List<WavInfo> infos = scanner.map(unread, s -> {
+            try {
+                return WavInfo.read(new File(dir, s.filename));
+            } catch (IOException ioe) {
+                Log.warn("Cannot read WAV header: " + s.filename + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        int read = 0;
+        for (int i = 0; i < unread.size(); i++) {
+            unread.get(i).wavInfo = infos.get(i);
+            if (infos.get(i) != null) {
+                read++;
+            }
+        }
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "WAV headers read: " + read + " (" + (all.size() - unread.size()) + " already known)");
+        return read;
+    }
+
+    /**
+     * Measure the peak, RMS and loudness of each Sample which has not been
+     * measured, in parallel using the scanner's threads. The WAV headers must
+     * have been read.
+     *
+     * Velocity layers of a note whose Samples have all been measured are then
+     * ordered, and given velocity ranges, by loudness.
+     *
+     * @param scanner
+     * @param meter
+     * @return count of Samples measured
+     * @throws IOException
+     */
+    public int measureLoudness(DirectoryScanner scanner, final LoudnessMeter meter) throws IOException {
+        final List<Sample> unmeasured = new ArrayList<>();
+        List<Sample> all = allSamples();
+        for (Sample s : all) {
+            if (s.loudness == null && s.wavInfo != null) {
+                unmeasured.add(s);
+            }
+        }
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        List<LoudnessMeter.Result> results = scanner.map(unmeasured, s -> {
+            try {
+                return meter.measure(new File(dir, s.filename), s.wavInfo);
+            } catch (IOException ioe) {
+                Log.warn("Cannot measure loudness: " + s.filename + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        int measured = 0;
+        for (int i = 0; i < unmeasured.size(); i++) {
+            unmeasured.get(i).loudness = results.get(i);
+            if (results.get(i) != null) {
+                measured++;
+            }
+        }
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "Loudness measured: " + measured
+                + " (" + (all.size() - unmeasured.size()) + " already known)");
+        return measured;
+    }
 
-                    current = new TreeSet<>();
-                    results.add(current);
-                    lastVel = s.velocity;
+    /**
+     * Find the start and end of the audio of each Sample, in parallel using
+     * the scanner's threads. The WAV headers must have been read. Samples
+     * already trimmed at the same threshold, e.g. from the scan cache, are not
+     * read again.
+     *
+     * @param scanner
+     * @param detector
+     * @return count of Samples read
+     * @throws IOException
+     */
+    public int detectSilence(DirectoryScanner scanner, final SilenceDetector detector) throws IOException {
+        final List<Sample> unread = new ArrayList<>();
+        List<Sample> all = allSamples();
+        for (Sample s : all) {
+            if (s.wavInfo != null && (s.trim == null || s.trim.getThreshold() != detector.getThreshold())) {
+                unread.add(s);
+            }
+        }
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        List<SilenceDetector.Result> results = scanner.map(unread, s -> {
+            try {
+                SilenceDetector.Result r = detector.detect(new File(dir, s.filename), s.wavInfo);
+                if (r == null) {
+                    Log.warn("Silent, not trimmed: " + s.filename);
                 }
+                return r;
+            } catch (IOException ioe) {
+                Log.warn("Cannot detect silence: " + s.filename + ": " + ioe.getMessage());
+                return null;
             }
-            current.add(s);
+        });
+        long trimmed = 0;
+        for (int i = 0; i < unread.size(); i++) {
+            unread.get(i).trim = results.get(i);
         }
-        return results;
+        for (Sample s : all) {
+            if (s.trim != null) {
+                trimmed += s.wavInfo.getFrames() - (s.trim.getEnd() - s.trim.getStart() + 1);
+            }
+        }
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "Silence detected: " + unread.size()
+                + " (" + (all.size() - unread.size()) + " already known), " + trimmed + " frames trimmed");
+        return unread.size();
     }
 
     /**
-     * Count the distinct velocity levels in a Set of Samples.
+     * Find a loop in the sustain of each Sample without a smpl chunk loop, in
+     * parallel using the scanner's threads. Release triggers are not looped.
+     * The WAV headers must have been read, and any silence detected first.
      *
-     * @param set
-     * @return int number of distinct velocity levels
+     * @param scanner
+     * @param finder
+     * @return count of loops found
+     * @throws IOException
      */
-    protected int countVelocities(Set<Sample> set) {
-        int v = 0;
-        int lastVel = -1;
-        for (Sample s : set) {
-            if (lastVel < 0) {
-                v = 1;
-                lastVel = s.velocity;
-            } else {
-                if (s.velocity != lastVel) {
-                    v++;
-                    lastVel = s.velocity;
+    public int findLoops(DirectoryScanner scanner, final LoopFinder finder) throws IOException {
+        final List<Sample> unlooped = new ArrayList<>();
+        List<Sample> all = allSamples();
+        for (Sample s : all) {
+            if (s.wavInfo != null && !s.wavInfo.hasLoop() && !s.releaseTrigger && s.loop == null) {
+                unlooped.add(s);
+            }
+        }
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        List<LoopFinder.Result> results = scanner.map(unlooped, s -> {
+            long first = s.trim != null ? s.trim.getStart() : 0;
+            long last = s.trim != null ? s.trim.getEnd() : s.wavInfo.getFrames() - 1;
+            try {
+                LoopFinder.Result r = finder.find(new File(dir, s.filename), s.wavInfo, first, last);
+                if (r == null) {
+                    Log.warn("No loop found: " + s.filename);
                 }
+                return r;
+            } catch (IOException ioe) {
+                Log.warn("Cannot find loop: " + s.filename + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        int found = 0;
+        for (int i = 0; i < unlooped.size(); i++) {
+            unlooped.get(i).loop = results.get(i);
+            if (results.get(i) != null) {
+                found++;
             }
         }
-        return v;
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "Loops found: " + found + " of "
+                + unlooped.size() + " searched");
+        return found;
     }
 
     /**
-     * Write this collection as a .sfz format file.
+     * Encode each Sample as FLAC into a directory, in parallel using the
+     * scanner's threads, keeping any sub-directory of the sample. FLAC files
+     * already up to date are not encoded again (see FlacEncoder.transcode).
+     * The .sfz file written then uses the FLAC directory as its default_path,
+     * with the WAV file for any Sample which could not be encoded. The WAV
+     * headers must have been read. Duplicates use the FLAC file of the Sample
+     * they duplicate.
      *
+     * FLAC keeps no smpl chunk, so the root note and loop of a sample are
+     * only kept as opcodes from its WavInfo.
+     *
+     * @param scanner
+     * @param flacDir
+     * @return count of Samples encoded
      * @throws IOException
      */
-    public void writeSFZ(String filename, int rangeLow, int rangeHigh, int releaseLevel) throws IOException {
-        if (filename == null) {
-            filename = outputFilename;
+    public int transcode(DirectoryScanner scanner, File flacDir) throws IOException {
+        if (!flacDir.isDirectory() && !flacDir.mkdirs()) {
+            throw new IOException("cannot create FLAC directory: " + flacDir);
         }
-        if (filename == null) {
-            throw new IOException("no output file");
+        String dirName = flacDir.getPath();
+        flacDirName = dirName.endsWith(File.separator) ? dirName : dirName + File.separator;
+        final List<Sample> all = uniqueSamples();
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        // An encoder, with its buffers, per scanning thread:
+        final ThreadLocal<FlacEncoder> encoders = ThreadLocal.withInitial(FlacEncoder::new);
+        long start = System.nanoTime();
+        List<FlacEncoder.Result> results = scanner.map(all, s -> {
+            if (s.wavInfo == null || !FlacEncoder.canEncode(s.wavInfo)) {
+                Log.warn("Not encoded as FLAC, using the WAV file: " + s.filename
+                        + (s.wavInfo != null ? " (" + s.wavInfo + ")" : ""));
+                return null;
+            }
+            String name = flacFilename(s.filename);
+            try {
+                return encoders.get().transcode(new File(dir, s.filename), s.wavInfo, new File(flacDir, name));
+            } catch (IOException ioe) {
+                Log.warn("Cannot encode as FLAC, using the WAV file: " + s.filename + ": " + ioe.getMessage());
+                return null;
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int encoded = 0;
+        int unchanged = 0;
+        long pcmBytes = 0;
+        long flacBytes = 0;
+        long encodedBytes = 0;
+        for (int i = 0; i < all.size(); i++) {
+            FlacEncoder.Result r = results.get(i);
+            Sample s = all.get(i);
+            s.flacFilename = r != null ? flacFilename(s.filename) : null;
+            if (r == null) {
+                continue;
+            }
+            if (r.isEncoded()) {
+                encoded++;
+                encodedBytes += r.getPcmBytes();
+            } else {
+                unchanged++;
+            }
+            pcmBytes += r.getPcmBytes();
+            flacBytes += r.getFlacBytes();
         }
-        if (samples == null || samples.isEmpty()) {
-            throw new IOException("no samples");
+        stats.count(Stats.Counter.TRANSCODED, encoded);
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "FLAC: " + encoded + " encoded ("
+                + unchanged + " up to date, " + (all.size() - encoded - unchanged) + " kept as WAV) into " + flacDirName
+                + String.format(Locale.ROOT, ", %.1f MB of audio in %.1f MB (%.1f%%), %.1f MB/s", pcmBytes / 1e6, flacBytes / 1e6,
+                        pcmBytes > 0 ? 100.0 * flacBytes / pcmBytes : 0.0, seconds > 0 ? encodedBytes / 1e6 / seconds : 0.0));
+        return encoded;
+    }
+
+    /**
+     * @param filename a sample's filename
+     * @return the name of its FLAC file, relative to the FLAC directory
+     */
+    protected static String flacFilename(String filename) {
+        return convertedFilename(filename, ".flac");
+    }
+
+    /**
+     * @param filename a sample's filename
+     * @param extension e.g. ".flac"
+     * @return the name of a file converted from it, relative to the directory
+     * of converted files
+     */
+    protected static String convertedFilename(String filename, String extension) {
+        if (new File(filename).isAbsolute()) {
+            filename = new File(filename).getName();
         }
-        File outputFile = new File(filename);
-        System.err.println("CreateSFZ: " + outputFile);
-        PrintStream out = new PrintStream(outputFile);
-        out.println(HEADER);
-        out.println("// Sample filename format: " + format.toString());
-        out.println("//");
-        out.println("<control>");
-        if (sampleDirName != null) {
-            out.println("default_path=" + sampleDirName);
-        }
-        printRegions(samples, rangeLow, rangeHigh, false, 0, out);
+        if (filename.toLowerCase(Locale.ROOT).endsWith(".wav")) {
+            filename = filename.substring(0, filename.length() - 4);
+        }
+        return filename + extension;
+    }
+
+    /**
+     * @param s
+     * @return the filename for sample=, relative to default_path
+     */
+    protected String regionFilename(Sample s) {
+        if (s.duplicateOf != null) {
+            if (s.duplicateIn == null) {
+                return regionFilename(s.duplicateOf);
+            }
+            // Another collection's file, relative to this default_path:
+            return relativeFilename(new File(s.duplicateIn.defaultPath(), s.duplicateIn.regionFilename(s.duplicateOf)), defaultPath());
+        } else if (flacDirName == null) {
+            return s.filename;
+        } else if (s.flacFilename != null) {
+            return s.flacFilename;
+        }
+        // Not encoded: the WAV file, from the FLAC directory.
+        return relativeFilename(s, flacDirName);
+    }
+
+    /**
+     * @param s
+     * @param dirName
+     * @return the filename of a Sample's file relative to another directory,
+     * or absolute if it has no relative path
+     */
+    protected String relativeFilename(Sample s, String dirName) {
+        return relativeFilename(new File(sampleDirName != null ? new File(sampleDirName) : null, s.filename), dirName);
+    }
+
+    /**
+     * @param file
+     * @param dirName or null
+     * @return the filename of a file relative to a directory, or absolute if
+     * it has no relative path
+     */
+    protected static String relativeFilename(File file, String dirName) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (dirName == null) {
+            return path.toString();
+        }
+        try {
+            return new File(dirName).toPath().toAbsolutePath().normalize().relativize(path).toString();
+        } catch (IllegalArgumentException iae) {
+            return path.toString();
+        }
+    }
+
+    /**
+     * @return the default_path of the .sfz file, which sample= filenames are
+     * relative to, or null
+     */
+    protected String defaultPath() {
+        return flacDirName != null ? flacDirName : sampleDirName;
+    }
+
+    /**
+     * Find Samples whose files have the same content as another's (see
+     * Deduplicator), so that all their regions use one file. Run before
+     * transcode() and convertLite(), which then skip the duplicates.
+     *
+     * @param scanner
+     * @return count of duplicates found
+     * @throws IOException
+     */
+    public int dedupe(DirectoryScanner scanner) throws IOException {
+        Deduplicator.Result r = Deduplicator.dedupe(scanner, Collections.singletonList(this));
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + r.report());
+        return r.getDuplicates();
+    }
+
+    /**
+     * After deduplicating across collections, make the lite variant's copy of
+     * each duplicate use the variant's copy of the Sample it duplicates.
+     */
+    protected void dedupeLite() {
+        if (lite == null) {
+            return;
+        }
+        for (Sample s : allSamples()) {
+            if (s.duplicateOf != null && s.lite != null && s.lite.duplicateOf == null && s.duplicateOf.lite != null) {
+                s.lite.duplicateOf = s.duplicateOf.lite;
+                s.lite.duplicateIn = s.duplicateIn != null ? s.duplicateIn.lite : null;
+            }
+        }
+    }
+
+    /**
+     * Make a "lite" variant of this collection, with each Sample converted to
+     * at most the converter's sample rate and bit depth (see LiteConverter),
+     * into a directory, keeping any sub-directory of the sample. Files are
+     * converted in parallel using the scanner's threads, and those up to date
+     * are not converted again. The WAV headers must have been read.
+     *
+     * The variant has the same notes and velocity layers, with any trim and
+     * loop found moved to the new sample rate, and is written by writeSFZ to
+     * a second .sfz file named by liteFilename(). Samples which cannot be
+     * converted are used from their original files, and duplicates (see
+     * dedupe()) use the converted file of the Sample they duplicate.
+     *
+     * @param scanner
+     * @param liteDir
+     * @param converterFactory makes a converter for each scanning thread
+     * @return the variant, also kept as getLite()
+     * @throws IOException
+     */
+    public SampleCollection convertLite(DirectoryScanner scanner, File liteDir, Supplier<LiteConverter> converterFactory)
+            throws IOException {
+        if (!liteDir.isDirectory() && !liteDir.mkdirs()) {
+            throw new IOException("cannot create lite directory: " + liteDir);
+        }
+        String dirName = liteDir.getPath();
+        final String liteDirName = dirName.endsWith(File.separator) ? dirName : dirName + File.separator;
+        final List<Sample> all = uniqueSamples();
+        final File dir = sampleDirName != null ? new File(sampleDirName) : null;
+        final ThreadLocal<LiteConverter> converters = ThreadLocal.withInitial(converterFactory);
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        List<LiteConverter.Result> results = scanner.map(all, s -> {
+            if (s.wavInfo == null) {
+                Log.warn("Not converted, no WAV header: " + s.filename);
+                return null;
+            }
+            try {
+                return converters.get().convert(new File(dir, s.filename), s.wavInfo, new File(liteDir, convertedFilename(s.filename, ".wav")));
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("Cannot convert, using the original file: " + s.filename + ": " + e.getMessage());
+                return null;
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        SampleCollection variant = new SampleCollection(this, sampleGroupBaseName != null ? sampleGroupBaseName : "");
+        variant.sampleDirName = liteDirName;
+        variant.flacDirName = null;
+        variant.outputFilename = outputFilename != null ? liteFilename(outputFilename) : null;
+        LiteConverter converter = converterFactory.get();
+        int converted = 0;
+        int upToDate = 0;
+        long inBytes = 0;
+        long outBytes = 0;
+        long convertedBytes = 0;
+        long convertNanos = 0;
+        for (int i = 0; i < all.size(); i++) {
+            Sample s = all.get(i);
+            LiteConverter.Result r = results.get(i);
+            Sample v;
+            if (r == null) {
+                v = new Sample(relativeFilename(s, liteDirName), s.baseName, s.noteNumber, s.velocity, s.id, s.releaseTrigger);
+                v.wavInfo = s.wavInfo;
+                v.trim = s.trim;
+                v.loop = s.loop;
+            } else {
+                v = new Sample(convertedFilename(s.filename, ".wav"), s.baseName, s.noteNumber, s.velocity, s.id, s.releaseTrigger);
+                v.wavInfo = r.getInfo();
+                if (s.trim != null) {
+                    v.trim = new SilenceDetector.Result(s.trim.getThreshold(), converter.scale(s.wavInfo, s.trim.getStart()),
+                            converter.scale(s.wavInfo, s.trim.getEnd()));
+                }
+                if (s.loop != null) {
+                    v.loop = new LoopFinder.Result(converter.scale(s.wavInfo, s.loop.getStart()),
+                            converter.scale(s.wavInfo, s.loop.getEnd()), s.loop.getScore());
+                }
+                if (r.isConverted()) {
+                    converted++;
+                    convertedBytes += r.getInBytes();
+                    convertNanos += r.getNanos();
+                } else {
+                    upToDate++;
+                }
+                inBytes += r.getInBytes();
+                outBytes += r.getOutBytes();
+            }
+            v.pitch = s.pitch;
+            v.loudness = s.loudness;
+            s.lite = v;
+            variant.addSample(v, v.releaseTrigger);
+            variant.filesUsed.add(v.filename);
+        }
+        for (Sample s : allSamples()) {
+            if (s.duplicateOf != null && s.duplicateOf.lite != null) {
+                Sample o = s.duplicateOf.lite;
+                Sample v = new Sample(convertedFilename(s.filename, ".wav"), s.baseName, s.noteNumber, s.velocity, s.id, s.releaseTrigger);
+                v.wavInfo = o.wavInfo;
+                v.trim = o.trim;
+                v.loop = o.loop;
+                v.pitch = s.pitch;
+                v.loudness = s.loudness;
+                v.duplicateOf = o;
+                s.lite = v;
+                variant.addSample(v, v.releaseTrigger);
+                variant.filesUsed.add(v.filename);
+            }
+        }
+        stats.count(Stats.Counter.CONVERTED, converted);
+        Log.info((sampleDirName != null ? sampleDirName + ": " : "") + "Lite: " + converted + " converted (" + upToDate
+                + " up to date, " + (all.size() - converted - upToDate) + " kept) into " + liteDirName
+                + String.format(Locale.ROOT, ", %.1f MB of audio in %.1f MB, %.1f MB/s, %.1f MB/s per core on %d threads, peak heap %.1f MB",
+                        inBytes / 1e6, outBytes / 1e6, seconds > 0 ? convertedBytes / 1e6 / seconds : 0.0,
+                        convertNanos > 0 ? convertedBytes / 1e3 / (convertNanos / 1e6) : 0.0, scanner.getParallelism(), peak / 1e6));
+        lite = variant;
+        return variant;
+    }
+
+    /**
+     * @return the lite variant made by convertLite(), or null
+     */
+    public SampleCollection getLite() {
+        return lite;
+    }
+
+    /**
+     * @param filename an .sfz filename
+     * @return the filename for its lite variant, e.g. Piano-lite.sfz
+     */
+    public static String liteFilename(String filename) {
+        if (filename.toLowerCase(Locale.ROOT).endsWith(".sfz")) {
+            filename = filename.substring(0, filename.length() - 4);
+        }
+        return filename + "-lite.sfz";
+    }
+
+    /**
+     * Set the per-region options which use measured loudness.
+     *
+     * @param normalizeVolume add volume= to each region, to level the
+     * Samples within a velocity layer
+     * @param velocityCurve add amp_velcurve_N= to each velocity layer, so the
+     * level rises from the next softer layer's level to its own
+     */
+    public synchronized void setLoudnessOptions(boolean normalizeVolume, boolean velocityCurve) {
+        this.normalizeVolume = normalizeVolume;
+        this.velocityCurve = velocityCurve;
+    }
+
+    /**
+     * @return all the Samples in this collection, including release triggers
+     */
+    public List<Sample> allSamples() {
+        List<Sample> all = new ArrayList<>();
+        for (NoteMap map : Arrays.asList(samples, samplesReleaseTriggers)) {
+            if (map != null) {
+                for (NoteMap.Note note : map) {
+                    for (int i = 0; i < note.size(); i++) {
+                        all.add(note.get(i));
+                    }
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return the Samples in this collection which are not duplicates of
+     * another (see dedupe())
+     */
+    public List<Sample> uniqueSamples() {
+        List<Sample> unique = new ArrayList<>();
+        for (Sample s : allSamples()) {
+            if (s.duplicateOf == null) {
+                unique.add(s);
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Record all the Samples in this collection in a ScanCache.
+     *
+     * @param cache
+     */
+    public void recordIn(ScanCache cache) {
+        for (Sample s : allSamples()) {
+            cache.record(s);
+        }
+    }
+
+    /**
+     * Add a Sample to this SampleCollection.
+     *
+     * @param s
+     * @param isReleaseTrigger
+     */
+    protected synchronized void addSample(Sample s, boolean isReleaseTrigger) {
+        if (!isReleaseTrigger) {
+            addSample(samples, s);
+        } else {
+            addSample(samplesReleaseTriggers, s);
+        }
+    }
+
+    /**
+     * Add a Sample to this SampleCollection.
+     *
+     * Place the Sample in the NoteMap, with the other Samples for its note.
+     *
+     * @param samples
+     * @param s
+     */
+    protected synchronized void addSample(NoteMap samples, Sample s) {
+        samples.add(s);
+    }
+
+    /**
+     * Remove the Sample for a filename from this SampleCollection, including
+     * one still waiting for pitch detection.
+     *
+     * @param filename relative filename, as given to addMatch
+     * @return true if a Sample with a note was removed
+     */
+    public synchronized boolean removeSample(String filename) {
+        unpitched.removeIf(s -> s.filename.equals(filename));
+        boolean removed = removeSample(samples, filename);
+        if (samplesReleaseTriggers != null) {
+            removed |= removeSample(samplesReleaseTriggers, filename);
+        }
+        if (removed) {
+            filesUsed.remove(filename);
+        }
+        return removed;
+    }
+
+    protected boolean removeSample(NoteMap samples, String filename) {
+        return samples.remove(filename) >= 0;
+    }
+
+    /**
+     * Return an int for the velocity. Not a full-MIDI range velocity, just an
+     * int so we can sort samples.
+     *
+     * @param velocityName
+     * @return int velocity value
+     */
+    public int parseVelocityName(String velocityName) {
+        return parseVelocityName(velocityName, 0, velocityName.length());
+    }
+
+    /**
+     * Find a velocity name in part of a filename.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @return index in the Format's velocities, or 1 if not found
+     */
+    public int parseVelocityName(String s, int start, int end) {
+        List<String> velocities = format.velocities();
+        for (int i = 0; i < velocities.size(); i++) {
+            String v = velocities.get(i);
+            if (v.length() == end - start && s.regionMatches(start, v, 0, v.length())) {
+                return i;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Export all the samples in SFZ format: i.e. print as plaintext.
+     */
+    public void printRegions(NoteMap samples, int rangeLow, int rangeHigh, boolean releaseTriggers,
+            int level, PrintStream out) {
+        printRegions(sfzTarget(), samples, rangeLow, rangeHigh, releaseTriggers, level, out);
+    }
+
+    /**
+     * Export all the samples for an OutputTarget.
+     *
+     * Each note's text depends only on its key range and the count of layers
+     * before it, which are found first, so the notes are rendered
+     * independently: in parallel on up to emitThreads threads when there are
+     * at least PARALLEL_REGIONS regions, in a pool shut down once they are
+     * rendered. The text is then printed in note order, so is the same
+     * however it was rendered.
+     */
+    public void printRegions(OutputTarget target, NoteMap samples, int rangeLow, int rangeHigh,
+            boolean releaseTriggers, int level, PrintStream out) {
+
+        target.printNotesStart(samples, releaseTriggers, out);
+        // Iterate the notes in order, each with its samples.
+        NoteMap.Note[] notes = new NoteMap.Note[samples.noteCount()];
+        int[] lokeys = new int[notes.length];
+        int[] noteCounts = new int[notes.length];
+        int noteCount = 0;
+        int prevKey = -1;
+        int regions = 0;
+        int n = 0;
+        for (NoteMap.Note note : samples) {
+            // Expand key range downwards, to the note after the previous note seen,
+            // or by KEY_RANGE on first iteration:
+            int lokey = note.getNumber();
+            if (noteCount == 0) {
+                lokey = lokey - rangeLow;
+            } else {
+                lokey = prevKey + 1; // ...which can equal the note
+            }
+            notes[n] = note;
+            lokeys[n] = lokey;
+            noteCounts[n] = noteCount;
+            n++;
+            noteCount += note.layerCount(); // one per velocity layer printed
+            regions += note.size();
+            prevKey = note.getNumber();
+        }
+        byte[][] text = new byte[notes.length][];
+        IntConsumer render = i -> text[i] = renderNote(target, notes[i], lokeys[i], noteCounts[i], releaseTriggers, level);
+        if (emitThreads > 1 && notes.length > 1 && regions >= PARALLEL_REGIONS) {
+            ForkJoinPool pool = new ForkJoinPool(emitThreads);
+            try {
+                pool.submit(() -> IntStream.range(0, notes.length).parallel().forEach(render)).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted", ie);
+            } catch (ExecutionException ee) {
+                throw ee.getCause() instanceof RuntimeException ? (RuntimeException) ee.getCause()
+                        : new RuntimeException(ee.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < notes.length; i++) {
+                render.accept(i);
+            }
+        }
+        byte[] separator = target.noteSeparator().getBytes(target.getCharset());
+        for (int i = 0; i < text.length; i++) {
+            if (i > 0) {
+                out.write(separator, 0, separator.length);
+            }
+            out.write(text[i], 0, text[i].length);
+        }
+        target.printNotesEnd(samples, releaseTriggers, out);
+    }
+
+    /**
+     * Render the regions for one note, into this thread's buffer.
+     *
+     * @param target
+     * @param note
+     * @param lokey
+     * @param noteCount count of velocity layers printed before this note
+     * @param releaseTriggers
+     * @param level
+     * @return the text, encoded as the target's PrintStream would
+     */
+    protected byte[] renderNote(OutputTarget target, NoteMap.Note note, int lokey, int noteCount,
+            boolean releaseTriggers, int level) {
+        // Re-use the text for a note if neither its samples nor its position have changed:
+        RenderedNote r = note.rendered;
+        if (keepRenderedNotes && r != null && r.target == target && r.lokey == lokey && r.noteCountBefore == noteCount
+                && r.level == level) {
+            return r.text;
+        }
+        StringBuilder buffer = RENDER_BUFFERS.get();
+        buffer.setLength(0);
+        int count = printNote(target, note, lokey, noteCount, releaseTriggers, level, buffer);
+        byte[] text = buffer.toString().getBytes(target.getCharset());
+        if (buffer.capacity() > MAX_RENDER_BUFFER) {
+            // Don't hold on to the buffer of an unusually large note:
+            RENDER_BUFFERS.remove();
+        }
+        if (keepRenderedNotes) {
+            note.rendered = new RenderedNote(target, lokey, noteCount, count, level, text);
+        }
+        return text;
+    }
+
+    /**
+     * Print the regions for one note: the iteration over its velocity layers
+     * and round robins which drives every OutputTarget.
+     *
+     * @param target
+     * @param note Samples for the note, from soft to hard
+     * @param lokey lowest key this note's samples play on
+     * @param noteCount count of velocity layers printed before this note
+     * @param releaseTriggers
+     * @param level
+     * @param out
+     * @return count of velocity layers printed including this note
+     */
+    protected int printNote(OutputTarget target, NoteMap.Note note, int lokey, int noteCount, boolean releaseTriggers,
+            int level, StringBuilder out) {
+        // Some global info for this note, need to use the first Sample for note value etc...
+        Sample s1 = note.get(0);
+        OutputTarget.Region r = new OutputTarget.Region();
+        r.noteNumber = s1.noteNumber;
+        r.noteName = MIDI.noteNumberToName(s1.noteNumber, format.octaves());
+        r.lokey = lokey;
+        r.hikey = s1.noteNumber;
+        r.release = releaseTriggers;
+        r.level = level;
+        r.defaultPath = defaultPath();
+        target.note(r, out);
+        // The Samples for that note are sorted from soft to hard, in velocity layers:
+        int velocities = note.layerCount();
+        int[] order = new int[velocities]; // the layers, in the order printed
+        double[] loudness = layerLoudness(note, order);
+        int[] hivel = null;
+        List<String> velocityStrings;
+        if (loudness != null) {
+            hivel = getVelocityBoundaries(loudness);
+            velocityStrings = getVelocityRanges(hivel);
+        } else {
+            velocityStrings = getVelocityRanges(velocities);
+        }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("velocities: " + velocities + " : " + velocityStrings);
+        }
+        for (int layer = 0; layer < velocities; layer++) {
+            int start = note.layerStart(order[layer]);
+            int end = note.layerEnd(order[layer]);
+            r.layer = layer;
+            // How many samples for that note (and velocity): round-robin sequence.
+            for (int i = start; i < end; i++) {
+                Sample s = note.get(i);
+                int seq = i - start + 1;
+                if (seq == 1) {
+                    r.velocityRange = "";
+                    r.lovel = -1;
+                    r.hivel = -1;
+                    if (s.velocity >= 0) {
+                        if (loudness != null) {
+                            r.velocityRange = velocityStrings.get(layer);
+                            r.lovel = layer == 0 ? 0 : hivel[layer - 1] + 1;
+                            r.hivel = hivel[layer];
+                        } else {
+                            int v = Math.min(s.velocity, velocityStrings.size() - 1);
+                            r.velocityRange = velocityStrings.get(v);
+                            r.lovel = velocityLow(velocities, v);
+                            r.hivel = velocityHigh(velocities, v);
+                        }
+                    }
+                    r.seqLength = end - start;
+                    r.velocityCurveSofter = Double.NaN;
+                    if (velocityCurve && loudness != null && layer > 0 && s.velocity >= 0) {
+                        r.velocityCurveSofter = velocityCurve(hivel[layer - 1] + 1, hivel[layer], loudness[layer - 1] - loudness[layer]);
+                    }
+                    target.group(r, out);
+                }
+                r.sample = s;
+                r.filename = regionFilename(s);
+                r.seq = seq;
+                setWavInfo(s, r);
+                r.gain = 0;
+                if (normalizeVolume && loudness != null) {
+                    r.gain = normalizeGain(s, loudness[layer]);
+                }
+                target.region(r, out);
+            }
+            target.endGroup(r, out);
+            noteCount++;
+        }
+        target.endNote(r, noteCount, out);
+        return noteCount;
+    }
+
+    /**
+     * Set the opcodes for a region which come from the sample's WAV header:
+     * the smpl chunk's root note if it differs from the filename's note, the
+     * end of the audio data, and the smpl chunk's loop.
+     *
+     * If silence has been detected, offset= and end= skip it, but never cut
+     * into a loop. Without a smpl chunk loop, a loop found by findLoops() is
+     * used.
+     *
+     * @param s
+     * @param r
+     */
+    protected void setWavInfo(Sample s, OutputTarget.Region r) {
+        r.rootNote = -1;
+        r.offset = 0;
+        r.end = -1;
+        r.loopStart = -1;
+        r.loopEnd = -1;
+        r.loopFound = false;
+        WavInfo w = s.wavInfo;
+        if (w == null) {
+            return;
+        }
+        if (w.getRootNote() >= 0 && w.getRootNote() != s.noteNumber) {
+            r.rootNote = w.getRootNote();
+        }
+        long end = w.getFrames() - 1;
+        long loopStart = -1;
+        long loopEnd = -1;
+        if (w.hasLoop()) {
+            loopStart = w.getLoopStart();
+            loopEnd = w.getLoopEnd();
+        } else if (s.loop != null) {
+            loopStart = s.loop.getStart();
+            loopEnd = s.loop.getEnd();
+            r.loopFound = true;
+        }
+        if (s.trim != null) {
+            long offset = s.trim.getStart();
+            end = s.trim.getEnd();
+            if (loopStart >= 0) {
+                offset = Math.min(offset, loopStart);
+                end = Math.max(end, Math.min(loopEnd, w.getFrames() - 1));
+            }
+            r.offset = Math.max(0, offset);
+        }
+        r.end = Math.max(-1, end);
+        r.loopStart = loopStart;
+        r.loopEnd = loopEnd;
+    }
+
+    /**
+     * The text printed for one note, and the position it was printed at.
+     */
+    protected static class RenderedNote {
+
+        protected final OutputTarget target;
+        protected final int lokey;
+        protected final int noteCountBefore;
+        protected final int noteCountAfter;
+        protected final int level;
+        protected final byte[] text;
+
+        RenderedNote(OutputTarget target, int lokey, int noteCountBefore, int noteCountAfter, int level, byte[] text) {
+            this.target = target;
+            this.lokey = lokey;
+            this.noteCountBefore = noteCountBefore;
+            this.noteCountAfter = noteCountAfter;
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Keep the text printed for each note between calls to writeSFZ, so only
+     * notes whose samples change are printed again. Used when the collection
+     * is kept up to date as files arrive (see Watcher).
+     */
+    public synchronized void keepRenderedNotes() {
+        keepRenderedNotes = true;
+    }
+
+    /**
+     * The loudness of each velocity layer of a note: the power mean of its
+     * Samples' loudness. If measured, the layers are ordered from soft to
+     * loud.
+     *
+     * @param note
+     * @param order set to the layers in the order to print them
+     * @return loudness of each layer, in that order, or null unless all
+     * Samples have been measured
+     */
+    protected double[] layerLoudness(NoteMap.Note note, int[] order) {
+        double[] loudness = new double[order.length];
+        for (int layer = 0; layer < order.length; layer++) {
+            order[layer] = layer;
+        }
+        for (int layer = 0; layer < loudness.length; layer++) {
+            double power = 0;
+            for (int i = note.layerStart(layer); i < note.layerEnd(layer); i++) {
+                Sample s = note.get(i);
+                if (s.loudness == null) {
+                    return null;
+                }
+                power += Math.pow(10.0, s.loudness.getLoudness() / 10.0);
+            }
+            loudness[layer] = 10.0 * Math.log10(power / (note.layerEnd(layer) - note.layerStart(layer)));
+        }
+        // A stable insertion sort, as there are few layers:
+        boolean reordered = false;
+        for (int i = 1; i < order.length; i++) {
+            int layer = order[i];
+            int j = i;
+            while (j > 0 && Double.compare(loudness[order[j - 1]], loudness[layer]) > 0) {
+                order[j] = order[j - 1];
+                j--;
+                reordered = true;
+            }
+            order[j] = layer;
+        }
+        if (reordered) {
+            Log.debug("Note: " + MIDI.noteNumberToName(note.getNumber(), format.octaves()) + ": velocity layers ordered by loudness, not by name");
+        }
+        double[] result = new double[order.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = loudness[order[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Place the velocity boundaries between layers of measured loudness.
+     *
+     * A layer L dB below the loudest is nominally played at velocity
+     * 127 * 10^(L/40), where the default velocity tracking gives L dB of
+     * attenuation. Each boundary is halfway, in dB, between two layers'
+     * nominal velocities.
+     *
+     * If any two adjacent layers are less than MIN_LAYER_STEP apart, the
+     * boundaries would crowd together near 127, so the range is split equally
+     * as for layers without loudness.
+     *
+     * @param loudness of each layer, from soft to loud
+     * @return hivel of each layer
+     */
+    protected int[] getVelocityBoundaries(double[] loudness) {
+        int n = loudness.length;
+        double loudest = loudness[n - 1];
+        int[] hivel = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            if (!(loudness[i + 1] - loudness[i] >= MIN_LAYER_STEP)) {
+                for (int j = 0; j < n; j++) {
+                    hivel[j] = velocityHigh(n, j);
+                }
+                return hivel;
+            }
+        }
+        for (int i = 0; i < n - 1; i++) {
+            double v = 127.0 * Math.pow(10.0, ((loudness[i] + loudness[i + 1]) / 2.0 - loudest) / 40.0);
+            int lo = i == 0 ? 0 : hivel[i - 1] + 1;
+            // Leave at least one velocity for each louder layer:
+            hivel[i] = (int) Math.max(lo, Math.min(Math.round(v), 127 - (n - 1 - i)));
+        }
+        hivel[n - 1] = 127;
+        return hivel;
+    }
+
+    /**
+     * Velocity ranges for the given upper boundaries.
+     *
+     * @param hivel
+     * @return
+     */
+    protected List<String> getVelocityRanges(int[] hivel) {
+        List<String> v = new ArrayList<String>();
+        for (int i = 0; i < hivel.length; i++) {
+            v.add("lovel=" + (i == 0 ? 0 : hivel[i - 1] + 1) + " hivel=" + hivel[i]);
+        }
+        return v;
+    }
+
+    /**
+     * A velocity curve for a layer: the level rises from that of the next
+     * softer layer at lovel, to the layer's own level at hivel, so the level
+     * does not jump at the boundary.
+     *
+     * @param lovel
+     * @param hivel
+     * @param softer dB of the next softer layer relative to this one
+     * @return softer, or NaN if there is no curve to print
+     */
+    protected static double velocityCurve(int lovel, int hivel, double softer) {
+        if (hivel <= lovel || Double.isInfinite(softer) || Double.isNaN(softer)) {
+            return Double.NaN;
+        }
+        return softer;
+    }
+
+    /**
+     * @param s
+     * @param layerLoudness
+     * @return dB to bring a Sample to its velocity layer's loudness, rounded to
+     * 0.1dB
+     */
+    protected double normalizeGain(Sample s, double layerLoudness) {
+        double gain = layerLoudness - s.loudness.getLoudness();
+        if (Double.isInfinite(gain) || Double.isNaN(gain)) {
+            return 0;
+        }
+        return Math.round(gain * 10.0) / 10.0;
+    }
+
+    /**
+     * Split the 0-127 range of velocities, to the given number of equal parts.
+     * The ranges are made once for each number.
+     *
+     * @param number
+     * @return
+     */
+    protected List<String> getVelocityRanges(int number) {
+        return VELOCITY_RANGES.computeIfAbsent(number, SampleCollection::velocityRanges);
+    }
+
+    protected static List<String> velocityRanges(int number) {
+        List<String> v = new ArrayList<String>();
+        for (int i = 0; i < number; i++) {
+            // e.g. lovel=55 hivel=90
+            v.add("lovel=" + velocityLow(number, i) + " hivel=" + velocityHigh(number, i));
+        }
+        return Collections.unmodifiableList(v);
+    }
+
+    /**
+     * @param number of equal parts of the 0-127 range
+     * @param i
+     * @return lowest velocity of part i
+     */
+    protected static int velocityLow(int number, int i) {
+        return i * (127 / number);
+    }
+
+    /**
+     * @param number of equal parts of the 0-127 range
+     * @param i
+     * @return highest velocity of part i
+     */
+    protected static int velocityHigh(int number, int i) {
+        int hi = ((i + 1) * (127 / number)) - 1;
+        if (i == number - 1 && hi < 127) {
+            hi = 127;
+        }
+        return hi;
+    }
+
+
+    /**
+     * Write this collection as a .sfz format file, and a file for each other
+     * OutputTarget (see setTargets), named by OutputTarget.filename(). The
+     * targets are written concurrently, each through a single
+     * WRITE_BUFFER_SIZE buffer, while this collection is locked.
+     *
+     * @throws IOException
+     */
+    public synchronized void writeSFZ(String filename, int rangeLow, int rangeHigh, int releaseLevel) throws IOException {
+        if (filename == null) {
+            filename = outputFilename;
+        }
+        if (filename == null) {
+            throw new IOException("no output file");
+        }
+        if (samples == null || samples.isEmpty()) {
+            throw new IOException("no samples");
+        }
+        Stats.Timer emitTimer = stats.time(Stats.Phase.EMIT);
+        try {
+            if (targets.size() == 1) {
+                write(targets.get(0), targets.get(0).filename(filename), rangeLow, rangeHigh, releaseLevel);
+                return;
+            }
+            // Sort the Samples of each note once, before the targets share them:
+            for (NoteMap notes : samplesReleaseTriggers != null ? Arrays.asList(samples, samplesReleaseTriggers)
+                    : Collections.singletonList(samples)) {
+                for (NoteMap.Note note : notes) {
+                    note.layerCount();
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (OutputTarget target : targets) {
+                    final String output = target.filename(filename);
+                    futures.add(executor.submit(() -> {
+                        write(target, output, rangeLow, rangeHigh, releaseLevel);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted", ie);
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof IOException) {
+                    throw (IOException) ee.getCause();
+                }
+                throw ee.getCause() instanceof RuntimeException ? (RuntimeException) ee.getCause()
+                        : new RuntimeException(ee.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            emitTimer.stop();
+        }
+    }
+
+    /**
+     * Write the file for one OutputTarget.
+     *
+     * @throws IOException
+     */
+    protected void write(OutputTarget target, String filename, int rangeLow, int rangeHigh, int releaseLevel) throws IOException {
+        File outputFile = new File(filename);
+        Log.info("CreateSFZ: " + outputFile);
+        try (FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE),
+                        false, target.getCharset().name())) {
+            if (optimize && target instanceof SfzTarget) {
+                printOptimized(target, rangeLow, rangeHigh, releaseLevel, out);
+            } else {
+                printTarget(target, rangeLow, rangeHigh, releaseLevel, out);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("cannot write " + outputFile);
+            }
+        }
+    }
+
+    /**
+     * Write a file for each of these targets, e.g. a DecentSampler preset
+     * and a JSON manifest as well as the .sfz file.
+     *
+     * @param targets
+     */
+    public synchronized void setTargets(List<OutputTarget> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("no output targets");
+        }
+        this.targets = new ArrayList<>(targets);
+    }
+
+    public List<OutputTarget> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * Render notes on up to this many threads when writing collections of
+     * at least PARALLEL_REGIONS regions. The text written is the same for any
+     * number.
+     *
+     * @param threads
+     */
+    public synchronized void setEmitThreads(int threads) {
+        this.emitThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Write .sfz files with opcodes shared by regions moved up to their
+     * group, master or global header (see SFZOptimizer).
+     *
+     * @param optimize
+     */
+    public synchronized void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * Print this collection in .sfz format, optimized. The optimized text is
+     * checked to map every region the same, else it is printed unoptimized.
+     *
+     * @param rangeLow
+     * @param rangeHigh
+     * @param releaseLevel
+     * @param out
+     */
+    public synchronized void printOptimizedSFZ(int rangeLow, int rangeHigh, int releaseLevel, PrintStream out) {
+        printOptimized(sfzTarget(), rangeLow, rangeHigh, releaseLevel, out);
+    }
+
+    protected void printOptimized(OutputTarget target, int rangeLow, int rangeHigh, int releaseLevel, PrintStream out) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Charset charset = target.getCharset();
+        try {
+            PrintStream p = new PrintStream(bytes, false, charset.name());
+            printTarget(target, rangeLow, rangeHigh, releaseLevel, p);
+            p.flush();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        String sfz = new String(bytes.toByteArray(), charset);
+        SFZOptimizer optimizer = new SFZOptimizer(charset);
+        String optimized = optimizer.optimize(sfz);
+        if (!SFZOptimizer.regions(sfz).equals(SFZOptimizer.regions(optimized))) {
+            Log.warn("Optimized SFZ does not map the same regions: writing it unoptimized");
+            out.print(sfz);
+            return;
+        }
+        out.print(optimized);
+        Log.info(optimizer.report());
+    }
+
+    /**
+     * Print this collection in .sfz format.
+     *
+     * @param rangeLow
+     * @param rangeHigh
+     * @param releaseLevel
+     * @param out
+     */
+    public synchronized void printSFZ(int rangeLow, int rangeHigh, int releaseLevel, PrintStream out) {
+        printTarget(sfzTarget(), rangeLow, rangeHigh, releaseLevel, out);
+    }
+
+    /**
+     * @return the .sfz target written, so its rendered notes are kept
+     */
+    protected OutputTarget sfzTarget() {
+        for (OutputTarget t : targets) {
+            if (t instanceof SfzTarget) {
+                return t;
+            }
+        }
+        return new SfzTarget();
+    }
+
+    /**
+     * Print this collection for an OutputTarget.
+     *
+     * @param target
+     * @param rangeLow
+     * @param rangeHigh
+     * @param releaseLevel
+     * @param out
+     */
+    public synchronized void print(OutputTarget target, int rangeLow, int rangeHigh, int releaseLevel, PrintStream out) {
+        printTarget(target, rangeLow, rangeHigh, releaseLevel, out);
+    }
+
+    protected void printTarget(OutputTarget target, int rangeLow, int rangeHigh, int releaseLevel, PrintStream out) {
+        target.printStart(this, out);
+        printRegions(target, samples, rangeLow, rangeHigh, false, 0, out);
         if (samplesReleaseTriggers != null) {
-            printRegions(samplesReleaseTriggers, rangeLow, rangeHigh, true, releaseLevel, out);
+            printRegions(target, samplesReleaseTriggers, rangeLow, rangeHigh, true, releaseLevel, out);
         }
-        out.println(FOOTER);
+        target.printEnd(this, out);
     }
 }
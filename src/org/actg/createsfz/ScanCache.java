@@ -0,0 +1,421 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file of the Samples decoded from a directory, keyed by relative filename,
+ * size and modification time, so a later scan of an unchanged file does not
+ * need to decode it again.
+ *
+ * Files which are not samples are cached too, with no Sample. A Sample's
+ * WavInfo, loudness, trim and loop found are cached
+ * with it, once read. The cache is only valid for the
+ * Format and octave numbering it was written with.
+ *
+ * A Sample from the cache only has the analysis results this scan asks for,
+ * so its output is the same as without the cache. The others are kept in the
+ * cache file for later scans.
+ */
+public class ScanCache {
+
+    public static final int MAGIC = 0x53465a43; // "SFZC"
+    public static final int VERSION = 6;
+
+    protected final File file;
+    protected final File dir;
+    protected String formatName;
+    protected String octaves; // the octave numbering notes were decoded with
+    protected boolean wavInfo; // Samples from the cache keep their WavInfo
+    protected boolean loudness; // ...and their loudness
+    protected boolean trim; // ...and their trim, if found at trimLevel
+    protected double trimLevel;
+    protected boolean loops; // ...and their loop found
+    // Entries read from the cache file:
+    protected final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Entries for files seen in this scan, which are written back:
+    protected final Map<String, Entry> seen = new ConcurrentHashMap<>();
+    protected final AtomicInteger hits = new AtomicInteger();
+    protected final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * The cached state of one file.
+     */
+    public static class Entry {
+
+        protected final String filename;
+        protected final long size;
+        protected final long modified;
+        protected boolean hit;
+        protected Sample sample;
+        protected Sample cached; // as read from the cache file, with all its analysis results
+
+        Entry(String filename, long size, long modified) {
+            this.filename = filename;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public boolean isHit() {
+            return hit;
+        }
+
+        /**
+         * @return the Sample decoded from the filename, or null if not a sample
+         */
+        public Sample getSample() {
+            return sample;
+        }
+
+        /**
+         * Record the result of decoding this file, after a miss.
+         *
+         * @param sample the Sample, or null if not a sample
+         */
+        public void setSample(Sample sample) {
+            this.sample = sample;
+        }
+    }
+
+    /**
+     * Create an empty ScanCache.
+     *
+     * @param file the cache file
+     * @param dir the sample directory filenames are relative to
+     */
+    public ScanCache(File file, File dir) {
+        this.file = file;
+        this.dir = dir;
+    }
+
+    /**
+     * Load a cache file if it exists. A missing, unreadable or old cache file
+     * gives an empty cache.
+     *
+     * @param file
+     * @param dir
+     * @return ScanCache
+     */
+    public static ScanCache load(File file, File dir) {
+        ScanCache cache = new ScanCache(file, dir);
+        if (!file.exists()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            cache.read(in);
+        } catch (IOException ioe) {
+            Log.warn("Ignoring scan cache " + file + ": " + ioe);
+            cache.entries.clear();
+            cache.formatName = null;
+            cache.octaves = null;
+        }
+        return cache;
+    }
+
+    protected void read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a scan cache, or an old version");
+        }
+        formatName = in.readUTF();
+        octaves = in.readUTF();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong());
+            if (in.readBoolean()) {
+                String baseName = in.readBoolean() ? in.readUTF() : null;
+                int noteNumber = in.readInt();
+                int velocity = in.readInt();
+                int id = in.readInt();
+                boolean releaseTrigger = in.readBoolean();
+                e.cached = new Sample(e.filename, baseName, noteNumber, velocity, id, releaseTrigger);
+                if (in.readBoolean()) {
+                    e.cached.wavInfo = WavInfo.readFrom(in);
+                }
+                if (in.readBoolean()) {
+                    e.cached.loudness = LoudnessMeter.Result.readFrom(in);
+                }
+                if (in.readBoolean()) {
+                    e.cached.trim = SilenceDetector.Result.readFrom(in);
+                }
+                if (in.readBoolean()) {
+                    e.cached.loop = LoopFinder.Result.readFrom(in);
+                }
+            }
+            entries.put(e.filename, e);
+        }
+    }
+
+    /**
+     * @return the name of the Format the cache was written with, or null
+     */
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * Set the Format name for this scan. Entries cached with a different
+     * Format are discarded.
+     *
+     * @param formatName
+     */
+    public void setFormatName(String formatName) {
+        if (this.formatName != null && !this.formatName.equals(formatName)) {
+            entries.clear();
+        }
+        this.formatName = formatName;
+    }
+
+    /**
+     * Set the octave numbering used to decode note names in this scan.
+     * Entries cached with a different numbering are discarded.
+     *
+     * @param octaves
+     */
+    public void setOctaves(String octaves) {
+        if (this.octaves != null && !this.octaves.equals(octaves)) {
+            entries.clear();
+        }
+        this.octaves = octaves;
+    }
+
+    /**
+     * Set whether this scan reads WAV headers (-wavInfo, or any analysis
+     * which needs them), so Samples from the cache keep their WavInfo.
+     *
+     * @param wavInfo
+     */
+    public void setWavInfo(boolean wavInfo) {
+        this.wavInfo = wavInfo;
+    }
+
+    /**
+     * Set whether this scan measures loudness (-loudness), so Samples from
+     * the cache keep their loudness.
+     *
+     * @param loudness
+     */
+    public void setLoudness(boolean loudness) {
+        this.loudness = loudness;
+    }
+
+    /**
+     * Set whether this scan trims silence (-trim), and at what level, so
+     * Samples from the cache keep a trim found at that level.
+     *
+     * @param trim
+     * @param trimLevel dBFS
+     */
+    public void setTrim(boolean trim, double trimLevel) {
+        this.trim = trim;
+        this.trimLevel = trimLevel;
+    }
+
+    /**
+     * Set whether this scan finds loops (-findLoops), so Samples from the
+     * cache keep a loop found.
+     *
+     * @param loops
+     */
+    public void setLoops(boolean loops) {
+        this.loops = loops;
+    }
+
+    /**
+     * Give a Sample the cached analysis results this scan asks for.
+     *
+     * @param cached
+     * @param s
+     */
+    protected void use(Sample cached, Sample s) {
+        if (wavInfo) {
+            s.wavInfo = cached.wavInfo;
+        }
+        if (s.wavInfo != null) {
+            if (loudness) {
+                s.loudness = cached.loudness;
+            }
+            if (trim && cached.trim != null && cached.trim.getThreshold() == trimLevel) {
+                s.trim = cached.trim;
+            }
+            if (loops) {
+                s.loop = cached.loop;
+            }
+        }
+    }
+
+    /**
+     * Look up a file, comparing its size and modification time with the
+     * cached entry.
+     *
+     * The Entry returned is kept for writing back: on a miss the caller
+     * should decode the file and call setSample().
+     *
+     * @param filename relative filename
+     * @return the cached Entry on a hit, a new Entry on a miss, or null if the
+     * file cannot be read
+     */
+    public Entry lookup(String filename) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(new File(dir, filename).toPath(), BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            return null;
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        Entry e = entries.get(filename);
+        if (e != null && e.size == size && e.modified == modified) {
+            e.hit = true;
+            if (e.cached != null) {
+                Sample c = e.cached;
+                e.sample = new Sample(c.filename, c.baseName, c.noteNumber, c.velocity, c.id, c.releaseTrigger);
+                use(c, e.sample);
+            }
+            hits.incrementAndGet();
+        } else {
+            e = new Entry(filename, size, modified);
+            misses.incrementAndGet();
+        }
+        seen.put(filename, e);
+        return e;
+    }
+
+    /**
+     * Record a Sample decoded outside lookup(), e.g. while probing formats.
+     * On a hit, it is given the cached analysis results this scan asks for.
+     *
+     * @param s
+     */
+    public void record(Sample s) {
+        if (!seen.containsKey(s.filename)) {
+            Entry e = lookup(s.filename);
+            if (e != null) {
+                if (e.hit && e.cached != null) {
+                    use(e.cached, s);
+                }
+                e.sample = s;
+            }
+        }
+    }
+
+    /**
+     * Forget a file seen in this scan, e.g. when it is deleted or replaced
+     * while watching, so it is looked up again if recorded.
+     *
+     * @param filename relative filename
+     */
+    public void forget(String filename) {
+        seen.remove(filename);
+    }
+
+    /**
+     * Write the entries for the files seen in this scan, replacing the cache
+     * file. Entries for files no longer present are dropped. Analysis results
+     * cached before, but not asked for in this scan, are kept.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        List<Entry> list = new ArrayList<>(new TreeMap<>(seen).values());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(formatName != null ? formatName : "");
+            out.writeUTF(octaves != null ? octaves : "");
+            out.writeInt(list.size());
+            for (Entry e : list) {
+                out.writeUTF(e.filename);
+                out.writeLong(e.size);
+                out.writeLong(e.modified);
+                Sample s = e.sample;
+                Sample c = e.hit && e.cached != null ? e.cached : null;
+                out.writeBoolean(s != null);
+                if (s != null) {
+                    out.writeBoolean(s.baseName != null);
+                    if (s.baseName != null) {
+                        out.writeUTF(s.baseName);
+                    }
+                    out.writeInt(s.noteNumber);
+                    out.writeInt(s.velocity);
+                    out.writeInt(s.id);
+                    out.writeBoolean(s.releaseTrigger);
+                    WavInfo wavInfo = s.wavInfo != null || c == null ? s.wavInfo : c.wavInfo;
+                    out.writeBoolean(wavInfo != null);
+                    if (wavInfo != null) {
+                        wavInfo.write(out);
+                    }
+                    LoudnessMeter.Result loudness = s.loudness != null || c == null ? s.loudness : c.loudness;
+                    out.writeBoolean(loudness != null);
+                    if (loudness != null) {
+                        loudness.write(out);
+                    }
+                    SilenceDetector.Result trim = s.trim != null || c == null ? s.trim : c.trim;
+                    out.writeBoolean(trim != null);
+                    if (trim != null) {
+                        trim.write(out);
+                    }
+                    LoopFinder.Result loop = s.loop != null || c == null ? s.loop : c.loop;
+                    out.writeBoolean(loop != null);
+                    if (loop != null) {
+                        loop.write(out);
+                    }
+                }
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return a one line report of cache hits and misses
+     */
+    public String report() {
+        return "Scan cache " + file + ": " + hits.get() + " hits, " + misses.get() + " misses, "
+                + seen.size() + " entries";
+    }
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.actg.createsfz.CreateSFZ.Options;
+
+/**
+ * A resident CreateSFZ, serving requests on a loopback HTTP port, so the JVM
+ * stays warm and scanned directories are kept in memory between requests.
+ *
+ * A request is a POST to /create whose body is CreateSFZ arguments, one per
+ * line, as given on the command line: a directory or ZIP file, and options
+ * such as -format, -filter, -o, -releaseLevel and -F. Relative names are
+ * relative to the server's directory. Requests run concurrently.
+ *
+ * A request must carry the token printed when the server starts, in the
+ * X-CreateSFZ-Token header, and no Origin header, so neither another local
+ * user nor a web page in a browser can make requests. Every file a request
+ * writes must be in its directory: the sample directory, or the directory
+ * holding its ZIP file. The .sfz file (or with -split, the .sfz files), the
+ * scan cache file and the samples extracted from a ZIP file are written
+ * there by default.
+ *
+ * The SampleCollection for a directory and the options which affect it is
+ * kept, the least recently used being dropped beyond a limit. A kept
+ * collection is dropped when a .wav file (or with -recursive a
+ * sub-directory) in its directory is created, deleted or modified, so the
+ * next request scans the directory again.
+ *
+ * A GET of /status reports the requests served and the collections kept.
+ */
+public class Server {
+
+    public static final String TOKEN_HEADER = "X-CreateSFZ-Token";
+
+    /**
+     * The Options only used to write a SampleCollection, or to run the
+     * server, which are left out of the cache key: requests differing only
+     * in these share a kept collection. Every other option is in the key.
+     */
+    protected static final Set<String> WRITE_OPTIONS = new HashSet<>(Arrays.asList(
+            "outputFilename", "overwrite", "releaseLevel", "statsFilename", "logLevel",
+            "threads", "jobs", "watch", "watchDelay", "serverPort", "serverCacheSize"));
+
+    protected final Options options;
+    protected final String token;
+    protected final int cacheSize;
+    protected final Map<String, Cached> cache;
+    protected final Map<WatchKey, List<Cached>> watched = new HashMap<>();
+    protected final AtomicLong requests = new AtomicLong();
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong invalidations = new AtomicLong();
+    protected WatchService watchService;
+    protected HttpServer httpServer;
+    protected ExecutorService executor;
+
+    /**
+     * A SampleCollection kept for a directory and options, created once by
+     * the first request needing it.
+     */
+    protected static class Cached {
+
+        protected final String key;
+        protected final Path root; // the directory, or ZIP file
+        protected final boolean zip;
+        protected final boolean recursive;
+        protected final FutureTask<SampleCollection> task;
+        protected final List<WatchKey> keys = new ArrayList<>();
+
+        Cached(String key, Path root, boolean zip, boolean recursive, FutureTask<SampleCollection> task) {
+            this.key = key;
+            this.root = root;
+            this.zip = zip;
+            this.recursive = recursive;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Create a Server.
+     *
+     * @param options the port, the number of requests run at once (jobs), and
+     * the number of collections kept
+     */
+    public Server(Options options) {
+        this.options = options;
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        this.token = hex.toString();
+        this.cacheSize = Math.max(1, options.serverCacheSize);
+        // In access order, for least recently used eviction:
+        cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() > cacheSize) {
+                    unwatch(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Start serving, until the process is stopped.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        start();
+        Log.info("Serving on http://127.0.0.1:" + getPort() + "/create with " + options.jobs
+                + " request threads, keeping " + cacheSize + " directories (interrupt to stop)");
+        // Printed even with -log quiet, as requests cannot be made without it:
+        Log.out().println(TOKEN_HEADER + ": " + token);
+    }
+
+    /**
+     * Start the HTTP server and the thread watching kept directories.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::watch, "CreateSFZ-Server-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.serverPort), 0);
+        executor = Executors.newFixedThreadPool(Math.max(1, options.jobs));
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/create", this::handleCreate);
+        httpServer.createContext("/status", this::handleStatus);
+        httpServer.start();
+    }
+
+    /**
+     * Stop serving, and drop the collections kept.
+     */
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+        try {
+            watchService.close();
+        } catch (IOException ioe) {
+            Log.warn("Closing watch service: " + ioe);
+        }
+        synchronized (this) {
+            cache.clear();
+            watched.clear();
+        }
+    }
+
+    /**
+     * @return the port being served
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * @return the token every request must carry in the X-CreateSFZ-Token
+     * header
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Reply 403, and return false, unless the request carries the token and
+     * does not come from a web page.
+     */
+    protected boolean allowed(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, "Requests from web pages are refused\n");
+            return false;
+        }
+        String t = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (t == null || !MessageDigest.isEqual(t.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            respond(exchange, 403, "Send the token printed when the server started, in the " + TOKEN_HEADER + " header\n");
+            return false;
+        }
+        return true;
+    }
+
+    protected void handleCreate(HttpExchange exchange) throws IOException {
+        if (!allowed(exchange)) {
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "POST CreateSFZ arguments, one per line\n");
+            return;
+        }
+        List<String> args = new ArrayList<>();
+        for (String line : read(exchange.getRequestBody()).split("\r?\n")) {
+            if (!line.isEmpty()) {
+                args.add(line);
+            }
+        }
+        requests.incrementAndGet();
+        long start = System.nanoTime();
+        StringBuilder report = new StringBuilder();
+        int status;
+        try {
+            status = create(args.toArray(new String[args.size()]), report) ? 200 : 500;
+        } catch (IOException ioe) {
+            status = 500;
+            report.append("FAILED: ").append(ioe.getMessage());
+        } catch (RuntimeException re) {
+            // Bad arguments, or no recognised samples:
+            status = 400;
+            report.append("FAILED: ").append(re.getMessage() != null ? re.getMessage() : re.toString());
+        }
+        // The time goes on the first line, before any Stats:
+        int end = report.indexOf("\n");
+        report.insert(end < 0 ? report.length() : end, " (" + (System.nanoTime() - start) / 1000000 + " ms)").append('\n');
+        respond(exchange, status, report.toString());
+    }
+
+    protected void handleStatus(HttpExchange exchange) throws IOException {
+        if (!allowed(exchange)) {
+            return;
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("requests ").append(requests.get()).append(", hits ").append(hits.get())
+                .append(", misses ").append(misses.get()).append(", invalidations ").append(invalidations.get());
+        synchronized (this) {
+            report.append(", kept ").append(cache.size()).append(" of ").append(cacheSize).append('\n');
+            for (Cached c : cache.values()) {
+                report.append("  ").append(c.root).append('\n');
+            }
+        }
+        respond(exchange, 200, report.toString());
+    }
+
+    /**
+     * Write the .sfz file(s) for one request, re-using a kept
+     * SampleCollection if there is one.
+     *
+     * @param args CreateSFZ arguments
+     * @param report what was written
+     * @return true if everything was written
+     * @throws IOException
+     */
+    protected boolean create(String[] args, StringBuilder report) throws IOException {
+        CreateSFZ.Arguments arguments = CreateSFZ.parseArguments(args);
+        Options o = arguments.options;
+        if (arguments.batch || o.watch || o.serverPort >= 0 || !arguments.sampleNames.isEmpty() || arguments.dirname == null) {
+            throw new IllegalArgumentException("a request needs one directory or ZIP file, without -batch, -watch or -server");
+        }
+        File dir = o.zipFilename != null ? new File(o.zipFilename).getCanonicalFile().getParentFile()
+                : new File(arguments.dirname).getCanonicalFile();
+        String dirname = arguments.dirname;
+        if (o.zipFilename != null && o.extractDirname == null) {
+            dirname = new File(dir, ZipScanner.extractDirname(new File(o.zipFilename))).getPath();
+        }
+        if (o.split && o.outputFilename == null) {
+            o.outputFilename = dir.getPath();
+        }
+        if (o.cache && o.cacheFilename == null && o.outputFilename == null) {
+            o.cacheFilename = new File(dir, dir.getName() + ".scancache").getPath();
+        }
+        checkOutputs(o, dirname, dir);
+        boolean[] hit = new boolean[1];
+        SampleCollection sc = collection(o, dirname, hit);
+        if (!o.split && o.outputFilename == null && sc.outputFilename != null) {
+            o.outputFilename = new File(dir, sc.outputFilename).getPath();
+        }
+        CreateSFZ createSFZ = new CreateSFZ(o, sc);
+        if (!hit[0]) {
+            // This request scanned the collection, so its Stats include the scan:
+            createSFZ.statsBefore = null;
+        }
+        boolean ok = true;
+        if (o.split) {
+            ok = createSFZ.writeSplitSFZ(o.outputFilename);
+            report.append(ok ? "OK" : "FAILED").append(" split into ").append(o.outputFilename != null ? o.outputFilename : ".");
+        } else {
+            String output = createSFZ.writeSFZ(o.outputFilename);
+            report.append("OK ").append(output).append(": ").append(sc.filesUsed.size()).append(" files");
+        }
+        report.append(hit[0] ? ", kept" : ", scanned");
+        if ("-".equals(o.statsFilename)) {
+            // Reply with the Stats, after the OK line:
+            o.statsFilename = null;
+            createSFZ.endRun();
+            report.append('\n').append(createSFZ.statsJSON());
+        } else {
+            createSFZ.endRun();
+        }
+        return ok;
+    }
+
+    /**
+     * Throw an IllegalArgumentException unless every file or directory a
+     * request names to write is in its directory.
+     *
+     * @param o
+     * @param dirname the sample directory, or extraction directory of a ZIP
+     * file
+     * @param dir the request's directory
+     * @throws IOException
+     */
+    protected static void checkOutputs(Options o, String dirname, File dir) throws IOException {
+        String[] outputs = {o.outputFilename, "-".equals(o.statsFilename) ? null : o.statsFilename, o.cacheFilename,
+            o.flacDirname, o.liteDirname, o.zipFilename != null ? dirname : null};
+        for (String output : outputs) {
+            if (output != null && !new File(output).getCanonicalFile().toPath().startsWith(dir.toPath())) {
+                throw new IllegalArgumentException("not in the request's directory " + dir + ": " + output);
+            }
+        }
+    }
+
+    /**
+     * Return the SampleCollection for a directory and options, creating it
+     * on the first request and keeping it.
+     *
+     * @param o
+     * @param dirname the sample directory, or extraction directory of a ZIP
+     * file
+     * @param hit set to true if the collection was kept
+     * @return SampleCollection
+     * @throws IOException
+     */
+    protected SampleCollection collection(final Options o, final String dirname, boolean[] hit) throws IOException {
+        File rootFile = o.zipFilename != null ? new File(o.zipFilename) : new File(dirname);
+        Path root = rootFile.getCanonicalFile().toPath();
+        String key = key(o, root, dirname);
+        Cached c;
+        synchronized (this) {
+            c = cache.get(key);
+            hit[0] = c != null;
+            if (c == null) {
+                c = new Cached(key, root, o.zipFilename != null, o.recursive, new FutureTask<>(() -> {
+                    CreateSFZ createSFZ = new CreateSFZ(o, dirname, Collections.<String>emptyList());
+                    if (createSFZ.sampleCollection == null) {
+                        throw new IOException("no samples: " + dirname);
+                    }
+                    return createSFZ.sampleCollection;
+                }));
+                // Watch before scanning, so no change during the scan is missed:
+                watch(c);
+                cache.put(key, c);
+            }
+        }
+        if (hit[0]) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            c.task.run();
+        }
+        try {
+            return c.task.get();
+        } catch (InterruptedException ie) {
+            throw new IOException("interrupted", ie);
+        } catch (ExecutionException ee) {
+            invalidate(c, false);
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            } else if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        }
+    }
+
+    /**
+     * The cache key: the directory, and every option but WRITE_OPTIONS, so an
+     * option added later is in the key unless it is added to WRITE_OPTIONS.
+     */
+    protected static String key(Options o, Path root, String dirname) {
+        StringBuilder key = new StringBuilder().append(root).append('|').append(dirname);
+        Field[] fields = Options.class.getFields();
+        Arrays.sort(fields, Comparator.comparing(Field::getName));
+        for (Field f : fields) {
+            if (Modifier.isStatic(f.getModifiers()) || WRITE_OPTIONS.contains(f.getName())) {
+                continue;
+            }
+            try {
+                key.append('|').append(f.getName()).append('=').append(f.get(o));
+            } catch (IllegalAccessException iae) {
+                throw new RuntimeException(iae);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Watch the directory of a collection (and its sub-directories if
+     * recursive), or the directory holding its ZIP file.
+     */
+    protected synchronized void watch(final Cached c) throws IOException {
+        if (c.zip || !c.recursive) {
+            register(c, c.zip ? c.root.getParent() : c.root);
+            return;
+        }
+        Files.walkFileTree(c.root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                register(c, d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    protected synchronized void register(Cached c, Path dir) throws IOException {
+        WatchKey k = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        c.keys.add(k);
+        List<Cached> list = watched.get(k);
+        if (list == null) {
+            list = new ArrayList<>();
+            watched.put(k, list);
+        }
+        list.add(c);
+    }
+
+    /**
+     * Stop watching for a collection, cancelling keys no other collection
+     * uses.
+     */
+    protected synchronized void unwatch(Cached c) {
+        for (WatchKey k : c.keys) {
+            List<Cached> list = watched.get(k);
+            if (list != null) {
+                list.remove(c);
+                if (list.isEmpty()) {
+                    watched.remove(k);
+                    k.cancel();
+                }
+            }
+        }
+        c.keys.clear();
+    }
+
+    /**
+     * Drop a kept collection.
+     *
+     * @param c
+     * @param changed true if dropped because its directory changed
+     */
+    protected synchronized void invalidate(Cached c, boolean changed) {
+        if (cache.get(c.key) == c) {
+            cache.remove(c.key);
+            if (changed) {
+                invalidations.incrementAndGet();
+                Log.info("Server: changed, dropped: " + c.root);
+            }
+        }
+        unwatch(c);
+    }
+
+    /**
+     * Drop the collections whose directories change, until the watch
+     * service is closed.
+     */
+    protected void watch() {
+        try {
+            while (true) {
+                WatchKey k = watchService.take();
+                List<WatchEvent<?>> events = k.pollEvents();
+                boolean valid = k.reset();
+                synchronized (this) {
+                    List<Cached> list = watched.get(k);
+                    if (list == null) {
+                        continue;
+                    }
+                    for (Cached c : new ArrayList<>(list)) {
+                        if (!valid || affects(c, (Path) k.watchable(), events)) {
+                            invalidate(c, true);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * @return true if the events could change a collection: a .wav file
+     * (or its ZIP file) changed, or a sub-directory was created
+     */
+    protected static boolean affects(Cached c, Path dir, List<WatchEvent<?>> events) {
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                return true;
+            }
+            Path p = dir.resolve((Path) event.context());
+            if (c.zip) {
+                if (p.equals(c.root)) {
+                    return true;
+                }
+            } else if (p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".wav")
+                    || (c.recursive && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    protected static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Write the .sfz file: a <global> header for each note, a <group> for each
+ * velocity layer, and a <region> for each Sample.
+ */
+public class SfzTarget extends OutputTarget {
+
+    @Override
+    public String getName() {
+        return "sfz";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".sfz";
+    }
+
+    @Override
+    public Charset getCharset() {
+        return Charset.defaultCharset();
+    }
+
+    @Override
+    public String filename(String sfzFilename) {
+        return sfzFilename;
+    }
+
+    @Override
+    public void printStart(SampleCollection c, PrintStream out) {
+        out.println(SampleCollection.HEADER);
+        out.println("// Sample filename format: " + c.format.toString());
+        out.println("//");
+        out.println("<control>");
+        if (c.defaultPath() != null) {
+            out.println("default_path=" + c.defaultPath());
+        }
+    }
+
+    @Override
+    public void printNotesStart(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+        out.println("// " + notes);
+    }
+
+    @Override
+    public void printNotesEnd(NoteMap notes, boolean releaseTriggers, PrintStream out) {
+    }
+
+    @Override
+    public void printEnd(SampleCollection c, PrintStream out) {
+        out.println(SampleCollection.FOOTER);
+    }
+
+    @Override
+    public void note(Region r, StringBuilder out) {
+        out.append("\n// Note: ").append(r.noteNumber).append(" ").append(r.noteName).append(NL);
+        out.append("<global>").append(NL);
+        out.append("pitch_keycenter=").append(r.noteNumber).append(NL);
+        out.append("lokey=").append(r.lokey).append(NL);
+        out.append("hikey=").append(r.hikey).append(NL);
+    }
+
+    @Override
+    public void group(Region r, StringBuilder out) {
+        out.append("<group> ").append(r.velocityRange).append(NL); // e.g. lovel=55 hivel=90
+        out.append("seq_length=").append(r.seqLength).append(NL);
+        if (r.hasVelocityCurve()) {
+            out.append("amp_velcurve_").append(r.lovel).append("=")
+                    .append(String.format(Locale.ROOT, "%.3f", r.getVelocityCurveAmplitude())).append(NL);
+            out.append("amp_velcurve_").append(r.hivel).append("=1").append(NL);
+        }
+    }
+
+    @Override
+    public void region(Region r, StringBuilder out) {
+        out.append("<region>").append(NL);
+        out.append("sample=").append(r.filename).append(NL);
+        out.append("seq_position=").append(r.seq).append(NL);
+        if (r.rootNote >= 0) {
+            out.append("pitch_keycenter=").append(r.rootNote).append(NL);
+        }
+        if (r.offset > 0) {
+            out.append("offset=").append(r.offset).append(NL);
+        }
+        if (r.end >= 0) {
+            out.append("end=").append(r.end).append(NL);
+        }
+        if (r.loopStart >= 0) {
+            if (r.loopFound) {
+                out.append("loop_mode=loop_continuous").append(NL);
+            }
+            out.append("loop_start=").append(r.loopStart).append(NL);
+            out.append("loop_end=").append(r.loopEnd).append(NL);
+        }
+        if (r.release) {
+            out.append("trigger=release").append(NL);
+        }
+        String volume = r.getVolume();
+        if (volume != null) {
+            // Optional volume scale.  Used to trim level of release triggers.
+            out.append("volume=").append(volume).append(NL);
+        }
+        out.append(NL);
+    }
+
+    @Override
+    public void endGroup(Region r, StringBuilder out) {
+        out.append(NL);
+    }
+
+    @Override
+    public void endNote(Region r, int noteCount, StringBuilder out) {
+        out.append("// noteCount = ").append(noteCount).append(NL);
+    }
+}
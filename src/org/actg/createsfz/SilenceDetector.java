@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Find where the audio of a sample starts and ends: the first and last frames
+ * with any channel above a threshold level.
+ *
+ * The audio is read once, streaming, with one reused buffer per thread.
+ */
+public class SilenceDetector {
+
+    public static final double DEFAULT_THRESHOLD = -60.0; // dBFS
+    public static final double MARGIN_SECONDS = 0.002; // kept before the start and after the end
+
+    protected final double threshold;
+    protected final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(PcmReader::allocateBuffer);
+    protected final ThreadLocal<int[]> ints = ThreadLocal.withInitial(() -> new int[PcmReader.BUFFER_SIZE]);
+
+    /**
+     * The frames to play, as found with a threshold.
+     */
+    public static class Result {
+
+        protected final double threshold;
+        protected final long start;
+        protected final long end;
+
+        public Result(double threshold, long start, long end) {
+            this.threshold = threshold;
+            this.start = start;
+            this.end = end;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @return first frame to play, for offset=
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return last frame to play, for end=
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeDouble(threshold);
+            out.writeLong(start);
+            out.writeLong(end);
+        }
+
+        public static Result readFrom(DataInputStream in) throws IOException {
+            return new Result(in.readDouble(), in.readLong(), in.readLong());
+        }
+
+        @Override
+        public String toString() {
+            return "frames " + start + " to " + end + " above " + threshold + "dBFS";
+        }
+    }
+
+    /**
+     * @param threshold level in dBFS
+     */
+    public SilenceDetector(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Find the start and end of the audio in a WAV file.
+     *
+     * @param file
+     * @param info
+     * @return Result, or null if no frame is above the threshold
+     * @throws IOException
+     */
+    public Result detect(File file, WavInfo info) throws IOException {
+        int channels = info.getChannels();
+        int[] buf = ints.get();
+        long first = -1;
+        long last = -1;
+        long frames;
+        try (PcmReader reader = new PcmReader(file, info, buffers.get())) {
+            frames = reader.getFrames();
+            // Compare integer samples with the threshold at the file's bit depth:
+            long limit = (long) (reader.fullScale() * Math.pow(10.0, threshold / 20.0));
+            long frame = 0;
+            int n;
+            while ((n = reader.readInterleaved(buf, buf.length / channels)) > 0) {
+                for (int i = 0, j = 0; i < n; i++) {
+                    for (int c = 0; c < channels; c++, j++) {
+                        if (Math.abs((long) buf[j]) > limit) {
+                            if (first < 0) {
+                                first = frame + i;
+                            }
+                            last = frame + i;
+                        }
+                    }
+                }
+                frame += n;
+            }
+        }
+        if (first < 0) {
+            return null;
+        }
+        long margin = Math.round(info.getSampleRate() * MARGIN_SECONDS);
+        return new Result(threshold, Math.max(0, first - margin), Math.min(frames - 1, last + margin));
+    }
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of the phases of creating an instrument, and counts of the files
+ * seen, for -stats and JDK Flight Recorder.
+ *
+ * Each timed phase is also a JFR event (org.actg.createsfz.Phase) when
+ * recording, and each run ends with a summary event (org.actg.createsfz.Run).
+ * The events are made by JfrEvents, which needs jdk.jfr so is built apart
+ * ("make jfr") and loaded by name if present. Counting and timing are safe
+ * from concurrent scanning threads.
+ */
+public class Stats {
+
+    /**
+     * Makes the JFR events, passed around as Object so this compiles without
+     * jdk.jfr.
+     */
+    interface Recorder {
+
+        boolean isRecording();
+
+        Object beginPhase();
+
+        void commitPhase(Object event, String phase, String directory);
+
+        Object beginRun();
+
+        void commitRun(Object event, String directory, String format, long listed, long matched, long filtered,
+                long skipped, long ignored, long used);
+    }
+
+    /**
+     * Phases, in the order they run. DECODE is time spent decoding notes and
+     * velocities from filenames, summed over scanning threads, so when
+     * scanning in parallel it overlaps MATCH. DEDUPE is finding identical
+     * files (-dedupe), TRANSCODE encoding samples as FLAC (-flac), and CONVERT
+     * making the lite variant (-lite).
+     */
+    public enum Phase {
+        LIST, MATCH, DECODE, BUILD, EXTRACT, ANALYSE, DEDUPE, TRANSCODE, CONVERT, EMIT;
+
+        public String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Counts of files. LISTED = FILTERED + MATCHED + UNMATCHED. A MATCHED
+     * file is SKIPPED if its note cannot be decoded, IGNORED if it has another
+     * base name, and otherwise used, or left UNPITCHED. DUPLICATES are used
+     * files identical to another, whose regions use the other's file.
+     * TRANSCODED files were encoded as FLAC, and CONVERTED files for the lite
+     * variant, not counting those already up to date.
+     */
+    public enum Counter {
+        LISTED, FILTERED, MATCHED, UNMATCHED, SKIPPED, IGNORED, CACHED, DUPLICATES, TRANSCODED, CONVERTED;
+
+        public String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    protected static final Recorder JFR = recorder();
+
+    protected final LongAdder[] nanos = adders(Phase.values().length);
+    protected final LongAdder[] times = adders(Phase.values().length);
+    protected final LongAdder[] counts = adders(Counter.values().length);
+    protected volatile String directory;
+    protected volatile String formatName;
+
+    /**
+     * A phase being timed, ended by stop().
+     */
+    public class Timer {
+
+        protected final Phase phase;
+        protected final long start;
+        protected final Object event;
+
+        Timer(Phase phase) {
+            this.phase = phase;
+            this.event = JFR != null && JFR.isRecording() ? JFR.beginPhase() : null;
+            this.start = System.nanoTime();
+        }
+
+        public void stop() {
+            add(phase, System.nanoTime() - start);
+            if (event != null) {
+                JFR.commitPhase(event, phase.key(), directory);
+            }
+        }
+    }
+
+    protected static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    /**
+     * @return the JfrEvents Recorder, or null if it was not built, or the JVM
+     * has no jdk.jfr
+     */
+    protected static Recorder recorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("org.actg.createsfz.JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param directory the sample directory, to label JFR events
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param formatName the Format name given, probed or cached
+     */
+    public void setFormatName(String formatName) {
+        this.formatName = formatName;
+    }
+
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * Start timing a phase, stopped in a finally block.
+     *
+     * @param phase
+     * @return Timer to stop at the end of the phase
+     */
+    public Timer time(Phase phase) {
+        return new Timer(phase);
+    }
+
+    /**
+     * Add time to a phase, without a JFR event.
+     *
+     * @param phase
+     * @param elapsed nanoseconds
+     */
+    public void add(Phase phase, long elapsed) {
+        add(phase, elapsed, 1);
+    }
+
+    /**
+     * Add time to a phase which ran a number of times, e.g. DECODE once per
+     * file, without a JFR event.
+     *
+     * @param phase
+     * @param elapsed nanoseconds
+     * @param n
+     */
+    public void add(Phase phase, long elapsed, long n) {
+        nanos[phase.ordinal()].add(elapsed);
+        times[phase.ordinal()].add(n);
+    }
+
+    public void count(Counter counter) {
+        counts[counter.ordinal()].increment();
+    }
+
+    public void count(Counter counter, long n) {
+        counts[counter.ordinal()].add(n);
+    }
+
+    public long get(Counter counter) {
+        return counts[counter.ordinal()].sum();
+    }
+
+    /**
+     * @param phase
+     * @return nanoseconds spent in a phase
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase
+     * @return the number of times a phase ran
+     */
+    public long getTimes(Phase phase) {
+        return times[phase.ordinal()].sum();
+    }
+
+    /**
+     * Add another Stats into this one, e.g. from a FormatProbe.
+     *
+     * @param other
+     */
+    public void add(Stats other) {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i].add(other.nanos[i].sum());
+            times[i].add(other.times[i].sum());
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].add(other.counts[i].sum());
+        }
+    }
+
+    /**
+     * @return a copy of the times and counts so far, for since()
+     */
+    public Stats snapshot() {
+        Stats copy = new Stats();
+        copy.add(this);
+        copy.directory = directory;
+        copy.formatName = formatName;
+        return copy;
+    }
+
+    /**
+     * The times and counts added since a snapshot, e.g. by one request for a
+     * SampleCollection kept by a Server.
+     *
+     * @param before from snapshot()
+     * @return Stats of the difference
+     */
+    public Stats since(Stats before) {
+        Stats diff = new Stats();
+        for (int i = 0; i < nanos.length; i++) {
+            diff.nanos[i].add(nanos[i].sum() - before.nanos[i].sum());
+            diff.times[i].add(times[i].sum() - before.times[i].sum());
+        }
+        for (int i = 0; i < counts.length; i++) {
+            diff.counts[i].add(counts[i].sum() - before.counts[i].sum());
+        }
+        diff.directory = directory;
+        diff.formatName = formatName;
+        return diff;
+    }
+
+    /**
+     * Start the JFR event for a whole run.
+     *
+     * @return the event, or null without JFR
+     */
+    public static Object beginRun() {
+        return JFR != null && JFR.isRecording() ? JFR.beginRun() : null;
+    }
+
+    /**
+     * Commit the JFR event for a whole run, with these counts.
+     *
+     * @param run from beginRun()
+     * @param used files used
+     */
+    public void commitRun(Object run, int used) {
+        if (run != null) {
+            JFR.commitRun(run, directory, formatName, get(Counter.LISTED), get(Counter.MATCHED), get(Counter.FILTERED),
+                    get(Counter.SKIPPED), get(Counter.IGNORED), used);
+        }
+    }
+
+    /**
+     * Write the stats as a JSON object.
+     *
+     * @param output the .sfz file written, or null
+     * @param used files used
+     * @param unpitched samples with no note
+     * @param totalNanos the whole run
+     * @return JSON
+     */
+    public String toJSON(String output, int used, int unpitched, long totalNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"directory\": ").append(quote(directory));
+        sb.append(", \"format\": ").append(quote(formatName));
+        sb.append(", \"output\": ").append(quote(output));
+        sb.append(", \"totalMs\": ").append(millis(totalNanos));
+        sb.append(",\n  \"phases\": {");
+        String sep = "";
+        for (Phase p : Phase.values()) {
+            if (getTimes(p) > 0) {
+                sb.append(sep).append('"').append(p.key()).append("\": {\"ms\": ").append(millis(getNanos(p)))
+                        .append(", \"count\": ").append(getTimes(p)).append('}');
+                sep = ", ";
+            }
+        }
+        sb.append("},\n  \"files\": {");
+        for (Counter c : Counter.values()) {
+            sb.append('"').append(c.key()).append("\": ").append(get(c)).append(", ");
+        }
+        sb.append("\"unpitched\": ").append(unpitched).append(", \"used\": ").append(used).append("}}");
+        return sb.toString();
+    }
+
+    protected static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    protected static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.actg.createsfz.SampleCollection.FileMatch;
+
+/**
+ * Keep a SampleCollection up to date with its directory, rewriting the .sfz
+ * file as samples are created, modified or deleted. A modified sample, e.g. a
+ * take still being recorded when it was created, is removed and added again,
+ * so it is analysed again.
+ *
+ * Events are collected until the directory has been quiet for a short delay,
+ * then applied together. Samples added go through the same analysis stages as
+ * the first scan (CreateSFZ.analyse), which only read files not yet analysed,
+ * and are recorded in any scan cache. Only the notes whose samples changed are
+ * printed again, and the .sfz file is replaced atomically.
+ */
+public class Watcher {
+
+    protected final CreateSFZ createSFZ;
+    protected final SampleCollection sampleCollection;
+    protected final Path root;
+    protected final String outputFilename;
+    protected final boolean recursive;
+    protected final String filenameFilter;
+    protected final long delay;
+    protected final FilenameParser parser;
+    protected final Map<WatchKey, Path> keys = new HashMap<>();
+
+    /**
+     * Create a Watcher for the SampleCollection of a CreateSFZ.
+     *
+     * @param createSFZ
+     * @param outputFilename
+     * @param delay milliseconds without events before the .sfz is rewritten
+     */
+    public Watcher(CreateSFZ createSFZ, String outputFilename, long delay) {
+        this.createSFZ = createSFZ;
+        this.sampleCollection = createSFZ.sampleCollection;
+        this.root = new File(sampleCollection.sampleDirName).toPath();
+        this.outputFilename = outputFilename != null ? outputFilename : sampleCollection.outputFilename;
+        this.recursive = createSFZ.options.recursive;
+        this.filenameFilter = createSFZ.options.filenameFilter;
+        this.delay = delay;
+        this.parser = sampleCollection.format.parser();
+        sampleCollection.keepRenderedNotes();
+    }
+
+    /**
+     * Write the .sfz file, then watch the directory until interrupted.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService();
+                DirectoryScanner scanner = createSFZ.scanner(root.toFile())) {
+            // Register before writing, so no file arriving meanwhile is missed:
+            register(watchService, root);
+            write();
+            Log.info("Watching " + root + " for sample files... (interrupt to stop)");
+            while (true) {
+                // Wait for an event, then keep collecting until the directory is quiet:
+                Map<String, Boolean> changes = new LinkedHashMap<>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    collect(watchService, key, changes);
+                    key = watchService.poll(delay, TimeUnit.MILLISECONDS);
+                }
+                if (apply(changes)) {
+                    try {
+                        update(scanner);
+                        write();
+                    } catch (IOException ioe) {
+                        Log.warn("Not written: " + ioe.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Log.info("Watch stopped.");
+        }
+    }
+
+    /**
+     * Register a directory, and its sub-directories if recursive.
+     *
+     * @param watchService
+     * @param dir
+     * @throws IOException
+     */
+    protected void register(final WatchService watchService, Path dir) throws IOException {
+        if (!recursive) {
+            keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                keys.put(d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Record the events for a key as relative filenames: true for created or
+     * modified, false for deleted, the latest event for a file winning.
+     *
+     * @param watchService
+     * @param key
+     * @param changes
+     * @throws IOException
+     */
+    protected void collect(WatchService watchService, WatchKey key, Map<String, Boolean> changes) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                continue;
+            }
+            Path p = dir.resolve((Path) event.context());
+            boolean created = event.kind() != StandardWatchEventKinds.ENTRY_DELETE;
+            if (created && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(watchService, p);
+                    // Files may have landed before the directory was registered:
+                    try (DirectoryScanner scanner = new DirectoryScanner(p.toFile(), true, 1)) {
+                        for (String name : scanner.list()) {
+                            changes.put(relativeName(p.resolve(name)), Boolean.TRUE);
+                        }
+                    }
+                }
+                continue;
+            }
+            String filename = relativeName(p);
+            changes.remove(filename);
+            changes.put(filename, created);
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    protected String relativeName(Path p) {
+        return root.relativize(p).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Apply collected changes to the SampleCollection. A file created or
+     * modified is removed, then added again, so it is analysed again.
+     *
+     * @param changes
+     * @return true if the collection changed
+     */
+    protected boolean apply(Map<String, Boolean> changes) {
+        boolean changed = false;
+        int unpitched = sampleCollection.unpitched.size();
+        for (Map.Entry<String, Boolean> e : changes.entrySet()) {
+            String filename = e.getKey();
+            if (createSFZ.scanCache != null) {
+                createSFZ.scanCache.forget(filename);
+            }
+            boolean removed = sampleCollection.removeSample(filename);
+            if (removed) {
+                Log.info("Removed: " + filename);
+            }
+            changed |= removed;
+            if (e.getValue()) {
+                FileMatch fm = SampleCollection.match(parser, filename, filenameFilter);
+                if (fm != null && sampleCollection.addMatch(fm)) {
+                    Log.info("Added: " + filename);
+                    changed = true;
+                }
+            }
+        }
+        // Samples without a note are added once their pitch is detected:
+        return changed || (createSFZ.options.detectPitch && sampleCollection.unpitched.size() > unpitched);
+    }
+
+    /**
+     * Analyse the Samples added, and record them in any scan cache.
+     *
+     * @param scanner
+     * @throws IOException
+     */
+    protected void update(DirectoryScanner scanner) throws IOException {
+        createSFZ.analyse(scanner);
+        if (createSFZ.scanCache != null) {
+            sampleCollection.recordIn(createSFZ.scanCache);
+            createSFZ.scanCache.save();
+        }
+    }
+
+    /**
+     * Write the .sfz file to a temporary file, then move it into place.
+     *
+     * @throws IOException
+     */
+    protected void write() throws IOException {
+        File output = new File(outputFilename).getAbsoluteFile();
+        File tmp = new File(output.getParentFile(), "." + output.getName() + ".tmp");
+        sampleCollection.writeSFZ(tmp.getPath(), CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, createSFZ.releaseLevel);
+        try {
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Log.info("Wrote " + outputFilename + ": " + sampleCollection.filesUsed.size() + " files");
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Details of a WAV file read from its RIFF header and chunks: the format,
+ * where the audio data is, and the root note and loop from a 'smpl' chunk.
+ *
+ * Only the chunk headers and the small chunks used are read, using positioned
+ * reads, never the audio data.
+ */
+public class WavInfo {
+
+    public static final int WAVE_FORMAT_PCM = 1;
+    public static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    public static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    protected int formatTag;
+    protected int channels;
+    protected int sampleRate;
+    protected int blockAlign;
+    protected int bitsPerSample;
+    protected long dataOffset = -1; // file position of the audio data
+    protected long dataSize;
+    protected int rootNote = -1; // MIDI unity note from a smpl chunk
+    protected long loopStart = -1; // first loop from a smpl chunk, in frames
+    protected long loopEnd = -1;
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return number of frames (samples per channel) of audio data
+     */
+    public long getFrames() {
+        return blockAlign > 0 ? dataSize / blockAlign : 0;
+    }
+
+    public int getRootNote() {
+        return rootNote;
+    }
+
+    public boolean hasLoop() {
+        return loopStart >= 0 && loopEnd > loopStart;
+    }
+
+    public long getLoopStart() {
+        return loopStart;
+    }
+
+    public long getLoopEnd() {
+        return loopEnd;
+    }
+
+    /**
+     * @return true for integer PCM data, including in an extensible header
+     */
+    public boolean isPCM() {
+        return formatTag == WAVE_FORMAT_PCM || (formatTag == WAVE_FORMAT_EXTENSIBLE && bitsPerSample <= 32);
+    }
+
+    /**
+     * @return true for IEEE float data, including in an extensible header
+     */
+    public boolean isFloat() {
+        return formatTag == WAVE_FORMAT_IEEE_FLOAT;
+    }
+
+    /**
+     * Read the header and chunks of a WAV file.
+     *
+     * @param file
+     * @return WavInfo
+     * @throws IOException if not a RIFF WAVE file, or it has no fmt or data
+     * chunk
+     */
+    public static WavInfo read(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(ch, file.getPath());
+        }
+    }
+
+    /**
+     * Read the header and chunks of a WAV file from a channel.
+     *
+     * @param ch
+     * @return WavInfo
+     * @throws IOException
+     */
+    public static WavInfo read(FileChannel ch) throws IOException {
+        return read(ch, "WAV file");
+    }
+
+    /**
+     * Read the header and chunks of a WAV file from a channel.
+     *
+     * @param ch
+     * @param name to report a bad chunk
+     * @return WavInfo
+     * @throws IOException
+     */
+    protected static WavInfo read(FileChannel ch, String name) throws IOException {
+        WavInfo info = new WavInfo();
+        ByteBuffer b = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(ch, b, 0, 12);
+        if (b.getInt(0) != fourCC("RIFF") || b.getInt(8) != fourCC("WAVE")) {
+            throw new IOException("not a RIFF WAVE file");
+        }
+        long size = ch.size();
+        long pos = 12;
+        boolean fmt = false;
+        while (pos + 8 <= size) {
+            readFully(ch, b, pos, 8);
+            int id = b.getInt(0);
+            long chunkSize = b.getInt(4) & 0xffffffffL;
+            long body = pos + 8;
+            if (id == fourCC("fmt ")) {
+                if (chunkSize < 16) {
+                    throw new IOException("bad fmt chunk");
+                }
+                readFully(ch, b, body, (int) Math.min(chunkSize, 40));
+                info.formatTag = b.getShort(0) & 0xffff;
+                info.channels = b.getShort(2) & 0xffff;
+                info.sampleRate = b.getInt(4);
+                info.blockAlign = b.getShort(12) & 0xffff;
+                info.bitsPerSample = b.getShort(14) & 0xffff;
+                if (info.formatTag == WAVE_FORMAT_EXTENSIBLE && chunkSize >= 40) {
+                    // The sub-format GUID starts with the real format tag:
+                    info.formatTag = b.getShort(24) & 0xffff;
+                }
+                fmt = true;
+            } else if (id == fourCC("data")) {
+                info.dataOffset = body;
+                // A streamed or truncated file may claim more data than it has:
+                info.dataSize = Math.min(chunkSize, size - body);
+            } else if (id == fourCC("smpl") && chunkSize >= 36) {
+                readFully(ch, b, body, (int) Math.min(chunkSize, 60));
+                int unityNote = b.getInt(12);
+                if (isNote(unityNote)) {
+                    info.rootNote = unityNote;
+                } else {
+                    Log.warn(name + ": ignoring smpl chunk unity note out of range: " + (unityNote & 0xffffffffL));
+                }
+                int loops = b.getInt(28);
+                if (loops > 0 && chunkSize >= 60) {
+                    // First loop: cue id, type, start, end, fraction, play count
+                    info.loopStart = b.getInt(36 + 8) & 0xffffffffL;
+                    info.loopEnd = b.getInt(36 + 12) & 0xffffffffL;
+                }
+            }
+            pos = body + chunkSize + (chunkSize & 1);
+        }
+        if (!fmt || info.dataOffset < 0) {
+            throw new IOException("no fmt or data chunk");
+        }
+        return info;
+    }
+
+    /**
+     * @param note
+     * @return true for a MIDI note number, 0 to 127
+     */
+    protected static boolean isNote(int note) {
+        return note >= 0 && note <= 127;
+    }
+
+    protected static void readFully(FileChannel ch, ByteBuffer b, long pos, int length) throws IOException {
+        b.clear();
+        b.limit(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) {
+                throw new EOFException("truncated WAV file");
+            }
+        }
+    }
+
+    protected static int fourCC(String s) {
+        return (s.charAt(0)) | (s.charAt(1) << 8) | (s.charAt(2) << 16) | (s.charAt(3) << 24);
+    }
+
+    /**
+     * Write the fields, e.g. to a ScanCache.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeShort(formatTag);
+        out.writeShort(channels);
+        out.writeInt(sampleRate);
+        out.writeShort(blockAlign);
+        out.writeShort(bitsPerSample);
+        out.writeLong(dataOffset);
+        out.writeLong(dataSize);
+        out.writeInt(rootNote);
+        out.writeLong(loopStart);
+        out.writeLong(loopEnd);
+    }
+
+    /**
+     * Read the fields written by write().
+     *
+     * @param in
+     * @return WavInfo
+     * @throws IOException
+     */
+    public static WavInfo readFrom(DataInputStream in) throws IOException {
+        WavInfo info = new WavInfo();
+        info.formatTag = in.readShort() & 0xffff;
+        info.channels = in.readShort() & 0xffff;
+        info.sampleRate = in.readInt();
+        info.blockAlign = in.readShort() & 0xffff;
+        info.bitsPerSample = in.readShort() & 0xffff;
+        info.dataOffset = in.readLong();
+        info.dataSize = in.readLong();
+        int rootNote = in.readInt();
+        info.rootNote = isNote(rootNote) ? rootNote : -1; // e.g. cached before notes were checked
+        info.loopStart = in.readLong();
+        info.loopEnd = in.readLong();
+        return info;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz " + bitsPerSample + "bit " + channels + "ch " + getFrames() + " frames";
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package org.actg.createsfz;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * List the sample files in a ZIP archive, as a DirectoryScanner lists a
+ * directory, and extract only the samples used.
+ *
+ * Only the archive's central directory is read to list it, using positioned
+ * reads from the end of the file, so listing a library of many gigabytes
+ * reads a few megabytes at most. ZIP64 archives, over 4GB or with more than
+ * 65535 entries, are supported. Entries are listed with their full relative
+ * names, as with -recursive.
+ *
+ * The samples used are extracted into the scanner's directory, which the .sfz
+ * file refers to, so any analysis reads them from there. An entry already
+ * extracted with the same size is not extracted again.
+ */
+public class ZipScanner extends DirectoryScanner {
+
+    protected static final int LOCAL_HEADER = 0x04034b50;
+    protected static final int CENTRAL_HEADER = 0x02014b50;
+    protected static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    protected static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    protected static final int ZIP64_LOCATOR = 0x07064b50;
+    protected static final int STORED = 0;
+    protected static final int DEFLATED = 8;
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final File zipFile;
+    protected final FileChannel channel;
+    protected final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * A file in the archive, from its central directory record.
+     */
+    public static class Entry {
+
+        protected final String name;
+        protected final int flags;
+        protected final int method;
+        protected final long crc;
+        protected long compressedSize;
+        protected long size;
+        protected long localHeaderOffset;
+        protected long time = -1; // last modified, in milliseconds, or -1 if not valid
+
+        Entry(String name, int flags, int method, long crc) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return last modified time, in milliseconds, or -1 if not valid
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * @param file
+     * @return true if the file is named as a ZIP archive
+     */
+    public static boolean isZipFile(File file) {
+        return file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".zip");
+    }
+
+    /**
+     * Open a ZIP archive and read its central directory.
+     *
+     * @param zipFile
+     * @param extractDir directory samples are extracted into
+     * @param parallelism maximum threads used, 1 for single-threaded
+     * @throws IOException if not a ZIP archive
+     */
+    public ZipScanner(File zipFile, File extractDir, int parallelism) throws IOException {
+        super(extractDir, true, parallelism);
+        this.zipFile = zipFile;
+        channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param zipFile
+     * @return the default directory to extract samples into: the archive's
+     * name without .zip, in the current directory
+     */
+    public static String extractDirname(File zipFile) {
+        String name = zipFile.getName();
+        return name.substring(0, name.length() - ".zip".length());
+    }
+
+    public File getZipFile() {
+        return zipFile;
+    }
+
+    /**
+     * @param name relative filename
+     * @return the Entry, or null if not in the archive
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * List the files in the archive, from its central directory.
+     *
+     * @return sorted List of relative filenames
+     */
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    protected void readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        // The end of central directory record is last, followed by a comment of up to 64k:
+        int tail = (int) Math.min(fileSize, 22 + 0xffff);
+        ByteBuffer b = read(fileSize - tail, tail);
+        int eocd = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (b.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("not a ZIP file: " + zipFile);
+        }
+        long count = b.getShort(eocd + 10) & 0xffff;
+        long cdSize = b.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = b.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            // ZIP64: the locator, just before, gives the position of the ZIP64 record:
+            long locator = fileSize - tail + eocd - 20;
+            ByteBuffer l = locator >= 0 ? read(locator, 20) : null;
+            if (l == null || l.getInt(0) != ZIP64_LOCATOR) {
+                throw new IOException("bad ZIP64 central directory: " + zipFile);
+            }
+            ByteBuffer z = read(l.getLong(8), 56);
+            if (z.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new IOException("bad ZIP64 central directory: " + zipFile);
+            }
+            count = z.getLong(32);
+            cdSize = z.getLong(40);
+            cdOffset = z.getLong(48);
+        }
+        if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > fileSize) {
+            throw new IOException("bad ZIP central directory: " + zipFile);
+        }
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (pos + 46 > cd.limit() || cd.getInt(pos) != CENTRAL_HEADER) {
+                throw new IOException("bad ZIP central directory entry " + i + ": " + zipFile);
+            }
+            int flags = cd.getShort(pos + 8) & 0xffff;
+            int method = cd.getShort(pos + 10) & 0xffff;
+            int dosTime = cd.getShort(pos + 12) & 0xffff;
+            int dosDate = cd.getShort(pos + 14) & 0xffff;
+            long crc = cd.getInt(pos + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+            long size = cd.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(pos + 28) & 0xffff;
+            int extraLength = cd.getShort(pos + 30) & 0xffff;
+            int commentLength = cd.getShort(pos + 32) & 0xffff;
+            long offset = cd.getInt(pos + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(pos + 46);
+            cd.get(nameBytes);
+            Entry e = new Entry(new String(nameBytes, StandardCharsets.UTF_8), flags, method, crc);
+            e.size = size;
+            e.compressedSize = compressedSize;
+            e.localHeaderOffset = offset;
+            e.time = dosToMillis(dosDate, dosTime);
+            readZip64Extra(cd, pos + 46 + nameLength, extraLength, e);
+            pos += 46 + nameLength + extraLength + commentLength;
+            if (e.name.endsWith("/")) {
+                continue; // a directory
+            }
+            if (!isSafeName(e.name)) {
+                Log.warn("Ignoring ZIP entry outside the archive's directory: " + e.name);
+                continue;
+            }
+            entries.put(e.name, e);
+        }
+    }
+
+    /**
+     * @param date MS-DOS date, of the local time zone
+     * @param time MS-DOS time, to 2 seconds
+     * @return milliseconds, or -1 if not a valid date and time
+     */
+    protected static long dosToMillis(int date, int time) {
+        try {
+            return LocalDateTime.of(1980 + (date >> 9), (date >> 5) & 0xf, date & 0x1f,
+                    time >> 11, (time >> 5) & 0x3f, 2 * (time & 0x1f))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException dte) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the ZIP64 sizes and offset of an entry from its extra field: each
+     * is present only if the 32 bit field was all ones.
+     */
+    protected static void readZip64Extra(ByteBuffer cd, int pos, int length, Entry e) {
+        int end = pos + length;
+        while (pos + 4 <= end) {
+            int id = cd.getShort(pos) & 0xffff;
+            int size = cd.getShort(pos + 2) & 0xffff;
+            if (id == 0x0001) {
+                int p = pos + 4;
+                if (e.size == 0xffffffffL && p + 8 <= end) {
+                    e.size = cd.getLong(p);
+                    p += 8;
+                }
+                if (e.compressedSize == 0xffffffffL && p + 8 <= end) {
+                    e.compressedSize = cd.getLong(p);
+                    p += 8;
+                }
+                if (e.localHeaderOffset == 0xffffffffL && p + 8 <= end) {
+                    e.localHeaderOffset = cd.getLong(p);
+                }
+                return;
+            }
+            pos += 4 + size;
+        }
+    }
+
+    /**
+     * @param name
+     * @return true unless the name is absolute or has a ".." element, which
+     * could extract outside the extraction directory
+     */
+    protected static boolean isSafeName(String name) {
+        if (name.startsWith("/") || name.startsWith("\\") || name.indexOf(':') >= 0) {
+            return false;
+        }
+        for (String element : name.split("[/\\\\]")) {
+            if (element.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new EOFException("truncated ZIP file: " + zipFile);
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Open the data of an entry, reading only its bytes from the archive.
+     *
+     * @param e
+     * @return InputStream of the uncompressed data
+     * @throws IOException if the entry is encrypted or compressed with other
+     * than deflate
+     */
+    public InputStream getInputStream(Entry e) throws IOException {
+        if ((e.flags & 1) != 0) {
+            throw new IOException("encrypted ZIP entry: " + e.name);
+        }
+        ByteBuffer local = read(e.localHeaderOffset, 30);
+        if (local.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("bad ZIP local header: " + e.name);
+        }
+        long start = e.localHeaderOffset + 30 + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+        InputStream in = new RegionInputStream(start, e.compressedSize);
+        switch (e.method) {
+            case STORED:
+                return in;
+            case DEFLATED:
+                return new InflaterInputStream(in, new Inflater(true), BUFFER_SIZE);
+            default:
+                throw new IOException("unsupported ZIP compression method " + e.method + ": " + e.name);
+        }
+    }
+
+    /**
+     * Extract the given files into the scanner's directory, in parallel,
+     * checking each one's CRC. Files already extracted with the same size
+     * are kept.
+     *
+     * @param names relative filenames
+     * @return count of files extracted
+     * @throws IOException
+     */
+    public int extract(List<String> names) throws IOException {
+        final AtomicInteger extracted = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        try {
+            map(names, name -> {
+                try {
+                    long written = extract(name);
+                    if (written >= 0) {
+                        extracted.incrementAndGet();
+                        bytes.addAndGet(written);
+                    }
+                    return null;
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+        Log.info(zipFile + ": extracted " + extracted.get() + " of " + names.size() + " samples used, "
+                + (bytes.get() + 512 * 1024) / (1024 * 1024) + " MB, into " + dir);
+        return extracted.get();
+    }
+
+    /**
+     * Extract one file, unless already extracted with the same size and
+     * modification time. The file extracted is given the entry's
+     * modification time, so a changed entry, or a changed file, is extracted
+     * again.
+     *
+     * @param name relative filename
+     * @return bytes written, or -1 if already extracted
+     * @throws IOException
+     */
+    public long extract(String name) throws IOException {
+        Entry e = entries.get(name);
+        if (e == null) {
+            throw new IOException("not in " + zipFile + ": " + name);
+        }
+        File target = new File(dir, name);
+        if (target.isFile() && target.length() == e.size && e.time >= 0 && target.lastModified() == e.time) {
+            return -1;
+        }
+        File parent = target.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tmp = new File(target.getPath() + ".part");
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = e.size;
+        try (InputStream in = getInputStream(e); OutputStream out = new FileOutputStream(tmp)) {
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("truncated ZIP entry: " + name);
+                }
+                crc.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+            throw ioe;
+        }
+        if (crc.getValue() != e.crc) {
+            tmp.delete();
+            throw new IOException("CRC error in ZIP entry: " + name);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (e.time >= 0 && !target.setLastModified(e.time)) {
+            Log.warn("Cannot set modification time of " + target);
+        }
+        return e.size;
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            Log.warn("Closing " + zipFile + ": " + ioe);
+        }
+    }
+
+    /**
+     * The bytes of one entry, using positioned reads so entries can be read
+     * by several threads at once.
+     */
+    protected class RegionInputStream extends InputStream {
+
+        protected long position;
+        protected long remaining;
+
+        RegionInputStream(long position, long length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) {
+                throw new EOFException("truncated ZIP file: " + zipFile);
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+}
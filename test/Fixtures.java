@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.SampleCollection;
+
+/**
+ * Temporary sample directories and helpers shared by the tests.
+ */
+public class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Write a temporary directory of empty files, deleted on exit. Names may
+     * include subdirectories, separated by '/'.
+     *
+     * @param prefix for the directory name
+     * @param names
+     * @return the directory
+     * @throws IOException
+     */
+    public static File writeDirectory(String prefix, String... names) throws IOException {
+        return writeDirectory(prefix, names, null, 0);
+    }
+
+    /**
+     * Write a temporary directory of files whose content is the given byte
+     * repeated, e.g. the same byte for identical files.
+     *
+     * @param prefix for the directory name
+     * @param names
+     * @param contents the byte of each file, or null for empty files
+     * @param size of each file, if contents given
+     * @return the directory
+     * @throws IOException
+     */
+    public static File writeDirectory(String prefix, String[] names, int[] contents, int size) throws IOException {
+        File dir = Files.createTempDirectory(prefix).toFile();
+        dir.deleteOnExit();
+        for (int i = 0; i < names.length; i++) {
+            File f = new File(dir, names[i]);
+            mkdirs(dir, f.getParentFile());
+            byte[] b = new byte[contents != null ? size : 0];
+            if (contents != null) {
+                Arrays.fill(b, (byte) contents[i]);
+            }
+            try (FileOutputStream out = new FileOutputStream(f)) {
+                out.write(b);
+            }
+            f.deleteOnExit();
+        }
+        return dir;
+    }
+
+    /**
+     * Create the directories from dir down to subdir, to be deleted on exit
+     * after their files.
+     */
+    protected static void mkdirs(File dir, File subdir) {
+        if (subdir.equals(dir) || subdir.exists()) {
+            return;
+        }
+        mkdirs(dir, subdir.getParentFile());
+        subdir.mkdir();
+        subdir.deleteOnExit();
+    }
+
+    /**
+     * Write a 16 bit mono WAV file, deleted on exit.
+     *
+     * @param f
+     * @param rate
+     * @param samples from -1.0 to 1.0
+     * @return the file
+     * @throws IOException
+     */
+    public static File writeWav(File f, int rate, double[] samples) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + samples.length * 2).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) 1).putShort((short) 1).putInt(rate).putInt(rate * 2).putShort((short) 2).putShort((short) 16);
+        b.put("data".getBytes()).putInt(samples.length * 2);
+        for (double s : samples) {
+            b.putShort((short) Math.round(Math.max(-1.0, Math.min(1.0, s)) * 32767));
+        }
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b.array());
+        }
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * @param frames
+     * @param rate
+     * @param frequency
+     * @param amplitude from 0 to 1.0
+     * @return a sine wave
+     */
+    public static double[] tone(int frames, int rate, double frequency, double amplitude) {
+        double[] s = new double[frames];
+        for (int i = 0; i < frames; i++) {
+            s[i] = amplitude * Math.sin(2 * Math.PI * frequency * i / rate);
+        }
+        return s;
+    }
+
+    /**
+     * @param sc
+     * @return the .sfz text of a collection, for the whole key range
+     */
+    public static String print(SampleCollection sc) {
+        return new String(printBytes(sc));
+    }
+
+    /**
+     * @param sc
+     * @return the .sfz file of a collection, for the whole key range
+     */
+    public static byte[] printBytes(SampleCollection sc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        sc.printSFZ(CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, 0, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param text
+     * @param s
+     * @return the number of times s occurs in text
+     */
+    public static int count(String text, String s) {
+        int n = 0;
+        for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}
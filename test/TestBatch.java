@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import org.actg.createsfz.Batch;
+import org.actg.createsfz.CreateSFZ;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that a batch writes the instruments it can, and reports why the
+ * others failed.
+ */
+public class TestBatch {
+
+    @Test
+    public void testOneGoodOneBad() throws IOException {
+        File good = Fixtures.writeDirectory("TestBatch", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav", "Piano_Hard-D3-1.wav");
+        // A file, not a directory:
+        File bad = new File(Fixtures.writeDirectory("TestBatch", "Harp_Soft-C3-1.wav"), "Harp_Soft-C3-1.wav");
+        File outputDir = Fixtures.writeDirectory("TestBatch");
+        CreateSFZ.Options options = new CreateSFZ.Options();
+        options.outputFilename = outputDir.getPath();
+        options.threads = 2;
+        Batch batch = new Batch(options, Arrays.asList(good.getPath(), bad.getPath()), 2);
+        Assert.assertFalse(batch.run());
+
+        Batch.Result ok = batch.getResults().get(0);
+        Assert.assertTrue(ok.isOK());
+        Assert.assertEquals(3, ok.getFilesUsed());
+        File sfz = new File(outputDir, "Piano.sfz");
+        sfz.deleteOnExit();
+        Assert.assertEquals(sfz.getPath(), ok.getOutputFilename());
+        Assert.assertTrue(sfz.length() > 0);
+
+        // The failure is the real cause, not that no samples were found:
+        Batch.Result failed = batch.getResults().get(1);
+        Assert.assertFalse(failed.isOK());
+        Assert.assertTrue(failed.getFailure() instanceof IOException);
+        Assert.assertTrue(failed.getFailure().getMessage(), failed.getFailure().getMessage().startsWith("bad directory: "));
+        Assert.assertEquals(1, outputDir.list().length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        batch.printSummary(out);
+        out.flush();
+        String summary = bytes.toString();
+        Assert.assertTrue(summary, summary.contains("FAILED  " + bad.getPath() + ": java.io.IOException: bad directory: "));
+        Assert.assertTrue(summary, summary.contains("Batch: 1 written, 1 failed, of 2 instruments"));
+    }
+}
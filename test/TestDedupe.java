@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.Deduplicator;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.Stats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that regions of identical sample files use one file, within an
+ * instrument and across instruments.
+ */
+public class TestDedupe {
+
+    @Test
+    public void testWithinInstrument() throws IOException {
+        // Hard-C3 is a copy of Soft-C3, Soft-D3 is the same size but differs:
+        File dir = Fixtures.writeDirectory("TestDedupe", new String[]{"Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav",
+            "Piano_Soft-D3-1.wav"}, new int[]{1, 1, 2}, 5000);
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            Assert.assertEquals(1, sc.dedupe(scanner));
+            Assert.assertEquals(1, sc.getStats().get(Stats.Counter.DUPLICATES));
+            Assert.assertEquals(2, sc.uniqueSamples().size());
+            String sfz = Fixtures.print(sc);
+            Assert.assertEquals(sfz, 2, Fixtures.count(sfz, "sample=Piano_Soft-C3-1.wav"));
+            Assert.assertEquals(sfz, 0, Fixtures.count(sfz, "sample=Piano_Hard-C3-1.wav"));
+            Assert.assertEquals(sfz, 1, Fixtures.count(sfz, "sample=Piano_Soft-D3-1.wav"));
+            // Deduplicating again finds nothing more:
+            Assert.assertEquals(0, sc.dedupe(scanner));
+        }
+    }
+
+    @Test
+    public void testAcrossInstruments() throws IOException {
+        File a = Fixtures.writeDirectory("TestDedupe", new String[]{"Harp_Soft-C3-1.wav", "Harp_Hard-C3-1.wav"},
+                new int[]{3, 4}, 4000);
+        File b = Fixtures.writeDirectory("TestDedupe", new String[]{"Lute_Soft-C3-1.wav", "Lute_Hard-C3-1.wav"},
+                new int[]{5, 4}, 4000);
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(a, false, 2)) {
+            SampleCollection harp = new SampleCollection(format, a.getPath() + File.separator, null, scanner);
+            SampleCollection lute;
+            try (DirectoryScanner bScanner = new DirectoryScanner(b, false, 2)) {
+                lute = new SampleCollection(format, b.getPath() + File.separator, null, bScanner);
+            }
+            Deduplicator.Result r = Deduplicator.dedupe(scanner, Arrays.asList(harp, lute));
+            Assert.assertEquals(4, r.getFiles());
+            Assert.assertEquals(1, r.getDuplicates());
+            Assert.assertEquals(4000, r.getSavedBytes());
+            Assert.assertEquals(4, r.getHashed());
+            // The first instrument keeps its file, the second uses it:
+            Assert.assertTrue(Fixtures.print(harp).contains("sample=Harp_Hard-C3-1.wav"));
+            String sfz = Fixtures.print(lute);
+            Assert.assertTrue(sfz, sfz.contains("sample=.." + File.separator + a.getName() + File.separator + "Harp_Hard-C3-1.wav"));
+            Assert.assertTrue(sfz, sfz.contains("sample=Lute_Soft-C3-1.wav"));
+            Assert.assertFalse(sfz, sfz.contains("Lute_Hard"));
+        }
+    }
+
+    @Test
+    public void testDifferentSizesNotHashed() throws IOException {
+        File dir = Fixtures.writeDirectory("TestDedupe", new String[]{"Organ_Soft-C3-1.wav", "Organ_Hard-C3-1.wav"},
+                new int[]{1, 1}, 3000);
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "Organ_Hard-C3-1.wav"), true)) {
+            out.write(1);
+        }
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            Deduplicator.Result r = Deduplicator.dedupe(scanner, Arrays.asList(sc));
+            Assert.assertEquals(0, r.getHashed());
+            Assert.assertEquals(0, r.getDuplicates());
+        }
+    }
+}
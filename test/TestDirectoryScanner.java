@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test listing a directory tree in parallel.
+ */
+public class TestDirectoryScanner {
+
+    protected static final String[] NAMES = {"Piano_Soft-C3-1.wav", "b/Piano_Soft-D3-1.wav", "b/c/Piano_Hard-C3-1.wav",
+        "b/c/d/Piano_Hard-D3-1.wav", "a/Piano_Soft-E3-1.wav", "a/e/notes.txt", "z.wav"};
+
+    protected List<String> list(File dir, boolean recursive, int threads) throws IOException {
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, recursive, threads)) {
+            return scanner.list();
+        }
+    }
+
+    @Test
+    public void testRecursiveParallel() throws IOException {
+        File dir = Fixtures.writeDirectory("TestDirectoryScanner", NAMES);
+        List<String> expected = new ArrayList<>(Arrays.asList(NAMES));
+        expected.sort(null);
+        List<String> single = list(dir, true, 1);
+        Assert.assertEquals(expected, single);
+        for (int threads : new int[]{2, 4, 8}) {
+            Assert.assertEquals(single, list(dir, true, threads));
+        }
+    }
+
+    @Test
+    public void testNotRecursive() throws IOException {
+        File dir = Fixtures.writeDirectory("TestDirectoryScanner", NAMES);
+        Assert.assertEquals(Arrays.asList("Piano_Soft-C3-1.wav", "z.wav"), list(dir, false, 4));
+    }
+
+    @Test
+    public void testMapKeepsOrder() throws IOException {
+        File dir = Fixtures.writeDirectory("TestDirectoryScanner", NAMES);
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, true, 4)) {
+            List<String> names = scanner.list();
+            List<String> leaves = scanner.map(names, DirectoryScanner::leafName);
+            for (int i = 0; i < names.size(); i++) {
+                Assert.assertTrue(names.get(i).endsWith(leaves.get(i)));
+                Assert.assertEquals(-1, leaves.get(i).indexOf('/'));
+            }
+        }
+    }
+
+    @Test
+    public void testSameNoteKept() throws IOException {
+        // The same note, velocity and variation, in one directory and in two:
+        File dir = Fixtures.writeDirectory("TestDirectoryScanner", "Piano_Soft-C3-1.wav", "Piano_Soft-C3-01.wav",
+                "a/Piano_Hard-C3-1.wav", "b/Piano_Hard-C3-1.wav");
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, true, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner, null, false);
+            String sfz = Fixtures.print(sc);
+            Assert.assertEquals(3, sc.allSamples().size());
+            Assert.assertEquals(1, Fixtures.count(sfz, "sample=Piano_Soft-C3-"));
+            Assert.assertTrue(sfz, sfz.contains("sample=a/Piano_Hard-C3-1.wav"));
+            Assert.assertTrue(sfz, sfz.contains("sample=b/Piano_Hard-C3-1.wav"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadDirectory() throws IOException {
+        list(new File(Fixtures.writeDirectory("TestDirectoryScanner"), "missing"), true, 2);
+    }
+}
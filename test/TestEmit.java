@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.MIDI;
+import org.actg.createsfz.SampleCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that writing a collection gives the same text whether its notes are
+ * rendered on one thread or in parallel.
+ */
+public class TestEmit {
+
+    protected static final String[] VELOCITIES = {"Soft", "Medium", "Hard"};
+
+    /**
+     * Write empty files for 96 notes, 3 velocities and enough round robins
+     * for the notes to be rendered in parallel.
+     */
+    protected File writeDirectory() throws IOException {
+        List<String> names = new ArrayList<>();
+        int roundRobins = SampleCollection.PARALLEL_REGIONS / (96 * 3) + 1;
+        for (int i = 0; i < 96; i++) {
+            for (String v : VELOCITIES) {
+                for (int rr = 1; rr <= roundRobins; rr++) {
+                    names.add("Piano_" + v + "-" + MIDI.notes[i % 12] + (i / 12) + "-" + rr + ".wav");
+                }
+            }
+        }
+        return Fixtures.writeDirectory("TestEmit", names.toArray(new String[0]));
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        File dir = writeDirectory();
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            sc.setEmitThreads(1);
+            byte[] sequential = Fixtures.printBytes(sc);
+            sc.setEmitThreads(4);
+            byte[] parallel = Fixtures.printBytes(sc);
+            Assert.assertTrue(Arrays.equals(sequential, parallel));
+            String sfz = new String(parallel);
+            Assert.assertTrue(sfz.contains("lokey=0" + System.lineSeparator() + "hikey=24"));
+            Assert.assertTrue(sfz.endsWith(SampleCollection.FOOTER + System.lineSeparator()));
+
+            // Written to a file, and again re-using the text of each note:
+            File sfzFile = File.createTempFile("TestEmit", ".sfz");
+            sfzFile.deleteOnExit();
+            sc.writeSFZ(sfzFile.getPath(), CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, 0);
+            Assert.assertTrue(Arrays.equals(sequential, Files.readAllBytes(sfzFile.toPath())));
+            sc.keepRenderedNotes();
+            sc.writeSFZ(sfzFile.getPath(), CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, 0);
+            sc.writeSFZ(sfzFile.getPath(), CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, 0);
+            Assert.assertTrue(Arrays.equals(sequential, Files.readAllBytes(sfzFile.toPath())));
+        }
+    }
+}
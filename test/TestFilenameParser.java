@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.FilenameParser;
+import org.actg.createsfz.MIDI;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that each Format's FilenameParser finds the same groups as its regex.
+ */
+public class TestFilenameParser {
+
+    public TestFilenameParser() {
+    }
+
+    protected static final String[] NAMES = new String[]{
+        "Piano_Soft-C3-1.wav", "Grand_Piano_Hard-A#4-12.wav", "a_b_Medium-C-1-2.wav", "x_Soft-C_3-1.wav",
+        "x_Soft--1.wav", "x_Soft-C3-.wav", "x_-C3-1.wav", "x_Soft-C3-1.wav.bak", "x.wav_Soft-C3-1.wav",
+        "x_Soft-C3-99999999999.wav", "x_Soft-C3-1.WAV", "_Soft-C3-1.wav", "x_Soft-C3-1\n.wav",
+        "Piano C3.wav", "Piano RT C3.wav", "Piano  C3.wav", "Piano RT .wav", "Piano RT.wav", "Piano.wav",
+        " C3.wav", "Piano C3.wav ", "a b c.wav",
+        "AWBechstein mf D#5.wav", "AWBechstein A#5 RT.wav", "AW Bechstein mf D#5.wav", "AWBechstein p C3.wav",
+        "X mf RT.wav", "X mf RT RT.wav", "X RT.wav", "X pp RT1.wav", "X mf .wav", "X\tmf\tD5.wav", "X mf  D5.wav",
+        "X mfD5.wav", "X p p.wav", "X D5 RT .wav", "1X D5.wav", "X D5.wav.wav", "NoSpace.wav", "X ff D5 RT.wav",
+        "", ".wav", "wav", "sample.wav", "dir.wav.wav", "a\u2028b.wav"
+    };
+
+    protected static final String ALPHABET = "_- .wavRTmpfSoftHardCDA#0123456789xX\t\n\u0085";
+
+    /**
+     * @return the fixed names, and random names from the characters the
+     * formats use, most ending with ".wav"
+     */
+    protected static List<String> names() {
+        List<String> names = new ArrayList<>(Arrays.asList(NAMES));
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(16);
+            for (int j = 0; j < length; j++) {
+                sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            if (random.nextInt(10) > 0) {
+                sb.append(".wav");
+            }
+            names.add(sb.toString());
+        }
+        return names;
+    }
+
+    protected void checkFormat(String formatName) {
+        FilenameParser parser = new CreateSFZ().formatForName(formatName).parser();
+        String prefix = "dir/";
+        int matches = 0;
+        for (String name : names()) {
+            String filename = prefix + name;
+            int[] expected = parser.newGroups();
+            int[] groups = parser.newGroups();
+            boolean expectMatch = parser.matchRegex(filename, prefix.length(), filename.length(), expected);
+            Assert.assertEquals(formatName + ": " + name, expectMatch, parser.match(filename, prefix.length(), filename.length(), groups));
+            if (expectMatch) {
+                Assert.assertArrayEquals(formatName + ": " + name, expected, groups);
+                matches++;
+            }
+        }
+        Assert.assertTrue(matches > 0);
+    }
+
+    @Test
+    public void testFormat1() {
+        checkFormat("format1");
+    }
+
+    @Test
+    public void testFormat2() {
+        checkFormat("format2");
+    }
+
+    @Test
+    public void testPianoBook() {
+        checkFormat("pianobook");
+    }
+
+    @Test
+    public void testDetect() {
+        checkFormat("detect");
+    }
+
+    protected String create(File dir, String formatName, MIDI.Octaves octaves) throws IOException {
+        CreateSFZ.Options o = new CreateSFZ.Options();
+        o.formatName = formatName;
+        o.octaves = octaves;
+        o.threads = 2;
+        return Fixtures.print(new CreateSFZ(o, dir.getPath(), Collections.<String>emptyList()).getSampleCollection());
+    }
+
+    @Test
+    public void testFormatOctaves() throws IOException {
+        Assert.assertEquals(MIDI.Octaves.ROLAND, new CreateSFZ().formatForName("pianobook:roland").octaves());
+        Assert.assertEquals(MIDI.Octaves.YAMAHA, new CreateSFZ().formatForName("pianobook").octaves());
+        Assert.assertNull(new CreateSFZ().formatForName("pianobook:casio"));
+
+        File dir = Fixtures.writeDirectory("TestFilenameParser", "Piano_Soft-C4-1.wav");
+        Assert.assertTrue(create(dir, "format1", MIDI.Octaves.YAMAHA).contains("pitch_keycenter=72"));
+        Assert.assertTrue(create(dir, "format1", MIDI.Octaves.ROLAND).contains("pitch_keycenter=60"));
+        // The format's own numbering wins over -octaves:
+        Assert.assertTrue(create(dir, "format1:roland", MIDI.Octaves.YAMAHA).contains("pitch_keycenter=60"));
+        Assert.assertTrue(create(dir, "format1:yamaha", MIDI.Octaves.ROLAND).contains("pitch_keycenter=72"));
+    }
+
+    @Test
+    public void testParseInt() {
+        for (String s : new String[]{"0", "12", "-1", "+7", "2147483647", "-2147483648"}) {
+            Assert.assertEquals(Integer.parseInt(s), FilenameParser.parseInt("x" + s + "y", 1, s.length() + 1));
+        }
+        for (String s : new String[]{"", "-", "+", "1a", "2147483648", "-2147483649", "1 "}) {
+            try {
+                FilenameParser.parseInt(s, 0, s.length());
+                Assert.fail(s);
+            } catch (NumberFormatException nfe) {
+                Assert.assertEquals("For input string: \"" + s + "\"", nfe.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.actg.createsfz.FlacDecoder;
+import org.actg.createsfz.FlacEncoder;
+import org.actg.createsfz.PcmReader;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test FLAC encoding round trips: every sample decodes to what was in the WAV
+ * file.
+ */
+public class TestFlac {
+
+    /**
+     * Write a WAV file of interleaved samples.
+     */
+    protected File writeWav(int channels, int bits, int[] samples) throws IOException {
+        int bytes = bits / 8;
+        ByteBuffer b = ByteBuffer.allocate(44 + samples.length * bytes).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + samples.length * bytes).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) 1).putShort((short) channels).putInt(44100).putInt(44100 * channels * bytes)
+                .putShort((short) (channels * bytes)).putShort((short) bits);
+        b.put("data".getBytes()).putInt(samples.length * bytes);
+        for (int v : samples) {
+            if (bytes == 1) {
+                b.put((byte) (v + 128));
+            } else if (bytes == 2) {
+                b.putShort((short) v);
+            } else {
+                b.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+            }
+        }
+        File f = File.createTempFile("TestFlac", ".wav");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b.array());
+        }
+        return f;
+    }
+
+    /**
+     * Noise over a sine, the same in each channel but for the noise.
+     */
+    protected int[] signal(int frames, int channels, int bits, long seed) {
+        Random r = new Random(seed);
+        int[] s = new int[frames * channels];
+        double amplitude = (1 << (bits - 1)) * 0.7;
+        for (int i = 0; i < frames; i++) {
+            double v = Math.sin(i * 2 * Math.PI * 220 / 44100) * amplitude;
+            for (int c = 0; c < channels; c++) {
+                s[i * channels + c] = (int) (v + r.nextGaussian() * amplitude * 0.01);
+            }
+        }
+        return s;
+    }
+
+    protected File roundTrip(int channels, int bits, int[] samples) throws IOException {
+        File wav = writeWav(channels, bits, samples);
+        WavInfo info = WavInfo.read(wav);
+        File flac = File.createTempFile("TestFlac", ".flac");
+        flac.deleteOnExit();
+        FlacEncoder.Result result = new FlacEncoder().encode(wav, info, flac);
+        Assert.assertEquals(samples.length / channels, result.getFrames());
+        Assert.assertEquals(flac.length(), result.getFlacBytes());
+        Assert.assertEquals(samples.length / channels, FlacDecoder.verify(flac));
+
+        int[] expected = new int[samples.length];
+        try (PcmReader reader = new PcmReader(wav, info)) {
+            int off = 0;
+            int[] block = new int[4096 * channels];
+            int n;
+            while ((n = reader.readInterleaved(block, 4096)) > 0) {
+                System.arraycopy(block, 0, expected, off, n * channels);
+                off += n * channels;
+            }
+        }
+        try (FlacDecoder d = new FlacDecoder(flac)) {
+            Assert.assertEquals(channels, d.getChannels());
+            Assert.assertEquals(bits, d.getBitsPerSample());
+            Assert.assertEquals(44100, d.getSampleRate());
+            int off = 0;
+            int n;
+            while ((n = d.readFrame()) > 0) {
+                for (int i = 0; i < n; i++) {
+                    for (int c = 0; c < channels; c++) {
+                        Assert.assertEquals("sample " + (off / channels + i) + " channel " + c,
+                                expected[off + i * channels + c], d.getSamples(c)[i]);
+                    }
+                }
+                off += n * channels;
+            }
+            Assert.assertEquals(samples.length, off);
+        }
+        return flac;
+    }
+
+    @Test
+    public void testStereo16() throws IOException {
+        int[] s = signal(10000, 2, 16, 1);
+        File flac = roundTrip(2, 16, s);
+        Assert.assertTrue(flac.length() < s.length * 2);
+    }
+
+    @Test
+    public void testMono24WastedBits() throws IOException {
+        int[] s = signal(5000, 1, 24, 2);
+        for (int i = 0; i < s.length; i++) {
+            s[i] &= ~0xf; // 20 bit audio
+        }
+        roundTrip(1, 24, s);
+    }
+
+    @Test
+    public void testStereo24FullScale() throws IOException {
+        int[] s = new int[4096 * 2];
+        for (int i = 0; i < s.length; i += 2) {
+            s[i] = (i & 2) == 0 ? 8388607 : -8388608; // side needs 25 bits
+            s[i + 1] = -s[i] - 1;
+        }
+        roundTrip(2, 24, s);
+    }
+
+    @Test
+    public void test8BitAndSmall() throws IOException {
+        roundTrip(1, 8, signal(300, 1, 8, 3));
+        roundTrip(2, 16, new int[]{1, -1, 2, -2, 3, -3});
+        roundTrip(1, 16, new int[0]);
+        roundTrip(6, 16, signal(4097, 6, 16, 4));
+        roundTrip(2, 16, new int[8192]); // silence
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupt() throws IOException {
+        File flac = roundTrip(2, 16, signal(10000, 2, 16, 5));
+        try (RandomAccessFile raf = new RandomAccessFile(flac, "rw")) {
+            raf.seek(flac.length() / 2);
+            int b = raf.read();
+            raf.seek(flac.length() / 2);
+            raf.write(b ^ 0x10);
+        }
+        FlacDecoder.verify(flac);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.FormatProbe;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.Stats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test choosing a Format from one listing of a directory.
+ */
+public class TestFormatProbe {
+
+    protected SampleCollection probe(FormatProbe probe, File dir, int probeLimit) throws IOException {
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            return probe.probe(dir.getPath() + File.separator, scanner, null, probeLimit);
+        }
+    }
+
+    @Test
+    public void testMixedDirectory() throws IOException {
+        File dir = Fixtures.writeDirectory("TestFormatProbe", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav",
+                "Piano_Hard-D3-1.wav", "Harp C3.wav", "Harp D3.wav", "notes.txt");
+        FormatProbe probe = new FormatProbe(new CreateSFZ(), CreateSFZ.KNOWN_FORMATS);
+        SampleCollection sc = probe(probe, dir, 0);
+        Assert.assertEquals("format1", probe.getBestName());
+        Assert.assertEquals(3, sc.allSamples().size());
+        Assert.assertEquals(3, probe.getScore(0));
+        Assert.assertEquals(2, probe.getScore(1));
+        // The directory was listed once, and only the chosen Format's Samples decoded:
+        Stats stats = sc.getStats();
+        Assert.assertEquals(1, stats.getTimes(Stats.Phase.LIST));
+        Assert.assertEquals(6, stats.get(Stats.Counter.LISTED));
+        Assert.assertEquals(3, stats.get(Stats.Counter.MATCHED));
+        Assert.assertEquals(3, stats.get(Stats.Counter.UNMATCHED));
+        Assert.assertEquals(3, stats.getTimes(Stats.Phase.DECODE));
+    }
+
+    @Test
+    public void testScoredByDecodedNotes() throws IOException {
+        // format2 matches as many files as pianobook, but cannot decode "f C3" as a note:
+        File dir = Fixtures.writeDirectory("TestFormatProbe", "Piano f C3.wav", "Piano p C3.wav", "Piano f D3.wav");
+        FormatProbe probe = new FormatProbe(new CreateSFZ(), CreateSFZ.KNOWN_FORMATS);
+        SampleCollection sc = probe(probe, dir, 0);
+        Assert.assertEquals(3, probe.getMatches(1).size());
+        Assert.assertEquals(0, probe.getScore(1));
+        Assert.assertEquals("pianobook", probe.getBestName());
+        Assert.assertEquals(3, sc.allSamples().size());
+    }
+
+    @Test
+    public void testProbeLimit() throws IOException {
+        File dir = Fixtures.writeDirectory("TestFormatProbe", "Piano_Soft-C3-1.wav", "Piano_Soft-D3-1.wav",
+                "Piano_Soft-E3-1.wav", "Piano_Soft-F3-1.wav");
+        FormatProbe probe = new FormatProbe(new CreateSFZ(), CreateSFZ.KNOWN_FORMATS);
+        SampleCollection sc = probe(probe, dir, 2);
+        Assert.assertEquals("format1", probe.getBestName());
+        Assert.assertEquals(2, probe.getScore(0));
+        Assert.assertEquals(4, sc.allSamples().size());
+        Assert.assertEquals(4, sc.getStats().get(Stats.Counter.LISTED));
+    }
+
+    @Test
+    public void testProbeLimitWidened() throws IOException {
+        // The first files, sorted, are not samples:
+        File dir = Fixtures.writeDirectory("TestFormatProbe", "A-notes.txt", "B-readme.md", "Piano_Soft-C3-1.wav",
+                "Piano_Soft-D3-1.wav");
+        FormatProbe probe = new FormatProbe(new CreateSFZ(), CreateSFZ.KNOWN_FORMATS);
+        SampleCollection sc = probe(probe, dir, 2);
+        Assert.assertEquals("format1", probe.getBestName());
+        Assert.assertEquals(2, sc.allSamples().size());
+        Assert.assertEquals(2, sc.getStats().get(Stats.Counter.UNMATCHED));
+    }
+
+    @Test
+    public void testNoneRecognised() throws IOException {
+        File dir = Fixtures.writeDirectory("TestFormatProbe", "notes.txt", "readme.md");
+        FormatProbe probe = new FormatProbe(new CreateSFZ(), CreateSFZ.KNOWN_FORMATS);
+        Assert.assertNull(probe(probe, dir, 0));
+        Assert.assertNull(probe.getBestName());
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.actg.createsfz.LiteConverter;
+import org.actg.createsfz.PcmReader;
+import org.actg.createsfz.Resampler;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test converting samples for a lite variant: rate, bit depth, loops, and the
+ * audio itself.
+ */
+public class TestLite {
+
+    /**
+     * Write a stereo WAV file of a sine, with a smpl chunk if loopEnd > 0.
+     */
+    protected File writeWav(int rate, int bits, int frames, double freq, int loopStart, int loopEnd) throws IOException {
+        int bytes = bits / 8;
+        int dataSize = frames * 2 * bytes;
+        int smplSize = loopEnd > 0 ? 8 + 60 : 0;
+        ByteBuffer b = ByteBuffer.allocate(44 + dataSize + smplSize).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + dataSize + smplSize).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) 1).putShort((short) 2).putInt(rate).putInt(rate * 2 * bytes)
+                .putShort((short) (2 * bytes)).putShort((short) bits);
+        b.put("data".getBytes()).putInt(dataSize);
+        double amplitude = (1 << (bits - 1)) * 0.5;
+        for (int i = 0; i < frames; i++) {
+            int v = (int) Math.round(Math.sin(i * 2 * Math.PI * freq / rate) * amplitude);
+            for (int c = 0; c < 2; c++) {
+                if (bytes == 2) {
+                    b.putShort((short) v);
+                } else {
+                    b.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+                }
+            }
+        }
+        if (loopEnd > 0) {
+            b.put("smpl".getBytes()).putInt(60);
+            b.putInt(0).putInt(0).putInt(1000000000 / rate).putInt(60).putInt(0).putInt(0).putInt(0).putInt(1).putInt(0);
+            b.putInt(0).putInt(0).putInt(loopStart).putInt(loopEnd).putInt(0).putInt(0);
+        }
+        File f = File.createTempFile("TestLite", ".wav");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b.array());
+        }
+        return f;
+    }
+
+    protected File liteFile() throws IOException {
+        File lite = File.createTempFile("TestLite", ".wav");
+        lite.delete();
+        lite.deleteOnExit();
+        return lite;
+    }
+
+    protected LiteConverter.Result convert(File wav, File lite, int rate, int bits) throws IOException {
+        LiteConverter.Result result = new LiteConverter(rate, bits).convert(wav, WavInfo.read(wav), lite);
+        Assert.assertEquals(lite.length() - 44 - (result.getInfo().getRootNote() >= 0 ? 68 : 0), result.getOutBytes());
+        return result;
+    }
+
+    protected int[] read(File wav, WavInfo info) throws IOException {
+        int[] s = new int[(int) info.getFrames() * info.getChannels()];
+        try (PcmReader reader = new PcmReader(wav, info)) {
+            int off = 0;
+            int[] block = new int[4096 * info.getChannels()];
+            int n;
+            while ((n = reader.readInterleaved(block, 4096)) > 0) {
+                System.arraycopy(block, 0, s, off, n * info.getChannels());
+                off += n * info.getChannels();
+            }
+        }
+        return s;
+    }
+
+    @Test
+    public void testResample96k24() throws IOException {
+        File wav = writeWav(96000, 24, 96000, 1000, 19200, 76800);
+        LiteConverter.Result result = convert(wav, liteFile(), 44100, 16);
+        Assert.assertTrue(result.isConverted());
+        WavInfo info = result.getInfo();
+        Assert.assertEquals(44100, info.getSampleRate());
+        Assert.assertEquals(16, info.getBitsPerSample());
+        Assert.assertEquals(2, info.getChannels());
+        Assert.assertEquals(44100, info.getFrames());
+        Assert.assertEquals(60, info.getRootNote());
+        Assert.assertEquals(8820, info.getLoopStart());
+        Assert.assertEquals(35280, info.getLoopEnd());
+    }
+
+    @Test
+    public void testSine() throws IOException {
+        File wav = writeWav(96000, 24, 48000, 1000, 0, 0);
+        File lite = liteFile();
+        WavInfo info = convert(wav, lite, 44100, 24).getInfo();
+        // Away from the ends, the output is the same sine at the new rate:
+        int[] out = read(lite, info);
+        double amplitude = (1 << 23) * 0.5;
+        double error = 0;
+        for (int i = 1000; i < info.getFrames() - 1000; i++) {
+            double expected = Math.sin(i * 2 * Math.PI * 1000 / 44100) * amplitude;
+            error = Math.max(error, Math.abs(out[i * 2] - expected));
+            Assert.assertEquals(out[i * 2], out[i * 2 + 1], 2);
+        }
+        Assert.assertTrue("error " + error, error < amplitude * 1e-4);
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        File wav = writeWav(44100, 16, 10000, 440, 0, 0);
+        File lite = liteFile();
+        LiteConverter.Result result = convert(wav, lite, 44100, 16);
+        Assert.assertEquals(result.getInBytes(), result.getOutBytes());
+        Assert.assertTrue(Arrays.equals(read(wav, WavInfo.read(wav)), read(lite, result.getInfo())));
+    }
+
+    @Test
+    public void testUpToDate() throws IOException {
+        File wav = writeWav(48000, 24, 4800, 440, 0, 0);
+        File lite = liteFile();
+        LiteConverter c = new LiteConverter(44100, 16);
+        Assert.assertTrue(c.convert(wav, WavInfo.read(wav), lite).isConverted());
+        LiteConverter.Result again = c.convert(wav, WavInfo.read(wav), lite);
+        Assert.assertFalse(again.isConverted());
+        Assert.assertEquals(4410, again.getInfo().getFrames());
+    }
+
+    @Test
+    public void testResampler() {
+        Resampler r = new Resampler(96000, 44100);
+        Assert.assertEquals(147, r.getUp());
+        Assert.assertEquals(320, r.getDown());
+        Assert.assertEquals(0, r.getTaps() % 4);
+        Assert.assertEquals(44100, r.outputFrames(96000));
+        Assert.assertEquals(441, r.scale(960));
+    }
+}
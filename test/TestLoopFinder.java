@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.LoopFinder;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test finding loops in generated WAV files without a smpl chunk.
+ */
+public class TestLoopFinder {
+
+    protected static final int RATE = 48000;
+    protected static final int PERIOD = 48; // frames of a 1kHz tone
+    protected static final String NL = System.lineSeparator();
+
+    /**
+     * @param seconds
+     * @param decay per second, 0 for a steady tone
+     */
+    protected double[] tone(double seconds, double decay) {
+        double[] s = Fixtures.tone((int) (RATE * seconds), RATE, 1000.0, 0.5);
+        for (int i = 0; i < s.length; i++) {
+            s[i] *= Math.exp(-decay * i / RATE);
+        }
+        return s;
+    }
+
+    protected LoopFinder.Result find(double[] samples) throws IOException {
+        File f = Fixtures.writeWav(File.createTempFile("TestLoopFinder", ".wav"), RATE, samples);
+        WavInfo info = WavInfo.read(f);
+        return new LoopFinder().find(f, info, 0, info.getFrames() - 1);
+    }
+
+    @Test
+    public void testPeriodicTone() throws IOException {
+        LoopFinder.Result r = find(tone(2.0, 0));
+        Assert.assertNotNull(r);
+        // Starts at a rising zero crossing, and is a whole number of periods:
+        Assert.assertEquals(r.toString(), 0, r.getStart() % PERIOD);
+        Assert.assertEquals(r.toString(), 0, (r.getEnd() + 1 - r.getStart()) % PERIOD);
+        Assert.assertTrue(r.toString(), r.getEnd() - r.getStart() >= RATE * LoopFinder.MIN_LOOP_SECONDS);
+        // Within the sustain, give or take the zero crossing search range:
+        double range = RATE / LoopFinder.MIN_FREQUENCY;
+        Assert.assertTrue(r.toString(), r.getStart() >= RATE * 2.0 * LoopFinder.SUSTAIN_START - range);
+        Assert.assertTrue(r.toString(), r.getEnd() <= RATE * 2.0 * LoopFinder.SUSTAIN_END + range);
+        Assert.assertTrue(r.toString(), r.getScore() < 0.001);
+    }
+
+    @Test
+    public void testNoLoop() throws IOException {
+        // Decaying 8 times each second, no two windows a loop apart match:
+        Assert.assertNull(find(tone(2.0, 8.0)));
+        // A one-shot, too short for a sustain:
+        Assert.assertNull(find(tone(0.2, 20.0)));
+    }
+
+    @Test
+    public void testLoopOpcodes() throws IOException {
+        File dir = Fixtures.writeDirectory("TestLoopFinder");
+        Fixtures.writeWav(new File(dir, "Organ_Soft-C3-1.wav"), RATE, tone(2.0, 0));
+        Fixtures.writeWav(new File(dir, "Organ_Soft-D3-1.wav"), RATE, tone(2.0, 8.0));
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            sc.readWavInfo(scanner);
+            Assert.assertEquals(1, sc.findLoops(scanner, new LoopFinder()));
+            String sfz = Fixtures.print(sc);
+            Assert.assertEquals(sfz, 1, Fixtures.count(sfz, "loop_mode=loop_continuous" + NL));
+            Assert.assertEquals(sfz, 1, Fixtures.count(sfz, "loop_start="));
+            int c3 = sfz.indexOf("sample=Organ_Soft-C3-1.wav");
+            int d3 = sfz.indexOf("sample=Organ_Soft-D3-1.wav");
+            int loop = sfz.indexOf("loop_start=");
+            Assert.assertTrue(sfz, c3 < loop && loop < d3);
+            long loopStart = Long.parseLong(sfz.substring(loop + 11, sfz.indexOf(NL, loop)));
+            Assert.assertEquals(sfz, 0, loopStart % PERIOD);
+        }
+    }
+
+    @Test
+    public void testToStringInAnyLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            Assert.assertEquals("loop 24000 to 47999, score 0.0125", new LoopFinder.Result(24000, 47999, 0.0125).toString());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
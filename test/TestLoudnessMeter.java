@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.LoudnessMeter;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test measuring generated tones, and ordering velocity layers and setting
+ * their ranges by loudness.
+ */
+public class TestLoudnessMeter {
+
+    protected static final String NL = System.lineSeparator();
+
+    protected LoudnessMeter.Result measure(double amplitude) throws IOException {
+        File f = Fixtures.writeWav(File.createTempFile("TestLoudnessMeter", ".wav"), 48000,
+                Fixtures.tone(96000, 48000, 1000.0, amplitude));
+        return new LoudnessMeter().measure(f, WavInfo.read(f));
+    }
+
+    @Test
+    public void testTone() throws IOException {
+        LoudnessMeter.Result r = measure(0.5);
+        Assert.assertEquals(-6.02, r.getPeak(), 0.05);
+        Assert.assertEquals(-9.03, r.getRMS(), 0.05);
+        // A 1kHz sine, K-weighted, is about 0.7dB louder than its RMS:
+        Assert.assertEquals(-9.03 - 0.691 + 0.7, r.getLoudness(), 0.3);
+        // 20dB quieter measures 20dB lower:
+        Assert.assertEquals(r.getLoudness() - 20.0, measure(0.05).getLoudness(), 0.05);
+    }
+
+    @Test
+    public void testToStringInAnyLocale() throws IOException {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            Assert.assertEquals("peak -6.0dBFS, RMS -9.0dBFS, loudness -9.0LUFS", measure(0.5).toString());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testLayersOfEqualLoudness() throws IOException {
+        // Too close to place boundaries by loudness, so split equally:
+        File dir = Fixtures.writeDirectory("TestLoudnessMeter");
+        Fixtures.writeWav(new File(dir, "Piano_Soft-C3-1.wav"), 48000, Fixtures.tone(24000, 48000, 261.6, 0.5));
+        Fixtures.writeWav(new File(dir, "Piano_Hard-C3-1.wav"), 48000, Fixtures.tone(24000, 48000, 261.6, 0.6));
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            sc.readWavInfo(scanner);
+            Assert.assertEquals(2, sc.measureLoudness(scanner, new LoudnessMeter()));
+            String sfz = Fixtures.print(sc);
+            Assert.assertTrue(sfz, sfz.contains("<group> lovel=0 hivel=62" + NL + "seq_length=1" + NL
+                    + "<region>" + NL + "sample=Piano_Soft-C3-1.wav"));
+            Assert.assertTrue(sfz, sfz.contains("<group> lovel=63 hivel=127" + NL + "seq_length=1" + NL
+                    + "<region>" + NL + "sample=Piano_Hard-C3-1.wav"));
+        }
+    }
+
+    @Test
+    public void testLayersByLoudness() throws IOException {
+        // "Hard" is the quietest, so the layers are ordered Hard, Soft, Medium:
+        File dir = Fixtures.writeDirectory("TestLoudnessMeter");
+        Fixtures.writeWav(new File(dir, "Piano_Hard-C3-1.wav"), 48000, Fixtures.tone(24000, 48000, 261.6, 0.05));
+        Fixtures.writeWav(new File(dir, "Piano_Soft-C3-1.wav"), 48000, Fixtures.tone(24000, 48000, 261.6, 0.2));
+        Fixtures.writeWav(new File(dir, "Piano_Medium-C3-1.wav"), 48000, Fixtures.tone(24000, 48000, 261.6, 0.8));
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            String byName = Fixtures.print(sc);
+            Assert.assertTrue(byName, byName.contains("<group> lovel=0 hivel=41" + NL));
+            sc.readWavInfo(scanner);
+            Assert.assertEquals(3, sc.measureLoudness(scanner, new LoudnessMeter()));
+            String sfz = Fixtures.print(sc);
+            int hard = sfz.indexOf("sample=Piano_Hard-C3-1.wav");
+            int soft = sfz.indexOf("sample=Piano_Soft-C3-1.wav");
+            int medium = sfz.indexOf("sample=Piano_Medium-C3-1.wav");
+            Assert.assertTrue(sfz, hard < soft && soft < medium);
+            // Layers 12dB apart: boundaries at 127 * 10^(-18/40) and 127 * 10^(-6/40):
+            Assert.assertTrue(sfz, sfz.contains("<group> lovel=0 hivel=45" + NL + "seq_length=1" + NL
+                    + "<region>" + NL + "sample=Piano_Hard-C3-1.wav"));
+            Assert.assertTrue(sfz, sfz.contains("<group> lovel=46 hivel=90" + NL + "seq_length=1" + NL
+                    + "<region>" + NL + "sample=Piano_Soft-C3-1.wav"));
+            Assert.assertTrue(sfz, sfz.contains("<group> lovel=91 hivel=127" + NL + "seq_length=1" + NL
+                    + "<region>" + NL + "sample=Piano_Medium-C3-1.wav"));
+        }
+    }
+}
@@ -16,6 +16,7 @@
  *
  */
 
+import java.util.stream.IntStream;
 import org.actg.createsfz.MIDI;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -71,4 +72,56 @@ public class TestMIDI {
         Assert.assertEquals(96, MIDI.noteNameToNumber("C6"));
         Assert.assertEquals(108, MIDI.noteNameToNumber("C7"));
     }
+
+    @Test
+    public void testFlatsAndLowerCase() {
+        Assert.assertEquals(70, MIDI.noteNameToNumber("Bb3"));
+        Assert.assertEquals(63, MIDI.noteNameToNumber("Eb3"));
+        Assert.assertEquals(61, MIDI.noteNameToNumber("Db3"));
+        Assert.assertEquals(70, MIDI.noteNameToNumber("bb3"));
+        Assert.assertEquals(71, MIDI.noteNameToNumber("b3"));
+        Assert.assertEquals(66, MIDI.noteNameToNumber("f#3"));
+        Assert.assertEquals(23, MIDI.noteNameToNumber("b-1"));
+        Assert.assertEquals(59, MIDI.noteNameToNumber("Cb3")); // B2
+        Assert.assertEquals(72, MIDI.noteNameToNumber("B#3")); // C4
+        Assert.assertEquals(61, MIDI.noteNameToNumber("C\u266f3"));
+        Assert.assertEquals(70, MIDI.noteNameToNumber("B\u266d3"));
+    }
+
+    @Test
+    public void testOctaves() {
+        Assert.assertEquals(60, MIDI.noteNameToNumber("C4", 0, 2, MIDI.Octaves.ROLAND));
+        Assert.assertEquals(0, MIDI.noteNameToNumber("C-1", 0, 3, MIDI.Octaves.ROLAND));
+        Assert.assertEquals(127, MIDI.noteNameToNumber("G9", 0, 2, MIDI.Octaves.ROLAND));
+        Assert.assertEquals(127, MIDI.noteNameToNumber("G8"));
+        Assert.assertEquals(69, MIDI.noteNameToNumber("x_A3-1", 2, 4, MIDI.Octaves.YAMAHA));
+        Assert.assertEquals(MIDI.Octaves.ROLAND, MIDI.Octaves.forName("roland"));
+    }
+
+    @Test
+    public void testNumbersToNames() {
+        Assert.assertEquals("C3", MIDI.noteNumberToName(60));
+        Assert.assertEquals("C#4", MIDI.noteNumberToName(61, MIDI.Octaves.ROLAND));
+        Assert.assertEquals("C-2", MIDI.noteNumberToName(0));
+        Assert.assertEquals("G8", MIDI.noteNumberToName(127));
+        // Every name parses back to its number, from many threads at once:
+        for (final MIDI.Octaves octaves : MIDI.Octaves.values()) {
+            IntStream.range(0, 128 * 1000).parallel().forEach(i -> {
+                String name = MIDI.noteNumberToName(i % 128, octaves);
+                Assert.assertEquals(i % 128, MIDI.noteNameToNumber(name, 0, name.length(), octaves));
+            });
+        }
+    }
+
+    @Test
+    public void testNotNoteNames() {
+        for (String name : new String[]{"", "C", "H3", "C#", "Bb", "C3x", "3C", "G#8", "C-3", "C99999999999"}) {
+            try {
+                MIDI.noteNameToNumber(name);
+                Assert.fail(name);
+            } catch (NumberFormatException nfe) {
+                // expected
+            }
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import org.actg.createsfz.NoteMap;
+import org.actg.createsfz.Sample;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the per-note arrays of Samples and their velocity layers.
+ */
+public class TestNoteMap {
+
+    @Test
+    public void testOrder() {
+        NoteMap map = new NoteMap();
+        Sample c2 = new Sample("c2.wav", 60, 2, 1);
+        Sample c1b = new Sample("c1b.wav", 60, 1, 2);
+        Sample c1a = new Sample("c1a.wav", 60, 1, 1);
+        map.add(new Sample("e.wav", 64, 2, 1));
+        map.add(c2);
+        map.add(c1b);
+        map.add(c1a);
+        Assert.assertEquals("[60, 64]", map.toString());
+        Assert.assertEquals(2, map.noteCount());
+        Assert.assertEquals(4, map.size());
+        List<Integer> numbers = new ArrayList<>();
+        for (NoteMap.Note note : map) {
+            numbers.add(note.getNumber());
+        }
+        Assert.assertEquals("[60, 64]", numbers.toString());
+        NoteMap.Note c = map.get(60);
+        Assert.assertSame(c1a, c.get(0));
+        Assert.assertSame(c1b, c.get(1));
+        Assert.assertSame(c2, c.get(2));
+    }
+
+    @Test
+    public void testLayers() {
+        NoteMap map = new NoteMap();
+        Sample[] first = new Sample[4];
+        for (int velocity = 3; velocity >= 1; velocity--) {
+            for (int id = velocity; id >= 1; id--) {
+                first[velocity] = new Sample("s" + velocity + "_" + id + ".wav", 48, velocity, id);
+                map.add(first[velocity]);
+            }
+        }
+        NoteMap.Note note = map.get(48);
+        Assert.assertEquals(3, note.layerCount());
+        for (int layer = 0; layer < 3; layer++) {
+            Assert.assertEquals(layer + 1, note.layerEnd(layer) - note.layerStart(layer));
+            Assert.assertSame(first[layer + 1], note.get(note.layerStart(layer)));
+        }
+        // Layers are found again after a change:
+        map.add(new Sample("s4_1.wav", 48, 4, 1));
+        Assert.assertEquals(4, note.layerCount());
+    }
+
+    @Test
+    public void testDuplicatesAndRemove() {
+        NoteMap map = new NoteMap();
+        map.add(new Sample("a.wav", 60, 1, 1));
+        map.add(new Sample("a.wav", 60, 1, 1));
+        map.add(new Sample("b.wav", 62, 1, 1));
+        Assert.assertEquals(1, map.get(60).size());
+        Assert.assertEquals(60, map.remove("a.wav"));
+        Assert.assertNull(map.get(60));
+        Assert.assertEquals(-1, map.remove("a.wav"));
+        Assert.assertEquals("[62]", map.toString());
+        Assert.assertEquals(62, map.remove("b.wav"));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRange() {
+        new NoteMap().add(new Sample("x.wav", 128, 1, 1));
+    }
+}
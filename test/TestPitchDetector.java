@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.PitchDetector;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test pitch detection on generated tones.
+ */
+public class TestPitchDetector {
+
+    public TestPitchDetector() {
+    }
+
+    /**
+     * Write one second of a 16 bit mono sine wave, or silence if frequency is 0.
+     */
+    protected File writeTone(double frequency, int rate) throws IOException {
+        int frames = rate;
+        ByteBuffer b = ByteBuffer.allocate(44 + frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + frames * 2).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) 1).putShort((short) 1).putInt(rate).putInt(rate * 2).putShort((short) 2).putShort((short) 16);
+        b.put("data".getBytes()).putInt(frames * 2);
+        for (int i = 0; i < frames; i++) {
+            b.putShort((short) (16000 * Math.sin(2 * Math.PI * frequency * i / rate)));
+        }
+        File f = File.createTempFile("TestPitchDetector", ".wav");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b.array(), 0, b.position());
+        }
+        return f;
+    }
+
+    protected PitchDetector.Result detect(double frequency, int rate) throws IOException {
+        File f = writeTone(frequency, rate);
+        return new PitchDetector().detect(f, WavInfo.read(f));
+    }
+
+    @Test
+    public void testA440() throws IOException {
+        PitchDetector.Result r = detect(440.0, 44100);
+        Assert.assertEquals(69, r.getNoteNumber());
+        Assert.assertEquals(440.0, r.getFrequency(), 1.0);
+        Assert.assertTrue(r.getConfidence() >= PitchDetector.MIN_CONFIDENCE);
+    }
+
+    @Test
+    public void testLowAndHighNotes() throws IOException {
+        Assert.assertEquals(33, detect(55.0, 48000).getNoteNumber());
+        Assert.assertEquals(96, detect(2093.0, 44100).getNoteNumber());
+    }
+
+    @Test
+    public void testToStringInAnyLocale() throws IOException {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            String s = detect(440.0, 44100).toString();
+            Assert.assertTrue(s, s.startsWith("440."));
+            Assert.assertTrue(s, s.contains(", confidence 0.") || s.contains(", confidence 1."));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testSilence() throws IOException {
+        Assert.assertNull(detect(0.0, 44100));
+    }
+
+    @Test
+    public void testRemovedBeforeDetection() throws IOException {
+        File dir = Fixtures.writeDirectory("TestPitchDetector");
+        Fixtures.writeWav(new File(dir, "Pad.wav"), 44100, Fixtures.tone(44100, 44100, 440.0, 0.5));
+        Fixtures.writeWav(new File(dir, "Lead.wav"), 44100, Fixtures.tone(44100, 44100, 220.0, 0.5));
+        CreateSFZ.Format format = new CreateSFZ().formatForName("detect");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner, null, true);
+            Assert.assertTrue(sc.allSamples().isEmpty());
+            // Removed, e.g. deleted while watched, before its pitch was detected:
+            Assert.assertFalse(sc.removeSample("Pad.wav"));
+            sc.readWavInfo(scanner);
+            Assert.assertEquals(1, sc.detectPitch(scanner, new PitchDetector()));
+            Assert.assertEquals(1, sc.allSamples().size());
+            Assert.assertTrue(Fixtures.print(sc).contains("sample=Lead.wav"));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.actg.createsfz.SFZOptimizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that optimized .sfz text maps the same regions.
+ */
+public class TestSFZOptimizer {
+
+    protected static final String SFZ = "//\n// header\n//\n<control>\ndefault_path=/samples/\n// [60, 62]\n"
+            + "\n// Note: 60\n<global>\npitch_keycenter=60\nlokey=36\nhikey=60\n"
+            + "<group> lovel=0 hivel=62\nseq_length=2\n"
+            + "<region>\nsample=Long/Directory/Name/P_Soft-C3-1.wav\nseq_position=1\n\n"
+            + "<region>\nsample=Long/Directory/Name/P_Soft-C3-2.wav\nseq_position=2\npitch_keycenter=61\n\n"
+            + "<group> lovel=63 hivel=127\nseq_length=1\n"
+            + "<region>\nsample=Long/Directory/Name/P_Hard-C3-1.wav\nseq_position=1\n\n"
+            + "\n// Note: 62\n<global>\npitch_keycenter=62\nlokey=61\nhikey=62\n"
+            + "<group> \nseq_length=1\n"
+            + "<region>\nsample=Long/Directory/Name/P_Soft-D3-1.wav\nseq_position=1\ntrigger=release\nvolume=-3\n\n"
+            + "<region>\nsample=Long/Directory/Name/P_Hard-D3-1.wav\nseq_position=1\ntrigger=release\nvolume=-3\n\n"
+            + "//\n// footer\n//\n";
+
+    @Test
+    public void testSameRegions() {
+        String optimized = new SFZOptimizer().optimize(SFZ);
+        List<Map<String, String>> regions = SFZOptimizer.regions(SFZ);
+        Assert.assertEquals(5, regions.size());
+        Assert.assertEquals("61", regions.get(1).get("pitch_keycenter"));
+        Assert.assertEquals(regions, SFZOptimizer.regions(optimized));
+        Assert.assertTrue(optimized.length() < SFZ.length());
+    }
+
+    @Test
+    public void testHoistAndDefine() {
+        String optimized = new SFZOptimizer().optimize(SFZ);
+        Assert.assertTrue(optimized.contains("#define $P1 Long/Directory/Name\n"));
+        Assert.assertTrue(optimized.contains("sample=$P1/P_Soft-C3-1.wav\n"));
+        // Shared by both regions of the second note:
+        Assert.assertTrue(optimized.contains("<master>\npitch_keycenter=62\nlokey=61\nhikey=62\ntrigger=release\nvolume=-3\n"));
+        Assert.assertFalse(optimized.contains("seq_position=1\n"));
+        Assert.assertFalse(optimized.contains("// Note:"));
+    }
+
+    @Test
+    public void testReportInBytes() {
+        // Sizes are of the text encoded in the file's charset:
+        String sfz = SFZ.replace("Directory", "R\u00e9pertoire");
+        SFZOptimizer optimizer = new SFZOptimizer(StandardCharsets.UTF_8);
+        String optimized = optimizer.optimize(sfz);
+        Assert.assertTrue(optimized.contains("#define $P1 Long/R\u00e9pertoire/Name\n"));
+        Assert.assertTrue(optimizer.report(), optimizer.report().startsWith("Optimized SFZ: "
+                + sfz.getBytes(StandardCharsets.UTF_8).length + " bytes, 52 lines -> "
+                + optimized.getBytes(StandardCharsets.UTF_8).length + " bytes, "));
+        Assert.assertTrue(sfz.getBytes(StandardCharsets.UTF_8).length > sfz.length());
+    }
+}
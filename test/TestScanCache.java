@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.function.Consumer;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.ScanCache;
+import org.actg.createsfz.Stats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test saving and reloading the scan cache, and which files it misses.
+ */
+public class TestScanCache {
+
+    protected static final String[] NAMES = {"Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav", "Piano_Hard-D3-1.wav", "notes.txt"};
+
+    protected final CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+
+    /**
+     * Scan a directory using a cache file, then save the cache.
+     */
+    protected SampleCollection scan(File dir, File cacheFile, ScanCache[] cache) throws IOException {
+        cache[0] = ScanCache.load(cacheFile, dir);
+        cache[0].setOctaves("YAMAHA");
+        cache[0].setFormatName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner, cache[0]);
+            cache[0].save();
+            return sc;
+        }
+    }
+
+    /**
+     * Create an instrument from a directory, with the given options, and any
+     * cache file.
+     *
+     * @return the .sfz text, without the Format's name
+     */
+    protected String create(File dir, File cacheFile, Consumer<CreateSFZ.Options> options) throws IOException {
+        CreateSFZ.Options o = new CreateSFZ.Options();
+        o.formatName = "format1";
+        o.threads = 2;
+        if (cacheFile != null) {
+            o.cache = true;
+            o.cacheFilename = cacheFile.getPath();
+        }
+        options.accept(o);
+        SampleCollection sc = new CreateSFZ(o, dir.getPath(), Collections.<String>emptyList()).getSampleCollection();
+        return Fixtures.print(sc).replaceAll("// Sample filename format: .*", "");
+    }
+
+    /**
+     * Two velocity layers of a steady tone, after silence.
+     */
+    protected File writeSamples() throws IOException {
+        File dir = Fixtures.writeDirectory("TestScanCache");
+        double[] amplitudes = {0.1, 0.8};
+        String[] names = {"Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav"};
+        for (int i = 0; i < names.length; i++) {
+            double[] s = new double[96000];
+            System.arraycopy(Fixtures.tone(91200, 48000, 1000.0, amplitudes[i]), 0, s, 4800, 91200);
+            Fixtures.writeWav(new File(dir, names[i]), 48000, s);
+        }
+        return dir;
+    }
+
+    @Test
+    public void testWavInfoOnlyIfRead() throws IOException {
+        File dir = writeSamples();
+        File cacheFile = cacheFile();
+        String wavInfo = create(dir, null, o -> o.wavInfo = true);
+        Assert.assertTrue(wavInfo, wavInfo.contains("end=95999"));
+        Assert.assertEquals(wavInfo, create(dir, cacheFile, o -> o.wavInfo = true));
+        // Cached, but not asked for:
+        String none = create(dir, null, o -> {
+        });
+        Assert.assertFalse(none, none.contains("end="));
+        Assert.assertEquals(none, create(dir, cacheFile, o -> {
+        }));
+        // ...and still cached for a later scan which asks for it:
+        Assert.assertEquals(wavInfo, create(dir, cacheFile, o -> o.wavInfo = true));
+    }
+
+    @Test
+    public void testTrimOnlyAtTrimLevel() throws IOException {
+        File dir = writeSamples();
+        File cacheFile = cacheFile();
+        String trim = create(dir, null, o -> o.trim = true);
+        Assert.assertEquals(trim, 2, Fixtures.count(trim, "offset=4705"));
+        Assert.assertEquals(trim, create(dir, cacheFile, o -> o.trim = true));
+        // Without -trim, no offset= from the cache:
+        String wavInfo = create(dir, null, o -> o.wavInfo = true);
+        Assert.assertFalse(wavInfo, wavInfo.contains("offset="));
+        Assert.assertEquals(wavInfo, create(dir, cacheFile, o -> o.wavInfo = true));
+        // At another level the trim is found again. The soft layer (-20dBFS) is all below it, so not trimmed:
+        String level = create(dir, null, o -> {
+            o.trim = true;
+            o.trimLevel = -10.0;
+        });
+        Assert.assertEquals(1, Fixtures.count(level, "offset="));
+        Assert.assertEquals(level, create(dir, cacheFile, o -> {
+            o.trim = true;
+            o.trimLevel = -10.0;
+        }));
+        Assert.assertEquals(trim, create(dir, cacheFile, o -> o.trim = true));
+    }
+
+    @Test
+    public void testLoopsOnlyIfFound() throws IOException {
+        File dir = writeSamples();
+        File cacheFile = cacheFile();
+        String loops = create(dir, null, o -> o.findLoops = true);
+        Assert.assertEquals(loops, 2, Fixtures.count(loops, "loop_mode=loop_continuous"));
+        Assert.assertEquals(loops, create(dir, cacheFile, o -> o.findLoops = true));
+        // Without -findLoops, no loop from the cache:
+        String wavInfo = create(dir, null, o -> o.wavInfo = true);
+        Assert.assertFalse(wavInfo, wavInfo.contains("loop_"));
+        Assert.assertEquals(wavInfo, create(dir, cacheFile, o -> o.wavInfo = true));
+        Assert.assertEquals(loops, create(dir, cacheFile, o -> o.findLoops = true));
+    }
+
+    @Test
+    public void testOnlyAnalysisAskedFor() throws IOException {
+        File dir = writeSamples();
+        File cacheFile = cacheFile();
+        Consumer<CreateSFZ.Options> all = o -> {
+            o.wavInfo = true;
+            o.loudness = true;
+            o.trim = true;
+            o.findLoops = true;
+        };
+        String analysed = create(dir, null, all);
+        Assert.assertTrue(analysed, analysed.contains("<group> lovel=0 hivel=76"));
+        Assert.assertEquals(analysed, create(dir, cacheFile, all));
+        // With every analysis cached, a scan asking for none is as without the cache:
+        String none = create(dir, null, o -> {
+        });
+        Assert.assertEquals(none, create(dir, cacheFile, o -> {
+        }));
+        for (String opcode : new String[]{"offset=", "end=", "loop_", "hivel=76"}) {
+            Assert.assertFalse(none, none.contains(opcode));
+        }
+        // Loudness only from the cache if measured:
+        String wavInfo = create(dir, null, o -> o.wavInfo = true);
+        Assert.assertFalse(wavInfo, wavInfo.contains("hivel=76"));
+        Assert.assertEquals(wavInfo, create(dir, cacheFile, o -> o.wavInfo = true));
+        Assert.assertEquals(analysed, create(dir, cacheFile, all));
+    }
+
+    protected File cacheFile() throws IOException {
+        File f = File.createTempFile("TestScanCache", ".scancache");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void testReloadAndHit() throws IOException {
+        File dir = Fixtures.writeDirectory("TestScanCache", NAMES, new int[]{1, 2, 3, 4}, 100);
+        File cacheFile = cacheFile();
+        ScanCache[] cache = new ScanCache[1];
+        String first = Fixtures.print(scan(dir, cacheFile, cache));
+        Assert.assertEquals(0, cache[0].getHits());
+        Assert.assertEquals(4, cache[0].getMisses());
+        Assert.assertTrue(cacheFile.length() > 0);
+
+        SampleCollection sc = scan(dir, cacheFile, cache);
+        Assert.assertEquals("format1", cache[0].getFormatName());
+        // Files which are not samples are cached too:
+        Assert.assertEquals(4, cache[0].getHits());
+        Assert.assertEquals(0, cache[0].getMisses());
+        Assert.assertEquals(4, sc.getStats().get(Stats.Counter.CACHED));
+        Assert.assertEquals(0, sc.getStats().getTimes(Stats.Phase.DECODE));
+        Assert.assertEquals(first, Fixtures.print(sc));
+    }
+
+    @Test
+    public void testMissAfterChange() throws IOException {
+        File dir = Fixtures.writeDirectory("TestScanCache", NAMES, new int[]{1, 2, 3, 4}, 100);
+        File cacheFile = cacheFile();
+        ScanCache[] cache = new ScanCache[1];
+        String first = Fixtures.print(scan(dir, cacheFile, cache));
+
+        // One file grows, another keeps its size but is modified later:
+        try (FileOutputStream out = new FileOutputStream(new File(dir, NAMES[0]), true)) {
+            out.write(1);
+        }
+        File touched = new File(dir, NAMES[1]);
+        Assert.assertTrue(touched.setLastModified(touched.lastModified() - 60000));
+        SampleCollection sc = scan(dir, cacheFile, cache);
+        Assert.assertEquals(2, cache[0].getHits());
+        Assert.assertEquals(2, cache[0].getMisses());
+        Assert.assertEquals(2, sc.getStats().getTimes(Stats.Phase.DECODE));
+        Assert.assertEquals(first, Fixtures.print(sc));
+
+        // The changed files were written back, so now hit:
+        scan(dir, cacheFile, cache);
+        Assert.assertEquals(4, cache[0].getHits());
+    }
+
+    @Test
+    public void testMissAfterVersionChange() throws IOException {
+        File dir = Fixtures.writeDirectory("TestScanCache", NAMES, new int[]{1, 2, 3, 4}, 100);
+        File cacheFile = cacheFile();
+        ScanCache[] cache = new ScanCache[1];
+        scan(dir, cacheFile, cache);
+        // A cache file written by an older version, after the magic number:
+        try (RandomAccessFile f = new RandomAccessFile(cacheFile, "rw")) {
+            f.seek(4);
+            Assert.assertEquals(ScanCache.VERSION, f.readInt());
+            f.seek(4);
+            f.writeInt(ScanCache.VERSION - 1);
+        }
+        ScanCache old = ScanCache.load(cacheFile, dir);
+        Assert.assertNull(old.getFormatName());
+        scan(dir, cacheFile, cache);
+        Assert.assertEquals(0, cache[0].getHits());
+        Assert.assertEquals(4, cache[0].getMisses());
+    }
+
+    @Test
+    public void testMissWithOtherFormat() throws IOException {
+        File dir = Fixtures.writeDirectory("TestScanCache", NAMES, new int[]{1, 2, 3, 4}, 100);
+        File cacheFile = cacheFile();
+        scan(dir, cacheFile, new ScanCache[1]);
+        ScanCache cache = ScanCache.load(cacheFile, dir);
+        cache.setFormatName("format2");
+        ScanCache.Entry e = cache.lookup(NAMES[0]);
+        Assert.assertFalse(e.isHit());
+        Assert.assertNull(e.getSample());
+    }
+}
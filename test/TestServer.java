@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.Server;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the resident server: requests, keeping a scanned directory, and
+ * dropping it when the directory changes.
+ */
+public class TestServer {
+
+    protected String[] request(Server server, String method, String path, String body) throws IOException {
+        return request(server.getPort(), server.getToken(), method, path, body);
+    }
+
+    /**
+     * @param token or null to send none
+     * @return the response code, then the response text
+     */
+    protected String[] request(int port, String token, String method, String path, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        c.setRequestMethod(method);
+        if (token != null) {
+            c.setRequestProperty(Server.TOKEN_HEADER, token);
+        }
+        if (body != null) {
+            c.setDoOutput(true);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = c.getResponseCode();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = code < 400 ? c.getInputStream() : c.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return new String[]{Integer.toString(code), new String(bytes.toByteArray(), StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * POST as a web page would, with an Origin header, which
+     * HttpURLConnection does not send.
+     *
+     * @return the status line
+     */
+    protected String requestWithOrigin(Server server, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /create HTTP/1.1\r\nHost: 127.0.0.1\r\nOrigin: http://example.com\r\n"
+                    + Server.TOKEN_HEADER + ": " + server.getToken() + "\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+        }
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        File dir = Fixtures.writeDirectory("TestServer", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav", "Piano_Hard-D3-1.wav");
+        File output = new File(dir, "out.sfz");
+        output.deleteOnExit();
+        String create = dir.getPath() + "\n-format\nformat1\n-o\n" + output.getPath() + "\n-F\n-stats\n-\n";
+        CreateSFZ.Options options = new CreateSFZ.Options();
+        options.serverPort = 0;
+        options.jobs = 2;
+        Server server = new Server(options);
+        server.start();
+        try {
+            String[] r = request(server, "POST", "/create", create);
+            Assert.assertEquals("200", r[0]);
+            Assert.assertTrue(r[1], r[1].contains("3 files, scanned"));
+            Assert.assertTrue(r[1], r[1].contains("\"emit\": {\"ms\": "));
+            Assert.assertTrue(r[1], r[1].contains("\"listed\": 3,"));
+            Assert.assertTrue(output.length() > 0);
+
+            // The Stats of each request are its own, not summed over requests:
+            for (int i = 0; i < 2; i++) {
+                r = request(server, "POST", "/create", create);
+                Assert.assertEquals("200", r[0]);
+                Assert.assertTrue(r[1], r[1].contains("3 files, kept"));
+                Assert.assertTrue(r[1], r[1].contains("\"emit\": {\"ms\": "));
+                Assert.assertTrue(r[1], r[1].contains("\"count\": 1}"));
+                Assert.assertFalse(r[1], r[1].contains("\"list\": "));
+                Assert.assertTrue(r[1], r[1].contains("\"listed\": 0,"));
+            }
+
+            // A new sample drops the kept collection:
+            File added = new File(dir, "Piano_Hard-E3-1.wav");
+            added.createNewFile();
+            added.deleteOnExit();
+            for (int i = 0; i < 100 && !request(server, "GET", "/status", null)[1].contains("invalidations 1"); i++) {
+                Thread.sleep(100);
+            }
+            r = request(server, "POST", "/create", create);
+            Assert.assertEquals("200", r[0]);
+            Assert.assertTrue(r[1], r[1].contains("4 files, scanned"));
+
+            Assert.assertEquals("400", request(server, "POST", "/create", dir.getPath() + "\n-watch\n")[0]);
+            Assert.assertEquals("405", request(server, "GET", "/create", null)[0]);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        File dir = Fixtures.writeDirectory("TestServer", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav");
+        File outside = File.createTempFile("TestServer", ".sfz");
+        outside.delete();
+        CreateSFZ.Options options = new CreateSFZ.Options();
+        options.serverPort = 0;
+        options.jobs = 2;
+        Server server = new Server(options);
+        server.start();
+        try {
+            int port = server.getPort();
+            String create = dir.getPath() + "\n-format\nformat1\n";
+            Assert.assertEquals("403", request(port, null, "POST", "/create", create)[0]);
+            Assert.assertEquals("403", request(port, "wrong", "POST", "/create", create)[0]);
+            Assert.assertEquals("403", request(port, null, "GET", "/status", null)[0]);
+            // From a web page, even with the token:
+            String status = requestWithOrigin(server, create);
+            Assert.assertTrue(status, status.startsWith("HTTP/1.1 403"));
+
+            // Writing outside the request's directory:
+            for (String option : new String[]{"-o", "-stats", "-cacheFile", "-flac", "-lite"}) {
+                String[] r = request(server, "POST", "/create", create + option + "\n" + outside.getPath() + "\n");
+                Assert.assertEquals(option, "400", r[0]);
+                Assert.assertTrue(r[1], r[1].contains("not in the request's directory"));
+            }
+            String[] r = request(server, "POST", "/create", create + "-o\n" + new File(dir, "../escaped.sfz").getPath() + "\n");
+            Assert.assertEquals("400", r[0]);
+            Assert.assertFalse(outside.exists());
+
+            // By default, the .sfz file is written in the request's directory:
+            r = request(server, "POST", "/create", create);
+            Assert.assertEquals(r[1], "200", r[0]);
+            File sfz = new File(dir, "Piano.sfz");
+            sfz.deleteOnExit();
+            Assert.assertTrue(r[1], sfz.length() > 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testKeyHasEveryOption() throws Exception {
+        File dir = Fixtures.writeDirectory("TestServer", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav");
+        File output = new File(dir, "out.sfz");
+        output.deleteOnExit();
+        CreateSFZ.Options options = new CreateSFZ.Options();
+        options.serverPort = 0;
+        options.jobs = 2;
+        Server server = new Server(options);
+        server.start();
+        try {
+            String create = dir.getPath() + "\n-format\nformat1\n-o\n" + output.getPath() + "\n-F\n";
+            Assert.assertTrue(request(server, "POST", "/create", create)[1].contains("scanned"));
+            // Only written with the collection, so kept:
+            Assert.assertTrue(request(server, "POST", "/create", create + "-releaseLevel\n-6\n")[1].contains("kept"));
+            // An option no key listed by hand, which changes the collection:
+            Assert.assertTrue(request(server, "POST", "/create", create + "-dedupe\n")[1].contains("scanned"));
+            Assert.assertTrue(request(server, "POST", "/create", create + "-liteBits\n8\n")[1].contains("scanned"));
+        } finally {
+            server.stop();
+        }
+    }
+}
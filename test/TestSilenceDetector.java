@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.SilenceDetector;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test finding leading silence and a quiet tail in a generated WAV file.
+ */
+public class TestSilenceDetector {
+
+    protected static final int RATE = 48000;
+    protected static final String NL = System.lineSeparator();
+
+    /**
+     * 4800 frames of silence, 9600 of a 1kHz tone at -6dBFS, 4800 of the tone
+     * at -66dBFS, then 2400 of silence.
+     */
+    protected File writeSample(File f) throws IOException {
+        double[] s = new double[21600];
+        for (int i = 4800; i < 19200; i++) {
+            s[i] = (i < 14400 ? 0.5 : 0.0005) * Math.cos(2 * Math.PI * 1000.0 * i / RATE);
+        }
+        return Fixtures.writeWav(f, RATE, s);
+    }
+
+    @Test
+    public void testDetect() throws IOException {
+        File f = writeSample(File.createTempFile("TestSilenceDetector", ".wav"));
+        WavInfo info = WavInfo.read(f);
+        // The margin is 96 frames at 48kHz:
+        SilenceDetector.Result r = new SilenceDetector(SilenceDetector.DEFAULT_THRESHOLD).detect(f, info);
+        Assert.assertEquals(4800 - 96, r.getStart());
+        Assert.assertEquals(14399 + 96, r.getEnd());
+        // A lower threshold keeps the tail:
+        r = new SilenceDetector(-70.0).detect(f, info);
+        Assert.assertEquals(4800 - 96, r.getStart());
+        Assert.assertEquals(19199 + 96, r.getEnd());
+        // Above the loudest frame, nothing to play:
+        Assert.assertNull(new SilenceDetector(-3.0).detect(f, info));
+    }
+
+    @Test
+    public void testOffsetAndEnd() throws IOException {
+        File dir = Fixtures.writeDirectory("TestSilenceDetector");
+        writeSample(new File(dir, "Piano_Soft-C3-1.wav"));
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            sc.readWavInfo(scanner);
+            String sfz = Fixtures.print(sc);
+            Assert.assertFalse(sfz, sfz.contains("offset="));
+            Assert.assertTrue(sfz, sfz.contains("end=21599" + NL));
+            Assert.assertEquals(1, sc.detectSilence(scanner, new SilenceDetector(SilenceDetector.DEFAULT_THRESHOLD)));
+            sfz = Fixtures.print(sc);
+            Assert.assertTrue(sfz, sfz.contains("offset=4704" + NL + "end=14495" + NL));
+            // Already trimmed at this level, so not read again:
+            Assert.assertEquals(0, sc.detectSilence(scanner, new SilenceDetector(SilenceDetector.DEFAULT_THRESHOLD)));
+            Assert.assertEquals(1, sc.detectSilence(scanner, new SilenceDetector(-70.0)));
+            sfz = Fixtures.print(sc);
+            Assert.assertTrue(sfz, sfz.contains("offset=4704" + NL + "end=19295" + NL));
+        }
+    }
+}
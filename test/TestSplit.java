@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test splitting one directory into an instrument per sample base name.
+ */
+public class TestSplit {
+
+    protected static final String[] BASE_NAMES = {"Strings", "Piano", "Harp"};
+
+    protected File writeDirectory() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String baseName : BASE_NAMES) {
+            for (String name : new String[]{"_Soft-C3-1.wav", "_Hard-C3-1.wav", "_Hard-D3-1.wav"}) {
+                names.add(baseName + name);
+            }
+        }
+        return Fixtures.writeDirectory("TestSplit", names.toArray(new String[0]));
+    }
+
+    @Test
+    public void testSplitByBaseName() throws IOException {
+        File dir = writeDirectory();
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection whole = new SampleCollection(format, dir.getPath() + File.separator, null, scanner, null, true);
+            Assert.assertEquals(9, whole.allSamples().size());
+            List<SampleCollection> parts = whole.splitByBaseName();
+            Assert.assertEquals(3, parts.size());
+            String[] sorted = {"Harp", "Piano", "Strings"};
+            for (int i = 0; i < parts.size(); i++) {
+                Assert.assertEquals(3, parts.get(i).allSamples().size());
+                String sfz = Fixtures.print(parts.get(i));
+                for (String baseName : BASE_NAMES) {
+                    Assert.assertEquals(baseName, baseName.equals(sorted[i]), sfz.contains("sample=" + baseName + "_"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOneBaseNameWithoutSplit() throws IOException {
+        File dir = writeDirectory();
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            // The first base name in sorted order is kept, the others ignored:
+            Assert.assertEquals(3, sc.allSamples().size());
+            Assert.assertTrue(Fixtures.print(sc).contains("sample=Harp_"));
+        }
+    }
+}
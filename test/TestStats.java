@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.SampleCollection;
+import org.actg.createsfz.Stats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the phase timings and file counts kept while scanning.
+ */
+public class TestStats {
+
+    @Test
+    public void testCounts() throws IOException {
+        File dir = Fixtures.writeDirectory("TestStats", "Piano_Soft-C3-1.wav", "Piano_Hard-C3-1.wav", "Piano_Hard-D3-1.wav",
+                "Strings_Hard-C3-1.wav", "Piano_Hard-X3-1.wav", "notes.txt", "readme.wav");
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, ".wav", scanner, null);
+            Stats stats = sc.getStats();
+            Assert.assertEquals(7, stats.get(Stats.Counter.LISTED));
+            Assert.assertEquals(1, stats.get(Stats.Counter.FILTERED)); // notes.txt
+            Assert.assertEquals(5, stats.get(Stats.Counter.MATCHED));
+            Assert.assertEquals(1, stats.get(Stats.Counter.UNMATCHED)); // readme.wav
+            Assert.assertEquals(1, stats.get(Stats.Counter.SKIPPED)); // note X3
+            Assert.assertEquals(1, stats.get(Stats.Counter.IGNORED)); // Strings
+            Assert.assertEquals(3, sc.allSamples().size());
+            Assert.assertEquals(1, stats.getTimes(Stats.Phase.LIST));
+            Assert.assertEquals(1, stats.getTimes(Stats.Phase.MATCH));
+            Assert.assertEquals(5, stats.getTimes(Stats.Phase.DECODE));
+            Assert.assertEquals(0, stats.getTimes(Stats.Phase.EMIT));
+        }
+    }
+
+    @Test
+    public void testJSON() {
+        Stats stats = new Stats();
+        stats.setDirectory("a \"quoted\\\" dir/");
+        stats.setFormatName("format1");
+        Stats.Timer listTimer = stats.time(Stats.Phase.LIST);
+        try {
+            stats.count(Stats.Counter.LISTED, 3);
+        } finally {
+            listTimer.stop();
+        }
+        stats.add(Stats.Phase.DECODE, 1500000, 3);
+        String json = stats.toJSON(null, 2, 1, 2000000);
+        Assert.assertTrue(json, json.startsWith("{\"directory\": \"a \\\"quoted\\\\\\\" dir/\", \"format\": \"format1\", \"output\": null, \"totalMs\": 2.000,"));
+        Assert.assertTrue(json, json.contains("\"decode\": {\"ms\": 1.500, \"count\": 3}"));
+        Assert.assertFalse(json, json.contains("\"emit\""));
+        Assert.assertTrue(json, json.contains("\"listed\": 3, \"filtered\": 0,"));
+        Assert.assertTrue(json, json.endsWith("\"unpitched\": 1, \"used\": 2}}"));
+
+        Stats total = new Stats();
+        total.add(stats);
+        total.add(stats);
+        Assert.assertEquals(6, total.get(Stats.Counter.LISTED));
+        Assert.assertEquals(3000000, total.getNanos(Stats.Phase.DECODE));
+        Assert.assertEquals(2, total.getTimes(Stats.Phase.LIST));
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.DirectoryScanner;
+import org.actg.createsfz.OutputTarget;
+import org.actg.createsfz.SampleCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test writing the .sfz, DecentSampler and JSON targets of one collection.
+ */
+public class TestTargets {
+
+    protected String read(File f) throws IOException {
+        f.deleteOnExit();
+        return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testAllTargets() throws IOException {
+        File dir = Fixtures.writeDirectory("TestTargets", "Piano_Soft-C3-1.wav", "Piano_Soft-C3-2.wav", "Piano_Hard-C3-1.wav",
+                "Piano_Soft-D3-1.wav", "Piano_Hard-D3-1.wav");
+        CreateSFZ.Format format = new CreateSFZ().formatForName("format1");
+        try (DirectoryScanner scanner = new DirectoryScanner(dir, false, 2)) {
+            SampleCollection sc = new SampleCollection(format, dir.getPath() + File.separator, null, scanner);
+            String sfz = Fixtures.print(sc);
+            sc.setTargets(OutputTarget.forNames("sfz,dspreset,json"));
+            File out = File.createTempFile("TestTargets", ".sfz");
+            sc.writeSFZ(out.getPath(), CreateSFZ.KEY_RANGE, CreateSFZ.KEY_RANGE, 0);
+            // The .sfz is as before:
+            Assert.assertEquals(sfz, read(out));
+
+            String base = out.getPath().substring(0, out.getPath().length() - 4);
+            String preset = read(new File(base + ".dspreset"));
+            Assert.assertTrue(preset, preset.startsWith("<?xml"));
+            Assert.assertTrue(preset, preset.endsWith("</DecentSampler>\n"));
+            Assert.assertEquals(preset, 5, Fixtures.count(preset, "<sample "));
+            Assert.assertEquals(preset, 4, Fixtures.count(preset, "<group "));
+            Assert.assertEquals(preset, 4, Fixtures.count(preset, "</group>"));
+            Assert.assertTrue(preset, preset.contains("Piano_Soft-C3-2.wav\" rootNote=\"60\" loNote=\"36\" hiNote=\"60\" seqPosition=\"2\""));
+            Assert.assertTrue(preset, preset.contains("<group loVel=\"0\" hiVel=\"62\" seqMode=\"round_robin\" seqLength=\"2\">"));
+
+            String json = read(new File(base + ".json"));
+            Assert.assertTrue(json, json.startsWith("{\"instrument\": \"Piano\""));
+            Assert.assertTrue(json, json.endsWith("\n}\n"));
+            Assert.assertEquals(json, 5, Fixtures.count(json, "\"sample\": "));
+            Assert.assertEquals(json, 2, Fixtures.count(json, "{\"note\": "));
+            Assert.assertEquals(json, Fixtures.count(json, "{"), Fixtures.count(json, "}"));
+            Assert.assertEquals(json, Fixtures.count(json, "["), Fixtures.count(json, "]"));
+            Assert.assertTrue(json, json.contains("{\"sample\": \"Piano_Soft-C3-2.wav\", \"seq_position\": 2}"));
+        }
+    }
+
+    @Test
+    public void testTargetNames() {
+        Assert.assertEquals(3, OutputTarget.forNames("sfz, dspreset,JSON").size());
+        Assert.assertEquals("Piano-lite.dspreset", OutputTarget.forName("dspreset").filename("Piano-lite.sfz"));
+        Assert.assertEquals("Piano.sfz", OutputTarget.forName("sfz").filename("Piano.sfz"));
+        for (String names : new String[]{"sfz,exs", "json,json"}) {
+            try {
+                OutputTarget.forNames(names);
+                Assert.fail(names);
+            } catch (RuntimeException expected) {
+            }
+        }
+    }
+}
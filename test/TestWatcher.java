@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.actg.createsfz.CreateSFZ;
+import org.actg.createsfz.Watcher;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the .sfz file is rewritten, with the samples analysed, as samples
+ * are created, modified and deleted in a watched directory.
+ */
+public class TestWatcher {
+
+    protected static final String NL = System.lineSeparator();
+
+    /**
+     * Wait for the .sfz file to contain, or not, some text.
+     */
+    protected String await(File sfz, String text, boolean contains) throws Exception {
+        String s = "";
+        for (int i = 0; i < 100; i++) {
+            if (sfz.exists()) {
+                s = new String(Files.readAllBytes(sfz.toPath()), StandardCharsets.UTF_8);
+                if (s.contains(text) == contains) {
+                    return s;
+                }
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail((contains ? "missing: " : "still has: ") + text + " in:\n" + s);
+        return s;
+    }
+
+    @Test
+    public void testCreateAndDelete() throws Exception {
+        File dir = Fixtures.writeDirectory("TestWatcher");
+        Fixtures.writeWav(new File(dir, "Piano_Soft-C3-1.wav"), 44100, Fixtures.tone(1000, 44100, 261.6, 0.5));
+        File sfz = new File(dir, "Piano.sfz");
+        sfz.deleteOnExit();
+        CreateSFZ.Options options = new CreateSFZ.Options();
+        options.formatName = "format1";
+        options.wavInfo = true;
+        options.loudness = true;
+        options.watchDelay = 100;
+        options.threads = 2;
+        CreateSFZ createSFZ = new CreateSFZ(options, dir.getPath(), Collections.<String>emptyList());
+        Watcher watcher = new Watcher(createSFZ, sfz.getPath(), options.watchDelay);
+        Thread thread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.start();
+        try {
+            await(sfz, "sample=Piano_Soft-C3-1.wav" + NL + "seq_position=1" + NL + "end=999" + NL, true);
+
+            // A sample arriving is read as the first scan would, with its end= from the WAV header:
+            File tmp = Fixtures.writeWav(File.createTempFile("TestWatcher", ".wav"), 44100, Fixtures.tone(1500, 44100, 261.6, 0.9));
+            Files.move(tmp.toPath(), new File(dir, "Piano_Hard-C3-1.wav").toPath());
+            new File(dir, "Piano_Hard-C3-1.wav").deleteOnExit();
+            String s = await(sfz, "sample=Piano_Hard-C3-1.wav", true);
+            Assert.assertTrue(s, s.contains("sample=Piano_Hard-C3-1.wav" + NL + "seq_position=1" + NL + "end=1499" + NL));
+            Assert.assertTrue(s, s.contains("end=999" + NL));
+            // Velocity ranges by loudness, not split equally as without a measurement of the new sample:
+            Assert.assertTrue(s, s.contains("<group> lovel=0 hivel=110" + NL));
+            Assert.assertTrue(s, s.contains("<group> lovel=111 hivel=127" + NL));
+
+            // A sample written on in place is read again:
+            Fixtures.writeWav(new File(dir, "Piano_Hard-C3-1.wav"), 44100, Fixtures.tone(3000, 44100, 261.6, 0.9));
+            s = await(sfz, "end=2999" + NL, true);
+            Assert.assertFalse(s, s.contains("end=1499" + NL));
+
+            Files.delete(new File(dir, "Piano_Soft-C3-1.wav").toPath());
+            s = await(sfz, "sample=Piano_Soft-C3-1.wav", false);
+            Assert.assertTrue(s, s.contains("sample=Piano_Hard-C3-1.wav"));
+        } finally {
+            thread.interrupt();
+            thread.join(5000);
+        }
+        Assert.assertFalse(thread.isAlive());
+    }
+}
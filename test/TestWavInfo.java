@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.actg.createsfz.WavInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test reading WAV headers and chunks.
+ */
+public class TestWavInfo {
+
+    public TestWavInfo() {
+    }
+
+    protected File writeWav(int frames, boolean smpl) throws IOException {
+        return writeWav(frames, smpl, 62);
+    }
+
+    /**
+     * Write a 16 bit stereo WAV file with an unknown chunk before the data, and
+     * optionally a smpl chunk with a unity note and one loop after it.
+     */
+    protected File writeWav(int frames, boolean smpl, int unityNote) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1024 + frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(0).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16);
+        b.putShort((short) 1).putShort((short) 2).putInt(48000).putInt(48000 * 4).putShort((short) 4).putShort((short) 16);
+        b.put("junk".getBytes()).putInt(3).put(new byte[]{1, 2, 3, 0}); // odd size, padded
+        b.put("data".getBytes()).putInt(frames * 4).put(new byte[frames * 4]);
+        if (smpl) {
+            b.put("smpl".getBytes()).putInt(60);
+            b.putInt(0).putInt(0).putInt(20833).putInt(unityNote).putInt(0).putInt(0).putInt(0).putInt(1).putInt(0);
+            b.putInt(0).putInt(0).putInt(100).putInt(900).putInt(0).putInt(0);
+        }
+        b.putInt(4, b.position() - 8);
+        File f = File.createTempFile("TestWavInfo", ".wav");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b.array(), 0, b.position());
+        }
+        return f;
+    }
+
+    @Test
+    public void testFormatAndData() throws IOException {
+        WavInfo w = WavInfo.read(writeWav(1000, false));
+        Assert.assertEquals(48000, w.getSampleRate());
+        Assert.assertEquals(2, w.getChannels());
+        Assert.assertEquals(16, w.getBitsPerSample());
+        Assert.assertEquals(1000, w.getFrames());
+        Assert.assertEquals(12 + 24 + 12 + 8, w.getDataOffset());
+        Assert.assertEquals(-1, w.getRootNote());
+        Assert.assertFalse(w.hasLoop());
+    }
+
+    @Test
+    public void testSmplChunk() throws IOException {
+        WavInfo w = WavInfo.read(writeWav(1000, true));
+        Assert.assertEquals(62, w.getRootNote());
+        Assert.assertTrue(w.hasLoop());
+        Assert.assertEquals(100, w.getLoopStart());
+        Assert.assertEquals(900, w.getLoopEnd());
+    }
+
+    @Test
+    public void testSmplUnityNoteOutOfRange() throws IOException {
+        for (int unityNote : new int[]{128, 5000, -1}) {
+            WavInfo w = WavInfo.read(writeWav(1000, true, unityNote));
+            Assert.assertEquals(-1, w.getRootNote());
+            // The loop is still read:
+            Assert.assertTrue(w.hasLoop());
+            Assert.assertEquals(900, w.getLoopEnd());
+        }
+        Assert.assertEquals(0, WavInfo.read(writeWav(1000, true, 0)).getRootNote());
+        Assert.assertEquals(127, WavInfo.read(writeWav(1000, true, 127)).getRootNote());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotWav() throws IOException {
+        File f = File.createTempFile("TestWavInfo", ".wav");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write("not a wav file at all".getBytes());
+        }
+        WavInfo.read(f);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2019, 2022, Kevin Walls
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.actg.createsfz.ZipScanner;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test listing ZIP archives from their central directory, and extracting
+ * only some of their files.
+ */
+public class TestZipScanner {
+
+    protected static byte[] data(int seed, int length) {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    protected File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("TestZipScanner").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    protected void put(ZipOutputStream zip, String name, byte[] data, boolean stored) throws IOException {
+        ZipEntry e = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            e.setMethod(ZipEntry.STORED);
+            e.setSize(data.length);
+            e.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(e);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    @Test
+    public void testListAndExtract() throws IOException {
+        File zipFile = new File(tempDir(), "Lib.zip");
+        zipFile.deleteOnExit();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zip.setComment("a comment after the central directory");
+            zip.putNextEntry(new ZipEntry("Lib/"));
+            put(zip, "Lib/Piano_Soft-C3-1.wav", data(1, 100000), false);
+            put(zip, "Lib/Piano_Hard-C3-1.wav", data(2, 50000), true);
+            put(zip, "Lib/readme.txt", data(3, 1000), false);
+            put(zip, "../outside.wav", data(4, 10), false);
+        }
+        File extractDir = tempDir();
+        try (ZipScanner scanner = new ZipScanner(zipFile, extractDir, 2)) {
+            Assert.assertEquals(Arrays.asList("Lib/Piano_Hard-C3-1.wav", "Lib/Piano_Soft-C3-1.wav", "Lib/readme.txt"),
+                    scanner.list());
+            Assert.assertEquals(100000, scanner.getEntry("Lib/Piano_Soft-C3-1.wav").getSize());
+            Assert.assertEquals(2, scanner.extract(Arrays.asList("Lib/Piano_Soft-C3-1.wav", "Lib/Piano_Hard-C3-1.wav")));
+            File soft = new File(extractDir, "Lib/Piano_Soft-C3-1.wav");
+            File hard = new File(extractDir, "Lib/Piano_Hard-C3-1.wav");
+            soft.deleteOnExit();
+            hard.deleteOnExit();
+            new File(extractDir, "Lib").deleteOnExit();
+            Assert.assertArrayEquals(data(1, 100000), Files.readAllBytes(soft.toPath()));
+            Assert.assertArrayEquals(data(2, 50000), Files.readAllBytes(hard.toPath()));
+            Assert.assertFalse(new File(extractDir, "Lib/readme.txt").exists());
+            // Already extracted:
+            Assert.assertEquals(0, scanner.extract(Arrays.asList("Lib/Piano_Soft-C3-1.wav")));
+            Assert.assertEquals(scanner.getEntry("Lib/Piano_Soft-C3-1.wav").getTime(), soft.lastModified());
+            // Changed since, with the same size, so extracted again:
+            Files.write(soft.toPath(), data(5, 100000));
+            soft.setLastModified(soft.lastModified() + 10000);
+            Assert.assertEquals(1, scanner.extract(Arrays.asList("Lib/Piano_Soft-C3-1.wav")));
+            Assert.assertArrayEquals(data(1, 100000), Files.readAllBytes(soft.toPath()));
+        }
+    }
+
+    @Test
+    public void testZip64() throws IOException {
+        // More than 65535 entries needs the ZIP64 end of central directory:
+        File zipFile = new File(tempDir(), "Many.zip");
+        zipFile.deleteOnExit();
+        int count = 70000;
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            for (int i = 0; i < count; i++) {
+                put(zip, String.format("S_Soft-C3-%05d.wav", i), new byte[]{(byte) i}, true);
+            }
+        }
+        File extractDir = tempDir();
+        try (ZipScanner scanner = new ZipScanner(zipFile, extractDir, 1)) {
+            Assert.assertEquals(count, scanner.list().size());
+            String last = String.format("S_Soft-C3-%05d.wav", count - 1);
+            Assert.assertEquals(last, scanner.list().get(count - 1));
+            scanner.extract(Arrays.asList(last));
+            File f = new File(extractDir, last);
+            f.deleteOnExit();
+            Assert.assertArrayEquals(new byte[]{(byte) (count - 1)}, Files.readAllBytes(f.toPath()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotZip() throws IOException {
+        File f = File.createTempFile("TestZipScanner", ".zip");
+        f.deleteOnExit();
+        Files.write(f.toPath(), data(5, 1000));
+        new ZipScanner(f, tempDir(), 1).close();
+    }
+}